@@ -71,4 +71,34 @@ public interface StepUpAccount {
      */
     public String getTarget();
 
+    /**
+     * Delivery status of the last challenge sent. Not relevant to all
+     * implementations.
+     * 
+     * @return delivery status or null if not tracked.
+     */
+    public default ChallengeDeliveryStatus getDeliveryStatus() {
+        return null;
+    }
+
+    /**
+     * Whether the target is a secret, such as a TOTP seed, not to be disclosed
+     * once stored.
+     * 
+     * @return true if the target is a secret.
+     */
+    public default boolean isTargetSecret() {
+        return false;
+    }
+
+    /**
+     * Whether {@link #sendChallenge()} delivers a challenge to the user, for
+     * example by mail or SMS.
+     * 
+     * @return true if a challenge is delivered to the user.
+     */
+    public default boolean isSendingChallenge() {
+        return true;
+    }
+
 }
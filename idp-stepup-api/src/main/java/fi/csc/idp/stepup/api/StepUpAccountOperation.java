@@ -0,0 +1,121 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.api;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.shared.logic.Constraint;
+
+/** Add or remove operation on a {@link StepUpAccountStorage}, for batches. */
+public final class StepUpAccountOperation {
+
+    /** Type of the operation. */
+    public enum Type {
+        /** Add the account. */
+        ADD,
+        /** Remove the account. */
+        REMOVE
+    }
+
+    /** Type of the operation. */
+    @Nonnull
+    private final Type type;
+
+    /** Account added or removed. */
+    @Nonnull
+    private final StepUpAccount account;
+
+    /** Key the account is stored by. */
+    @Nonnull
+    private final String key;
+
+    /**
+     * Constructor.
+     * 
+     * @param operationType type of the operation
+     * @param stepUpAccount account added or removed
+     * @param accountKey key the account is stored by
+     */
+    public StepUpAccountOperation(@Nonnull Type operationType, @Nonnull StepUpAccount stepUpAccount,
+            @Nonnull String accountKey) {
+        type = Constraint.isNotNull(operationType, "Operation type must not be null");
+        account = Constraint.isNotNull(stepUpAccount, "Account must not be null");
+        key = Constraint.isNotNull(accountKey, "Key must not be null");
+    }
+
+    /**
+     * Operation adding the account.
+     * 
+     * @param account account to add
+     * @param key key the account is stored by
+     * @return operation
+     */
+    @Nonnull
+    public static StepUpAccountOperation add(@Nonnull StepUpAccount account, @Nonnull String key) {
+        return new StepUpAccountOperation(Type.ADD, account, key);
+    }
+
+    /**
+     * Operation removing the account.
+     * 
+     * @param account account to remove
+     * @param key key the account is stored by
+     * @return operation
+     */
+    @Nonnull
+    public static StepUpAccountOperation remove(@Nonnull StepUpAccount account, @Nonnull String key) {
+        return new StepUpAccountOperation(Type.REMOVE, account, key);
+    }
+
+    /**
+     * Get the type of the operation.
+     * 
+     * @return type of the operation
+     */
+    @Nonnull
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Get the account added or removed.
+     * 
+     * @return account added or removed
+     */
+    @Nonnull
+    public StepUpAccount getAccount() {
+        return account;
+    }
+
+    /**
+     * Get the key the account is stored by.
+     * 
+     * @return key the account is stored by
+     */
+    @Nonnull
+    public String getKey() {
+        return key;
+    }
+
+}
@@ -23,6 +23,8 @@
 
 package fi.csc.idp.stepup.api;
 
+import java.util.Collections;
+import java.util.List;
 
 /** Interface for managing persistent accounts. */
 public interface StepUpAccountStorage {
@@ -67,4 +69,46 @@ public interface StepUpAccountStorage {
      *             if something unexpected occurs.
      */
     <T> StepUpAccount getAccount(String key, Class<T> aClass) throws Exception;
+
+    /**
+     * Get all accounts stored by key without removing them. Storages keeping
+     * several accounts by key override this, the default returns only the account
+     * returned by {@link #getAccount}.
+     * 
+     * @param key
+     *            the accounts have been stored by
+     * @param aClass
+     *            The account implementation expected. Must implement
+     *            StepUpAccount.
+     * @param <T>
+     *            Template for the implementation expected.
+     * @return accounts oldest first, empty if none
+     * @throws Exception
+     *             if something unexpected occurs.
+     */
+    default <T> List<StepUpAccount> getAccounts(String key, Class<T> aClass) throws Exception {
+        final StepUpAccount account = getAccount(key, aClass);
+        return account == null ? Collections.emptyList() : Collections.singletonList(account);
+    }
+
+    /**
+     * Execute add and remove operations in order, for instance when
+     * provisioning accounts in bulk. Implementations may execute the operations
+     * in fewer round trips than calling {@link #add} and {@link #remove} for
+     * each.
+     * 
+     * @param operations
+     *            operations to execute.
+     * @throws Exception
+     *             if something unexpected occurs.
+     */
+    default void executeBatch(final List<StepUpAccountOperation> operations) throws Exception {
+        for (StepUpAccountOperation operation : operations) {
+            if (operation.getType() == StepUpAccountOperation.Type.ADD) {
+                add(operation.getAccount(), operation.getKey());
+            } else {
+                remove(operation.getAccount(), operation.getKey());
+            }
+        }
+    }
 }
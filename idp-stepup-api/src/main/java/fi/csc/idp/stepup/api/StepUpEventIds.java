@@ -52,6 +52,21 @@ public final class StepUpEventIds {
     @NotEmpty
     public static final String EVENTID_INVALID_RESPONSE = "StepUpWrongResponse";
 
+    /** event id for case of user having too many failed responses. */
+    @Nonnull
+    @NotEmpty
+    public static final String EVENTID_RETRY_LATER = "StepUpRetryLater";
+
+    /** event id for case of user selecting an account not available. */
+    @Nonnull
+    @NotEmpty
+    public static final String EVENTID_INVALID_SELECTION = "StepUpInvalidSelection";
+
+    /** event id for case of user selecting the account already active. */
+    @Nonnull
+    @NotEmpty
+    public static final String EVENTID_UNCHANGED_SELECTION = "StepUpUnchangedSelection";
+
     /** event id for case of no user information. */
     @Nonnull
     @NotEmpty
@@ -23,12 +23,18 @@
 
 package fi.csc.idp.stepup.api;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 
 import net.shibboleth.idp.attribute.IdPAttribute;
 
-/** Interface for managing step up methods. */
+/**
+ * Interface for managing step up methods. Implementations are shared by all
+ * requests and must be thread safe, the per request state is held by the
+ * account created.
+ */
 public interface StepUpMethod {
 
 	/** string code for addAccount(). */
@@ -38,26 +44,36 @@ public interface StepUpMethod {
 	public static final String REMOVE_ACCOUNT = "removeaccount";
 
 	/**
+	 * Creates the account of the user.
 	 * 
 	 * @param attributes
-	 * @return
+	 *            resolved attributes of the user
+	 * @return account or null if the user has no account for the method
 	 * @throws Exception
+	 *             if something unexpected occurred
 	 */
-	public boolean initialize(Map<String, IdPAttribute> attributes) throws Exception;
+	public StepUpAccount createAccount(Map<String, IdPAttribute> attributes) throws Exception;
 
 	/**
-	 * Name of the step up method.
+	 * Creates all the accounts of the user the user may choose from.
 	 * 
-	 * @return name of the method.
+	 * @param attributes
+	 *            resolved attributes of the user
+	 * @return accounts, empty if the user has no account for the method
+	 * @throws Exception
+	 *             if something unexpected occurred
 	 */
-	public String getName();
-	
+	public default List<StepUpAccount> createAccounts(Map<String, IdPAttribute> attributes) throws Exception {
+		final StepUpAccount account = createAccount(attributes);
+		return account == null ? Collections.emptyList() : Collections.singletonList(account);
+	}
+
 	/**
-	 * Account of the method.
+	 * Name of the step up method.
 	 * 
-	 * @return account
+	 * @return name of the method.
 	 */
-	public StepUpAccount getAccount();
+	public String getName();
 
 	/**
 	 * Adds a new account.
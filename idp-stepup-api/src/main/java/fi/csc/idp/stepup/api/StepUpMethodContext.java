@@ -22,6 +22,9 @@
  */
 package fi.csc.idp.stepup.api;
 
+import java.util.Collections;
+import java.util.List;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -46,6 +49,10 @@ public class StepUpMethodContext extends BaseContext {
     @Nullable
     private StepUpAccount account;
 
+    /** Step up accounts the user may choose from. */
+    @Nonnull
+    private List<StepUpAccount> accounts = Collections.emptyList();
+
     /** Active step up method. */
     @Nullable
     private StepUpMethod method;
@@ -107,4 +114,23 @@ public class StepUpMethodContext extends BaseContext {
         this.account = account;
     }
 
+    /**
+     * Get step up accounts the user may choose from.
+     * 
+     * @return step up accounts, empty if none set.
+     */
+    @Nonnull
+    public List<StepUpAccount> getStepUpAccounts() {
+        return accounts;
+    }
+
+    /**
+     * Set step up accounts the user may choose from.
+     * 
+     * @param stepUpAccounts step up accounts
+     */
+    public void setStepUpAccounts(@Nullable List<StepUpAccount> stepUpAccounts) {
+        accounts = stepUpAccounts == null ? Collections.emptyList() : stepUpAccounts;
+    }
+
 }
@@ -0,0 +1,306 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.messaging.context.BaseContext;
+
+/**
+ * Context holding the trace of a step up login, the spans of the flow phases.
+ * Attached to the {@link StepUpMethodContext} of the login. A span is timed
+ * from its start to its end with the same name, a span started again before
+ * its end restarting it. At most {@link #MAX_SPANS} spans are kept.
+ */
+public class StepUpTraceContext extends BaseContext {
+
+    /** Maximum number of spans of a trace. */
+    public static final int MAX_SPANS = 32;
+
+    /** Identifier of the trace, 32 hex characters. */
+    @Nonnull
+    private final String traceId;
+
+    /** Start time of the trace in microseconds since the epoch. */
+    private final long startEpochMicros;
+
+    /** Start time of the trace in nanoseconds of {@link System#nanoTime()}. */
+    private final long startNanos;
+
+    /** Spans of the trace in start order. */
+    @Nonnull
+    private final List<Span> spans = new ArrayList<>();
+
+    /** Number of spans not kept as the trace was full. */
+    private int droppedSpans;
+
+    /** End time of the trace in nanoseconds of {@link System#nanoTime()}, 0 if not completed. */
+    private long endNanos;
+
+    /** Constructor. */
+    public StepUpTraceContext() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        traceId = String.format("%016x%016x", random.nextLong(), random.nextLong());
+        startEpochMicros = System.currentTimeMillis() * 1000;
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Constructor copying a trace.
+     * 
+     * @param source trace to copy
+     */
+    private StepUpTraceContext(@Nonnull StepUpTraceContext source) {
+        traceId = source.traceId;
+        startEpochMicros = source.startEpochMicros;
+        startNanos = source.startNanos;
+        droppedSpans = source.droppedSpans;
+        endNanos = source.endNanos;
+        for (Span span : source.spans) {
+            final Span copy = new Span(span.name, span.start);
+            copy.end = span.end;
+            copy.outcome = span.outcome;
+            spans.add(copy);
+        }
+    }
+
+    /**
+     * Copy the trace detached from the contexts of the login, for keeping it
+     * after the login without the contexts.
+     * 
+     * @return copy of the trace having no parent
+     */
+    @Nonnull
+    public StepUpTraceContext copy() {
+        return new StepUpTraceContext(this);
+    }
+
+    /**
+     * Get the identifier of the trace.
+     * 
+     * @return identifier of the trace, 32 hex characters
+     */
+    @Nonnull
+    public String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * Get the start time of the trace.
+     * 
+     * @return start time in microseconds since the epoch
+     */
+    public long getStartEpochMicros() {
+        return startEpochMicros;
+    }
+
+    /**
+     * Get the start time of the trace.
+     * 
+     * @return start time in nanoseconds of {@link System#nanoTime()}
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * Start a span.
+     * 
+     * @param name name of the span
+     * @return the span, null if the trace is full
+     */
+    @Nullable
+    public Span startSpan(@Nonnull String name) {
+        final Span open = getOpenSpan(name);
+        if (open != null) {
+            open.start = System.nanoTime();
+            return open;
+        }
+        if (spans.size() == MAX_SPANS) {
+            droppedSpans++;
+            return null;
+        }
+        final Span span = new Span(name, System.nanoTime());
+        spans.add(span);
+        return span;
+    }
+
+    /**
+     * End the open span of the name.
+     * 
+     * @param name name of the span
+     * @param outcome outcome of the span, for instance the event of the flow
+     *            state
+     * @return the span, null if no span of the name is open
+     */
+    @Nullable
+    public Span endSpan(@Nonnull String name, @Nullable String outcome) {
+        final Span span = getOpenSpan(name);
+        if (span != null) {
+            span.end = System.nanoTime();
+            span.outcome = outcome;
+        }
+        return span;
+    }
+
+    /**
+     * Get the spans of the trace.
+     * 
+     * @return spans in start order
+     */
+    @Nonnull
+    public List<Span> getSpans() {
+        return Collections.unmodifiableList(spans);
+    }
+
+    /**
+     * Get the number of spans not kept as the trace was full.
+     * 
+     * @return number of dropped spans
+     */
+    public int getDroppedSpans() {
+        return droppedSpans;
+    }
+
+    /**
+     * Mark the trace completed.
+     * 
+     * @return whether the trace was not completed before
+     */
+    public boolean complete() {
+        if (endNanos != 0) {
+            return false;
+        }
+        endNanos = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * Whether the trace has been completed.
+     * 
+     * @return whether the trace has been completed
+     */
+    public boolean isCompleted() {
+        return endNanos != 0;
+    }
+
+    /**
+     * Get the duration of the trace.
+     * 
+     * @return duration in nanoseconds, -1 if the trace is not completed
+     */
+    public long getDurationNanos() {
+        return endNanos == 0 ? -1 : endNanos - startNanos;
+    }
+
+    /**
+     * Get the latest open span of the name.
+     * 
+     * @param name name of the span
+     * @return the span, null if none is open
+     */
+    @Nullable
+    private Span getOpenSpan(@Nonnull String name) {
+        for (int i = spans.size() - 1; i >= 0; i--) {
+            final Span span = spans.get(i);
+            if (span.end == 0 && span.name.equals(name)) {
+                return span;
+            }
+        }
+        return null;
+    }
+
+    /** Timed phase of the login. */
+    public static final class Span {
+
+        /** Name of the span. */
+        @Nonnull
+        private final String name;
+
+        /** Start time in nanoseconds of {@link System#nanoTime()}. */
+        private long start;
+
+        /** End time in nanoseconds of {@link System#nanoTime()}, 0 if open. */
+        private long end;
+
+        /** Outcome of the span. */
+        @Nullable
+        private String outcome;
+
+        /**
+         * Constructor.
+         * 
+         * @param spanName name of the span
+         * @param startNanos start time in nanoseconds
+         */
+        private Span(@Nonnull String spanName, long startNanos) {
+            name = spanName;
+            start = startNanos;
+        }
+
+        /**
+         * Get the name of the span.
+         * 
+         * @return name of the span
+         */
+        @Nonnull
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the start time of the span.
+         * 
+         * @return start time in nanoseconds of {@link System#nanoTime()}
+         */
+        public long getStartNanos() {
+            return start;
+        }
+
+        /**
+         * Get the duration of the span.
+         * 
+         * @return duration in nanoseconds, -1 if the span is open
+         */
+        public long getDurationNanos() {
+            return end == 0 ? -1 : end - start;
+        }
+
+        /**
+         * Get the outcome of the span.
+         * 
+         * @return outcome of the span, null if not known
+         */
+        @Nullable
+        public String getOutcome() {
+            return outcome;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.api;
+
+/**
+ * Interface for registering one time codes used, to reject their reuse.
+ * Implementations may be local to the node or shared by several nodes.
+ */
+public interface UsedCodeRegistry {
+
+    /**
+     * Marks the code of the key at the time step used.
+     * 
+     * @param key
+     *            identifying the secret the code is derived from. Should not be
+     *            the secret itself.
+     * @param timeStep
+     *            the code is valid for.
+     * @param expires
+     *            time in milliseconds after which the code is no more accepted
+     *            and need not to be remembered.
+     * @return true if the code had not been used, false if the code is reused.
+     */
+    boolean markUsed(final String key, final long timeStep, final long expires);
+}
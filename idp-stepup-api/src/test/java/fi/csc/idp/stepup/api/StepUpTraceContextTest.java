@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.api;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class StepUpTraceContextTest {
+
+    private StepUpTraceContext traceContext;
+
+    @BeforeMethod
+    public void setUp() {
+        traceContext = new StepUpTraceContext();
+    }
+
+    @Test
+    public void testInitial() {
+        Assert.assertTrue(traceContext.getTraceId().matches("[0-9a-f]{32}"));
+        Assert.assertNotEquals(new StepUpTraceContext().getTraceId(), traceContext.getTraceId());
+        Assert.assertTrue(traceContext.getSpans().isEmpty());
+        Assert.assertFalse(traceContext.isCompleted());
+        Assert.assertEquals(traceContext.getDurationNanos(), -1);
+    }
+
+    @Test
+    public void testSpans() {
+        Assert.assertNull(traceContext.endSpan("Initialize", "proceed"));
+        traceContext.startSpan("Initialize");
+        Assert.assertEquals(traceContext.getSpans().get(0).getDurationNanos(), -1);
+        Assert.assertNotNull(traceContext.endSpan("Initialize", "proceed"));
+        traceContext.startSpan("Display");
+        traceContext.endSpan("Display", null);
+        traceContext.startSpan("Display");
+        Assert.assertEquals(traceContext.getSpans().size(), 3);
+        Assert.assertEquals(traceContext.getSpans().get(0).getOutcome(), "proceed");
+        Assert.assertTrue(traceContext.getSpans().get(1).getDurationNanos() >= 0);
+        Assert.assertEquals(traceContext.getSpans().get(2).getDurationNanos(), -1);
+    }
+
+    @Test
+    public void testRestart() {
+        traceContext.startSpan("Verify");
+        traceContext.startSpan("Verify");
+        Assert.assertEquals(traceContext.getSpans().size(), 1);
+    }
+
+    @Test
+    public void testMaxSpans() {
+        for (int i = 0; i < StepUpTraceContext.MAX_SPANS + 2; i++) {
+            traceContext.startSpan("span" + i);
+        }
+        Assert.assertEquals(traceContext.getSpans().size(), StepUpTraceContext.MAX_SPANS);
+        Assert.assertEquals(traceContext.getDroppedSpans(), 2);
+    }
+
+    @Test
+    public void testComplete() {
+        Assert.assertTrue(traceContext.complete());
+        Assert.assertFalse(traceContext.complete());
+        Assert.assertTrue(traceContext.isCompleted());
+        Assert.assertTrue(traceContext.getDurationNanos() >= 0);
+    }
+
+    @Test
+    public void testCopy() {
+        new StepUpMethodContext().addSubcontext(traceContext);
+        traceContext.startSpan("Initialize");
+        traceContext.endSpan("Initialize", "proceed");
+        traceContext.startSpan("Display");
+        traceContext.complete();
+        StepUpTraceContext copy = traceContext.copy();
+        Assert.assertNotNull(traceContext.getParent());
+        Assert.assertNull(copy.getParent());
+        Assert.assertEquals(copy.getTraceId(), traceContext.getTraceId());
+        Assert.assertEquals(copy.getStartEpochMicros(), traceContext.getStartEpochMicros());
+        Assert.assertEquals(copy.getDurationNanos(), traceContext.getDurationNanos());
+        Assert.assertEquals(copy.getSpans().size(), 2);
+        Assert.assertEquals(copy.getSpans().get(0).getOutcome(), "proceed");
+        Assert.assertEquals(copy.getSpans().get(1).getDurationNanos(), -1);
+        traceContext.endSpan("Display", "rendered");
+        Assert.assertEquals(copy.getSpans().get(1).getDurationNanos(), -1);
+    }
+}
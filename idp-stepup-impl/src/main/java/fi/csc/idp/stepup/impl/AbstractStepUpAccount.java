@@ -152,7 +152,16 @@ public abstract class AbstractStepUpAccount implements StepUpAccount {
         if (challengeVerifier == null) {
             throw new Exception("Bean not configured with ChallengeVerifier");
         }
-        return challengeVerifier.verify(challenge, response, null);
+        final long started = StepUpMetrics.start();
+        final boolean verified;
+        try {
+            verified = challengeVerifier.verify(challenge, response, null);
+        } catch (Exception e) {
+            StepUpMetrics.recordImplementation(StepUpMetrics.VERIFIER, challengeVerifier, e, started);
+            throw e;
+        }
+        StepUpMetrics.recordImplementation(StepUpMetrics.VERIFIER, challengeVerifier, null, started);
+        return verified;
     }
 
     /**
@@ -28,13 +28,15 @@ import java.util.Map;
 import javax.annotation.Nonnull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.ApplicationContext;
 import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpAccountFactory;
 import fi.csc.idp.stepup.api.StepUpMethod;
 import net.shibboleth.idp.attribute.IdPAttribute;
 
-/** Base class for step up method/manager implementations. */
+/**
+ * Base class for step up method/manager implementations. The manager holds no
+ * per request state and is shared by all requests.
+ */
 public class AbstractStepUpAccountManager implements StepUpMethod {
 
     /** Class logger. */
@@ -44,15 +46,8 @@ public class AbstractStepUpAccountManager implements StepUpMethod {
     /** Name for the method. */
     private String name;
 
-    /** Account of the method. */
-    private StepUpAccount account;
-
-    /** bean id of account bean. */
-    private String accountID;
-
-    /** Application context. */
-    @Autowired
-    private ApplicationContext appContext;
+    /** Factory creating the accounts. */
+    private StepUpAccountFactory accountFactory;
 
     /**
      * Default constructor.
@@ -62,39 +57,21 @@ public class AbstractStepUpAccountManager implements StepUpMethod {
     }
 
     /**
-     * Set application context for test cases.
-     * 
-     * @param ctx application context
-     */
-    public void setAppContext(ApplicationContext ctx) {
-        this.appContext = ctx;
-    }
-
-    /**
-     * Get the bean id of the class implementing the account.
-     * 
-     * @return bean id
-     */
-    public String getAccountID() {
-        return accountID;
-    }
-
-    /**
-     * Set the bean id of the class implementing the account.
+     * Get the factory creating the accounts.
      * 
-     * @param id is bean id
+     * @return factory creating the accounts
      */
-    public void setAccountID(String id) {
-        this.accountID = id;
+    public StepUpAccountFactory getAccountFactory() {
+        return accountFactory;
     }
 
     /**
-     * Get the application context.
+     * Set the factory creating the accounts.
      * 
-     * @return application context
+     * @param factory creating the accounts
      */
-    public ApplicationContext getAppContext() {
-        return appContext;
+    public void setAccountFactory(StepUpAccountFactory factory) {
+        this.accountFactory = factory;
     }
 
     /**
@@ -142,32 +119,35 @@ public class AbstractStepUpAccountManager implements StepUpMethod {
     }
 
     /**
-     * Add a one default account.
+     * Create a one default account.
      * 
      * @param attributes not used.
-     * @return true if successful
+     * @return new account
+     * @throws Exception if the account factory is not set
      */
     @Override
-    public boolean initialize(Map<String, IdPAttribute> attributes) throws Exception {
+    public StepUpAccount createAccount(Map<String, IdPAttribute> attributes) throws Exception {
 
-        account = (StepUpAccount) getAppContext().getBean(getAccountID());
-        return true;
+        return newAccount();
     }
 
     /**
-     * Get the default account.
+     * Create a new account using the account factory. An account with no name is
+     * named after the method.
      * 
-     * @return the default account, may be null.
+     * @return new account
+     * @throws Exception if the account factory is not set
      */
-    @Override
-    public StepUpAccount getAccount() {
-
+    protected StepUpAccount newAccount() throws Exception {
+
+        if (accountFactory == null) {
+            throw new Exception("No account factory defined");
+        }
+        final StepUpAccount account = accountFactory.create();
+        if (account.getName() == null) {
+            account.setName(name);
+        }
         return account;
     }
 
-    protected void setAccount(StepUpAccount account) {
-
-        this.account = account;
-    }
-
-}
\ No newline at end of file
+}
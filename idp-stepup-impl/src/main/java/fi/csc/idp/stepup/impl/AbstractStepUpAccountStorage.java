@@ -0,0 +1,59 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpAccountStorage;
+
+/** Base class for step up account storage implementations. */
+public abstract class AbstractStepUpAccountStorage implements StepUpAccountStorage {
+
+    /**
+     * Instantiate an account of the expected implementation from the stored name
+     * and target.
+     * 
+     * @param aClass the account implementation expected
+     * @param name stored name of the account
+     * @param target stored target of the account
+     * @param <T> Template for the implementation expected.
+     * @return account
+     * @throws Exception if the class does not implement StepUpAccount or cannot be
+     *             instantiated
+     */
+    @Nonnull
+    protected <T> StepUpAccount newAccount(@Nonnull Class<T> aClass, @Nullable String name,
+            @Nullable String target) throws Exception {
+        if (!StepUpAccount.class.isAssignableFrom(aClass)) {
+            throw new Exception("Class " + aClass.getName() + " does not implement StepUpAccount");
+        }
+        final StepUpAccount account = (StepUpAccount) aClass.getDeclaredConstructor().newInstance();
+        account.setName(name);
+        account.setTarget(target);
+        return account;
+    }
+
+}
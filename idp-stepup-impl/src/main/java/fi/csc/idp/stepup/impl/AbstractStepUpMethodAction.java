@@ -24,6 +24,7 @@
 package fi.csc.idp.stepup.impl;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import net.shibboleth.idp.authn.AbstractAuthenticationAction;
 import net.shibboleth.idp.authn.context.AuthenticationContext;
 import org.opensaml.profile.action.ActionSupport;
@@ -46,6 +47,9 @@ abstract class AbstractStepUpMethodAction extends AbstractAuthenticationAction {
     /** StepUpMethodContext Ctx. */
     private StepUpMethodContext stepUpMethodCtx;
 
+    /** Start time of the action. */
+    private long started;
+
     /**
      * Returns the StepUpMethodContext context.
      * 
@@ -56,11 +60,35 @@ abstract class AbstractStepUpMethodAction extends AbstractAuthenticationAction {
         return stepUpMethodCtx;
     }
 
+    /**
+     * Returns the name of the step up method of the context.
+     * 
+     * @return name of the step up method, null if not known
+     */
+    @Nullable
+    protected String getStepUpMethodName() {
+        if (stepUpMethodCtx == null || stepUpMethodCtx.getStepUpMethod() == null) {
+            return null;
+        }
+        return stepUpMethodCtx.getStepUpMethod().getName();
+    }
+
+    /**
+     * Record the time and outcome of the action to {@link StepUpMetrics}.
+     * 
+     * @param profileRequestContext profile request context
+     */
+    protected void recordMetrics(@Nonnull final ProfileRequestContext profileRequestContext) {
+        StepUpMetrics.recordAction(getClass().getSimpleName(), profileRequestContext, getStepUpMethodName(),
+                started);
+    }
+
     /** {@inheritDoc} */
     @Override
     protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext,
             @Nonnull final AuthenticationContext authenticationContext) {
 
+        started = StepUpMetrics.start();
         if (!super.doPreExecute(profileRequestContext, authenticationContext)) {
             return false;
         }
@@ -68,6 +96,7 @@ abstract class AbstractStepUpMethodAction extends AbstractAuthenticationAction {
         if (stepUpMethodCtx == null) {
             log.error("{} could not get stepup method context", getLogPrefix());
             ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EVENTID_MISSING_STEPUPMETHODCONTEXT);
+            recordMetrics(profileRequestContext);
             return false;
         }
         return true;
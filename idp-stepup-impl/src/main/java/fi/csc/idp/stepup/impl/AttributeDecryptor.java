@@ -24,19 +24,60 @@
 package fi.csc.idp.stepup.impl;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * Decrypts attribute values. Values in envelope of form
+ * <code>v1.&lt;key id&gt;.&lt;base64url(nonce | ciphertext)&gt;</code> are
+ * decrypted with AES-GCM using the key of the key id from the keyring, the
+ * envelope prefix being authenticated as associated data. Several keys may be
+ * in the keyring at the same time, so that the keys can be rotated without
+ * re-encrypting all values at once. Other values are decrypted with the single
+ * configured key and cipher.
+ */
 public class AttributeDecryptor {
 
+    /** Prefix of the versioned envelope. */
+    private static final String ENVELOPE_V1 = "v1.";
+
+    /** Cipher of the versioned envelope. */
+    private static final String GCM_CIPHER = "AES/GCM/NoPadding";
+
+    /** Length of the nonce in bytes. */
+    private static final int GCM_NONCE_LENGTH = 12;
+
+    /** Length of the authentication tag in bits. */
+    private static final int GCM_TAG_LENGTH = 128;
+
+    /** Source of nonces for encryption. */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /** Cipher of each thread for the versioned envelope. */
+    private static final ThreadLocal<Cipher> GCM_CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(GCM_CIPHER);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(GCM_CIPHER + " not supported", e);
+        }
+    });
+
     private String key = "";
 
     private String cipherName = "AES/ECB/PKCS5Padding";
@@ -45,28 +86,229 @@ public class AttributeDecryptor {
 
     private String digestName = "SHA-256";
 
+    /** Key derived from the configured key, null until first needed. */
+    private volatile SecretKeySpec keySpec;
+
+    /** Cipher of each thread, initialized for decryption. */
+    private final ThreadLocal<InitializedCipher> ciphers = new ThreadLocal<>();
+
+    /** Keys of the versioned envelope by key id. */
+    private volatile Map<String, SecretKeySpec> keyring = Collections.emptyMap();
+
     public void setKeySpecName(String keySpecName) {
         this.keySpecName = keySpecName;
+        keySpec = null;
     }
 
     public void setCipherName(String cipherName) {
         this.cipherName = cipherName;
+        keySpec = null;
     }
 
     public void setDigestName(String digestName) {
         this.digestName = digestName;
+        keySpec = null;
     }
 
     public void setKey(String key) {
         this.key = key;
+        keySpec = null;
     }
 
+    /**
+     * Set the keyring of the versioned envelope. The keyring is given as comma
+     * separated list of <code>&lt;key id&gt;=&lt;key&gt;</code> pairs. The
+     * AES keys are derived from the keys by SHA-256.
+     * 
+     * @param keys comma separated list of key id and key pairs
+     * @throws NoSuchAlgorithmException if SHA-256 is not available
+     */
+    public void setKeyring(String keys) throws NoSuchAlgorithmException {
+        final Map<String, SecretKeySpec> ring = new HashMap<>();
+        if (keys != null) {
+            for (final String entry : keys.split(",")) {
+                if (entry.isBlank()) {
+                    continue;
+                }
+                final int separator = entry.indexOf('=');
+                final String keyId = separator > 0 ? entry.substring(0, separator).trim() : "";
+                if (keyId.isEmpty() || keyId.indexOf('.') >= 0) {
+                    throw new IllegalArgumentException("Keyring entry must be of form keyid=key, key id without '.'");
+                }
+                final MessageDigest sha = MessageDigest.getInstance("SHA-256");
+                ring.put(keyId, new SecretKeySpec(
+                        sha.digest(entry.substring(separator + 1).trim().getBytes(StandardCharsets.UTF_8)), "AES"));
+            }
+        }
+        keyring = Collections.unmodifiableMap(ring);
+    }
+
+    /**
+     * Decrypts the value. Values in versioned envelope are decrypted with the
+     * key of the envelope. Other values are expected to decrypt to form
+     * <code>key:value</code>, the value being returned.
+     * 
+     * @param data encrypted value
+     * @return the value
+     * @throws IllegalArgumentException if the value is not of expected form
+     */
     public String decrypt(String data) throws NoSuchAlgorithmException, NoSuchPaddingException,
             UnsupportedEncodingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-        Cipher cipher = Cipher.getInstance(cipherName);
-        MessageDigest sha = MessageDigest.getInstance(digestName);
-        sha.update(key.getBytes("UTF-8"));
-        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(sha.digest(), keySpecName));
-        return new String(cipher.doFinal(Base64.getDecoder().decode(data))).split(":")[1];
+        if (data.startsWith(ENVELOPE_V1)) {
+            return decryptEnvelope(data);
+        }
+        final byte[] plain;
+        try {
+            plain = getCipher().doFinal(Base64.getDecoder().decode(data));
+        } catch (IllegalBlockSizeException | BadPaddingException e) {
+            // cipher state is undefined after a failure
+            ciphers.remove();
+            throw e;
+        }
+        // ':' is a single byte in UTF-8 and never part of a multibyte sequence
+        int start = 0;
+        while (start < plain.length && plain[start] != ':') {
+            start++;
+        }
+        start++;
+        int end = start;
+        while (end < plain.length && plain[end] != ':') {
+            end++;
+        }
+        if (start > plain.length || (end == start && onlySeparators(plain, end))) {
+            throw new IllegalArgumentException("Decrypted value is not of form key:value");
+        }
+        return new String(plain, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decrypts the value in versioned envelope.
+     * 
+     * @param data value in versioned envelope
+     * @return the value
+     * @throws IllegalArgumentException if the envelope is malformed or the key id is not in keyring
+     */
+    private String decryptEnvelope(String data)
+            throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        final int separator = data.indexOf('.', ENVELOPE_V1.length());
+        if (separator < 0) {
+            throw new IllegalArgumentException("Envelope has no key id");
+        }
+        final SecretKeySpec spec = keyring.get(data.substring(ENVELOPE_V1.length(), separator));
+        if (spec == null) {
+            throw new IllegalArgumentException("Envelope key id is not in keyring");
+        }
+        final byte[] payload = Base64.getUrlDecoder().decode(data.substring(separator + 1));
+        if (payload.length < GCM_NONCE_LENGTH + GCM_TAG_LENGTH / 8) {
+            throw new IllegalArgumentException("Envelope is too short");
+        }
+        final Cipher cipher = GCM_CIPHERS.get();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, spec, new GCMParameterSpec(GCM_TAG_LENGTH, payload, 0, GCM_NONCE_LENGTH));
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new IllegalArgumentException("Envelope nonce is not valid", e);
+        }
+        cipher.updateAAD(data.substring(0, separator + 1).getBytes(StandardCharsets.US_ASCII));
+        return new String(cipher.doFinal(payload, GCM_NONCE_LENGTH, payload.length - GCM_NONCE_LENGTH),
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encrypts the value to versioned envelope.
+     * 
+     * @param keyId id of the key in keyring
+     * @param value to encrypt
+     * @return the value in versioned envelope
+     * @throws GeneralSecurityException if encryption fails
+     * @throws IllegalArgumentException if the key id is not in keyring
+     */
+    public String encrypt(String keyId, String value) throws GeneralSecurityException {
+        final SecretKeySpec spec = keyring.get(keyId);
+        if (spec == null) {
+            throw new IllegalArgumentException("Key id is not in keyring");
+        }
+        final String prefix = ENVELOPE_V1 + keyId + ".";
+        final byte[] nonce = new byte[GCM_NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        final Cipher cipher = GCM_CIPHERS.get();
+        cipher.init(Cipher.ENCRYPT_MODE, spec, new GCMParameterSpec(GCM_TAG_LENGTH, nonce));
+        cipher.updateAAD(prefix.getBytes(StandardCharsets.US_ASCII));
+        final byte[] plain = value.getBytes(StandardCharsets.UTF_8);
+        final byte[] payload = new byte[GCM_NONCE_LENGTH + cipher.getOutputSize(plain.length)];
+        System.arraycopy(nonce, 0, payload, 0, GCM_NONCE_LENGTH);
+        cipher.doFinal(plain, 0, plain.length, payload, GCM_NONCE_LENGTH);
+        return prefix + Base64.getUrlEncoder().withoutPadding().encodeToString(payload);
+    }
+
+    /**
+     * Whether the rest of the value consists of separators only.
+     * 
+     * @param plain decrypted value
+     * @param from  position to start from
+     * @return true if there are only separators from the position on
+     */
+    private static boolean onlySeparators(byte[] plain, int from) {
+        for (int i = from; i < plain.length; i++) {
+            if (plain[i] != ':') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the cipher of the current thread initialized with the current key.
+     * 
+     * @return initialized cipher
+     */
+    private Cipher getCipher() throws NoSuchAlgorithmException, NoSuchPaddingException, UnsupportedEncodingException,
+            InvalidKeyException {
+        final SecretKeySpec spec = getKeySpec();
+        InitializedCipher cipher = ciphers.get();
+        if (cipher == null || cipher.keySpec != spec) {
+            // doFinal resets the cipher to the initialized state, init is needed only for a new key
+            cipher = new InitializedCipher(Cipher.getInstance(cipherName), spec);
+            ciphers.set(cipher);
+        }
+        return cipher.cipher;
+    }
+
+    /**
+     * Get the key derived from the configured key.
+     * 
+     * @return derived key
+     */
+    private SecretKeySpec getKeySpec() throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        SecretKeySpec spec = keySpec;
+        if (spec == null) {
+            MessageDigest sha = MessageDigest.getInstance(digestName);
+            sha.update(key.getBytes("UTF-8"));
+            spec = new SecretKeySpec(sha.digest(), keySpecName);
+            keySpec = spec;
+        }
+        return spec;
+    }
+
+    /** Cipher initialized for decryption with a key. */
+    private static final class InitializedCipher {
+
+        /** Initialized cipher. */
+        private final Cipher cipher;
+
+        /** Key the cipher is initialized with. */
+        private final SecretKeySpec keySpec;
+
+        /**
+         * Constructor.
+         * 
+         * @param uninitialized cipher
+         * @param spec          key to initialize the cipher with
+         * @throws InvalidKeyException if the key is not valid for the cipher
+         */
+        private InitializedCipher(Cipher uninitialized, SecretKeySpec spec) throws InvalidKeyException {
+            uninitialized.init(Cipher.DECRYPT_MODE, spec);
+            cipher = uninitialized;
+            keySpec = spec;
+        }
     }
 }
@@ -23,13 +23,17 @@
 
 package fi.csc.idp.stepup.impl;
 
+import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import fi.csc.idp.stepup.api.StepUpAccount;
 import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.IdPAttributeValue;
 
 /**
  * Class implementing step up account manager for accounts initialised by key
@@ -65,15 +69,31 @@ public class AttributeTargetBasedStepUpAccountManager extends AbstractStepUpAcco
         attributeId = name;
     }
 
+    /** Pattern the selected value has to match, null for the first value. */
+    @Nullable
+    private Pattern valuePattern;
+
+    /**
+     * Set the pattern the value for the key has to match. Of several values the
+     * first matching one is used, for instance the first mobile number of a
+     * country. If not set or empty, the first value is used.
+     * 
+     * @param pattern regular expression the value has to match
+     */
+    public void setValuePattern(@Nullable String pattern) {
+        valuePattern = pattern == null || pattern.isEmpty() ? null : Pattern.compile(pattern);
+    }
+
     /**
-     * Initialises account by reading the value for key, using that to instantiate
-     * non editable accounts.
+     * Creates the account by reading the value for key, using that as the target of
+     * a non editable account.
      * 
      * @param attributes to look for the key value
+     * @return account or null if the key value is not found
      * @throws Exception if something unexpected occurred.
      */
     @Override
-    public boolean initialize(Map<String, IdPAttribute> attributes) throws Exception {
+    public StepUpAccount createAccount(Map<String, IdPAttribute> attributes) throws Exception {
 
         String target = null;
         log.debug("Adding accounts of type {}", getName());
@@ -83,27 +103,44 @@ public class AttributeTargetBasedStepUpAccountManager extends AbstractStepUpAcco
         if (attributeId == null) {
             throw new Exception("Attribute Id has to be set");
         }
-        if (getAccountID() == null) {
-            throw new Exception("No account bean defined");
+        if (getAccountFactory() == null) {
+            throw new Exception("No account factory defined");
+        }
+        final IdPAttribute attribute = attributes.get(attributeId);
+        if (attribute != null) {
+            target = selectTarget(attribute);
+            if (target != null) {
+                log.debug("Adding account with target value {}", target);
+                StepUpAccount account = newAccount();
+                account.setTarget(target);
+                return account;
+            }
         }
-        for (java.util.Map.Entry<String, IdPAttribute> attribute : attributes.entrySet()) {
-            if (attributeId.equals(attribute.getKey())) {
-                target = decryptor == null ? (String) attribute.getValue().getValues().get(0).getNativeValue()
-                        : decryptor.decrypt((String) attribute.getValue().getValues().get(0).getNativeValue());
-                if (target != null) {
-                    log.debug("Adding account with target value {}", target);
-                    StepUpAccount account = (StepUpAccount) getAppContext().getBean(getAccountID());
-                    account.setTarget(target);
-                    try {
-                        setAccount(account);
-                        break;
-                    } catch (Exception e) {
-                        log.debug("Not able to add account during initialization");
-                        return false;
-                    }
-                }
+        return null;
+    }
+
+    /**
+     * Selects the value for the key among the values of the attribute. The
+     * values are decrypted first if a decryptor is set.
+     * 
+     * @param attribute attribute containing the value for the key
+     * @return the first value matching the value pattern or null if there is none
+     * @throws Exception if something unexpected occurred.
+     */
+    @Nullable
+    protected String selectTarget(@Nonnull IdPAttribute attribute) throws Exception {
+        final List<IdPAttributeValue> values = attribute.getValues();
+        for (int i = 0; i < values.size(); i++) {
+            final Object nativeValue = values.get(i).getNativeValue();
+            if (!(nativeValue instanceof String)) {
+                log.debug("Skipping non string value of attribute {}", attributeId);
+                continue;
+            }
+            final String value = decryptor == null ? (String) nativeValue : decryptor.decrypt((String) nativeValue);
+            if (value != null && (valuePattern == null || valuePattern.matcher(value).matches())) {
+                return value;
             }
         }
-        return true;
+        return null;
     }
 }
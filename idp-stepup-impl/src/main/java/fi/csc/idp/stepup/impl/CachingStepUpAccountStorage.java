@@ -0,0 +1,680 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.core.metrics.MetricsSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpAccountOperation;
+import fi.csc.idp.stepup.api.StepUpAccountStorage;
+
+/**
+ * Step up account storage caching the accounts of another storage. Accounts
+ * are cached by key in a bounded LRU cache for a time to live, users without
+ * an account for a shorter time. Concurrent lookups of a key missing from the
+ * cache result in one lookup from the other storage.
+ * 
+ * <p>
+ * Adding and removing accounts is by default written through to the other
+ * storage and invalidates the key. If write behind is enabled, the cache is
+ * updated at once and the operations are written to the other storage in
+ * batches by a background thread, the cache answering for the key until then.
+ * The cache then holds the latest account added for a key. Removing an
+ * account caches the absence of account only if the key is known to have had
+ * no other account, otherwise the key is read from the other storage. Keys with
+ * operations waiting to be written are not evicted. A failed batch is retried
+ * and, if it still fails, the failure is thrown by the next flush.
+ * </p>
+ */
+public class CachingStepUpAccountStorage extends AbstractStepUpAccountStorage {
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(CachingStepUpAccountStorage.class);
+
+    /** Storage whose accounts are cached. */
+    @Nullable
+    private StepUpAccountStorage delegate;
+
+    /** Maximum number of cached keys. */
+    private int maxSize = 10000;
+
+    /** Milliseconds an account is cached. */
+    private long timeToLive = 60000;
+
+    /** Milliseconds the absence of an account is cached. */
+    private long negativeTimeToLive = 10000;
+
+    /** Whether adding and removing is written to the other storage in background. */
+    private boolean writeBehind;
+
+    /** Maximum number of operations waiting to be written. */
+    private int queueCapacity = 10000;
+
+    /** Maximum number of operations written in one batch. */
+    private int batchSize = 1000;
+
+    /** Number of times a failed batch is retried. */
+    private int writeRetries = 3;
+
+    /** Milliseconds to wait before retrying a failed batch. */
+    private long retryInterval = 1000;
+
+    /** Prefix of the metric names. */
+    @Nonnull
+    private String metricPrefix = "fi.csc.idp.stepup.AccountCache";
+
+    /** Cached accounts by key, in access order. Guarded by itself. */
+    @Nonnull
+    private final Map<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true) {
+
+        /** Serial UID. */
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() <= maxSize) {
+                return false;
+            }
+            // evict the least recently used key not waiting to be written
+            final Iterator<String> keys = keySet().iterator();
+            while (keys.hasNext()) {
+                if (!pending.containsKey(keys.next())) {
+                    keys.remove();
+                    evictions.inc();
+                    return false;
+                }
+            }
+            return false;
+        }
+    };
+
+    /** Number of writes to the cache, guarded by the cache. */
+    private long writes;
+
+    /** Lookups from the other storage in progress by key. */
+    @Nonnull
+    private final Map<String, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+
+    /** Number of operations waiting to be written by key. */
+    @Nonnull
+    private final Map<String, Integer> pending = new ConcurrentHashMap<>();
+
+    /** Operations waiting to be written. */
+    @Nullable
+    private BlockingQueue<StepUpAccountOperation> queue;
+
+    /** Number of operations not yet written. */
+    @Nonnull
+    private final AtomicInteger unwritten = new AtomicInteger();
+
+    /** Failure of a batch not written after retries, thrown by the next flush. */
+    @Nonnull
+    private final AtomicReference<Exception> writeFailure = new AtomicReference<>();
+
+    /** Background thread writing the operations. */
+    @Nullable
+    private ExecutorService writer;
+
+    /** Lookups answered by the cache. */
+    @Nonnull
+    private final Counter hits = new Counter();
+
+    /** Lookups not answered by the cache. */
+    @Nonnull
+    private final Counter misses = new Counter();
+
+    /** Keys evicted from a full cache. */
+    @Nonnull
+    private final Counter evictions = new Counter();
+
+    /** Operations failed to be written in background. */
+    @Nonnull
+    private final Counter writeFailures = new Counter();
+
+    /** Number of operations not yet written. */
+    @Nonnull
+    private final Gauge<Integer> unwrittenGauge = unwritten::get;
+
+    /**
+     * Set the storage whose accounts are cached.
+     * 
+     * @param storage storage whose accounts are cached
+     */
+    public void setDelegate(@Nonnull StepUpAccountStorage storage) {
+        delegate = storage;
+    }
+
+    /**
+     * Set the maximum number of cached keys. Default is 10000.
+     * 
+     * @param size maximum number of cached keys
+     */
+    public void setMaxSize(int size) {
+        maxSize = size;
+    }
+
+    /**
+     * Set the milliseconds an account is cached. Default is 60000.
+     * 
+     * @param millis milliseconds an account is cached
+     */
+    public void setTimeToLive(long millis) {
+        timeToLive = millis;
+    }
+
+    /**
+     * Set the milliseconds the absence of an account is cached. Default is 10000.
+     * 
+     * @param millis milliseconds the absence of an account is cached
+     */
+    public void setNegativeTimeToLive(long millis) {
+        negativeTimeToLive = millis;
+    }
+
+    /**
+     * Set whether adding and removing accounts is written to the other storage in
+     * background. Default is false.
+     * 
+     * @param enabled whether to write in background
+     */
+    public void setWriteBehind(boolean enabled) {
+        writeBehind = enabled;
+    }
+
+    /**
+     * Set the maximum number of operations waiting to be written in background.
+     * Adding or removing an account fails if the queue is full. Default is 10000.
+     * 
+     * @param capacity maximum number of operations waiting to be written
+     */
+    public void setQueueCapacity(int capacity) {
+        queueCapacity = capacity;
+    }
+
+    /**
+     * Set the maximum number of operations written in one batch. Default is 1000.
+     * 
+     * @param size maximum number of operations written in one batch
+     */
+    public void setBatchSize(int size) {
+        batchSize = size;
+    }
+
+    /**
+     * Set the number of times a batch failed to be written is retried. Default is
+     * 3.
+     * 
+     * @param retries number of times a failed batch is retried
+     */
+    public void setWriteRetries(int retries) {
+        writeRetries = retries;
+    }
+
+    /**
+     * Set the milliseconds to wait before retrying a failed batch. Default is
+     * 1000.
+     * 
+     * @param millis milliseconds to wait before retrying a failed batch
+     */
+    public void setRetryInterval(long millis) {
+        retryInterval = millis;
+    }
+
+    /**
+     * Set the prefix of the metric names.
+     * 
+     * @param prefix of the metric names
+     */
+    public void setMetricPrefix(@Nonnull String prefix) {
+        metricPrefix = prefix;
+    }
+
+    /**
+     * Starts the background writer if configured and registers the metrics.
+     */
+    public synchronized void initialize() {
+        if (delegate == null) {
+            throw new IllegalStateException("Delegate storage must be set");
+        }
+        if (writeBehind && writer == null) {
+            queue = new ArrayBlockingQueue<>(queueCapacity);
+            writer = Executors.newSingleThreadExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "stepup-account-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            writer.execute(this::write);
+        }
+        if (MetricsSupport.getMetricRegistry() != null) {
+            MetricsSupport.register(MetricRegistry.name(metricPrefix, "hits"), hits, true);
+            MetricsSupport.register(MetricRegistry.name(metricPrefix, "misses"), misses, true);
+            MetricsSupport.register(MetricRegistry.name(metricPrefix, "evictions"), evictions, true);
+            MetricsSupport.register(MetricRegistry.name(metricPrefix, "writeFailures"), writeFailures, true);
+            MetricsSupport.register(MetricRegistry.name(metricPrefix, "unwritten"), unwrittenGauge, true);
+        }
+    }
+
+    /**
+     * Writes the waiting operations, stops the background writer and removes the
+     * metrics.
+     */
+    public synchronized void destroy() {
+        if (writer != null) {
+            try {
+                flush(10000);
+            } catch (Exception e) {
+                log.error("Account operations were not written", e);
+            }
+            writer.shutdownNow();
+            writer = null;
+        }
+        if (MetricsSupport.getMetricRegistry() != null) {
+            MetricsSupport.remove(MetricRegistry.name(metricPrefix, "hits"), hits);
+            MetricsSupport.remove(MetricRegistry.name(metricPrefix, "misses"), misses);
+            MetricsSupport.remove(MetricRegistry.name(metricPrefix, "evictions"), evictions);
+            MetricsSupport.remove(MetricRegistry.name(metricPrefix, "writeFailures"), writeFailures);
+            MetricsSupport.remove(MetricRegistry.name(metricPrefix, "unwritten"), unwrittenGauge);
+        }
+    }
+
+    /**
+     * Wait for the operations waiting to be written in background to be written.
+     * 
+     * @param millis maximum milliseconds to wait
+     * @return true if all operations were written
+     * @throws Exception if operations failed to be written since the last flush
+     */
+    public boolean flush(long millis) throws Exception {
+        final long deadline = System.currentTimeMillis() + millis;
+        while (unwritten.get() > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                log.warn("{} account operations left unwritten", unwritten.get());
+                return false;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        final Exception failure = writeFailure.getAndSet(null);
+        if (failure != null) {
+            throw failure;
+        }
+        return true;
+    }
+
+    @Override
+    public <T> StepUpAccount getAccount(String key, Class<T> aClass) throws Exception {
+        Entry entry = lookup(key);
+        if (entry != null) {
+            hits.inc();
+            return toAccount(entry, aClass);
+        }
+        misses.inc();
+        final CompletableFuture<Entry> load = new CompletableFuture<>();
+        final CompletableFuture<Entry> current = loading.putIfAbsent(key, load);
+        if (current != null) {
+            log.trace("Waiting for lookup of key {} in progress", key);
+            try {
+                return toAccount(current.get(), aClass);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+        try {
+            final long version;
+            synchronized (cache) {
+                version = writes;
+            }
+            final StepUpAccount account = delegate.getAccount(key, aClass);
+            entry = account == null ? new Entry(null, null, false, System.currentTimeMillis() + negativeTimeToLive)
+                    : new Entry(account.getName(), account.getTarget(), false,
+                            System.currentTimeMillis() + timeToLive);
+            synchronized (cache) {
+                // a write since the lookup started may have made the result stale, and the result of a key
+                // with operations waiting to be written would not expire
+                if (writes == version && !pending.containsKey(key)) {
+                    cache.put(key, entry);
+                }
+            }
+            load.complete(entry);
+            return account;
+        } catch (Exception e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, load);
+        }
+    }
+
+    /**
+     * Get all accounts stored by key from the other storage. The accounts are not
+     * cached, and changes still waiting to be written in background are not
+     * included.
+     * 
+     * @param key the accounts have been stored by
+     * @param aClass the account implementation expected
+     * @param <T> Template for the implementation expected.
+     * @return accounts oldest first, empty if none
+     * @throws Exception if the lookup fails
+     */
+    @Override
+    public <T> List<StepUpAccount> getAccounts(String key, Class<T> aClass) throws Exception {
+        return delegate.getAccounts(key, aClass);
+    }
+
+    @Override
+    public void add(StepUpAccount account, String key) throws Exception {
+        if (!writeBehind) {
+            delegate.add(account, key);
+            invalidate(key);
+            return;
+        }
+        synchronized (cache) {
+            writes++;
+            pending.merge(key, 1, Integer::sum);
+            final Entry entry = cache.get(key);
+            // the account is the only one of the key only if the key was known to have none
+            cache.put(key, new Entry(account.getName(), account.getTarget(), entry != null && entry.target == null,
+                    System.currentTimeMillis() + timeToLive));
+        }
+        enqueue(StepUpAccountOperation.add(account, key));
+    }
+
+    @Override
+    public void remove(StepUpAccount account, String key) throws Exception {
+        if (!writeBehind) {
+            delegate.remove(account, key);
+            invalidate(key);
+            return;
+        }
+        synchronized (cache) {
+            writes++;
+            pending.merge(key, 1, Integer::sum);
+            final Entry entry = cache.get(key);
+            if (entry != null && entry.only && Objects.equals(entry.target, account.getTarget())) {
+                cache.put(key, new Entry(null, null, false, System.currentTimeMillis() + negativeTimeToLive));
+            } else if (entry == null || Objects.equals(entry.target, account.getTarget())) {
+                // other accounts of the key may remain
+                cache.remove(key);
+            }
+        }
+        enqueue(StepUpAccountOperation.remove(account, key));
+    }
+
+    @Override
+    public void executeBatch(List<StepUpAccountOperation> operations) throws Exception {
+        if (!writeBehind) {
+            delegate.executeBatch(operations);
+            for (StepUpAccountOperation operation : operations) {
+                invalidate(operation.getKey());
+            }
+            return;
+        }
+        for (StepUpAccountOperation operation : operations) {
+            if (operation.getType() == StepUpAccountOperation.Type.ADD) {
+                add(operation.getAccount(), operation.getKey());
+            } else {
+                remove(operation.getAccount(), operation.getKey());
+            }
+        }
+    }
+
+    /**
+     * Get the number of cached keys.
+     * 
+     * @return number of cached keys
+     */
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * Get the number of lookups answered by the cache.
+     * 
+     * @return number of lookups answered by the cache
+     */
+    public long getHitCount() {
+        return hits.getCount();
+    }
+
+    /**
+     * Get the number of lookups not answered by the cache.
+     * 
+     * @return number of lookups not answered by the cache
+     */
+    public long getMissCount() {
+        return misses.getCount();
+    }
+
+    /**
+     * Get the number of keys evicted from a full cache.
+     * 
+     * @return number of keys evicted from a full cache
+     */
+    public long getEvictionCount() {
+        return evictions.getCount();
+    }
+
+    /**
+     * Instantiate the cached account.
+     * 
+     * @param entry cached entry
+     * @param aClass the account implementation expected
+     * @param <T> Template for the implementation expected.
+     * @return account or null if the entry caches the absence of account
+     * @throws Exception if the account cannot be instantiated
+     */
+    @Nullable
+    private <T> StepUpAccount toAccount(@Nonnull Entry entry, @Nonnull Class<T> aClass) throws Exception {
+        return entry.target == null ? null : newAccount(aClass, entry.name, entry.target);
+    }
+
+    /**
+     * Get the cached entry of the key, if not expired. The entry of a key with
+     * operations waiting to be written does not expire.
+     * 
+     * @param key key of the entry
+     * @return entry or null
+     */
+    @Nullable
+    private Entry lookup(@Nonnull String key) {
+        synchronized (cache) {
+            final Entry entry = cache.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expires < System.currentTimeMillis() && !pending.containsKey(key)) {
+                cache.remove(key);
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Remove the cached entry of the key.
+     * 
+     * @param key key of the entry
+     */
+    private void invalidate(@Nonnull String key) {
+        synchronized (cache) {
+            writes++;
+            cache.remove(key);
+        }
+    }
+
+    /**
+     * Queue the operation for the background writer. The key of the operation
+     * must already be counted as pending.
+     * 
+     * @param operation operation to write
+     * @throws Exception if the queue is full
+     */
+    private void enqueue(@Nonnull StepUpAccountOperation operation) throws Exception {
+        unwritten.incrementAndGet();
+        if (queue == null || !queue.offer(operation)) {
+            written(operation);
+            throw new Exception("Account write queue is full");
+        }
+    }
+
+    /**
+     * Mark the operation written. The cached entry of the key is removed once
+     * no operations of the key wait to be written, so that it is next read from
+     * the other storage.
+     * 
+     * @param operation operation written or failed
+     */
+    private void written(@Nonnull StepUpAccountOperation operation) {
+        if (pending.computeIfPresent(operation.getKey(), (k, count) -> count == 1 ? null : count - 1) == null) {
+            invalidate(operation.getKey());
+        }
+        unwritten.decrementAndGet();
+    }
+
+    /**
+     * Background writer writing the queued operations in batches.
+     */
+    private void write() {
+        final List<StepUpAccountOperation> batch = new ArrayList<>(batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, batchSize - 1);
+            try {
+                writeBatch(batch);
+            } finally {
+                for (StepUpAccountOperation operation : batch) {
+                    written(operation);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Write the batch to the other storage, retrying if it fails. A batch failing
+     * all retries is recorded for the next flush.
+     * 
+     * @param batch operations to write
+     */
+    private void writeBatch(@Nonnull List<StepUpAccountOperation> batch) {
+        for (int attempt = 0;; attempt++) {
+            try {
+                delegate.executeBatch(batch);
+                log.debug("Wrote {} account operations", batch.size());
+                return;
+            } catch (Exception e) {
+                if (attempt >= writeRetries) {
+                    log.error("Writing {} account operations failed", batch.size(), e);
+                    writeFailures.inc(batch.size());
+                    final Exception failure = new Exception("Writing " + batch.size() + " account operations failed",
+                            e);
+                    if (!writeFailure.compareAndSet(null, failure)) {
+                        writeFailure.get().addSuppressed(e);
+                    }
+                    return;
+                }
+                log.warn("Writing {} account operations failed, retrying", batch.size(), e);
+            }
+            try {
+                Thread.sleep(retryInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                writeFailure.compareAndSet(null, new Exception("Account writer interrupted"));
+                return;
+            }
+        }
+    }
+
+    /** Cached account, or absence of account if the target is null. */
+    private static final class Entry {
+
+        /** Name of the account. */
+        @Nullable
+        private final String name;
+
+        /** Target of the account, null if there is no account. */
+        @Nullable
+        private final String target;
+
+        /** Whether the account is known to be the only account of the key. */
+        private final boolean only;
+
+        /** Expiration time. */
+        private final long expires;
+
+        /**
+         * Constructor.
+         * 
+         * @param accountName name of the account
+         * @param accountTarget target of the account, null if there is no account
+         * @param onlyAccount whether the account is known to be the only account of the key
+         * @param expiration expiration time
+         */
+        private Entry(@Nullable String accountName, @Nullable String accountTarget, boolean onlyAccount,
+                long expiration) {
+            name = accountName;
+            target = accountTarget;
+            only = onlyAccount;
+            expires = expiration;
+        }
+    }
+
+}
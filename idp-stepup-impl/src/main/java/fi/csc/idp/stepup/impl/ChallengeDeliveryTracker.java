@@ -0,0 +1,238 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import fi.csc.idp.stepup.api.ChallengeDeliveryStatus;
+
+/**
+ * Keeps the delivery status of sent challenges for a limited time. The status
+ * is looked up by the challenge and target it was sent to and updated either by
+ * the same or by the message id given by the delivery service.
+ */
+public class ChallengeDeliveryTracker {
+
+    /** How long a status is kept in milliseconds. */
+    private long timeToLive = 600000;
+
+    /** Tracked deliveries by challenge and target. */
+    @Nonnull
+    private final Map<String, Delivery> deliveries = new ConcurrentHashMap<>();
+
+    /** Keys of the tracked deliveries by message id. */
+    @Nonnull
+    private final Map<String, String> keysById = new ConcurrentHashMap<>();
+
+    /** Time of the next sweep of expired deliveries. */
+    private volatile long nextSweep;
+
+    /**
+     * Set how long a status is kept.
+     * 
+     * @param ttl time to live in milliseconds
+     */
+    public void setTimeToLive(long ttl) {
+        timeToLive = ttl;
+    }
+
+    /**
+     * Start tracking a challenge.
+     * 
+     * @param challenge sent
+     * @param target    of the challenge
+     * @param status    initial status
+     */
+    public void track(@Nonnull String challenge, @Nonnull String target, @Nonnull ChallengeDeliveryStatus status) {
+        final long now = System.currentTimeMillis();
+        sweep(now);
+        final Delivery previous = deliveries.put(key(challenge, target), new Delivery(status, now));
+        if (previous != null && previous.id != null) {
+            keysById.remove(previous.id);
+        }
+    }
+
+    /**
+     * Update the status of a tracked challenge.
+     * 
+     * @param challenge sent
+     * @param target    of the challenge
+     * @param status    new status
+     * @param id        message id given by the delivery service, may be null
+     */
+    public void update(@Nonnull String challenge, @Nonnull String target, @Nonnull ChallengeDeliveryStatus status,
+            @Nullable String id) {
+        final String key = key(challenge, target);
+        final Delivery delivery = deliveries.get(key);
+        if (delivery == null) {
+            return;
+        }
+        if (id != null) {
+            delivery.id = id;
+            keysById.put(id, key);
+        }
+        delivery.update(status);
+    }
+
+    /**
+     * Update the status of a tracked challenge by the message id.
+     * 
+     * @param id     message id given by the delivery service
+     * @param status new status
+     * @return true if the challenge was tracked
+     */
+    public boolean updateById(@Nonnull String id, @Nonnull ChallengeDeliveryStatus status) {
+        final String key = keysById.get(id);
+        final Delivery delivery = key != null ? deliveries.get(key) : null;
+        if (delivery == null) {
+            return false;
+        }
+        delivery.update(status);
+        return true;
+    }
+
+    /**
+     * Get the status of a challenge.
+     * 
+     * @param challenge sent
+     * @param target    of the challenge
+     * @return status or null if not tracked
+     */
+    @Nullable
+    public ChallengeDeliveryStatus getStatus(@Nonnull String challenge, @Nonnull String target) {
+        final Delivery delivery = deliveries.get(key(challenge, target));
+        if (delivery == null || delivery.created + timeToLive < System.currentTimeMillis()) {
+            return null;
+        }
+        return delivery.status;
+    }
+
+    /**
+     * Get the message ids of challenges accepted by the delivery service but not
+     * yet delivered or failed. Expired deliveries are left out and removed.
+     * 
+     * @param max maximum number of ids returned
+     * @return message ids
+     */
+    @Nonnull
+    public List<String> getUnresolvedIds(int max) {
+        final long now = System.currentTimeMillis();
+        sweep(now);
+        final List<String> ids = new ArrayList<>();
+        for (final Delivery delivery : deliveries.values()) {
+            if (ids.size() >= max) {
+                break;
+            }
+            if (delivery.status == ChallengeDeliveryStatus.SENT && delivery.id != null
+                    && delivery.created + timeToLive >= now) {
+                ids.add(delivery.id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Get the number of tracked challenges.
+     * 
+     * @return number of tracked challenges
+     */
+    public int size() {
+        return deliveries.size();
+    }
+
+    /**
+     * Remove expired deliveries, at most once in time to live.
+     * 
+     * @param now current time in milliseconds
+     */
+    private void sweep(long now) {
+        if (now < nextSweep) {
+            return;
+        }
+        nextSweep = now + timeToLive;
+        deliveries.values().removeIf(delivery -> {
+            if (delivery.created + timeToLive >= now) {
+                return false;
+            }
+            if (delivery.id != null) {
+                keysById.remove(delivery.id);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Key of a delivery.
+     * 
+     * @param challenge sent
+     * @param target    of the challenge
+     * @return key
+     */
+    @Nonnull
+    private static String key(@Nonnull String challenge, @Nonnull String target) {
+        return target + '\n' + challenge;
+    }
+
+    /** Tracked delivery. */
+    private static final class Delivery {
+
+        /** Time the tracking started. */
+        private final long created;
+
+        /** Current status. */
+        private volatile ChallengeDeliveryStatus status;
+
+        /** Message id given by the delivery service. */
+        private volatile String id;
+
+        /**
+         * Constructor.
+         * 
+         * @param initial status
+         * @param time    the tracking started
+         */
+        private Delivery(@Nonnull ChallengeDeliveryStatus initial, long time) {
+            status = initial;
+            created = time;
+        }
+
+        /**
+         * Update the status unless the delivery has already been resolved.
+         * Status updates may arrive out of order.
+         * 
+         * @param newStatus new status
+         */
+        private synchronized void update(@Nonnull ChallengeDeliveryStatus newStatus) {
+            if (status != ChallengeDeliveryStatus.DELIVERED && status != ChallengeDeliveryStatus.FAILED) {
+                status = newStatus;
+            }
+        }
+    }
+}
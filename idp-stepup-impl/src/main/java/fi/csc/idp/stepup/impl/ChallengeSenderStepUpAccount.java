@@ -28,7 +28,9 @@ import javax.annotation.Nonnull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import fi.csc.idp.stepup.api.ChallengeDeliveryStatus;
 import fi.csc.idp.stepup.api.ChallengeSender;
+import fi.csc.idp.stepup.api.TrackedChallengeSender;
 
 /**
  * Class implementing Step Up Account of type Challenge Sender. This includes
@@ -64,8 +66,29 @@ public class ChallengeSenderStepUpAccount extends AbstractStepUpAccount {
         if (challengeSender == null) {
             throw new Exception("Bean not configured with ChallengeSender");
         }
-        challengeSender.send(getChallenge(), getTarget());
+        final long started = StepUpMetrics.start();
+        try {
+            challengeSender.send(getChallenge(), getTarget());
+        } catch (Exception e) {
+            StepUpMetrics.recordImplementation(StepUpMetrics.SENDER, challengeSender, e, started);
+            throw e;
+        }
+        StepUpMetrics.recordImplementation(StepUpMetrics.SENDER, challengeSender, null, started);
+
+    }
 
+    /**
+     * Delivery status of the last challenge sent, if the Challenge Sender
+     * implementation tracks the delivery.
+     * 
+     * @return delivery status or null if not tracked.
+     */
+    @Override
+    public ChallengeDeliveryStatus getDeliveryStatus() {
+        if (!(challengeSender instanceof TrackedChallengeSender) || getChallenge() == null) {
+            return null;
+        }
+        return ((TrackedChallengeSender) challengeSender).getDeliveryStatus(getChallenge(), getTarget());
     }
 
 }
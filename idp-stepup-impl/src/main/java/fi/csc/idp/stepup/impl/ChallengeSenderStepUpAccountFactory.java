@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import fi.csc.idp.stepup.api.ChallengeGenerator;
+import fi.csc.idp.stepup.api.ChallengeSender;
+import fi.csc.idp.stepup.api.ChallengeVerifier;
+import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpAccountFactory;
+
+/**
+ * Factory creating {@link ChallengeSenderStepUpAccount} instances sharing the
+ * configured generator, verifier and sender.
+ */
+public class ChallengeSenderStepUpAccountFactory implements StepUpAccountFactory {
+
+    /** Challenge Generator. */
+    private ChallengeGenerator challengeGenerator;
+
+    /** Challenge Verifier. */
+    private ChallengeVerifier challengeVerifier;
+
+    /** Challenge Sender. */
+    private ChallengeSender challengeSender;
+
+    /**
+     * Set the challenge generator implementation.
+     * 
+     * @param generator implementation
+     */
+    public void setChallengeGenerator(ChallengeGenerator generator) {
+        this.challengeGenerator = generator;
+    }
+
+    /**
+     * Set the challenge verifier implementation.
+     * 
+     * @param verifier implementation
+     */
+    public void setChallengeVerifier(ChallengeVerifier verifier) {
+        this.challengeVerifier = verifier;
+    }
+
+    /**
+     * Set the challenge sender implementation.
+     * 
+     * @param sender implementation
+     */
+    public void setChallengeSender(ChallengeSender sender) {
+        this.challengeSender = sender;
+    }
+
+    @Override
+    public StepUpAccount create() {
+        ChallengeSenderStepUpAccount account = new ChallengeSenderStepUpAccount();
+        account.setChallengeGenerator(challengeGenerator);
+        account.setChallengeVerifier(challengeVerifier);
+        account.setChallengeSender(challengeSender);
+        return account;
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpMethod;
+import net.shibboleth.idp.attribute.IdPAttribute;
+
+/**
+ * Class implementing step up account manager combining the accounts of several
+ * methods, for instance totp, mail and SMS, for the user to choose from. The
+ * accounts of the methods are created concurrently if worker threads are
+ * configured, which pays off when the methods decrypt values or look them up
+ * from external sources. Only with worker threads a method not completing in
+ * time is abandoned, without them methods are not started once the time is up.
+ */
+public class CompositeStepUpAccountManager extends AbstractStepUpAccountManager {
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(CompositeStepUpAccountManager.class);
+
+    /** Methods whose accounts are combined, in order of preference. */
+    @Nonnull
+    private List<StepUpMethod> stepUpMethods = Collections.emptyList();
+
+    /** Number of threads creating the accounts. If 0, accounts are created by the calling thread. */
+    private int threads;
+
+    /** Milliseconds to wait for the accounts of a method. */
+    private long timeout = 5000;
+
+    /** Executor creating the accounts, null if created by the calling thread. */
+    @Nullable
+    private ThreadPoolExecutor executor;
+
+    /**
+     * Set the methods whose accounts are combined, in order of preference.
+     * 
+     * @param methods methods whose accounts are combined
+     */
+    public void setStepUpMethods(@Nonnull List<StepUpMethod> methods) {
+        stepUpMethods = List.copyOf(methods);
+    }
+
+    /**
+     * Set the number of threads creating the accounts. If 0, the default, the
+     * accounts are created one method at a time by the calling thread, and the
+     * timeout only skips the methods not started in time.
+     * 
+     * @param count number of threads creating the accounts
+     */
+    public void setThreads(int count) {
+        threads = count;
+    }
+
+    /**
+     * Set the milliseconds to wait for the accounts of a method. Accounts of a
+     * method not created in time are left out. Default is 5000.
+     * 
+     * @param millis milliseconds to wait for the accounts of a method
+     */
+    public void setTimeout(long millis) {
+        timeout = millis;
+    }
+
+    /**
+     * Starts the threads creating the accounts, if configured.
+     */
+    public synchronized void initialize() {
+        if (executor != null || threads <= 0) {
+            return;
+        }
+        // once the queue is full methods are rejected, the calling thread never runs them unbounded
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * 16), daemonThreads("stepup-accounts-"),
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Stops the threads creating the accounts.
+     */
+    public synchronized void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Create the account of the most preferred method the user has an account
+     * for.
+     * 
+     * @param attributes resolved attributes of the user
+     * @return account or null if the user has no account for any method
+     * @throws Exception if the accounts of every method failed
+     */
+    @Override
+    public StepUpAccount createAccount(Map<String, IdPAttribute> attributes) throws Exception {
+        final List<StepUpAccount> accounts = createAccounts(attributes);
+        return accounts.isEmpty() ? null : accounts.get(0);
+    }
+
+    /**
+     * Create the accounts of all methods. A method failing or not completing in
+     * time is left out.
+     * 
+     * @param attributes resolved attributes of the user
+     * @return accounts in order of method preference
+     * @throws Exception if the accounts of every method failed
+     */
+    @Override
+    public List<StepUpAccount> createAccounts(Map<String, IdPAttribute> attributes) throws Exception {
+        final int size = stepUpMethods.size();
+        final ThreadPoolExecutor workers = executor;
+        final List<Future<List<StepUpAccount>>> futures = new ArrayList<>(size);
+        if (workers != null) {
+            for (final StepUpMethod method : stepUpMethods) {
+                try {
+                    futures.add(workers.submit(() -> method.createAccounts(attributes)));
+                } catch (RejectedExecutionException e) {
+                    futures.add(null);
+                }
+            }
+        }
+        final List<StepUpAccount> accounts = new ArrayList<>();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        Exception failure = null;
+        int failures = 0;
+        for (int i = 0; i < size; i++) {
+            final StepUpMethod method = stepUpMethods.get(i);
+            try {
+                if (workers == null) {
+                    if (deadline - System.nanoTime() <= 0) {
+                        throw new TimeoutException();
+                    }
+                    accounts.addAll(method.createAccounts(attributes));
+                } else if (futures.get(i) == null) {
+                    log.warn("Accounts of method {} not created, too many concurrent requests", method.getName());
+                    failures++;
+                } else {
+                    accounts.addAll(futures.get(i).get(Math.max(0, deadline - System.nanoTime()),
+                            TimeUnit.NANOSECONDS));
+                }
+            } catch (TimeoutException e) {
+                log.warn("Accounts of method {} not created in {} ms", method.getName(), timeout);
+                if (workers != null) {
+                    futures.get(i).cancel(true);
+                }
+                failures++;
+            } catch (ExecutionException e) {
+                log.warn("Creating accounts of method {} failed", method.getName(), e.getCause());
+                failure = failure == null && e.getCause() instanceof Exception ? (Exception) e.getCause() : failure;
+                failures++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw e;
+            } catch (Exception e) {
+                log.warn("Creating accounts of method {} failed", method.getName(), e);
+                failure = failure == null ? e : failure;
+                failures++;
+            }
+        }
+        if (size > 0 && failures == size) {
+            throw failure != null ? failure : new Exception("No accounts created in time");
+        }
+        log.debug("Created {} accounts of {} methods", accounts.size(), size);
+        return accounts;
+    }
+
+    /**
+     * Thread factory creating daemon threads.
+     * 
+     * @param prefix
+     *            of the thread name
+     * @return thread factory
+     */
+    private static ThreadFactory daemonThreads(String prefix) {
+
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, prefix + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+    }
+
+}
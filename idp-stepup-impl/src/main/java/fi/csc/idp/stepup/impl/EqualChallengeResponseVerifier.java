@@ -30,13 +30,49 @@ import org.slf4j.LoggerFactory;
 
 import fi.csc.idp.stepup.api.ChallengeVerifier;
 
-/** class implementing challenge response verification based on equality. */
+/**
+ * class implementing challenge response verification based on equality. Leading
+ * and trailing whitespace is ignored. The comparison takes the same time
+ * regardless of the position of the first difference and creates no objects.
+ */
 public class EqualChallengeResponseVerifier implements ChallengeVerifier {
 
     /** Class logger. */
     @Nonnull
     private final Logger log = LoggerFactory.getLogger(EqualChallengeResponseVerifier.class);
 
+    /** Whether to ignore the case of the characters. */
+    private boolean caseInsensitive;
+
+    /** Characters ignored anywhere in the challenge and the response. */
+    @Nonnull
+    private String ignoredCharacters = "";
+
+    /**
+     * Set whether to ignore the case of the characters, as for hex codes.
+     * 
+     * @param ignoreCase
+     *            whether to ignore the case of the characters
+     */
+    public void setCaseInsensitive(boolean ignoreCase) {
+
+        caseInsensitive = ignoreCase;
+
+    }
+
+    /**
+     * Set the characters ignored anywhere in the challenge and the response,
+     * such as separators typed by the user.
+     * 
+     * @param characters
+     *            ignored characters
+     */
+    public void setIgnoredCharacters(@Nonnull String characters) {
+
+        ignoredCharacters = characters;
+
+    }
+
     @Override
     public boolean verify(String challenge, String response, String target) {
 
@@ -48,8 +84,80 @@ public class EqualChallengeResponseVerifier implements ChallengeVerifier {
 
             return false;
         }
+        final int challengeEnd = trimmedEnd(challenge);
+        final int responseEnd = trimmedEnd(response);
+        int i = trimmedStart(challenge, challengeEnd);
+        int j = trimmedStart(response, responseEnd);
+        int difference = 0;
+        // no exit on difference, the loop runs until both are consumed
+        while (i < challengeEnd || j < responseEnd) {
+            while (i < challengeEnd && isIgnored(challenge.charAt(i))) {
+                i++;
+            }
+            while (j < responseEnd && isIgnored(response.charAt(j))) {
+                j++;
+            }
+            final int a = i < challengeEnd ? normalize(challenge.charAt(i)) : -1;
+            final int b = j < responseEnd ? normalize(response.charAt(j)) : -1;
+            difference |= a ^ b;
+            i++;
+            j++;
+        }
+        return difference == 0;
+    }
 
-        return challenge.trim().equals(response.trim());
+    /**
+     * Whether the character is ignored.
+     * 
+     * @param c
+     *            character
+     * @return true if the character is ignored
+     */
+    private boolean isIgnored(char c) {
+        return ignoredCharacters.indexOf(c) >= 0;
+    }
+
+    /**
+     * Normalize the character for comparison.
+     * 
+     * @param c
+     *            character
+     * @return normalized character
+     */
+    private int normalize(char c) {
+        return caseInsensitive ? Character.toLowerCase(c) : c;
+    }
+
+    /**
+     * Index of the first character not removed by {@link String#trim()}.
+     * 
+     * @param value
+     *            string
+     * @param end
+     *            trimmed end of the string
+     * @return start index
+     */
+    private static int trimmedStart(@Nonnull String value, int end) {
+        int start = 0;
+        while (start < end && value.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * Index after the last character not removed by {@link String#trim()}.
+     * 
+     * @param value
+     *            string
+     * @return end index
+     */
+    private static int trimmedEnd(@Nonnull String value) {
+        int end = value.length();
+        while (end > 0 && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
     }
 
 }
@@ -0,0 +1,324 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Class keeping count of failed challenge responses per key in a sliding time
+ * window. The window is divided to buckets so that the memory used per key
+ * stays constant. Once a key has reached the maximum number of failures within
+ * the window, further attempts are rejected until enough of the failures have
+ * aged out. Callers are never blocked. An attempt may be reserved before it is
+ * verified with {@link #tryAcquire(String)}, counting it as a failure until it
+ * succeeds, so that concurrent attempts cannot exceed the maximum.
+ */
+public class FailedResponseThrottle {
+
+    /** Number of buckets the window is divided to. */
+    private static final int BUCKETS = 10;
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(FailedResponseThrottle.class);
+
+    /** Failure records by key. */
+    private final Map<String, FailureRecord> records = new ConcurrentHashMap<>();
+
+    /** Time of the last sweep of expired records. */
+    private final AtomicLong lastSweep = new AtomicLong();
+
+    /** Maximum number of failed responses allowed within the window. */
+    private int maxFailures = 5;
+
+    /** Length of a bucket in milliseconds. */
+    private long bucketLength = 60000 / BUCKETS;
+
+    /**
+     * Set the maximum number of failed responses allowed within the window.
+     * 
+     * @param max maximum number of failed responses, must be positive
+     */
+    public void setMaxFailures(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("Maximum number of failures must be positive");
+        }
+        maxFailures = max;
+    }
+
+    /**
+     * Set the length of the window in milliseconds.
+     * 
+     * @param window length of the window in milliseconds, at least 10
+     */
+    public void setWindow(long window) {
+        if (window < BUCKETS) {
+            throw new IllegalArgumentException("Window must be at least " + BUCKETS + " milliseconds");
+        }
+        bucketLength = window / BUCKETS;
+    }
+
+    /**
+     * Get the time the key has to wait before next attempt is accepted.
+     * 
+     * @param key the failures have been recorded by
+     * @return milliseconds to wait, 0 if attempt is accepted
+     */
+    public long getRetryAfter(@Nonnull String key) {
+        return getRetryAfter(key, System.currentTimeMillis());
+    }
+
+    /**
+     * Get the time the key has to wait before next attempt is accepted.
+     * 
+     * @param key the failures have been recorded by
+     * @param now current time in milliseconds
+     * @return milliseconds to wait, 0 if attempt is accepted
+     */
+    long getRetryAfter(@Nonnull String key, long now) {
+        final FailureRecord record = records.get(key);
+        return record == null ? 0 : record.getRetryAfter(now);
+    }
+
+    /**
+     * Reserve an attempt for the key. The attempt is counted as a failure until
+     * the key is reset on success or the attempt is released.
+     * 
+     * @param key to reserve the attempt for
+     * @return milliseconds to wait, 0 if the attempt is reserved
+     */
+    public long tryAcquire(@Nonnull String key) {
+        return tryAcquire(key, System.currentTimeMillis());
+    }
+
+    /**
+     * Reserve an attempt for the key. The attempt is counted as a failure until
+     * the key is reset on success or the attempt is released.
+     * 
+     * @param key to reserve the attempt for
+     * @param now current time in milliseconds
+     * @return milliseconds to wait, 0 if the attempt is reserved
+     */
+    long tryAcquire(@Nonnull String key, long now) {
+        final long[] retryAfter = new long[1];
+        records.compute(key, (k, record) -> {
+            final FailureRecord failures = record == null ? new FailureRecord() : record;
+            retryAfter[0] = failures.acquire(now);
+            return failures;
+        });
+        sweep(now);
+        return retryAfter[0];
+    }
+
+    /**
+     * Release an attempt reserved for the key that neither failed nor succeeded.
+     * 
+     * @param key the attempt was reserved for
+     */
+    public void release(@Nonnull String key) {
+        release(key, System.currentTimeMillis());
+    }
+
+    /**
+     * Release an attempt reserved for the key that neither failed nor succeeded.
+     * 
+     * @param key the attempt was reserved for
+     * @param now current time in milliseconds
+     */
+    void release(@Nonnull String key, long now) {
+        records.computeIfPresent(key, (k, record) -> {
+            record.remove(now);
+            return record;
+        });
+    }
+
+    /**
+     * Record a failed response for the key.
+     * 
+     * @param key to record the failure for
+     */
+    public void recordFailure(@Nonnull String key) {
+        recordFailure(key, System.currentTimeMillis());
+    }
+
+    /**
+     * Record a failed response for the key.
+     * 
+     * @param key to record the failure for
+     * @param now current time in milliseconds
+     */
+    void recordFailure(@Nonnull String key, long now) {
+        records.compute(key, (k, record) -> {
+            final FailureRecord failures = record == null ? new FailureRecord() : record;
+            failures.add(now);
+            return failures;
+        });
+        sweep(now);
+    }
+
+    /**
+     * Forget the failures recorded for the key.
+     * 
+     * @param key to forget failures for
+     */
+    public void reset(@Nonnull String key) {
+        records.remove(key);
+    }
+
+    /**
+     * Get the number of keys having failures recorded.
+     * 
+     * @return number of keys
+     */
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     * Remove records having no failures within the window. Sweep is performed at
+     * most once per window by one thread.
+     * 
+     * @param now current time in milliseconds
+     */
+    private void sweep(long now) {
+        final long last = lastSweep.get();
+        if (now - last < bucketLength * BUCKETS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        for (final String key : records.keySet()) {
+            records.computeIfPresent(key, (k, record) -> record.isExpired(now) ? null : record);
+        }
+        log.debug("Failed response records after sweep {}", records.size());
+    }
+
+    /** Failures of a single key, counted in buckets. */
+    private final class FailureRecord {
+
+        /** Index of the time slice each bucket is counting. */
+        private final long[] slices = new long[BUCKETS];
+
+        /** Number of failures in each bucket. */
+        private final int[] counts = new int[BUCKETS];
+
+        /**
+         * Add a failure.
+         * 
+         * @param now current time in milliseconds
+         */
+        synchronized void add(long now) {
+            final long slice = now / bucketLength;
+            final int bucket = (int) (slice % BUCKETS);
+            if (slices[bucket] != slice) {
+                slices[bucket] = slice;
+                counts[bucket] = 0;
+            }
+            counts[bucket]++;
+        }
+
+        /**
+         * Add a failure if the number of failures in the window is below the
+         * maximum.
+         * 
+         * @param now current time in milliseconds
+         * @return milliseconds to wait, 0 if the failure was added
+         */
+        synchronized long acquire(long now) {
+            final long retryAfter = getRetryAfter(now);
+            if (retryAfter == 0) {
+                add(now);
+            }
+            return retryAfter;
+        }
+
+        /**
+         * Remove the latest failure within the window.
+         * 
+         * @param now current time in milliseconds
+         */
+        synchronized void remove(long now) {
+            final long current = now / bucketLength;
+            for (long slice = current; slice > current - BUCKETS; slice--) {
+                final int bucket = (int) (slice % BUCKETS);
+                if (slices[bucket] == slice && counts[bucket] > 0) {
+                    counts[bucket]--;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Get the time to wait before the number of failures in the window is below
+         * the maximum.
+         * 
+         * @param now current time in milliseconds
+         * @return milliseconds to wait, 0 if there is no need to wait
+         */
+        synchronized long getRetryAfter(long now) {
+            final long current = now / bucketLength;
+            int total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (slices[i] > current - BUCKETS) {
+                    total += counts[i];
+                }
+            }
+            if (total < maxFailures) {
+                return 0;
+            }
+            // oldest slices age out first
+            for (long slice = current - BUCKETS + 1; slice <= current; slice++) {
+                final int bucket = (int) (slice % BUCKETS);
+                if (slices[bucket] == slice) {
+                    total -= counts[bucket];
+                    if (total < maxFailures) {
+                        return (slice + BUCKETS) * bucketLength - now;
+                    }
+                }
+            }
+            return (current + BUCKETS) * bucketLength - now;
+        }
+
+        /**
+         * Whether the record has no failures within the window.
+         * 
+         * @param now current time in milliseconds
+         * @return true if there are no failures within the window
+         */
+        synchronized boolean isExpired(long now) {
+            final long current = now / bucketLength;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (slices[i] > current - BUCKETS && counts[i] > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -24,15 +24,20 @@
 package fi.csc.idp.stepup.impl;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import net.shibboleth.idp.authn.context.AuthenticationContext;
 import org.opensaml.profile.action.ActionSupport;
+import org.opensaml.profile.action.EventIds;
 import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import fi.csc.idp.stepup.api.StepUpEventIds;
 
 /**
- * An action that generates and sends the step-up challenge.
+ * An action that generates and sends the step-up challenge. If a throttle is
+ * set, each challenge delivered to the user is counted and sends over its
+ * limit result in {@link StepUpEventIds#EVENTID_RETRY_LATER}. The flow sets
+ * the throttle only for the resends after the user selects another account.
  */
 
 public class GenerateStepUpChallenge extends AbstractStepUpMethodAction {
@@ -41,6 +46,20 @@ public class GenerateStepUpChallenge extends AbstractStepUpMethodAction {
     @Nonnull
     private final Logger log = LoggerFactory.getLogger(GenerateStepUpChallenge.class);
 
+    /** Throttle limiting the sends per user. */
+    @Nullable
+    private FailedResponseThrottle throttle;
+
+    /**
+     * Sets the throttle limiting the sends per user. If not set, sends are not
+     * limited.
+     * 
+     * @param sendThrottle throttle limiting the sends
+     */
+    public void setThrottle(@Nullable FailedResponseThrottle sendThrottle) {
+        throttle = sendThrottle;
+    }
+
     /** {@inheritDoc} */
     @Override
     protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext,
@@ -52,6 +71,7 @@ public class GenerateStepUpChallenge extends AbstractStepUpMethodAction {
         if (getStepUpMethodCtx().getStepUpAccount() == null) {
             log.debug("{} there is no chosen stepup account for user", getLogPrefix());
             ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EVENTID_INVALID_USER);
+            recordMetrics(profileRequestContext);
             return false;
         }
         return true;
@@ -62,15 +82,30 @@ public class GenerateStepUpChallenge extends AbstractStepUpMethodAction {
     protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext,
             @Nonnull final AuthenticationContext authenticationContext) {
 
+        if (throttle != null && getStepUpMethodCtx().getStepUpAccount().isSendingChallenge()) {
+            final String subject = getStepUpMethodCtx().getSubject();
+            final long retryAfter = throttle.tryAcquire(
+                    subject != null ? subject : String.valueOf(getStepUpMethodCtx().getStepUpAccount().getTarget()));
+            if (retryAfter > 0) {
+                log.warn("{} too many challenges sent, user must wait {} ms before next one", getLogPrefix(),
+                        retryAfter);
+                ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EVENTID_RETRY_LATER);
+                recordMetrics(profileRequestContext);
+                return;
+            }
+        }
+        final long started = StepUpMetrics.start();
         try {
             // StepUp account is instructed to send challenge to user
             getStepUpMethodCtx().getStepUpAccount().sendChallenge();
+            StepUpMetrics.record(StepUpMetrics.SEND, getStepUpMethodName(), EventIds.PROCEED_EVENT_ID, started);
         } catch (Exception e) {
+            StepUpMetrics.record(StepUpMetrics.SEND, getStepUpMethodName(), StepUpEventIds.EXCEPTION, started);
             log.error(e.getMessage());
             log.debug("{} unable to generate/pass challenge using", getLogPrefix());
             ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EXCEPTION);
-
-            return;
+        } finally {
+            recordMetrics(profileRequestContext);
         }
     }
 
@@ -34,10 +34,27 @@ import com.warrenstrange.googleauth.GoogleAuthenticatorKey;
 /** Step Up Account implementation for GA. */
 public class GoogleAuthenticatorStepUpAccount extends AbstractStepUpAccount {
 
+    /** Verifier shared by accounts not configured with one. */
+    private static final TotpVerifier DEFAULT_VERIFIER = new TotpVerifier();
+
     /** Class logger. */
     @Nonnull
     private final Logger log = LoggerFactory.getLogger(GoogleAuthenticatorStepUpAccount.class);
 
+    /** Verifier of the totp codes. */
+    @Nonnull
+    private TotpVerifier totpVerifier = DEFAULT_VERIFIER;
+
+    /**
+     * Set the verifier of the totp codes.
+     * 
+     * @param verifier
+     *            verifier of the totp codes
+     */
+    public void setTotpVerifier(@Nonnull TotpVerifier verifier) {
+        this.totpVerifier = verifier;
+    }
+
     @Override
     public String getTarget() {
         if (super.getTarget() == null) {
@@ -49,6 +66,22 @@ public class GoogleAuthenticatorStepUpAccount extends AbstractStepUpAccount {
         return super.getTarget();
     }
 
+    /**
+     * The target is the TOTP seed.
+     */
+    @Override
+    public boolean isTargetSecret() {
+        return true;
+    }
+
+    /**
+     * Nothing is sent, the user reads the code from the authenticator.
+     */
+    @Override
+    public boolean isSendingChallenge() {
+        return false;
+    }
+
     /**
      * GA does not send challenge as it is totp.
      * 
@@ -69,14 +102,22 @@ public class GoogleAuthenticatorStepUpAccount extends AbstractStepUpAccount {
     @Override
     public boolean doVerifyResponse(String response) throws Exception {
         log.debug("Verificating totp response {}", response);
-        GoogleAuthenticator gAuth = new GoogleAuthenticator();
         int code;
         try {
             code = Integer.parseInt(response);
         } catch (NumberFormatException e) {
             return false;
         }
-        return gAuth.authorize(getTarget(), code);
+        final long started = StepUpMetrics.start();
+        final boolean verified;
+        try {
+            verified = totpVerifier.verify(getTarget(), code);
+        } catch (Exception e) {
+            StepUpMetrics.recordImplementation(StepUpMetrics.VERIFIER, totpVerifier, e, started);
+            throw e;
+        }
+        StepUpMetrics.recordImplementation(StepUpMetrics.VERIFIER, totpVerifier, null, started);
+        return verified;
     }
 
 }
@@ -0,0 +1,59 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import javax.annotation.Nullable;
+
+import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpAccountFactory;
+
+/**
+ * Factory creating {@link GoogleAuthenticatorStepUpAccount} instances sharing
+ * the configured totp verifier.
+ */
+public class GoogleAuthenticatorStepUpAccountFactory implements StepUpAccountFactory {
+
+    /** Verifier of the totp codes, null for the default verifier. */
+    @Nullable
+    private TotpVerifier totpVerifier;
+
+    /**
+     * Set the verifier of the totp codes.
+     * 
+     * @param verifier verifier of the totp codes
+     */
+    public void setTotpVerifier(@Nullable TotpVerifier verifier) {
+        this.totpVerifier = verifier;
+    }
+
+    @Override
+    public StepUpAccount create() {
+        GoogleAuthenticatorStepUpAccount account = new GoogleAuthenticatorStepUpAccount();
+        if (totpVerifier != null) {
+            account.setTotpVerifier(totpVerifier);
+        }
+        return account;
+    }
+
+}
@@ -40,10 +40,13 @@ import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
 import java.util.function.Function;
+import fi.csc.idp.stepup.api.StepUpAccount;
 import fi.csc.idp.stepup.api.StepUpEventIds;
 import fi.csc.idp.stepup.api.StepUpMethod;
 import fi.csc.idp.stepup.api.StepUpMethodContext;
+import fi.csc.idp.stepup.api.StepUpTraceContext;
 
 /**
  * 
@@ -73,6 +76,9 @@ public class InitializeIdPMFAConfStepUpChallengeContext extends AbstractProfileA
     @Nullable
     private String subject;
 
+    /** Start time of the action. */
+    private long started;
+
     /**
      * Dummy method for xml wiring.
      * 
@@ -111,6 +117,7 @@ public class InitializeIdPMFAConfStepUpChallengeContext extends AbstractProfileA
     /** {@inheritDoc} */
     @Override
     protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
+        started = StepUpMetrics.start();
         if (!super.doPreExecute(profileRequestContext)) {
             log.error("{} pre-execute failed ", getLogPrefix());
             return false;
@@ -118,12 +125,14 @@ public class InitializeIdPMFAConfStepUpChallengeContext extends AbstractProfileA
         if (stepUpMethod == null) {
             log.error("{} bean not configured correctly, step up method not set", getLogPrefix());
             ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EXCEPTION);
+            recordMetrics(profileRequestContext);
             return false;
         }
         authnContext = authnCtxLookupStrategy.apply(profileRequestContext);
         if (authnContext == null) {
             log.error("{} Authentication Context not available", getLogPrefix());
             ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.INVALID_AUTHN_CTX);
+            recordMetrics(profileRequestContext);
             return false;
         }
 
@@ -132,6 +141,7 @@ public class InitializeIdPMFAConfStepUpChallengeContext extends AbstractProfileA
         if (subject == null) {
             log.error("{} no subject resolved, unable to continue", getLogPrefix());
             ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EVENTID_NO_USER);
+            recordMetrics(profileRequestContext);
             return false;
         }
         return true;
@@ -142,27 +152,50 @@ public class InitializeIdPMFAConfStepUpChallengeContext extends AbstractProfileA
     protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
 
         log.debug("{} Creating StepUpMethodContext", getLogPrefix());
+        StepUpMethodContext previousContext = authnContext.getSubcontext(StepUpMethodContext.class);
         StepUpMethodContext stepUpMethodContext = (StepUpMethodContext) authnContext
                 .addSubcontext(new StepUpMethodContext(), true);
+        // The trace of the login may have been started before the context is initialized.
+        StepUpTraceContext traceContext = previousContext != null
+                ? previousContext.getSubcontext(StepUpTraceContext.class)
+                : null;
+        if (traceContext != null) {
+            stepUpMethodContext.addSubcontext(traceContext);
+        }
         AttributeResolutionContext attributeCtx = (AttributeResolutionContext) profileRequestContext
                 .getSubcontext(AttributeResolutionContext.class);
 
         if (attributeCtx == null) {
             log.error("{} Attribute Resolution Context not available", getLogPrefix());
             ActionSupport.buildEvent(profileRequestContext, EventIds.INVALID_PROFILE_CTX);
+            recordMetrics(profileRequestContext);
             return;
         }
+        List<StepUpAccount> accounts;
         try {
-            stepUpMethod.initialize(attributeCtx.getResolvedIdPAttributes());
+            accounts = stepUpMethod.createAccounts(attributeCtx.getResolvedIdPAttributes());
         } catch (Exception e) {
             log.error("{} Failed initializing stepup method {}", getLogPrefix(), e);
             ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EXCEPTION);
+            recordMetrics(profileRequestContext);
             return;
         }
         log.debug("{} Setting method {} to StepUpMethodContext for user {}", getLogPrefix(), stepUpMethod.getName(),
                 subject);
         stepUpMethodContext.setSubject(subject);
         stepUpMethodContext.setStepUpMethod(stepUpMethod);
-        stepUpMethodContext.setStepUpAccount(stepUpMethod.getAccount());
+        stepUpMethodContext.setStepUpAccounts(accounts);
+        stepUpMethodContext.setStepUpAccount(accounts.isEmpty() ? null : accounts.get(0));
+        recordMetrics(profileRequestContext);
+    }
+
+    /**
+     * Record the time and outcome of the action to {@link StepUpMetrics}.
+     * 
+     * @param profileRequestContext profile request context
+     */
+    private void recordMetrics(@Nonnull final ProfileRequestContext profileRequestContext) {
+        StepUpMetrics.recordAction(getClass().getSimpleName(), profileRequestContext,
+                stepUpMethod != null ? stepUpMethod.getName() : null, started);
     }
 }
\ No newline at end of file
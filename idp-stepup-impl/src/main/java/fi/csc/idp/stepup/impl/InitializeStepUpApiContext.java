@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.idp.profile.AbstractProfileAction;
+
+import org.opensaml.profile.action.ActionSupport;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpAccountStorage;
+import fi.csc.idp.stepup.api.StepUpApiContext;
+import fi.csc.idp.stepup.api.StepUpEventIds;
+
+/**
+ * An action that creates the {@link StepUpApiContext} of an account API
+ * request.
+ */
+public class InitializeStepUpApiContext extends AbstractProfileAction {
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(InitializeStepUpApiContext.class);
+
+    /** Prototype of the accounts managed. */
+    private StepUpAccount accountPrototype;
+
+    /** Storage of the accounts managed. */
+    private StepUpAccountStorage storage;
+
+    /**
+     * Set the prototype of the accounts managed.
+     * 
+     * @param prototype prototype of the accounts
+     */
+    public void setAccountPrototype(StepUpAccount prototype) {
+        accountPrototype = prototype;
+    }
+
+    /**
+     * Set the storage of the accounts managed.
+     * 
+     * @param accountStorage storage of the accounts
+     */
+    public void setStorage(StepUpAccountStorage accountStorage) {
+        storage = accountStorage;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
+        if (!super.doPreExecute(profileRequestContext)) {
+            return false;
+        }
+        if (accountPrototype == null || storage == null) {
+            log.error("{} bean not configured correctly, account prototype or storage not set", getLogPrefix());
+            ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EXCEPTION);
+            return false;
+        }
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
+        log.debug("{} Creating StepUpApiContext", getLogPrefix());
+        profileRequestContext.addSubcontext(new StepUpApiContext(accountPrototype, storage), true);
+    }
+}
@@ -0,0 +1,598 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpAccountOperation;
+
+/**
+ * Step up account storage in a relational database accessed through any JDBC
+ * driver. Accounts are stored in table
+ * 
+ * <pre>
+ * CREATE TABLE stepup_account (
+ *     account_key VARCHAR(255) NOT NULL,
+ *     account_name VARCHAR(255),
+ *     target VARCHAR(1024) NOT NULL,
+ *     created BIGINT NOT NULL);
+ * CREATE INDEX stepup_account_key ON stepup_account (account_key);
+ * </pre>
+ * 
+ * which is created on initialization if so configured. Connections are taken
+ * from the configured data source, which should be pooled. A few connections
+ * are kept open by the storage together with their prepared statements, so
+ * that a lookup is a single execution of an already prepared statement.
+ * Batches are executed as JDBC batches in one transaction.
+ */
+public class JDBCStepUpAccountStorage extends AbstractStepUpAccountStorage {
+
+    /** Valid table name. */
+    private static final Pattern TABLE_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(JDBCStepUpAccountStorage.class);
+
+    /** Data source providing the connections. */
+    @Nullable
+    private DataSource dataSource;
+
+    /** Name of the account table. */
+    @Nonnull
+    private String tableName = "stepup_account";
+
+    /** Whether to create the table if it does not exist. */
+    private boolean createSchema;
+
+    /** Maximum number of operations sent to database in one JDBC batch. */
+    private int batchSize = 1000;
+
+    /** Query timeout in seconds, 0 for no timeout. */
+    private int queryTimeout;
+
+    /** Maximum number of idle connections kept open with their prepared statements. */
+    private int maxIdleConnections = 8;
+
+    /** Milliseconds a connection may be idle before it is validated. */
+    private long validationInterval = 30000;
+
+    /** Idle connections with their prepared statements, most recently used first. */
+    @Nonnull
+    private final ConcurrentLinkedDeque<Session> idleSessions = new ConcurrentLinkedDeque<>();
+
+    /** Number of idle connections. */
+    @Nonnull
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /** Statement inserting an account. */
+    private String insertSql;
+
+    /** Statement deleting an account. */
+    private String deleteSql;
+
+    /** Statement selecting the accounts by key. */
+    private String selectSql;
+
+    /**
+     * Set the data source providing the connections. A pooled data source with
+     * prepared statement caching is recommended.
+     * 
+     * @param source data source providing the connections
+     */
+    public void setDataSource(@Nonnull DataSource source) {
+        dataSource = source;
+    }
+
+    /**
+     * Set the name of the account table. Default is stepup_account.
+     * 
+     * @param name name of the account table
+     */
+    public void setTableName(@Nonnull String name) {
+        if (name == null || !TABLE_NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid table name " + name);
+        }
+        tableName = name;
+    }
+
+    /**
+     * Set whether to create the table if it does not exist. Default is false.
+     * 
+     * @param create whether to create the table if it does not exist
+     */
+    public void setCreateSchema(boolean create) {
+        createSchema = create;
+    }
+
+    /**
+     * Set the maximum number of operations sent to database in one JDBC batch.
+     * Default is 1000.
+     * 
+     * @param size maximum number of operations in one JDBC batch
+     */
+    public void setBatchSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        batchSize = size;
+    }
+
+    /**
+     * Set the maximum number of idle connections kept open with their prepared
+     * statements. The data source must allow more connections than this. If 0,
+     * connections are returned to the data source after each call and the
+     * statements are prepared again for each call. Default is 8.
+     * 
+     * @param max maximum number of idle connections
+     */
+    public void setMaxIdleConnections(int max) {
+        maxIdleConnections = max;
+    }
+
+    /**
+     * Set the milliseconds a connection may be idle before it is validated on
+     * use. Default is 30000.
+     * 
+     * @param millis milliseconds a connection may be idle before it is validated
+     */
+    public void setValidationInterval(long millis) {
+        validationInterval = millis;
+    }
+
+    /**
+     * Set the query timeout in seconds. Default is 0, no timeout.
+     * 
+     * @param seconds query timeout in seconds
+     */
+    public void setQueryTimeout(int seconds) {
+        queryTimeout = seconds;
+    }
+
+    /**
+     * Prepares the statements and creates the table if so configured.
+     * 
+     * @throws SQLException if creating the table fails
+     */
+    public synchronized void initialize() throws SQLException {
+        if (dataSource == null) {
+            throw new IllegalStateException("Data source must be set");
+        }
+        insertSql = "INSERT INTO " + tableName + " (account_key, account_name, target, created) VALUES (?, ?, ?, ?)";
+        deleteSql = "DELETE FROM " + tableName + " WHERE account_key = ? AND target = ?";
+        selectSql = "SELECT account_name, target FROM " + tableName + " WHERE account_key = ? ORDER BY created DESC";
+        if (createSchema) {
+            createSchema();
+        }
+    }
+
+    /**
+     * Creates the account table and index if the table does not exist.
+     * 
+     * @throws SQLException if creating the table fails
+     */
+    private void createSchema() throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            final DatabaseMetaData metaData = connection.getMetaData();
+            for (String name : new String[] { tableName, tableName.toUpperCase(Locale.ROOT),
+                    tableName.toLowerCase(Locale.ROOT) }) {
+                try (ResultSet tables = metaData.getTables(null, null, name, new String[] { "TABLE" })) {
+                    if (tables.next()) {
+                        log.debug("Table {} exists", tableName);
+                        return;
+                    }
+                }
+            }
+            log.info("Creating table {}", tableName);
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("CREATE TABLE " + tableName + " (account_key VARCHAR(255) NOT NULL, "
+                        + "account_name VARCHAR(255), target VARCHAR(1024) NOT NULL, created BIGINT NOT NULL)");
+                statement.executeUpdate(
+                        "CREATE INDEX " + tableName + "_key ON " + tableName + " (account_key)");
+            }
+        }
+    }
+
+    /**
+     * Closes the idle connections.
+     */
+    public synchronized void destroy() {
+        Session session;
+        while ((session = idleSessions.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            session.close();
+        }
+    }
+
+    /**
+     * Borrow an idle connection or open a new one. A connection idle for longer
+     * than the validation interval is validated first.
+     * 
+     * @return session of the connection
+     * @throws SQLException if no connection is available
+     */
+    @Nonnull
+    private Session borrow() throws SQLException {
+        if (insertSql == null) {
+            throw new IllegalStateException("Storage not initialized");
+        }
+        Session session;
+        while ((session = idleSessions.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            if (System.currentTimeMillis() - session.lastUsed < validationInterval
+                    || session.connection.isValid(Math.max(1, queryTimeout))) {
+                return session;
+            }
+            log.debug("Closing invalid connection");
+            session.close();
+        }
+        return new Session(dataSource.getConnection());
+    }
+
+    /**
+     * Return the connection to the idle connections, or close it if it failed or
+     * there are enough idle connections.
+     * 
+     * @param session session of the connection
+     * @param failed whether the connection failed
+     */
+    private void release(@Nonnull Session session, boolean failed) {
+        if (failed || idleCount.incrementAndGet() > maxIdleConnections) {
+            if (!failed) {
+                idleCount.decrementAndGet();
+            }
+            session.close();
+            return;
+        }
+        session.lastUsed = System.currentTimeMillis();
+        idleSessions.offerFirst(session);
+    }
+
+    @Override
+    public void add(StepUpAccount account, String key) throws Exception {
+        final Session session = borrow();
+        boolean failed = true;
+        try {
+            final PreparedStatement statement = session.insert();
+            setInsertParameters(statement, account, key, System.currentTimeMillis());
+            statement.executeUpdate();
+            failed = false;
+        } finally {
+            release(session, failed);
+        }
+    }
+
+    @Override
+    public void remove(StepUpAccount account, String key) throws Exception {
+        final Session session = borrow();
+        boolean failed = true;
+        try {
+            final PreparedStatement statement = session.delete();
+            setDeleteParameters(statement, account, key);
+            statement.executeUpdate();
+            failed = false;
+        } finally {
+            release(session, failed);
+        }
+    }
+
+    @Override
+    public <T> StepUpAccount getAccount(String key, Class<T> aClass) throws Exception {
+        final Session session = borrow();
+        String name = null;
+        String target = null;
+        boolean failed = true;
+        try {
+            final PreparedStatement statement = session.select();
+            statement.setString(1, key);
+            try (ResultSet result = statement.executeQuery()) {
+                if (result.next()) {
+                    name = result.getString(1);
+                    target = result.getString(2);
+                }
+            }
+            failed = false;
+        } finally {
+            release(session, failed);
+        }
+        return target == null ? null : newAccount(aClass, name, target);
+    }
+
+    @Override
+    public <T> List<StepUpAccount> getAccounts(String key, Class<T> aClass) throws Exception {
+        final Session session = borrow();
+        final List<String[]> rows = new ArrayList<>();
+        boolean failed = true;
+        try {
+            final PreparedStatement statement = session.selectAll();
+            statement.setString(1, key);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    rows.add(new String[] { result.getString(1), result.getString(2) });
+                }
+            }
+            failed = false;
+        } finally {
+            release(session, failed);
+        }
+        final List<StepUpAccount> accounts = new ArrayList<>(rows.size());
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            accounts.add(newAccount(aClass, rows.get(i)[0], rows.get(i)[1]));
+        }
+        return accounts;
+    }
+
+    /**
+     * Execute the operations in one transaction. Consecutive operations of the
+     * same type are sent to database as JDBC batches of at most batch size
+     * operations.
+     * 
+     * @param operations operations to execute.
+     * @throws Exception if something unexpected occurs, no operation is then
+     *             executed.
+     */
+    @Override
+    public void executeBatch(List<StepUpAccountOperation> operations) throws Exception {
+        if (operations.isEmpty()) {
+            return;
+        }
+        final Session session = borrow();
+        final Connection connection = session.connection;
+        boolean failed = true;
+        try {
+            connection.setAutoCommit(false);
+            Exception failure = null;
+            try {
+                final PreparedStatement insert = session.insert();
+                final PreparedStatement delete = session.delete();
+                final long created = System.currentTimeMillis();
+                // accounts of a key added in the batch keep their order
+                final Map<String, Integer> added = new HashMap<>();
+                PreparedStatement pending = null;
+                int count = 0;
+                for (StepUpAccountOperation operation : operations) {
+                    final PreparedStatement statement = operation.getType() == StepUpAccountOperation.Type.ADD
+                            ? insert : delete;
+                    // the operations are executed in order
+                    if (pending != null && (pending != statement || count == batchSize)) {
+                        pending.executeBatch();
+                        count = 0;
+                    }
+                    if (statement == insert) {
+                        setInsertParameters(insert, operation.getAccount(), operation.getKey(),
+                                created + added.merge(operation.getKey(), 1, Integer::sum) - 1);
+                    } else {
+                        setDeleteParameters(delete, operation.getAccount(), operation.getKey());
+                    }
+                    statement.addBatch();
+                    pending = statement;
+                    count++;
+                }
+                pending.executeBatch();
+                connection.commit();
+                log.debug("Executed batch of {} operations", operations.size());
+            } catch (SQLException | RuntimeException e) {
+                failure = e;
+                try {
+                    connection.rollback();
+                } catch (SQLException rollbackFailure) {
+                    e.addSuppressed(rollbackFailure);
+                }
+                throw e;
+            } finally {
+                // failing to restore the connection must not hide the failure of the batch
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException resetFailure) {
+                    if (failure == null) {
+                        throw resetFailure;
+                    }
+                    failure.addSuppressed(resetFailure);
+                }
+            }
+            failed = false;
+        } finally {
+            release(session, failed);
+        }
+    }
+
+    /**
+     * Set the parameters of the insert statement.
+     * 
+     * @param statement insert statement
+     * @param account account to insert
+     * @param key key the account is stored by
+     * @param created creation time
+     * @throws SQLException if setting a parameter fails
+     */
+    private void setInsertParameters(@Nonnull PreparedStatement statement, @Nonnull StepUpAccount account,
+            @Nonnull String key, long created) throws SQLException {
+        statement.setString(1, key);
+        statement.setString(2, account.getName());
+        statement.setString(3, account.getTarget());
+        statement.setLong(4, created);
+    }
+
+    /**
+     * Set the parameters of the delete statement.
+     * 
+     * @param statement delete statement
+     * @param account account to delete
+     * @param key key the account is stored by
+     * @throws SQLException if setting a parameter fails
+     */
+    private void setDeleteParameters(@Nonnull PreparedStatement statement, @Nonnull StepUpAccount account,
+            @Nonnull String key) throws SQLException {
+        statement.setString(1, key);
+        statement.setString(2, account.getTarget());
+    }
+
+    /** Connection with its prepared statements. */
+    private final class Session {
+
+        /** Connection. */
+        @Nonnull
+        private final Connection connection;
+
+        /** Prepared insert statement, null until used. */
+        @Nullable
+        private PreparedStatement insertStatement;
+
+        /** Prepared delete statement, null until used. */
+        @Nullable
+        private PreparedStatement deleteStatement;
+
+        /** Prepared select statement, null until used. */
+        @Nullable
+        private PreparedStatement selectStatement;
+
+        /** Prepared select statement returning all rows, null until used. */
+        @Nullable
+        private PreparedStatement selectAllStatement;
+
+        /** Time the connection was last used. */
+        private long lastUsed = System.currentTimeMillis();
+
+        /**
+         * Constructor.
+         * 
+         * @param conn connection
+         */
+        private Session(@Nonnull Connection conn) {
+            connection = conn;
+        }
+
+        /**
+         * Get the prepared insert statement.
+         * 
+         * @return insert statement
+         * @throws SQLException if preparing the statement fails
+         */
+        @Nonnull
+        private PreparedStatement insert() throws SQLException {
+            if (insertStatement == null) {
+                insertStatement = prepare(insertSql);
+            }
+            return insertStatement;
+        }
+
+        /**
+         * Get the prepared delete statement.
+         * 
+         * @return delete statement
+         * @throws SQLException if preparing the statement fails
+         */
+        @Nonnull
+        private PreparedStatement delete() throws SQLException {
+            if (deleteStatement == null) {
+                deleteStatement = prepare(deleteSql);
+            }
+            return deleteStatement;
+        }
+
+        /**
+         * Get the prepared select statement.
+         * 
+         * @return select statement
+         * @throws SQLException if preparing the statement fails
+         */
+        @Nonnull
+        private PreparedStatement select() throws SQLException {
+            if (selectStatement == null) {
+                selectStatement = prepare(selectSql);
+                selectStatement.setMaxRows(1);
+            }
+            return selectStatement;
+        }
+
+        /**
+         * Get the prepared select statement returning all accounts of the key.
+         * 
+         * @return select statement
+         * @throws SQLException if preparing the statement fails
+         */
+        @Nonnull
+        private PreparedStatement selectAll() throws SQLException {
+            if (selectAllStatement == null) {
+                selectAllStatement = prepare(selectSql);
+            }
+            return selectAllStatement;
+        }
+
+        /**
+         * Prepare a statement.
+         * 
+         * @param sql statement
+         * @return prepared statement
+         * @throws SQLException if preparing the statement fails
+         */
+        @Nonnull
+        private PreparedStatement prepare(@Nonnull String sql) throws SQLException {
+            final PreparedStatement statement = connection.prepareStatement(sql);
+            statement.setQueryTimeout(queryTimeout);
+            return statement;
+        }
+
+        /** Closes the statements and returns the connection to the data source. */
+        private void close() {
+            for (Statement statement : new Statement[] { insertStatement, deleteStatement, selectStatement,
+                    selectAllStatement }) {
+                if (statement != null) {
+                    try {
+                        statement.close();
+                    } catch (SQLException e) {
+                        log.debug("Closing statement failed", e);
+                    }
+                }
+            }
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                log.debug("Closing connection failed", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,803 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.opensaml.core.metrics.MetricsSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fi.csc.idp.stepup.api.TokenValidator;
+
+/**
+ * Validator of signed JWT access tokens for the step up API. Tokens signed with
+ * HMAC (HS256, HS384, HS512) are verified by the shared secret or a symmetric
+ * key of the key set, tokens signed with RSA (RS256, RS384, RS512) or ECDSA
+ * (ES256, ES384, ES512) by a public key of the key set. The key set is read
+ * from a JWKS URL and cached, and read again once expired or when a token names
+ * an unknown key.
+ * 
+ * <p>
+ * A token is valid if its signature verifies, it has not expired, it is in use
+ * and it has the configured issuer and audience. A token with the admin scope
+ * may be used for any action on any user. A token with the self service scope
+ * may be used for self service actions on its subject.
+ * </p>
+ * 
+ * <p>
+ * The claims of a valid token are cached by the SHA-256 digest of the token
+ * until the token expires, so a token used again is not verified again. Parsed
+ * headers are cached too, as the tokens of an issuer share their header.
+ * </p>
+ */
+public class JWTTokenValidator implements TokenValidator {
+
+    /** Maximum number of headers cached. */
+    private static final int MAX_HEADERS = 256;
+
+    /** JSON parser. */
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(JWTTokenValidator.class);
+
+    /** Shared secret of HMAC signed tokens. */
+    @Nullable
+    private SecretKey secret;
+
+    /** URL of the key set. */
+    @Nullable
+    private String jwksUrl;
+
+    /** Milliseconds the key set is cached. */
+    private long keySetTimeToLive = 3600000;
+
+    /** Minimum milliseconds between reading the key set for an unknown key. */
+    private long keySetRefreshInterval = 60000;
+
+    /** Milliseconds to wait for connecting to and reading from the key set URL. */
+    private int timeout = 5000;
+
+    /** Required issuer, null if not checked. */
+    @Nullable
+    private String issuer;
+
+    /** Required audience, null if not checked. */
+    @Nullable
+    private String audience;
+
+    /** Scope allowing self service actions on the subject. */
+    @Nonnull
+    private String selfServiceScope = "stepup.selfservice";
+
+    /** Scope allowing any action on any user. */
+    @Nonnull
+    private String adminScope = "stepup.admin";
+
+    /** Milliseconds of clock skew allowed. */
+    private long clockSkew = 60000;
+
+    /** Maximum number of valid tokens cached. */
+    private int cacheSize = 10000;
+
+    /** Prefix of the metric names. */
+    @Nonnull
+    private String metricPrefix = "fi.csc.idp.stepup.TokenValidator";
+
+    /** Claims of valid tokens by token digest. */
+    @Nonnull
+    private final Map<String, Claims> cache = new ConcurrentHashMap<>();
+
+    /** Parsed headers by header segment. */
+    @Nonnull
+    private final Map<String, Header> headers = new ConcurrentHashMap<>();
+
+    /** Key set, null if not read. */
+    @Nullable
+    private volatile KeySet keySet;
+
+    /** Digest of the tokens, per thread. */
+    @Nonnull
+    private final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /** Tokens found from the cache. */
+    @Nonnull
+    private final Counter hits = new Counter();
+
+    /** Tokens verified. */
+    @Nonnull
+    private final Counter misses = new Counter();
+
+    /** Tokens failing verification. */
+    @Nonnull
+    private final Counter failures = new Counter();
+
+    /**
+     * Set the shared secret of HMAC signed tokens.
+     * 
+     * @param key shared secret, empty for none
+     */
+    public void setSecret(@Nullable String key) {
+        secret = key == null || key.isEmpty() ? null
+                : new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+    }
+
+    /**
+     * Set the URL of the key set, for instance the jwks_uri of the issuer.
+     * 
+     * @param url URL of the key set, empty for none
+     */
+    public void setJwksUrl(@Nullable String url) {
+        jwksUrl = url == null || url.isEmpty() ? null : url;
+    }
+
+    /**
+     * Set the milliseconds the key set is cached. Default is 3600000.
+     * 
+     * @param millis milliseconds the key set is cached
+     */
+    public void setKeySetTimeToLive(long millis) {
+        keySetTimeToLive = millis;
+    }
+
+    /**
+     * Set the minimum milliseconds between reading the key set for a token
+     * naming an unknown key. Default is 60000.
+     * 
+     * @param millis minimum milliseconds between reading the key set
+     */
+    public void setKeySetRefreshInterval(long millis) {
+        keySetRefreshInterval = millis;
+    }
+
+    /**
+     * Set the milliseconds to wait for connecting to and reading from the key set
+     * URL. Default is 5000.
+     * 
+     * @param millis milliseconds to wait
+     */
+    public void setTimeout(int millis) {
+        timeout = millis;
+    }
+
+    /**
+     * Set the required issuer of the tokens.
+     * 
+     * @param iss required issuer, empty for not checking the issuer
+     */
+    public void setIssuer(@Nullable String iss) {
+        issuer = iss == null || iss.isEmpty() ? null : iss;
+    }
+
+    /**
+     * Set the audience the tokens must have.
+     * 
+     * @param aud required audience, empty for not checking the audience
+     */
+    public void setAudience(@Nullable String aud) {
+        audience = aud == null || aud.isEmpty() ? null : aud;
+    }
+
+    /**
+     * Set the scope allowing self service actions on the subject of the token.
+     * 
+     * @param scope self service scope
+     */
+    public void setSelfServiceScope(@Nonnull String scope) {
+        selfServiceScope = scope;
+    }
+
+    /**
+     * Set the scope allowing any action on any user.
+     * 
+     * @param scope admin scope
+     */
+    public void setAdminScope(@Nonnull String scope) {
+        adminScope = scope;
+    }
+
+    /**
+     * Set the milliseconds of clock skew allowed when checking the expiration and
+     * not before times. Default is 60000.
+     * 
+     * @param millis milliseconds of clock skew allowed
+     */
+    public void setClockSkew(long millis) {
+        clockSkew = millis;
+    }
+
+    /**
+     * Set the maximum number of valid tokens cached. If 0, tokens are verified
+     * every time.
+     * 
+     * @param size maximum number of valid tokens cached
+     */
+    public void setCacheSize(int size) {
+        cacheSize = size;
+    }
+
+    /**
+     * Set the prefix of the metric names.
+     * 
+     * @param prefix of the metric names
+     */
+    public void setMetricPrefix(@Nonnull String prefix) {
+        metricPrefix = prefix;
+    }
+
+    /**
+     * Checks a key source is set and registers the metrics.
+     */
+    public void initialize() {
+        if (secret == null && jwksUrl == null) {
+            throw new IllegalStateException("Secret or key set URL must be set");
+        }
+        if (MetricsSupport.getMetricRegistry() != null) {
+            MetricsSupport.register(MetricRegistry.name(metricPrefix, "hits"), hits, true);
+            MetricsSupport.register(MetricRegistry.name(metricPrefix, "misses"), misses, true);
+            MetricsSupport.register(MetricRegistry.name(metricPrefix, "failures"), failures, true);
+        }
+    }
+
+    /**
+     * Removes the metrics.
+     */
+    public void destroy() {
+        if (MetricsSupport.getMetricRegistry() != null) {
+            MetricsSupport.remove(MetricRegistry.name(metricPrefix, "hits"), hits);
+            MetricsSupport.remove(MetricRegistry.name(metricPrefix, "misses"), misses);
+            MetricsSupport.remove(MetricRegistry.name(metricPrefix, "failures"), failures);
+        }
+    }
+
+    @Override
+    public boolean validate(String token, String targetUser, boolean selfServiceAction) {
+        if (token == null || token.isEmpty()) {
+            return false;
+        }
+        final long now = System.currentTimeMillis();
+        final String key = cacheSize > 0 ? digest(token) : null;
+        Claims claims = key == null ? null : cache.get(key);
+        if (claims != null && claims.expires > now) {
+            hits.inc();
+        } else {
+            misses.inc();
+            claims = verify(token, now);
+            if (claims == null) {
+                failures.inc();
+                return false;
+            }
+            if (key != null) {
+                cache(key, claims, now);
+            }
+        }
+        if (claims.scopes.contains(adminScope)) {
+            return true;
+        }
+        if (selfServiceAction && claims.scopes.contains(selfServiceScope) && claims.subject != null
+                && claims.subject.equals(targetUser)) {
+            return true;
+        }
+        log.debug("Token of {} does not allow {} action on user {}", claims.subject,
+                selfServiceAction ? "self service" : "admin", targetUser);
+        return false;
+    }
+
+    /**
+     * Get the number of tokens found from the cache.
+     * 
+     * @return number of cache hits
+     */
+    public long getHitCount() {
+        return hits.getCount();
+    }
+
+    /**
+     * Get the number of tokens verified.
+     * 
+     * @return number of cache misses
+     */
+    public long getMissCount() {
+        return misses.getCount();
+    }
+
+    /**
+     * Get the number of valid tokens cached.
+     * 
+     * @return number of valid tokens cached
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * Verify the signature and claims of a token.
+     * 
+     * @param token the token
+     * @param now current time
+     * @return claims of the token, null if not valid
+     */
+    @Nullable
+    private Claims verify(@Nonnull String token, long now) {
+        final int first = token.indexOf('.');
+        final int second = token.indexOf('.', first + 1);
+        if (first <= 0 || second < 0 || token.indexOf('.', second + 1) >= 0) {
+            log.debug("Token is not a signed JWT");
+            return null;
+        }
+        try {
+            final String headerSegment = token.substring(0, first);
+            Header header = headers.get(headerSegment);
+            if (header == null) {
+                header = parseHeader(headerSegment);
+                if (headers.size() >= MAX_HEADERS) {
+                    headers.clear();
+                }
+                headers.put(headerSegment, header);
+            }
+            final Key key = resolveKey(header, now);
+            if (key == null) {
+                log.debug("No key for token with algorithm {} and key id {}", header.algorithm, header.keyId);
+                return null;
+            }
+            final byte[] signed = token.substring(0, second).getBytes(StandardCharsets.US_ASCII);
+            final byte[] signature = Base64.getUrlDecoder().decode(token.substring(second + 1));
+            if (!verifySignature(header.algorithm, key, signed, signature)) {
+                log.debug("Token signature does not verify");
+                return null;
+            }
+            return parseClaims(
+                    MAPPER.readTree(Base64.getUrlDecoder().decode(token.substring(first + 1, second))), now);
+        } catch (IOException | IllegalArgumentException | GeneralSecurityException e) {
+            log.debug("Token is not valid", e);
+            return null;
+        }
+    }
+
+    /**
+     * Parse a header segment.
+     * 
+     * @param segment header segment
+     * @return parsed header
+     * @throws IOException if the segment is not valid
+     */
+    @Nonnull
+    private Header parseHeader(@Nonnull String segment) throws IOException {
+        final JsonNode node = MAPPER.readTree(Base64.getUrlDecoder().decode(segment));
+        if (node == null || !node.path("alg").isTextual()) {
+            throw new IOException("Token header has no algorithm");
+        }
+        return new Header(node.path("alg").asText(), node.path("kid").isTextual() ? node.path("kid").asText() : null);
+    }
+
+    /**
+     * Resolve the key verifying a token. HMAC tokens are verified only by
+     * symmetric keys and other tokens only by public keys.
+     * 
+     * @param header header of the token
+     * @param now current time
+     * @return the key, null if none
+     */
+    @Nullable
+    private Key resolveKey(@Nonnull Header header, long now) {
+        final boolean hmac = header.algorithm.startsWith("HS");
+        if (hmac && header.keyId == null && secret != null) {
+            return secret;
+        }
+        if (jwksUrl == null) {
+            return hmac ? secret : null;
+        }
+        KeySet keys = keySet;
+        if (keys == null || now - keys.loaded > keySetTimeToLive) {
+            keys = loadKeySet(keys, now);
+        }
+        Key key = keys.find(header.keyId, hmac);
+        if (key == null && now - keys.loaded > keySetRefreshInterval) {
+            key = loadKeySet(keys, now).find(header.keyId, hmac);
+        }
+        return key == null && hmac ? secret : key;
+    }
+
+    /**
+     * Read the key set unless another thread read it meanwhile. If reading fails,
+     * the previous key set is kept.
+     * 
+     * @param previous key set read before, null if none
+     * @param now current time
+     * @return the key set
+     */
+    @Nonnull
+    private synchronized KeySet loadKeySet(@Nullable KeySet previous, long now) {
+        final KeySet current = keySet;
+        if (current != null && current != previous) {
+            return current;
+        }
+        KeySet loaded;
+        try {
+            final URLConnection connection = new URL(jwksUrl).openConnection();
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            try (InputStream in = connection.getInputStream()) {
+                loaded = new KeySet(parseKeySet(MAPPER.readTree(in)), now);
+            }
+            log.debug("Read {} keys from {}", loaded.keys.size(), jwksUrl);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Reading key set from {} failed", jwksUrl, e);
+            // the failed read is retried after the refresh interval
+            loaded = new KeySet(current == null ? Collections.emptyMap() : current.keys, now);
+        }
+        keySet = loaded;
+        return loaded;
+    }
+
+    /**
+     * Parse the keys of a key set. Keys not usable for verifying signatures are
+     * skipped.
+     * 
+     * @param jwks the key set
+     * @return keys by key id, keys without id by the empty string
+     */
+    @Nonnull
+    private Map<String, Key> parseKeySet(@Nonnull JsonNode jwks) {
+        final Map<String, Key> keys = new HashMap<>();
+        for (JsonNode jwk : jwks.path("keys")) {
+            final String kid = jwk.path("kid").asText("");
+            if (!jwk.path("use").asText("sig").equals("sig")) {
+                continue;
+            }
+            try {
+                final Key key;
+                switch (jwk.path("kty").asText()) {
+                    case "RSA":
+                        key = KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(
+                                unsigned(jwk.path("n").asText()), unsigned(jwk.path("e").asText())));
+                        break;
+                    case "EC":
+                        final AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+                        parameters.init(new ECGenParameterSpec(curveName(jwk.path("crv").asText())));
+                        key = KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(
+                                new ECPoint(unsigned(jwk.path("x").asText()), unsigned(jwk.path("y").asText())),
+                                parameters.getParameterSpec(ECParameterSpec.class)));
+                        break;
+                    case "oct":
+                        key = new SecretKeySpec(Base64.getUrlDecoder().decode(jwk.path("k").asText()), "HmacSHA256");
+                        break;
+                    default:
+                        log.debug("Skipping key {} of unsupported type", kid);
+                        continue;
+                }
+                keys.put(kid, key);
+            } catch (GeneralSecurityException | IllegalArgumentException e) {
+                log.warn("Skipping invalid key {}", kid, e);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Verify a signature.
+     * 
+     * @param algorithm JWS algorithm
+     * @param key verifying key
+     * @param signed signed bytes
+     * @param signature the signature
+     * @return whether the signature verifies
+     * @throws GeneralSecurityException if the algorithm is not
+     *             supported or the key is not of the algorithm
+     */
+    private boolean verifySignature(@Nonnull String algorithm, @Nonnull Key key, @Nonnull byte[] signed,
+            @Nonnull byte[] signature) throws GeneralSecurityException {
+        final String bits = algorithm.length() == 5 ? algorithm.substring(2) : "";
+        if (!bits.equals("256") && !bits.equals("384") && !bits.equals("512")) {
+            throw new NoSuchAlgorithmException("Unsupported algorithm " + algorithm);
+        }
+        if (algorithm.startsWith("HS") && key instanceof SecretKey) {
+            final Mac mac = Mac.getInstance("HmacSHA" + bits);
+            mac.init(key);
+            return MessageDigest.isEqual(mac.doFinal(signed), signature);
+        }
+        final Signature verifier;
+        if (algorithm.startsWith("RS") && key instanceof RSAPublicKey) {
+            verifier = Signature.getInstance("SHA" + bits + "withRSA");
+        } else if (algorithm.startsWith("ES") && key instanceof ECPublicKey) {
+            verifier = Signature.getInstance("SHA" + bits + "withECDSAinP1363Format");
+        } else {
+            throw new NoSuchAlgorithmException("Algorithm " + algorithm + " does not match the key");
+        }
+        verifier.initVerify((PublicKey) key);
+        verifier.update(signed);
+        return verifier.verify(signature);
+    }
+
+    /**
+     * Parse and check the claims of a token.
+     * 
+     * @param payload payload of the token
+     * @param now current time
+     * @return the claims, null if not valid
+     */
+    @Nullable
+    private Claims parseClaims(@Nullable JsonNode payload, long now) {
+        if (payload == null || !payload.path("exp").isNumber()) {
+            log.debug("Token has no expiration time");
+            return null;
+        }
+        final long expires = payload.path("exp").asLong() * 1000 + clockSkew;
+        if (expires <= now) {
+            log.debug("Token has expired");
+            return null;
+        }
+        if (payload.path("nbf").isNumber() && payload.path("nbf").asLong() * 1000 - clockSkew > now) {
+            log.debug("Token is not yet valid");
+            return null;
+        }
+        if (issuer != null && !issuer.equals(payload.path("iss").asText(null))) {
+            log.debug("Token issuer {} is not {}", payload.path("iss").asText(null), issuer);
+            return null;
+        }
+        if (audience != null && !values(payload.path("aud"), false).contains(audience)) {
+            log.debug("Token audience is not {}", audience);
+            return null;
+        }
+        final Set<String> scopes = values(payload.has("scope") ? payload.path("scope") : payload.path("scp"), true);
+        return new Claims(payload.path("sub").asText(null), scopes, expires);
+    }
+
+    /**
+     * Cache the claims of a valid token. Expired tokens are evicted once the cache
+     * is full, and if none has expired an arbitrary tenth of the tokens.
+     * 
+     * @param key digest of the token
+     * @param claims claims of the token
+     * @param now current time
+     */
+    private void cache(@Nonnull String key, @Nonnull Claims claims, long now) {
+        if (cache.size() >= cacheSize) {
+            cache.values().removeIf(cached -> cached.expires <= now);
+            final Iterator<Claims> iterator = cache.values().iterator();
+            for (int i = cache.size() - cacheSize * 9 / 10; i >= 0 && iterator.hasNext(); i--) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        cache.put(key, claims);
+    }
+
+    /**
+     * Compute the digest of a token.
+     * 
+     * @param token the token
+     * @return digest of the token as a string of bytes
+     */
+    @Nonnull
+    private String digest(@Nonnull String token) {
+        return new String(digest.get().digest(token.getBytes(StandardCharsets.US_ASCII)),
+                StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Get the values of a claim that may be a single string or an array.
+     * 
+     * @param node the claim
+     * @param split whether a single string is a space separated list
+     * @return the values
+     */
+    @Nonnull
+    private static Set<String> values(@Nonnull JsonNode node, boolean split) {
+        final Set<String> values = new HashSet<>();
+        if (node.isArray()) {
+            for (JsonNode value : node) {
+                values.add(value.asText());
+            }
+        } else if (node.isTextual()) {
+            if (split) {
+                for (String value : node.asText().split(" ")) {
+                    if (!value.isEmpty()) {
+                        values.add(value);
+                    }
+                }
+            } else {
+                values.add(node.asText());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Decode a base64url encoded unsigned integer.
+     * 
+     * @param value encoded integer
+     * @return the integer
+     */
+    @Nonnull
+    private static BigInteger unsigned(@Nonnull String value) {
+        return new BigInteger(1, Base64.getUrlDecoder().decode(value));
+    }
+
+    /**
+     * Map a JWK curve to the JCA curve name.
+     * 
+     * @param curve JWK curve
+     * @return JCA curve name
+     * @throws NoSuchAlgorithmException if the curve is not supported
+     */
+    @Nonnull
+    private static String curveName(@Nonnull String curve) throws NoSuchAlgorithmException {
+        switch (curve) {
+            case "P-256":
+                return "secp256r1";
+            case "P-384":
+                return "secp384r1";
+            case "P-521":
+                return "secp521r1";
+            default:
+                throw new NoSuchAlgorithmException("Unsupported curve " + curve);
+        }
+    }
+
+    /** Parsed token header. */
+    private static final class Header {
+
+        /** Signature algorithm. */
+        @Nonnull
+        private final String algorithm;
+
+        /** Key id, null if none. */
+        @Nullable
+        private final String keyId;
+
+        /**
+         * Constructor.
+         * 
+         * @param alg signature algorithm
+         * @param kid key id, null if none
+         */
+        private Header(@Nonnull String alg, @Nullable String kid) {
+            algorithm = alg;
+            keyId = kid;
+        }
+    }
+
+    /** Claims of a valid token. */
+    private static final class Claims {
+
+        /** Subject of the token. */
+        @Nullable
+        private final String subject;
+
+        /** Scopes of the token. */
+        @Nonnull
+        private final Set<String> scopes;
+
+        /** Time the token expires, including the clock skew. */
+        private final long expires;
+
+        /**
+         * Constructor.
+         * 
+         * @param sub subject of the token
+         * @param scope scopes of the token
+         * @param exp time the token expires
+         */
+        private Claims(@Nullable String sub, @Nonnull Set<String> scope, long exp) {
+            subject = sub;
+            scopes = scope;
+            expires = exp;
+        }
+    }
+
+    /** Key set read from the key set URL. */
+    private static final class KeySet {
+
+        /** Keys by key id. */
+        @Nonnull
+        private final Map<String, Key> keys;
+
+        /** Time the key set was read. */
+        private final long loaded;
+
+        /**
+         * Constructor.
+         * 
+         * @param keyMap keys by key id
+         * @param time time the key set was read
+         */
+        private KeySet(@Nonnull Map<String, Key> keyMap, long time) {
+            keys = keyMap;
+            loaded = time;
+        }
+
+        /**
+         * Find a key. A token without key id is verified by the only key of the
+         * kind, if there is only one.
+         * 
+         * @param kid key id, null if none
+         * @param symmetric whether a symmetric key is needed
+         * @return the key, null if not found
+         */
+        @Nullable
+        private Key find(@Nullable String kid, boolean symmetric) {
+            if (kid != null) {
+                return keys.get(kid);
+            }
+            Key found = null;
+            for (Key key : keys.values()) {
+                if (key instanceof SecretKey == symmetric) {
+                    if (found != null) {
+                        return null;
+                    }
+                    found = key;
+                }
+            }
+            return found;
+        }
+    }
+}
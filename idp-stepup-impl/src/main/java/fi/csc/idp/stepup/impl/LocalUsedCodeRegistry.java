@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+
+import fi.csc.idp.stepup.api.UsedCodeRegistry;
+
+/**
+ * In-process registry of used codes. Codes are kept in a concurrent set per
+ * time step, and the set of a time step is dropped as a whole once the step has
+ * left the window of accepted codes. The memory used is therefore bounded by
+ * the number of codes used within the window.
+ */
+public class LocalUsedCodeRegistry implements UsedCodeRegistry {
+
+    /** Used codes by time step. */
+    @Nonnull
+    private final Map<Long, Bucket> buckets = new ConcurrentHashMap<>();
+
+    /** Earliest expiration of a bucket. */
+    private volatile long nextExpiration = Long.MAX_VALUE;
+
+    @Override
+    public boolean markUsed(@Nonnull String key, long timeStep, long expires) {
+        evict(System.currentTimeMillis());
+        final Bucket bucket = buckets.computeIfAbsent(timeStep, step -> new Bucket(expires));
+        if (expires < nextExpiration) {
+            nextExpiration = expires;
+        }
+        return bucket.keys.add(key);
+    }
+
+    /**
+     * Get the number of codes registered.
+     * 
+     * @return number of codes registered
+     */
+    public int size() {
+        int size = 0;
+        for (final Bucket bucket : buckets.values()) {
+            size += bucket.keys.size();
+        }
+        return size;
+    }
+
+    /**
+     * Drop the buckets of expired time steps.
+     * 
+     * @param now current time in milliseconds
+     */
+    private void evict(long now) {
+        if (now < nextExpiration) {
+            return;
+        }
+        long next = Long.MAX_VALUE;
+        for (final Map.Entry<Long, Bucket> entry : buckets.entrySet()) {
+            final long expires = entry.getValue().expires;
+            if (expires <= now) {
+                buckets.remove(entry.getKey(), entry.getValue());
+            } else if (expires < next) {
+                next = expires;
+            }
+        }
+        nextExpiration = next;
+    }
+
+    /** Codes used at a time step. */
+    private static final class Bucket {
+
+        /** Time after which the codes need not to be remembered. */
+        private final long expires;
+
+        /** Keys of the codes used. */
+        @Nonnull
+        private final Set<String> keys = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Constructor.
+         * 
+         * @param expiration time after which the codes need not to be remembered
+         */
+        private Bucket(long expiration) {
+            expires = expiration;
+        }
+    }
+}
@@ -24,9 +24,19 @@
 package fi.csc.idp.stepup.impl;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nonnull;
 
@@ -68,12 +78,40 @@ public class MailChallengeSender implements ChallengeSender {
     private String templateFileName;
     /** email template path used to override the default. */
     private String templateFilePath;
-    /** Velocity template. */
-    private Template template;
+    /** Velocity template, used if the template cannot be precompiled. */
+    private volatile Template template;
+    /** Precompiled template, null if the template is rendered by Velocity. */
+    private volatile OtpMailTemplate compiledTemplate;
+    /** Whether the template has been loaded. */
+    private boolean templateLoaded;
+    /** Last modification time of the template file when loaded. */
+    private long templateModified;
+    /** Time of the next check for template file modification. */
+    private long nextTemplateCheck;
+    /** How often the template file is checked for modification in milliseconds. */
+    private long templateCheckInterval = 2000;
     /** Properties for email. */
     private Properties props = new Properties();
     /** Session information. */
     private Session session;
+    /** Number of background delivery workers, 0 for delivering on caller thread. */
+    private int workers;
+    /** Maximum number of messages waiting for background delivery. */
+    private int queueCapacity = 1000;
+    /** How long to wait for space in delivery queue in milliseconds. */
+    private long queueTimeout = 100;
+    /** How long an idle worker keeps its connection open in milliseconds. */
+    private long idleTimeout = 30000;
+    /** How long a worker collects messages to a batch in milliseconds. */
+    private long batchWindow;
+    /** Maximum number of messages in a batch. */
+    private int maxBatchSize = 100;
+    /** Whether to wait for the result of background delivery. */
+    private boolean awaitDelivery;
+    /** How long to wait for the result of background delivery in milliseconds. */
+    private long deliveryTimeout = 30000;
+    /** Background delivery of messages. */
+    private MailDeliveryPipeline pipeline;
 
     /**
      * Sets the Sender field of email.
@@ -195,6 +233,121 @@ public class MailChallengeSender implements ChallengeSender {
 
     }
 
+    /**
+     * Sets how often the template file is checked for modification. A modified
+     * template is reloaded.
+     * 
+     * @param interval
+     *            in milliseconds
+     */
+    public void setTemplateCheckInterval(long interval) {
+
+        this.templateCheckInterval = interval;
+
+    }
+
+    /**
+     * Sets the number of background workers delivering the messages. Each
+     * worker keeps its own connection to the mail server open. If 0, which is
+     * the default, messages are delivered on the caller thread over a new
+     * connection each.
+     * 
+     * @param count
+     *            number of background workers
+     */
+    public void setWorkers(int count) {
+
+        this.workers = count;
+
+    }
+
+    /**
+     * Sets the maximum number of messages waiting for background delivery.
+     * 
+     * @param capacity
+     *            maximum number of messages waiting for delivery
+     */
+    public void setQueueCapacity(int capacity) {
+
+        this.queueCapacity = capacity;
+
+    }
+
+    /**
+     * Sets how long to wait for space in a full delivery queue before failing.
+     * 
+     * @param timeout
+     *            in milliseconds
+     */
+    public void setQueueTimeout(long timeout) {
+
+        this.queueTimeout = timeout;
+
+    }
+
+    /**
+     * Sets how long an idle background worker keeps its connection open.
+     * 
+     * @param timeout
+     *            in milliseconds
+     */
+    public void setIdleTimeout(long timeout) {
+
+        this.idleTimeout = timeout;
+
+    }
+
+    /**
+     * Sets the window a background worker collects messages to a batch sent in
+     * one SMTP session. If 0, which is the default, messages are sent one by
+     * one.
+     * 
+     * @param window
+     *            in milliseconds
+     */
+    public void setBatchWindow(long window) {
+
+        this.batchWindow = window;
+
+    }
+
+    /**
+     * Sets the maximum number of messages sent in one batch.
+     * 
+     * @param size
+     *            maximum number of messages in a batch
+     */
+    public void setMaxBatchSize(int size) {
+
+        this.maxBatchSize = size;
+
+    }
+
+    /**
+     * Sets whether sending waits for the background delivery of the message to
+     * complete, so that a failed delivery fails the sending.
+     * 
+     * @param await
+     *            whether to wait for the delivery
+     */
+    public void setAwaitDelivery(boolean await) {
+
+        this.awaitDelivery = await;
+
+    }
+
+    /**
+     * Sets how long sending waits for the background delivery.
+     * 
+     * @param timeout
+     *            in milliseconds
+     */
+    public void setDeliveryTimeout(long timeout) {
+
+        this.deliveryTimeout = timeout;
+
+    }
+
     /**
      * Method loads the template for challenge email.
      * 
@@ -220,13 +373,108 @@ public class MailChallengeSender implements ChallengeSender {
     }
 
     /**
-     * Initializes velocity template and mail session if not initialized yet.
+     * Method resolves the template file replacing the default template.
+     * 
+     * @return template file or null if the default template is used
      */
-    private synchronized void init() {
+    private Path getTemplateFile() {
 
-        if (template == null) {
+        if (templateFileName != null && !templateFileName.isEmpty() && templateFilePath != null
+                && !templateFilePath.isEmpty()) {
+            return Paths.get(templateFilePath, templateFileName);
+        }
+        return null;
+
+    }
+
+    /**
+     * Method loads the template for challenge email. The template is
+     * precompiled if it has no other references than the challenge, otherwise
+     * it is rendered by Velocity.
+     */
+    private void loadTemplate() {
+
+        final Path file = getTemplateFile();
+        String source = null;
+        try {
+            if (file != null) {
+                templateModified = Files.getLastModifiedTime(file).toMillis();
+                source = Files.readString(file, StandardCharsets.UTF_8);
+            } else {
+                try (InputStream in = MailChallengeSender.class.getResourceAsStream("/emails/default.vm")) {
+                    if (in != null) {
+                        source = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Unable to read template source, rendering with Velocity", e);
+        }
+        final OtpMailTemplate compiled = source != null ? OtpMailTemplate.compile(source) : null;
+        if (compiled == null) {
+            log.debug("Template rendered by Velocity");
             template = getVelocityTemplate();
         }
+        compiledTemplate = compiled;
+        templateLoaded = true;
+        nextTemplateCheck = System.currentTimeMillis() + templateCheckInterval;
+
+    }
+
+    /**
+     * Reloads the template if the template file has been modified since loaded.
+     * The file is checked at most once in check interval.
+     */
+    private void checkTemplate() {
+
+        final Path file = getTemplateFile();
+        final long now = System.currentTimeMillis();
+        if (file == null || now < nextTemplateCheck) {
+            return;
+        }
+        nextTemplateCheck = now + templateCheckInterval;
+        try {
+            if (Files.getLastModifiedTime(file).toMillis() != templateModified) {
+                log.info("Template {} modified, reloading", file);
+                loadTemplate();
+            }
+        } catch (IOException e) {
+            log.warn("Unable to check template {} for modification", file, e);
+        }
+
+    }
+
+    /**
+     * Renders the challenge email.
+     * 
+     * @param challenge
+     *            the challenge
+     * @return the body of challenge email
+     */
+    private String render(String challenge) {
+
+        if (compiledTemplate != null) {
+            return compiledTemplate.render(challenge);
+        }
+        final VelocityContext velocityContext = new VelocityContext();
+        velocityContext.put("otp", challenge);
+        StringWriter writer = new StringWriter();
+        template.merge(velocityContext, writer);
+        return writer.toString();
+
+    }
+
+    /**
+     * Initializes template and mail session if not initialized yet. Reloads
+     * the template if modified.
+     */
+    private synchronized void init() {
+
+        if (!templateLoaded) {
+            loadTemplate();
+        } else {
+            checkTemplate();
+        }
         if (session == null) {
             if (userName != null && password != null) {
                 session = Session.getInstance(props, new Authenticator() {
@@ -238,6 +486,23 @@ public class MailChallengeSender implements ChallengeSender {
                 session = Session.getInstance(props);
             }
         }
+        if (pipeline == null && workers > 0) {
+            pipeline = new MailDeliveryPipeline(session, workers, queueCapacity, queueTimeout, idleTimeout);
+            pipeline.setBatching(batchWindow, maxBatchSize);
+            pipeline.start();
+        }
+
+    }
+
+    /**
+     * Stops the background delivery, if running.
+     */
+    public synchronized void destroy() {
+
+        if (pipeline != null) {
+            pipeline.stop();
+            pipeline = null;
+        }
 
     }
 
@@ -246,18 +511,23 @@ public class MailChallengeSender implements ChallengeSender {
 
         log.debug("Sending challenge {} to {}", challenge, target);
         init();
-        final VelocityContext velocityContext = new VelocityContext();
-        velocityContext.put("otp", challenge);
+        final String body = render(challenge);
         String subjectToSend = String.format(subject, challenge);
-        StringWriter writer = new StringWriter();
-        template.merge(velocityContext, writer);
         Message message = new MimeMessage(session);
         try {
             message.setFrom(new InternetAddress(from));
             message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(target));
             message.setSubject(subjectToSend);
-            message.setText(writer.toString());
-            Transport.send(message);
+            message.setText(body);
+            if (pipeline != null) {
+                message.saveChanges();
+                final Future<Void> delivery = pipeline.submit(message);
+                if (awaitDelivery) {
+                    awaitDelivery(delivery);
+                }
+            } else {
+                Transport.send(message);
+            }
         } catch (MessagingException e) {
             StringWriter sw = new StringWriter();
             e.printStackTrace(new PrintWriter(sw));
@@ -268,4 +538,30 @@ public class MailChallengeSender implements ChallengeSender {
 
     }
 
+    /**
+     * Waits for the background delivery to complete.
+     * 
+     * @param delivery
+     *            result of the delivery
+     * @throws MessagingException
+     *             if the delivery failed or did not complete in time
+     */
+    private void awaitDelivery(Future<Void> delivery) throws MessagingException {
+
+        try {
+            delivery.get(deliveryTimeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MessagingException) {
+                throw (MessagingException) e.getCause();
+            }
+            throw new MessagingException("Mail delivery failed", e);
+        } catch (TimeoutException e) {
+            throw new MessagingException("Mail delivery timed out", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for mail delivery", e);
+        }
+
+    }
+
 }
@@ -0,0 +1,391 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+
+/**
+ * Class delivering mail messages in the background. Messages are placed to a
+ * bounded queue and delivered by a fixed number of workers. Each worker keeps
+ * its own SMTP connection open between messages and closes it only after being
+ * idle. Optionally a worker coalesces the messages arriving within a short
+ * window to a batch sent in one SMTP session. The result of each message is
+ * reported back through the future returned on submit.
+ */
+public class MailDeliveryPipeline {
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(MailDeliveryPipeline.class);
+
+    /** Mail session used for connections. */
+    @Nonnull
+    private final Session session;
+
+    /** Messages waiting for delivery. */
+    @Nonnull
+    private final BlockingQueue<Delivery> queue;
+
+    /** Number of workers. */
+    private final int workerCount;
+
+    /** How long to wait for space in queue in milliseconds. */
+    private final long enqueueTimeout;
+
+    /** How long a worker keeps an idle connection open in milliseconds. */
+    private final long idleTimeout;
+
+    /** How long a worker waits for more messages to a batch in milliseconds. */
+    private long batchWindow;
+
+    /** Maximum number of messages in a batch. */
+    private int maxBatchSize = 100;
+
+    /** Number of connections opened. */
+    @Nonnull
+    private final AtomicLong connections = new AtomicLong();
+
+    /** Worker threads. */
+    @Nonnull
+    private final List<Thread> workers = new ArrayList<>();
+
+    /** Whether the pipeline is running. */
+    private volatile boolean running;
+
+    /**
+     * Constructor.
+     * 
+     * @param mailSession     mail session used for connections
+     * @param count           number of workers
+     * @param capacity        maximum number of messages waiting for delivery
+     * @param timeout         how long to wait for space in queue in milliseconds
+     * @param idleConnTimeout how long a worker keeps an idle connection open in
+     *                            milliseconds
+     */
+    public MailDeliveryPipeline(@Nonnull Session mailSession, int count, int capacity, long timeout,
+            long idleConnTimeout) {
+        if (count < 1 || capacity < 1) {
+            throw new IllegalArgumentException("Worker count and queue capacity must be positive");
+        }
+        session = mailSession;
+        workerCount = count;
+        queue = new ArrayBlockingQueue<>(capacity);
+        enqueueTimeout = timeout;
+        idleTimeout = idleConnTimeout;
+    }
+
+    /**
+     * Set the window a worker waits for more messages once it has received one.
+     * Messages arriving within the window are sent in one SMTP session. If 0,
+     * which is the default, messages are sent as they arrive. Must be set
+     * before starting.
+     * 
+     * @param window in milliseconds
+     * @param maxSize maximum number of messages in a batch
+     */
+    public void setBatching(long window, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        batchWindow = window;
+        maxBatchSize = maxSize;
+    }
+
+    /**
+     * Start the workers.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        for (int i = 0; i < workerCount; i++) {
+            final Thread worker = new Thread(this::work, "stepup-mail-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        log.debug("Started {} mail delivery workers", workerCount);
+    }
+
+    /**
+     * Stop the workers. Messages still in queue are not delivered.
+     */
+    public synchronized void stop() {
+        running = false;
+        for (final Thread worker : workers) {
+            worker.interrupt();
+        }
+        workers.clear();
+        if (!queue.isEmpty()) {
+            log.warn("Mail delivery stopped with {} messages undelivered", queue.size());
+            final List<Delivery> undelivered = new ArrayList<>();
+            queue.drainTo(undelivered);
+            failAll(undelivered, new MessagingException("Mail delivery stopped"));
+        }
+    }
+
+    /**
+     * Queue a message for delivery. Waits for space in queue at most the
+     * configured timeout.
+     * 
+     * @param message to be delivered, changes must be saved
+     * @return result of the delivery, completed once the message has been sent
+     * @throws MessagingException if the queue remains full
+     */
+    @Nonnull
+    public CompletableFuture<Void> submit(@Nonnull Message message) throws MessagingException {
+        final Delivery delivery = new Delivery(message);
+        try {
+            if (!queue.offer(delivery, enqueueTimeout, TimeUnit.MILLISECONDS)) {
+                throw new MessagingException("Mail delivery queue is full");
+            }
+            return delivery.result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while queueing mail", e);
+        }
+    }
+
+    /**
+     * Get the number of messages waiting for delivery.
+     * 
+     * @return number of messages waiting for delivery
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Get the number of connections opened to the mail server.
+     * 
+     * @return number of connections opened
+     */
+    public long getConnectionCount() {
+        return connections.get();
+    }
+
+    /** Worker loop delivering messages over a reused connection. */
+    private void work() {
+        final List<Delivery> batch = new ArrayList<>();
+        Transport transport = null;
+        while (running) {
+            try {
+                final Delivery first = queue.poll(idleTimeout, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    transport = close(transport);
+                    continue;
+                }
+                batch.add(first);
+                collect(batch);
+            } catch (InterruptedException e) {
+                failAll(batch, new MessagingException("Mail delivery stopped"));
+                break;
+            }
+            transport = deliver(transport, batch);
+            batch.clear();
+        }
+        close(transport);
+    }
+
+    /**
+     * Collect messages arriving within the batch window to the batch.
+     * 
+     * @param batch to add messages to
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void collect(@Nonnull List<Delivery> batch) throws InterruptedException {
+        if (batchWindow <= 0) {
+            return;
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWindow);
+        while (batch.size() < maxBatchSize) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            final Delivery next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+            queue.drainTo(batch, maxBatchSize - batch.size());
+        }
+    }
+
+    /**
+     * Deliver a batch of messages in one session and report the result of each.
+     * 
+     * @param transport current connection, may be null
+     * @param batch     messages to deliver
+     * @return connection to reuse, may be null
+     */
+    private Transport deliver(Transport transport, @Nonnull List<Delivery> batch) {
+        Transport connection = transport;
+        for (final Delivery delivery : batch) {
+            try {
+                connection = deliver(connection, delivery.message);
+                delivery.result.complete(null);
+            } catch (SendFailedException e) {
+                // recipients rejected, connection remains usable
+                log.error("Mail delivery failed: {}", e.getMessage());
+                delivery.result.completeExceptionally(e);
+            } catch (MessagingException | IllegalStateException e) {
+                log.error("Mail delivery failed", e);
+                delivery.result.completeExceptionally(e);
+                connection = close(connection);
+            }
+        }
+        log.debug("Delivered batch of {} messages", batch.size());
+        return connection;
+    }
+
+    /**
+     * Fail all deliveries of the batch.
+     * 
+     * @param batch of deliveries
+     * @param e     cause of failure
+     */
+    private void failAll(@Nonnull List<Delivery> batch, @Nonnull Exception e) {
+        for (final Delivery delivery : batch) {
+            delivery.result.completeExceptionally(e);
+        }
+        batch.clear();
+    }
+
+    /**
+     * Deliver a message, connecting first if needed. If the reused connection has
+     * been dropped by the server, delivery is retried once over a new connection.
+     * 
+     * @param transport current connection, may be null
+     * @param message   to deliver
+     * @return connection to reuse
+     * @throws MessagingException if the delivery fails
+     */
+    private Transport deliver(Transport transport, @Nonnull Message message) throws MessagingException {
+        if (transport == null) {
+            return send(connect(), message);
+        }
+        try {
+            transport.sendMessage(message, message.getAllRecipients());
+            return transport;
+        } catch (SendFailedException e) {
+            throw e;
+        } catch (MessagingException | IllegalStateException e) {
+            log.debug("Reused connection failed, reconnecting: {}", e.getMessage());
+            close(transport);
+        }
+        return send(connect(), message);
+    }
+
+    /**
+     * Deliver a message over a new connection, closing the connection if the
+     * delivery fails.
+     * 
+     * @param connection new connection
+     * @param message    to deliver
+     * @return the connection
+     * @throws MessagingException if the delivery fails
+     */
+    private Transport send(@Nonnull Transport connection, @Nonnull Message message) throws MessagingException {
+        boolean delivered = false;
+        try {
+            connection.sendMessage(message, message.getAllRecipients());
+            delivered = true;
+            return connection;
+        } finally {
+            if (!delivered) {
+                close(connection);
+            }
+        }
+    }
+
+    /**
+     * Open a new connection.
+     * 
+     * @return connected transport
+     * @throws MessagingException if connecting fails
+     */
+    private Transport connect() throws MessagingException {
+        final Transport transport = session.getTransport("smtp");
+        transport.connect();
+        connections.incrementAndGet();
+        return transport;
+    }
+
+    /**
+     * Close a connection quietly.
+     * 
+     * @param transport to close, may be null
+     * @return null
+     */
+    private Transport close(Transport transport) {
+        if (transport != null) {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                log.debug("Closing connection failed: {}", e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /** Message waiting for delivery and the result of its delivery. */
+    private static final class Delivery {
+
+        /** Message to deliver. */
+        @Nonnull
+        private final Message message;
+
+        /** Result of the delivery. */
+        @Nonnull
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        /**
+         * Constructor.
+         * 
+         * @param msg message to deliver
+         */
+        private Delivery(@Nonnull Message msg) {
+            message = msg;
+        }
+    }
+}
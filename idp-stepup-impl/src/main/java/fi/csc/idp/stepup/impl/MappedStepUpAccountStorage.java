@@ -0,0 +1,1099 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpAccountOperation;
+
+/**
+ * Step up account storage in a local append-only log file, for nodes not able
+ * to depend on a shared database. The file is memory mapped and indexed by an
+ * in-memory open addressing hash table from the key to the offset of the newest
+ * account stored by the key, each record linking to the previous account of the
+ * same key. A lookup is a hash probe comparing the key against the mapped
+ * record followed by reading the name and target from the mapped region.
+ * 
+ * <p>
+ * Each record is written before its length, and carries a checksum. On startup
+ * the index is rebuilt by replaying the log, and the log is cut at the first
+ * incomplete or corrupt record. Records are in the page cache once written and
+ * thus survive the process crashing. To survive the operating system crashing
+ * each write must be forced to disk, which is much slower.
+ * </p>
+ * 
+ * <p>
+ * Removing an account appends one record naming the key and target, hiding the
+ * older accounts of the key having the target, or a record clearing the key if
+ * no accounts remain. A batch is checked to fit in the log before any of it is
+ * written. Removing an account leaves the old records in the log. The log is compacted
+ * periodically by rewriting the live records to a new file replacing the log,
+ * blocking the storage meanwhile. The log is limited to 2 GB.
+ * </p>
+ */
+public class MappedStepUpAccountStorage extends AbstractStepUpAccountStorage {
+
+    /** Magic number starting the log. */
+    private static final int MAGIC = 0x53554c31;
+
+    /** Length of the file header. */
+    private static final int FILE_HEADER = 8;
+
+    /** Length of the record header, length of the body followed by its checksum. */
+    private static final int RECORD_HEADER = 8;
+
+    /** Length of the body of a record with all strings empty. */
+    private static final int MIN_BODY = 11;
+
+    /** Maximum length of the log. */
+    private static final int MAX_LENGTH = Integer.MAX_VALUE - 8;
+
+    /** Record adding an account. */
+    private static final byte ADD = 1;
+
+    /** Record removing all the accounts of a key. */
+    private static final byte CLEAR = 2;
+
+    /** Record removing the older accounts of a key having the target. */
+    private static final byte REMOVE = 3;
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(MappedStepUpAccountStorage.class);
+
+    /** Path of the log file. */
+    private String path;
+
+    /** Initially mapped length of the log file. */
+    private int initialSize = 64 * 1024 * 1024;
+
+    /** Milliseconds between checks for compaction, 0 for not compacting periodically. */
+    private long compactionInterval = 3600000;
+
+    /** Share of removed records in the log triggering compaction. */
+    private double compactionRatio = 0.5;
+
+    /** Whether each write is forced to disk. */
+    private boolean sync;
+
+    /** Maximum length of the log. */
+    private int maxLength = MAX_LENGTH;
+
+    /** Lock allowing concurrent lookups. */
+    @Nonnull
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** Log file. */
+    private FileChannel channel;
+
+    /** Mapped region of the log file. */
+    private MappedByteBuffer buffer;
+
+    /** Offset of the next record. */
+    private int position;
+
+    /** Total length of the records of the accounts stored. */
+    private long liveBytes;
+
+    /** Offsets of the newest records of the keys, 0 for an empty slot. */
+    private int[] offsets;
+
+    /** Hashes of the keys in the slots. */
+    private int[] hashes;
+
+    /** Number of keys in the index. */
+    private int count;
+
+    /** Background thread compacting the log. */
+    private ScheduledExecutorService compactor;
+
+    /**
+     * Set the path of the log file.
+     * 
+     * @param file path of the log file
+     */
+    public void setPath(@Nonnull String file) {
+        path = file;
+    }
+
+    /**
+     * Set the initially mapped length of the log file. The mapped region is
+     * doubled when full.
+     * 
+     * @param size initially mapped length in bytes
+     */
+    public void setInitialSize(int size) {
+        initialSize = Math.max(FILE_HEADER, size);
+    }
+
+    /**
+     * Set the milliseconds between checks for compaction. If 0, the log is not
+     * compacted periodically.
+     * 
+     * @param millis milliseconds between checks for compaction
+     */
+    public void setCompactionInterval(long millis) {
+        compactionInterval = millis;
+    }
+
+    /**
+     * Set the share of removed records in the log triggering compaction.
+     * 
+     * @param ratio share of removed records between 0 and 1
+     */
+    public void setCompactionRatio(double ratio) {
+        compactionRatio = ratio;
+    }
+
+    /**
+     * Set whether each write is forced to disk before returning.
+     * 
+     * @param force whether each write is forced to disk
+     */
+    public void setSync(boolean force) {
+        sync = force;
+    }
+
+    /**
+     * Set the maximum length of the log, for testing.
+     * 
+     * @param length maximum length of the log in bytes
+     */
+    void setMaxLength(int length) {
+        maxLength = Math.min(MAX_LENGTH, length);
+    }
+
+    /**
+     * Opens the log, rebuilds the index by replaying it and starts the periodic
+     * compaction.
+     * 
+     * @throws IOException if opening the log fails
+     */
+    public void initialize() throws IOException {
+        if (path == null) {
+            throw new IllegalStateException("Path must be set");
+        }
+        lock.writeLock().lock();
+        try {
+            if (channel != null) {
+                return;
+            }
+            final long start = System.currentTimeMillis();
+            open(FileChannel.open(Path.of(path), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE));
+            offsets = new int[16];
+            hashes = new int[16];
+            count = 0;
+            liveBytes = 0;
+            replay();
+            log.info("Replayed account log {} of {} bytes with {} keys in {} ms", path, position, count,
+                    System.currentTimeMillis() - start);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (compactionInterval > 0) {
+            compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "stepup-account-compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            compactor.scheduleWithFixedDelay(this::compactIfNeeded, compactionInterval, compactionInterval,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the compaction, forces the log to disk and closes it.
+     */
+    public void destroy() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+            compactor = null;
+        }
+        lock.writeLock().lock();
+        try {
+            if (channel == null) {
+                return;
+            }
+            buffer.force();
+            channel.close();
+        } catch (IOException e) {
+            log.error("Closing account log {} failed", path, e);
+        } finally {
+            channel = null;
+            buffer = null;
+            offsets = null;
+            hashes = null;
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Map the log file and write the file header if the file is new.
+     * 
+     * @param file log file
+     * @throws IOException if the file is not a log or mapping it fails
+     */
+    private void open(@Nonnull FileChannel file) throws IOException {
+        try {
+            final long size = file.size();
+            if (size > MAX_LENGTH) {
+                throw new IOException("Account log " + path + " is too large");
+            }
+            buffer = file.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, initialSize));
+            channel = file;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        if (buffer.getInt(0) == 0) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, 1);
+        } else if (buffer.getInt(0) != MAGIC) {
+            channel.close();
+            channel = null;
+            throw new IOException("File " + path + " is not an account log");
+        }
+        position = FILE_HEADER;
+    }
+
+    /**
+     * Rebuild the index from the records of the log. The log is cut at the first
+     * incomplete or corrupt record.
+     */
+    private void replay() {
+        final CRC32 crc = new CRC32();
+        int at = FILE_HEADER;
+        while (at <= buffer.capacity() - RECORD_HEADER) {
+            final int length = buffer.getInt(at);
+            if (length == 0) {
+                break;
+            }
+            boolean valid = length >= MIN_BODY && length <= buffer.capacity() - at - RECORD_HEADER;
+            if (valid) {
+                crc.reset();
+                crc.update(buffer.slice(at + RECORD_HEADER, length));
+                valid = (int) crc.getValue() == buffer.getInt(at + 4) && isWellFormed(at, length);
+            }
+            if (!valid) {
+                log.warn("Account log {} is corrupt at offset {}, discarding the rest", path, at);
+                for (int i = at; i < buffer.capacity(); i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                break;
+            }
+            apply(at);
+            at += RECORD_HEADER + length;
+        }
+        position = at;
+    }
+
+    /**
+     * Check the record has a known type and its strings are within the record.
+     * 
+     * @param at offset of the record
+     * @param length length of the record body
+     * @return whether the record is well formed
+     */
+    private boolean isWellFormed(int at, int length) {
+        final byte type = buffer.get(at + RECORD_HEADER);
+        if (type != ADD && type != CLEAR && type != REMOVE) {
+            return false;
+        }
+        final int keyLength = buffer.getShort(at + RECORD_HEADER + 5);
+        final int name = nameAt(at);
+        if (keyLength < 0 || name + 2 > at + RECORD_HEADER + length) {
+            return false;
+        }
+        final int target = targetAt(at);
+        return target + 2 <= at + RECORD_HEADER + length
+                && target + 2 + Math.max(0, buffer.getShort(target)) == at + RECORD_HEADER + length;
+    }
+
+    /**
+     * Apply a record of the log to the index.
+     * 
+     * @param at offset of the record
+     */
+    private void apply(int at) {
+        ensureIndexCapacity();
+        final int hash = hash(at);
+        final int slot = find(at, hash);
+        final int head = slot >= 0 ? offsets[slot] : 0;
+        final byte type = buffer.get(at + RECORD_HEADER);
+        if (type == CLEAR) {
+            if (slot >= 0) {
+                liveBytes -= liveLength(head, null);
+                removeSlot(slot);
+            }
+            return;
+        }
+        if (type == REMOVE) {
+            if (slot >= 0) {
+                liveBytes -= liveLength(head, readString(targetAt(at)));
+                offsets[slot] = at;
+            }
+            return;
+        }
+        if (head != 0 && previous(at) != head) {
+            // the accounts of the key were rewritten
+            liveBytes -= liveLength(head, null);
+        }
+        liveBytes += recordLength(at);
+        put(slot, at, hash);
+    }
+
+    @Override
+    public void add(StepUpAccount account, String key) throws Exception {
+        final byte[][] fields = encode(StepUpAccountOperation.add(account, key));
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            addRecord(fields);
+            if (sync) {
+                buffer.force();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(StepUpAccount account, String key) throws Exception {
+        final byte[][] fields = encode(StepUpAccountOperation.remove(account, key));
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            removeRecords(fields);
+            if (sync) {
+                buffer.force();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public <T> StepUpAccount getAccount(String key, Class<T> aClass) throws Exception {
+        final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        final String name;
+        final String target;
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            final int slot = find(bytes, hash(bytes));
+            if (slot < 0) {
+                return null;
+            }
+            final int at = newest(offsets[slot]);
+            if (at == 0) {
+                return null;
+            }
+            name = readString(nameAt(at));
+            target = readString(targetAt(at));
+        } finally {
+            lock.readLock().unlock();
+        }
+        return newAccount(aClass, name, target);
+    }
+
+    @Override
+    public <T> List<StepUpAccount> getAccounts(String key, Class<T> aClass) throws Exception {
+        final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        final List<String[]> fields = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            final int slot = find(bytes, hash(bytes));
+            if (slot >= 0) {
+                final List<Integer> records = new ArrayList<>();
+                live(buffer, offsets[slot], records);
+                for (int at : records) {
+                    fields.add(new String[] { readString(nameAt(at)), readString(targetAt(at)) });
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        final List<StepUpAccount> accounts = new ArrayList<>(fields.size());
+        for (int i = fields.size() - 1; i >= 0; i--) {
+            accounts.add(newAccount(aClass, fields.get(i)[0], fields.get(i)[1]));
+        }
+        return accounts;
+    }
+
+    /**
+     * Execute the operations in order while holding the lock. The operations are
+     * validated and checked to fit in the log before any is written, and forced to
+     * disk together.
+     * 
+     * @param operations operations to execute.
+     * @throws Exception if something unexpected occurs.
+     */
+    @Override
+    public void executeBatch(List<StepUpAccountOperation> operations) throws Exception {
+        final List<byte[][]> encoded = new ArrayList<>(operations.size());
+        long length = 0;
+        for (StepUpAccountOperation operation : operations) {
+            final byte[][] fields = encode(operation);
+            encoded.add(fields);
+            length += RECORD_HEADER + bodyLength(fields[0], fields[1], fields[2]);
+        }
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            // a remove writes at most one record no longer than an add of the account
+            ensureCapacity(position + length);
+            for (int i = 0; i < encoded.size(); i++) {
+                if (operations.get(i).getType() == StepUpAccountOperation.Type.ADD) {
+                    addRecord(encoded.get(i));
+                } else {
+                    removeRecords(encoded.get(i));
+                }
+            }
+            if (sync) {
+                buffer.force();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the number of keys having accounts.
+     * 
+     * @return number of keys having accounts
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the length of the log.
+     * 
+     * @return length of the log in bytes
+     */
+    public int getLogLength() {
+        lock.readLock().lock();
+        try {
+            return position;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrite the records of the accounts stored to a new file replacing the log.
+     * 
+     * @throws IOException if compaction fails, the log is then left as it was
+     */
+    public void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            final long start = System.currentTimeMillis();
+            final int oldLength = position;
+            final FileChannel oldChannel = channel;
+            final MappedByteBuffer oldBuffer = buffer;
+            final Path logPath = Path.of(path);
+            final Path compacted = Path.of(path + ".compact");
+            final int[] newOffsets = new int[offsets.length];
+            Files.deleteIfExists(compacted);
+            try {
+                open(FileChannel.open(compacted, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE));
+                final List<Integer> chain = new ArrayList<>();
+                for (int slot = 0; slot < offsets.length; slot++) {
+                    if (offsets[slot] == 0) {
+                        continue;
+                    }
+                    chain.clear();
+                    live(oldBuffer, offsets[slot], chain);
+                    int previous = 0;
+                    for (int i = chain.size() - 1; i >= 0; i--) {
+                        previous = copyRecord(oldBuffer, chain.get(i), previous);
+                    }
+                    newOffsets[slot] = previous;
+                }
+                buffer.force();
+                Files.move(compacted, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException | RuntimeException e) {
+                if (channel != oldChannel) {
+                    channel.close();
+                }
+                Files.deleteIfExists(compacted);
+                channel = oldChannel;
+                buffer = oldBuffer;
+                position = oldLength;
+                throw e;
+            }
+            oldChannel.close();
+            offsets = newOffsets;
+            liveBytes = position - FILE_HEADER;
+            log.info("Compacted account log {} from {} to {} bytes in {} ms", path, oldLength, position,
+                    System.currentTimeMillis() - start);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Compact the log if the share of removed records has reached the compaction
+     * ratio.
+     */
+    private void compactIfNeeded() {
+        lock.readLock().lock();
+        final boolean needed;
+        try {
+            final long total = position - FILE_HEADER;
+            needed = channel != null && total > liveBytes && total - liveBytes >= compactionRatio * total;
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (needed) {
+            try {
+                compact();
+            } catch (IOException | RuntimeException e) {
+                log.error("Compacting account log {} failed", path, e);
+            }
+        }
+    }
+
+    /**
+     * Encode the key, name and target of the operation.
+     * 
+     * @param operation operation to encode
+     * @return key, name and target, name being null if not set
+     * @throws Exception if the key or target is not set or a field is too long
+     */
+    @Nonnull
+    private byte[][] encode(@Nonnull StepUpAccountOperation operation) throws Exception {
+        final StepUpAccount account = operation.getAccount();
+        if (operation.getKey() == null || account == null || account.getTarget() == null) {
+            throw new Exception("Account key and target must be set");
+        }
+        final byte[][] fields = { operation.getKey().getBytes(StandardCharsets.UTF_8),
+                account.getName() == null ? null : account.getName().getBytes(StandardCharsets.UTF_8),
+                account.getTarget().getBytes(StandardCharsets.UTF_8) };
+        for (byte[] field : fields) {
+            if (field != null && field.length > Short.MAX_VALUE) {
+                throw new Exception("Account field longer than " + Short.MAX_VALUE + " bytes");
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Append a record adding the account and make it the newest of the key.
+     * 
+     * @param fields key, name and target of the account
+     * @throws IOException if the log is full
+     */
+    private void addRecord(@Nonnull byte[][] fields) throws IOException {
+        ensureIndexCapacity();
+        final int hash = hash(fields[0]);
+        final int slot = find(fields[0], hash);
+        final int at = append(ADD, slot >= 0 ? offsets[slot] : 0, fields[0], fields[1], fields[2]);
+        liveBytes += recordLength(at);
+        put(slot, at, hash);
+    }
+
+    /**
+     * Remove the accounts of the key having the target by appending a single
+     * record, so that a crash leaves either all or none of them removed. A record
+     * clearing the key is appended if no accounts remain.
+     * 
+     * @param fields key, name and target of the account
+     * @throws IOException if the log is full
+     */
+    private void removeRecords(@Nonnull byte[][] fields) throws IOException {
+        final int slot = find(fields[0], hash(fields[0]));
+        if (slot < 0) {
+            return;
+        }
+        final String target = new String(fields[2], StandardCharsets.UTF_8);
+        final int head = offsets[slot];
+        final long removed = liveLength(head, target);
+        if (removed == 0) {
+            return;
+        }
+        if (removed == liveLength(head, null)) {
+            append(CLEAR, 0, fields[0], null, new byte[0]);
+            removeSlot(slot);
+        } else {
+            offsets[slot] = append(REMOVE, head, fields[0], null, fields[2]);
+        }
+        liveBytes -= removed;
+    }
+
+    /**
+     * Collect the accounts of a key not removed by a newer record, newest first.
+     * 
+     * @param source region holding the records
+     * @param head offset of the newest record of the key
+     * @param accounts list to add the offsets of the accounts to
+     */
+    private static void live(@Nonnull ByteBuffer source, int head, @Nonnull List<Integer> accounts) {
+        List<ByteBuffer> removed = null;
+        for (int at = head; at != 0; at = previous(source, at)) {
+            final int name = at + RECORD_HEADER + 7 + source.getShort(at + RECORD_HEADER + 5);
+            final int target = name + 2 + Math.max(0, source.getShort(name));
+            final ByteBuffer bytes = source.slice(target + 2, source.getShort(target));
+            if (source.get(at + RECORD_HEADER) == REMOVE) {
+                if (removed == null) {
+                    removed = new ArrayList<>();
+                }
+                removed.add(bytes);
+            } else if (removed == null || !removed.contains(bytes)) {
+                accounts.add(at);
+            }
+        }
+    }
+
+    /**
+     * Get the newest account of a key not removed by a newer record.
+     * 
+     * @param head offset of the newest record of the key
+     * @return offset of the account, 0 if none
+     */
+    private int newest(int head) {
+        if (buffer.get(head + RECORD_HEADER) == ADD) {
+            return head;
+        }
+        final List<Integer> accounts = new ArrayList<>();
+        live(buffer, head, accounts);
+        return accounts.isEmpty() ? 0 : accounts.get(0);
+    }
+
+    /**
+     * Get the total length of the accounts of a key not removed by a newer
+     * record.
+     * 
+     * @param head offset of the newest record of the key
+     * @param target target of the accounts counted, null for all
+     * @return total length of the records
+     */
+    private long liveLength(int head, @Nullable String target) {
+        final List<Integer> accounts = new ArrayList<>();
+        live(buffer, head, accounts);
+        long length = 0;
+        for (int at : accounts) {
+            if (target == null || Objects.equals(readString(targetAt(at)), target)) {
+                length += recordLength(at);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Append a record. The body is written before the checksum and length, a
+     * record cut short thus having no length or a wrong checksum.
+     * 
+     * @param type type of the record
+     * @param previous offset of the previous record of the key, 0 if none
+     * @param key key of the account
+     * @param name name of the account, may be null
+     * @param target target of the account
+     * @return offset of the record
+     * @throws IOException if the log is full
+     */
+    private int append(byte type, int previous, @Nonnull byte[] key, @Nullable byte[] name,
+            @Nonnull byte[] target) throws IOException {
+        final int length = bodyLength(key, name, target);
+        final int at = reserve(length);
+        int offset = at + RECORD_HEADER;
+        buffer.put(offset, type);
+        buffer.putInt(offset + 1, previous);
+        offset = putString(offset + 5, key);
+        offset = putString(offset, name);
+        putString(offset, target);
+        commit(at, length);
+        return at;
+    }
+
+    /**
+     * Get the length of the body of a record.
+     * 
+     * @param key key of the account
+     * @param name name of the account, may be null
+     * @param target target of the account
+     * @return length of the record body
+     */
+    private static int bodyLength(@Nonnull byte[] key, @Nullable byte[] name, @Nonnull byte[] target) {
+        return MIN_BODY + key.length + (name == null ? 0 : name.length) + target.length;
+    }
+
+    /**
+     * Append a copy of a record linked to another previous record.
+     * 
+     * @param source region holding the record
+     * @param from offset of the record
+     * @param previous offset of the previous record of the key, 0 if none
+     * @return offset of the copy
+     * @throws IOException if the log is full
+     */
+    private int copyRecord(@Nonnull ByteBuffer source, int from, int previous) throws IOException {
+        final int length = source.getInt(from);
+        final int at = reserve(length);
+        buffer.put(at + RECORD_HEADER, source, from + RECORD_HEADER, length);
+        buffer.putInt(at + RECORD_HEADER + 1, previous);
+        commit(at, length);
+        return at;
+    }
+
+    /**
+     * Reserve room for a record at the end of the log, growing the mapped region
+     * if needed.
+     * 
+     * @param length length of the record body
+     * @return offset of the record
+     * @throws IOException if the log is full
+     */
+    private int reserve(int length) throws IOException {
+        ensureCapacity((long) position + RECORD_HEADER + length);
+        return position;
+    }
+
+    /**
+     * Grow the mapped region to reach the end, if needed.
+     * 
+     * @param end offset the log must be able to reach
+     * @throws IOException if the log would be full
+     */
+    private void ensureCapacity(long end) throws IOException {
+        if (end > maxLength) {
+            throw new IOException("Account log " + path + " is full");
+        }
+        if (end > buffer.capacity()) {
+            final long size = Math.min(maxLength, Math.max(end, 2L * buffer.capacity()));
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Write the checksum and length of a record whose body is written.
+     * 
+     * @param at offset of the record
+     * @param length length of the record body
+     */
+    private void commit(int at, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.slice(at + RECORD_HEADER, length));
+        buffer.putInt(at + 4, (int) crc.getValue());
+        buffer.putInt(at, length);
+        position = at + RECORD_HEADER + length;
+    }
+
+    /**
+     * Write a string as its length followed by the bytes, length -1 meaning
+     * null.
+     * 
+     * @param at offset to write to
+     * @param bytes bytes of the string, may be null
+     * @return offset following the string
+     */
+    private int putString(int at, @Nullable byte[] bytes) {
+        if (bytes == null) {
+            buffer.putShort(at, (short) -1);
+            return at + 2;
+        }
+        buffer.putShort(at, (short) bytes.length);
+        buffer.put(at + 2, bytes);
+        return at + 2 + bytes.length;
+    }
+
+    /**
+     * Read a string written by {@link #putString}.
+     * 
+     * @param at offset of the string
+     * @return the string, may be null
+     */
+    @Nullable
+    private String readString(int at) {
+        final int length = buffer.getShort(at);
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(at + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the offset of the name of a record.
+     * 
+     * @param at offset of the record
+     * @return offset of the name
+     */
+    private int nameAt(int at) {
+        return at + RECORD_HEADER + 7 + buffer.getShort(at + RECORD_HEADER + 5);
+    }
+
+    /**
+     * Get the offset of the target of a record.
+     * 
+     * @param at offset of the record
+     * @return offset of the target
+     */
+    private int targetAt(int at) {
+        final int name = nameAt(at);
+        return name + 2 + Math.max(0, buffer.getShort(name));
+    }
+
+    /**
+     * Get the offset of the previous record of the key.
+     * 
+     * @param at offset of the record
+     * @return offset of the previous record, 0 if none
+     */
+    private int previous(int at) {
+        return previous(buffer, at);
+    }
+
+    /**
+     * Get the offset of the previous record of the key.
+     * 
+     * @param source region holding the record
+     * @param at offset of the record
+     * @return offset of the previous record, 0 if none
+     */
+    private static int previous(@Nonnull ByteBuffer source, int at) {
+        return source.getInt(at + RECORD_HEADER + 1);
+    }
+
+    /**
+     * Get the length of a record including the header.
+     * 
+     * @param at offset of the record
+     * @return length of the record
+     */
+    private int recordLength(int at) {
+        return RECORD_HEADER + buffer.getInt(at);
+    }
+
+    /**
+     * Find the slot of a key.
+     * 
+     * @param key key to find
+     * @param hash hash of the key
+     * @return slot of the key, or -(empty slot + 1) if not found
+     */
+    private int find(@Nonnull byte[] key, int hash) {
+        final int mask = offsets.length - 1;
+        for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+            final int at = offsets[slot];
+            if (at == 0) {
+                return -(slot + 1);
+            }
+            if (hashes[slot] == hash && keyEquals(at, key)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Find the slot of the key of a record.
+     * 
+     * @param record offset of the record
+     * @param hash hash of the key
+     * @return slot of the key, or -(empty slot + 1) if not found
+     */
+    private int find(int record, int hash) {
+        final int mask = offsets.length - 1;
+        final int keyLength = buffer.getShort(record + RECORD_HEADER + 5);
+        for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+            final int at = offsets[slot];
+            if (at == 0) {
+                return -(slot + 1);
+            }
+            if (hashes[slot] == hash && buffer.getShort(at + RECORD_HEADER + 5) == keyLength
+                    && buffer.slice(at + RECORD_HEADER + 7, keyLength)
+                            .equals(buffer.slice(record + RECORD_HEADER + 7, keyLength))) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Compare the key of a record to a key.
+     * 
+     * @param at offset of the record
+     * @param key key to compare to
+     * @return whether the keys are equal
+     */
+    private boolean keyEquals(int at, @Nonnull byte[] key) {
+        if (buffer.getShort(at + RECORD_HEADER + 5) != key.length) {
+            return false;
+        }
+        final int offset = at + RECORD_HEADER + 7;
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Set the newest record of a key.
+     * 
+     * @param slot slot of the key, or -(empty slot + 1) for a new key
+     * @param at offset of the record
+     * @param hash hash of the key
+     */
+    private void put(int slot, int at, int hash) {
+        if (slot >= 0) {
+            offsets[slot] = at;
+            return;
+        }
+        offsets[-slot - 1] = at;
+        hashes[-slot - 1] = hash;
+        count++;
+    }
+
+    /**
+     * Empty a slot, moving back the following keys of the probe sequence.
+     * 
+     * @param slot slot to empty
+     */
+    private void removeSlot(int slot) {
+        final int mask = offsets.length - 1;
+        int empty = slot;
+        for (int next = (empty + 1) & mask; offsets[next] != 0; next = (next + 1) & mask) {
+            final int home = hashes[next] & mask;
+            // a key may move back unless its home slot is between the empty slot and it
+            final boolean stays = empty <= next ? empty < home && home <= next : empty < home || home <= next;
+            if (!stays) {
+                offsets[empty] = offsets[next];
+                hashes[empty] = hashes[next];
+                empty = next;
+            }
+        }
+        offsets[empty] = 0;
+        hashes[empty] = 0;
+        count--;
+    }
+
+    /**
+     * Double the index if it would become more than half full.
+     */
+    private void ensureIndexCapacity() {
+        if ((count + 1) * 2 <= offsets.length) {
+            return;
+        }
+        final int[] oldOffsets = offsets;
+        final int[] oldHashes = hashes;
+        offsets = new int[oldOffsets.length * 2];
+        hashes = new int[oldOffsets.length * 2];
+        final int mask = offsets.length - 1;
+        for (int i = 0; i < oldOffsets.length; i++) {
+            if (oldOffsets[i] != 0) {
+                int slot = oldHashes[i] & mask;
+                while (offsets[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                offsets[slot] = oldOffsets[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+
+    /**
+     * Hash a key.
+     * 
+     * @param key key to hash
+     * @return hash of the key
+     */
+    private static int hash(@Nonnull byte[] key) {
+        int hash = 0;
+        for (byte b : key) {
+            hash = 31 * hash + b;
+        }
+        return spread(hash);
+    }
+
+    /**
+     * Hash the key of a record.
+     * 
+     * @param at offset of the record
+     * @return hash of the key
+     */
+    private int hash(int at) {
+        final int offset = at + RECORD_HEADER + 7;
+        final int length = buffer.getShort(at + RECORD_HEADER + 5);
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + buffer.get(offset + i);
+        }
+        return spread(hash);
+    }
+
+    /**
+     * Spread the bits of a hash for the low bits to select the slot.
+     * 
+     * @param hash hash to spread
+     * @return spread hash
+     */
+    private static int spread(int hash) {
+        final int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Check the log is open.
+     */
+    private void checkOpen() {
+        if (channel == null) {
+            throw new IllegalStateException("Storage not initialized");
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Mail template having the one time password as the only variable. The
+ * template is split once to static segments and substitution points, so that
+ * rendering is plain concatenation without the Velocity runtime. Supported
+ * references are <code>$otp</code>, <code>${otp}</code>, <code>$!otp</code>
+ * and <code>$!{otp}</code>. Templates using any other Velocity feature are not
+ * compiled and must be rendered by Velocity.
+ */
+public final class OtpMailTemplate {
+
+    /** Name of the variable. */
+    private static final String VARIABLE = "otp";
+
+    /** Static segments, one more than there are substitution points. */
+    @Nonnull
+    private final String[] segments;
+
+    /** Text rendered for each substitution point if there is no value. */
+    @Nonnull
+    private final String[] nullValues;
+
+    /** Total length of the static segments. */
+    private final int staticLength;
+
+    /**
+     * Constructor.
+     * 
+     * @param staticSegments static segments
+     * @param nullRenderings text rendered for each substitution point if there
+     *                           is no value
+     */
+    private OtpMailTemplate(@Nonnull String[] staticSegments, @Nonnull String[] nullRenderings) {
+        segments = staticSegments;
+        nullValues = nullRenderings;
+        int length = 0;
+        for (final String segment : segments) {
+            length += segment.length();
+        }
+        staticLength = length;
+    }
+
+    /**
+     * Compile template source.
+     * 
+     * @param source of the template
+     * @return compiled template or null if the template uses other Velocity
+     *         features than the supported references
+     */
+    @Nullable
+    public static OtpMailTemplate compile(@Nonnull String source) {
+        final List<String> segments = new ArrayList<>();
+        final List<String> nullValues = new ArrayList<>();
+        final int length = source.length();
+        int segmentStart = 0;
+        int i = 0;
+        while (i < length) {
+            final char c = source.charAt(i);
+            if (c == '#' || c == '\\') {
+                if (i + 1 < length && isDirectiveStart(c, source.charAt(i + 1))) {
+                    return null;
+                }
+                i++;
+            } else if (c == '$') {
+                final int end = matchReference(source, i);
+                if (end < 0) {
+                    return null;
+                }
+                if (end == i) {
+                    i++;
+                    continue;
+                }
+                segments.add(source.substring(segmentStart, i));
+                // quiet reference renders as empty, normal as itself
+                nullValues.add(source.charAt(i + 1) == '!' ? "" : source.substring(i, end));
+                i = end;
+                segmentStart = end;
+            } else {
+                i++;
+            }
+        }
+        segments.add(source.substring(segmentStart));
+        return new OtpMailTemplate(segments.toArray(new String[0]), nullValues.toArray(new String[0]));
+    }
+
+    /**
+     * Render the template.
+     * 
+     * @param otp value of the one time password
+     * @return rendered template
+     */
+    @Nonnull
+    public String render(@Nullable String otp) {
+        final int points = nullValues.length;
+        final StringBuilder builder = new StringBuilder(
+                staticLength + points * (otp == null ? VARIABLE.length() + 3 : otp.length()));
+        for (int i = 0; i < points; i++) {
+            builder.append(segments[i]).append(otp == null ? nullValues[i] : otp);
+        }
+        return builder.append(segments[points]).toString();
+    }
+
+    /**
+     * Get the number of substitution points.
+     * 
+     * @return number of substitution points
+     */
+    public int getSubstitutionCount() {
+        return nullValues.length;
+    }
+
+    /**
+     * Whether the character pair starts a directive, comment or escape.
+     * 
+     * @param c    first character, either '#' or '\'
+     * @param next second character
+     * @return true if the pair is interpreted by Velocity
+     */
+    private static boolean isDirectiveStart(char c, char next) {
+        if (c == '\\') {
+            return next == '$' || next == '#' || next == '\\';
+        }
+        return Character.isLetter(next) || next == '{' || next == '*' || next == '#' || next == '@';
+    }
+
+    /**
+     * Match a reference starting at the position.
+     * 
+     * @param source of the template
+     * @param start  position of '$'
+     * @return end position of the otp reference, start if '$' is plain text or
+     *         -1 if a reference other than otp is used
+     */
+    private static int matchReference(@Nonnull String source, int start) {
+        int i = start + 1;
+        if (i < source.length() && source.charAt(i) == '!') {
+            i++;
+        }
+        final boolean braced = i < source.length() && source.charAt(i) == '{';
+        if (braced) {
+            i++;
+        }
+        if (i >= source.length() || !isIdentifierStart(source.charAt(i))) {
+            // '$' not followed by an identifier is text
+            return i == start + 1 ? start : -1;
+        }
+        if (!source.startsWith(VARIABLE, i)) {
+            return -1;
+        }
+        i += VARIABLE.length();
+        if (braced) {
+            return i < source.length() && source.charAt(i) == '}' ? i + 1 : -1;
+        }
+        if (i < source.length()) {
+            final char next = source.charAt(i);
+            if (isIdentifierPart(next) || next == '[' || next == '(') {
+                return -1;
+            }
+            if (next == '.' && i + 1 < source.length() && isIdentifierStart(source.charAt(i + 1))) {
+                // property or method reference
+                return -1;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Whether the character may start a Velocity identifier.
+     * 
+     * @param c character
+     * @return true if the character may start an identifier
+     */
+    private static boolean isIdentifierStart(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_';
+    }
+
+    /**
+     * Whether the character may be part of a Velocity identifier.
+     * 
+     * @param c character
+     * @return true if the character may be part of an identifier
+     */
+    private static boolean isIdentifierPart(char c) {
+        return isIdentifierStart(c) || c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.opensaml.core.metrics.MetricsSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import fi.csc.idp.stepup.api.ChallengeGenerator;
+
+/**
+ * Challenge generator keeping a pool of challenges generated in advance by the
+ * delegate generator. The pool is refilled by a background thread once it
+ * drops below the low watermark. If the pool is empty, the challenge is
+ * generated by the delegate on the calling thread. Challenges for a specific
+ * target are always generated by the delegate.
+ */
+public class PooledChallengeGenerator implements ChallengeGenerator {
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(PooledChallengeGenerator.class);
+
+    /** Generator of the challenges. */
+    private ChallengeGenerator delegate;
+
+    /** Maximum number of challenges in the pool, 0 for not pooling. */
+    private int capacity = 1000;
+
+    /** Pool is refilled once it has less challenges than this. */
+    private int lowWatermark = -1;
+
+    /** Prefix of the metric names. */
+    @Nonnull
+    private String metricPrefix = "fi.csc.idp.stepup.ChallengePool";
+
+    /** Challenges generated in advance. */
+    @Nonnull
+    private final Queue<String> pool = new ConcurrentLinkedQueue<>();
+
+    /** Number of challenges in the pool. */
+    @Nonnull
+    private final AtomicInteger depth = new AtomicInteger();
+
+    /** Whether a refill is scheduled or running. */
+    @Nonnull
+    private final AtomicBoolean refilling = new AtomicBoolean();
+
+    /** Challenges added to the pool. */
+    @Nonnull
+    private final Meter refills = new Meter();
+
+    /** Challenges generated on the calling thread as the pool was empty. */
+    @Nonnull
+    private final Counter fallbacks = new Counter();
+
+    /** Pool depth. */
+    @Nonnull
+    private final Gauge<Integer> depthGauge = depth::get;
+
+    /** Background thread refilling the pool. */
+    private ExecutorService refiller;
+
+    /**
+     * Set the generator of the challenges.
+     * 
+     * @param generator
+     *            generator of the challenges
+     */
+    public void setDelegate(@Nonnull ChallengeGenerator generator) {
+        delegate = generator;
+    }
+
+    /**
+     * Set the maximum number of challenges in the pool. If 0, challenges are
+     * not pooled.
+     * 
+     * @param size
+     *            maximum number of challenges in the pool
+     */
+    public void setCapacity(int size) {
+        capacity = size;
+    }
+
+    /**
+     * Set the number of challenges below which the pool is refilled. Defaults to
+     * quarter of the capacity.
+     * 
+     * @param watermark
+     *            number of challenges below which the pool is refilled
+     */
+    public void setLowWatermark(int watermark) {
+        lowWatermark = watermark;
+    }
+
+    /**
+     * Set the prefix of the metric names.
+     * 
+     * @param prefix
+     *            of the metric names
+     */
+    public void setMetricPrefix(@Nonnull String prefix) {
+        metricPrefix = prefix;
+    }
+
+    /**
+     * Starts the background refill and registers the metrics.
+     */
+    public synchronized void initialize() {
+        if (refiller != null || capacity <= 0) {
+            return;
+        }
+        if (lowWatermark < 0) {
+            lowWatermark = capacity / 4;
+        }
+        refiller = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "stepup-challenge-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (MetricsSupport.getMetricRegistry() != null) {
+            MetricsSupport.register(MetricRegistry.name(metricPrefix, "depth"), depthGauge, true);
+            MetricsSupport.register(MetricRegistry.name(metricPrefix, "refills"), refills, true);
+            MetricsSupport.register(MetricRegistry.name(metricPrefix, "fallbacks"), fallbacks, true);
+        }
+        triggerRefill();
+    }
+
+    /**
+     * Stops the background refill and removes the metrics.
+     */
+    public synchronized void destroy() {
+        if (refiller == null) {
+            return;
+        }
+        refiller.shutdownNow();
+        refiller = null;
+        if (MetricsSupport.getMetricRegistry() != null) {
+            MetricsSupport.remove(MetricRegistry.name(metricPrefix, "depth"), depthGauge);
+            MetricsSupport.remove(MetricRegistry.name(metricPrefix, "refills"), refills);
+            MetricsSupport.remove(MetricRegistry.name(metricPrefix, "fallbacks"), fallbacks);
+        }
+    }
+
+    @Override
+    public String generate(String target) throws Exception {
+        if (delegate == null) {
+            throw new Exception("Bean not configured with delegate ChallengeGenerator");
+        }
+        if (target != null || capacity <= 0) {
+            return delegate.generate(target);
+        }
+        final String challenge = pool.poll();
+        if (challenge != null) {
+            if (depth.decrementAndGet() < lowWatermark) {
+                triggerRefill();
+            }
+            return challenge;
+        }
+        fallbacks.inc();
+        triggerRefill();
+        return delegate.generate(null);
+    }
+
+    /**
+     * Get the number of challenges in the pool.
+     * 
+     * @return number of challenges in the pool
+     */
+    public int getDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Get the number of challenges added to the pool.
+     * 
+     * @return number of challenges added to the pool
+     */
+    public long getRefillCount() {
+        return refills.getCount();
+    }
+
+    /**
+     * Get the number of challenges generated on the calling thread as the pool
+     * was empty.
+     * 
+     * @return number of fallbacks
+     */
+    public long getFallbackCount() {
+        return fallbacks.getCount();
+    }
+
+    /**
+     * Schedule a refill unless one is already scheduled or running.
+     */
+    private void triggerRefill() {
+        final ExecutorService executor = refiller;
+        if (executor == null || !refilling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(this::refill);
+        } catch (RejectedExecutionException e) {
+            refilling.set(false);
+        }
+    }
+
+    /**
+     * Fill the pool up to the capacity. After the refill is marked done the
+     * depth is checked again, so that a take dropping the pool below the low
+     * watermark just before that is not left without a refill.
+     */
+    private void refill() {
+        boolean filled;
+        do {
+            filled = false;
+            try {
+                filled = fill();
+            } catch (Exception e) {
+                log.error("Refilling challenge pool failed", e);
+            } finally {
+                refilling.set(false);
+            }
+        } while (filled && depth.get() < lowWatermark && refilling.compareAndSet(false, true));
+    }
+
+    /**
+     * Generate challenges to the pool until it is full.
+     * 
+     * @return whether the pool was filled
+     * @throws Exception if the delegate fails
+     */
+    private boolean fill() throws Exception {
+        while (depth.get() < capacity) {
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            final String challenge = delegate.generate(null);
+            if (challenge == null) {
+                log.warn("Delegate generated no challenge, refill stopped");
+                return false;
+            }
+            pool.offer(challenge);
+            depth.incrementAndGet();
+            refills.mark();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.idp.profile.AbstractProfileAction;
+
+import org.opensaml.profile.action.ActionSupport;
+import org.opensaml.profile.action.EventIds;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.csc.idp.stepup.api.StepUpApiContext;
+import fi.csc.idp.stepup.api.StepUpEventIds;
+import fi.csc.idp.stepup.api.TokenValidator;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * An action that executes the batch of account operations in the body of the
+ * request, streaming the results to the response. Each operation is
+ * authorized by the bearer access token of the request for the key of the
+ * operation. The numbers of operations and failed operations are set as the
+ * response of the {@link StepUpApiContext}.
+ */
+public class ProcessStepUpAccountBatch extends AbstractProfileAction {
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(ProcessStepUpAccountBatch.class);
+
+    /** Prefix of the bearer access token in the authorization header. */
+    private static final String BEARER = "Bearer ";
+
+    /** Validator of the access tokens. */
+    private TokenValidator tokenValidator;
+
+    /** Processor of the operations. */
+    @Nonnull
+    private StepUpAccountBatchProcessor processor = new StepUpAccountBatchProcessor();
+
+    /** Whether the operations are authorized as self service actions. */
+    private boolean selfService = true;
+
+    /** Api context of the request. */
+    private StepUpApiContext apiContext;
+
+    /** Access token of the request. */
+    private String token;
+
+    /**
+     * Set the validator of the access tokens.
+     * 
+     * @param validator validator of the access tokens
+     */
+    public void setTokenValidator(TokenValidator validator) {
+        tokenValidator = validator;
+    }
+
+    /**
+     * Set the processor of the operations.
+     * 
+     * @param batchProcessor processor of the operations
+     */
+    public void setProcessor(@Nonnull StepUpAccountBatchProcessor batchProcessor) {
+        processor = batchProcessor;
+    }
+
+    /**
+     * Set whether the operations are authorized as self service actions, the
+     * token allowing the subject to manage the own accounts. Default is true.
+     * 
+     * @param selfServiceAction whether the operations are self service actions
+     */
+    public void setSelfService(boolean selfServiceAction) {
+        selfService = selfServiceAction;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
+        if (!super.doPreExecute(profileRequestContext)) {
+            return false;
+        }
+        if (tokenValidator == null) {
+            log.error("{} bean not configured correctly, token validator not set", getLogPrefix());
+            ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EXCEPTION);
+            return false;
+        }
+        apiContext = profileRequestContext.getSubcontext(StepUpApiContext.class);
+        if (apiContext == null) {
+            log.error("{} StepUpApiContext not available", getLogPrefix());
+            ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EXCEPTION);
+            return false;
+        }
+        final HttpServletRequest request = getHttpServletRequest();
+        final HttpServletResponse response = getHttpServletResponse();
+        if (request == null || response == null) {
+            log.error("{} profile action does not contain an HttpServletRequest or HttpServletResponse",
+                    getLogPrefix());
+            ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EXCEPTION);
+            return false;
+        }
+        final String authorization = request.getHeader("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, BEARER, 0, BEARER.length())) {
+            log.debug("{} request has no bearer access token", getLogPrefix());
+            response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+            response.setHeader("WWW-Authenticate", "Bearer");
+            ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EVENTID_FORBIDDEN);
+            return false;
+        }
+        token = authorization.substring(BEARER.length()).trim();
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
+        final HttpServletResponse response = getHttpServletResponse();
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        try {
+            final Map<String, Object> summary = processor.process(getHttpServletRequest().getInputStream(),
+                    response.getOutputStream(), apiContext.getStorage(),
+                    apiContext.getAccountPrototype().getClass(),
+                    key -> tokenValidator.validate(token, key, selfService));
+            log.debug("{} Processed account batch {}", getLogPrefix(), summary);
+            apiContext.setResponse(summary);
+        } catch (IOException e) {
+            log.error("{} Failed writing account batch response", getLogPrefix(), e);
+            ActionSupport.buildEvent(profileRequestContext, EventIds.IO_ERROR);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.csc.idp.stepup.api.ChallengeGenerator;
+
+/**
+ * Class implementing challenge generation by picking characters of an alphabet
+ * uniformly at random. Each thread has its own DRBG instance and buffers.
+ */
+public class RandomChallengeGenerator implements ChallengeGenerator {
+
+    /** Number of random bytes fetched at once. */
+    private static final int RANDOM_BUFFER_SIZE = 64;
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(RandomChallengeGenerator.class);
+
+    /** Characters of the challenge. */
+    @Nonnull
+    private char[] alphabet = "0123456789".toCharArray();
+
+    /** Random bytes equal to or above are rejected to keep the distribution uniform. */
+    private int rejectionLimit = 250;
+
+    /** Length of the challenge. */
+    private int length = 8;
+
+    /** State of each thread. */
+    @Nonnull
+    private final ThreadLocal<State> states = ThreadLocal.withInitial(State::new);
+
+    /**
+     * Set the characters of the challenge.
+     * 
+     * @param characters
+     *            of the challenge, from 2 to 256 distinct characters
+     */
+    public void setAlphabet(@Nonnull String characters) {
+
+        if (characters.length() < 2 || characters.length() > 256
+                || characters.chars().distinct().count() != characters.length()) {
+            throw new IllegalArgumentException("Alphabet must have from 2 to 256 distinct characters");
+        }
+        alphabet = characters.toCharArray();
+        rejectionLimit = 256 - 256 % alphabet.length;
+
+    }
+
+    /**
+     * Set the length of the challenge.
+     * 
+     * @param newLength
+     *            of the challenge
+     */
+    public void setLength(int newLength) {
+
+        if (newLength < 0) {
+            throw new IllegalArgumentException("Length must not be negative");
+        }
+        length = newLength;
+
+    }
+
+    @Override
+    public String generate(String target) throws Exception {
+
+        if (length == 0) {
+            return "";
+        }
+        final State state = states.get();
+        final char[] chars = state.chars(length);
+        final char[] characters = alphabet;
+        final int limit = rejectionLimit;
+        for (int i = 0; i < length; i++) {
+            int value;
+            do {
+                value = state.nextByte();
+            } while (value >= limit);
+            chars[i] = characters[value % characters.length];
+        }
+        return new String(chars, 0, length);
+
+    }
+
+    /** Random source and buffers of a thread. */
+    private final class State {
+
+        /** Random source. */
+        @Nonnull
+        private final SecureRandom random;
+
+        /** Random bytes. */
+        @Nonnull
+        private final byte[] bytes = new byte[RANDOM_BUFFER_SIZE];
+
+        /** Position of the next unused random byte. */
+        private int position = RANDOM_BUFFER_SIZE;
+
+        /** Characters of the challenge. */
+        @Nonnull
+        private char[] buffer = new char[0];
+
+        /** Constructor. */
+        private State() {
+            SecureRandom drbg;
+            try {
+                drbg = SecureRandom.getInstance("DRBG");
+            } catch (NoSuchAlgorithmException e) {
+                log.warn("DRBG not available, using default SecureRandom");
+                drbg = new SecureRandom();
+            }
+            random = drbg;
+        }
+
+        /**
+         * Get the next random byte.
+         * 
+         * @return random value from 0 to 255
+         */
+        private int nextByte() {
+            if (position == RANDOM_BUFFER_SIZE) {
+                random.nextBytes(bytes);
+                position = 0;
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        /**
+         * Get the character buffer.
+         * 
+         * @param size
+         *            minimum size of the buffer
+         * @return character buffer
+         */
+        @Nonnull
+        private char[] chars(int size) {
+            if (buffer.length < size) {
+                buffer = new char[size];
+            }
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.time.Instant;
+
+import javax.annotation.Nonnull;
+
+import org.opensaml.storage.ReplayCache;
+
+import fi.csc.idp.stepup.api.UsedCodeRegistry;
+
+/**
+ * Registry of used codes backed by a {@link ReplayCache}. Used for sharing the
+ * registry between nodes by a replay cache on a shared storage service.
+ */
+public class ReplayCacheUsedCodeRegistry implements UsedCodeRegistry {
+
+    /** Context of the replay cache entries. */
+    @Nonnull
+    private static final String CONTEXT = ReplayCacheUsedCodeRegistry.class.getName();
+
+    /** Replay cache storing the used codes. */
+    @Nonnull
+    private final ReplayCache replayCache;
+
+    /**
+     * Constructor.
+     * 
+     * @param cache replay cache storing the used codes
+     */
+    public ReplayCacheUsedCodeRegistry(@Nonnull ReplayCache cache) {
+        replayCache = cache;
+    }
+
+    @Override
+    public boolean markUsed(@Nonnull String key, long timeStep, long expires) {
+        return replayCache.check(CONTEXT, key + '.' + timeStep, Instant.ofEpochMilli(expires));
+    }
+}
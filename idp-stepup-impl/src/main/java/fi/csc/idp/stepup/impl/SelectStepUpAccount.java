@@ -0,0 +1,114 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import net.shibboleth.idp.authn.context.AuthenticationContext;
+import net.shibboleth.shared.annotation.constraint.NotEmpty;
+
+import org.opensaml.profile.action.ActionSupport;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpEventIds;
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * An action that sets the step up account chosen by the user among the accounts
+ * created for the user as the active account. Selecting the account already
+ * active results in {@link StepUpEventIds#EVENTID_UNCHANGED_SELECTION} so that
+ * the challenge is not sent again.
+ */
+public class SelectStepUpAccount extends AbstractStepUpMethodAction {
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(SelectStepUpAccount.class);
+
+    /** Account selection parameter. */
+    private String accountParameter = "j_stepUpAccount";
+
+    /** Index of the selected account. */
+    private int selected;
+
+    /**
+     * Sets the parameter the index of the selected account is read from.
+     * 
+     * @param parameter name for the index of the selected account
+     */
+    public void setAccountParameter(@Nonnull @NotEmpty String parameter) {
+        this.accountParameter = parameter;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext,
+            @Nonnull final AuthenticationContext authenticationContext) {
+
+        if (!super.doPreExecute(profileRequestContext, authenticationContext)) {
+            return false;
+        }
+        final HttpServletRequest request = getHttpServletRequest();
+        if (request == null) {
+            log.debug("{} profile action does not contain an HttpServletRequest", getLogPrefix());
+            ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EXCEPTION);
+            recordMetrics(profileRequestContext);
+            return false;
+        }
+        final String value = request.getParameter(accountParameter);
+        try {
+            selected = value == null ? -1 : Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            selected = -1;
+        }
+        if (selected < 0 || selected >= getStepUpMethodCtx().getStepUpAccounts().size()) {
+            log.debug("{} user did not select a valid account", getLogPrefix());
+            ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EVENTID_INVALID_SELECTION);
+            recordMetrics(profileRequestContext);
+            return false;
+        }
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext,
+            @Nonnull final AuthenticationContext authenticationContext) {
+
+        final List<StepUpAccount> accounts = getStepUpMethodCtx().getStepUpAccounts();
+        final StepUpAccount account = accounts.get(selected);
+        if (account == getStepUpMethodCtx().getStepUpAccount()) {
+            log.debug("{} user selected the active account {}", getLogPrefix(), account.getName());
+            ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EVENTID_UNCHANGED_SELECTION);
+            recordMetrics(profileRequestContext);
+            return;
+        }
+        log.debug("{} user selected account {}", getLogPrefix(), account.getName());
+        getStepUpMethodCtx().setStepUpAccount(account);
+        recordMetrics(profileRequestContext);
+    }
+}
@@ -0,0 +1,706 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpAccountOperation;
+import fi.csc.idp.stepup.api.StepUpAccountStorage;
+
+/**
+ * Step up account storage spreading the accounts over several storages, the
+ * shards, by consistent hashing of the key. Each shard has a number of virtual
+ * nodes on a hash ring, and a key belongs to the shard of the first node
+ * following the hash of the key. Adding a shard thus moves only the keys now
+ * belonging to it.
+ * 
+ * <p>
+ * A shard is added online. Until the migration is completed, keys not found
+ * from their new shard are read from their previous shard, and removals are
+ * applied to both. The storage interface does not list keys, so the keys to
+ * move are given to {@link #migrate(Iterable)}, after which
+ * {@link #completeMigration()} stops the fallback.
+ * </p>
+ * 
+ * <p>
+ * Batches are split by shard and the parts run in parallel if worker threads
+ * are configured. A batch is atomic only within a shard.
+ * </p>
+ */
+public class ShardedStepUpAccountStorage implements StepUpAccountStorage {
+
+    /** Number of locks keys being migrated are striped over. */
+    private static final int LOCK_STRIPES = 64;
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(ShardedStepUpAccountStorage.class);
+
+    /** Shards by name. */
+    @Nonnull
+    private Map<String, StepUpAccountStorage> shards = Collections.emptyMap();
+
+    /** Number of nodes of each shard on the ring. */
+    private int virtualNodes = 160;
+
+    /** Number of threads running the parts of batches and migrations. If 0, run by the calling thread. */
+    private int threads;
+
+    /** Implementation of the accounts moved between shards. */
+    @Nonnull
+    private Class<? extends StepUpAccount> accountClass = ChallengeSenderStepUpAccount.class;
+
+    /** Ring of the shards. */
+    @Nullable
+    private volatile Ring ring;
+
+    /** Ring before the shard being migrated to was added, null if not migrating. */
+    @Nullable
+    private volatile Ring previousRing;
+
+    /**
+     * Locks keeping keys being migrated from being read or written meanwhile.
+     * Writes hold the read lock of their keys, so a shard is not added while a
+     * write is routed by the previous ring.
+     */
+    @Nonnull
+    private final ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[LOCK_STRIPES];
+
+    /** Executor running the parts of batches and migrations, null if run by the calling thread. */
+    @Nullable
+    private ThreadPoolExecutor executor;
+
+    /** Constructor. */
+    public ShardedStepUpAccountStorage() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Set the shards by name. The name of a shard determines its nodes on the
+     * ring and must thus not change.
+     * 
+     * @param storages shards by name
+     */
+    public void setShards(@Nonnull Map<String, StepUpAccountStorage> storages) {
+        shards = Collections.unmodifiableMap(new LinkedHashMap<>(storages));
+    }
+
+    /**
+     * Set the number of nodes of each shard on the ring. More nodes spread the
+     * keys more evenly. Default is 160.
+     * 
+     * @param count number of nodes of each shard
+     */
+    public void setVirtualNodes(int count) {
+        virtualNodes = count;
+    }
+
+    /**
+     * Set the number of threads running the parts of batches spanning shards
+     * and migrations. If 0, the default, they are run by the calling thread.
+     * 
+     * @param count number of threads
+     */
+    public void setThreads(int count) {
+        threads = count;
+    }
+
+    /**
+     * Set the implementation of the accounts moved between shards. Default is
+     * {@link ChallengeSenderStepUpAccount}.
+     * 
+     * @param implementation implementation of the accounts
+     */
+    public void setAccountClass(@Nonnull Class<? extends StepUpAccount> implementation) {
+        accountClass = implementation;
+    }
+
+    /**
+     * Builds the ring and starts the threads, if configured.
+     */
+    public synchronized void initialize() {
+        if (shards.isEmpty()) {
+            throw new IllegalStateException("Shards must be set");
+        }
+        if (virtualNodes <= 0) {
+            throw new IllegalStateException("Number of virtual nodes must be positive");
+        }
+        ring = new Ring(shards, virtualNodes);
+        if (executor == null && threads > 0) {
+            // once the queue is full the calling thread runs the parts itself
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(threads * 16), daemonThreads("stepup-account-shards-"),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Stops the threads.
+     */
+    public synchronized void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Add a shard online. Keys now belonging to the new shard are read from their
+     * previous shard until they are migrated and the migration is completed.
+     * 
+     * @param name name of the shard
+     * @param storage the shard
+     */
+    public synchronized void addShard(@Nonnull String name, @Nonnull StepUpAccountStorage storage) {
+        checkInitialized();
+        if (previousRing != null) {
+            throw new IllegalStateException("Migration to a shard is in progress");
+        }
+        if (shards.containsKey(name)) {
+            throw new IllegalArgumentException("Shard " + name + " exists");
+        }
+        final Map<String, StepUpAccountStorage> added = new LinkedHashMap<>(shards);
+        added.put(name, storage);
+        // writes in progress complete by the current ring before the keys may be migrated
+        for (ReentrantReadWriteLock lock : locks) {
+            lock.writeLock().lock();
+        }
+        try {
+            shards = Collections.unmodifiableMap(added);
+            previousRing = ring;
+            ring = new Ring(shards, virtualNodes);
+        } finally {
+            for (ReentrantReadWriteLock lock : locks) {
+                lock.writeLock().unlock();
+            }
+        }
+        log.info("Added shard {}, migrating keys from the other {} shards", name, shards.size() - 1);
+    }
+
+    /**
+     * Move the accounts of the keys now belonging to another shard. The accounts
+     * of a key are moved in their order, the key being locked meanwhile. Keys are
+     * moved in parallel if threads are configured. A failed migration may be
+     * rerun with the same keys.
+     * 
+     * @param keys keys to migrate, keys not needing migration are skipped
+     * @return number of keys whose accounts were moved
+     * @throws Exception if moving the accounts of a key fails
+     */
+    public int migrate(@Nonnull Iterable<String> keys) throws Exception {
+        final Ring previous = previousRing;
+        if (previous == null) {
+            return 0;
+        }
+        final Ring current = ring;
+        final AtomicInteger moved = new AtomicInteger();
+        final List<String> chunk = new ArrayList<>();
+        final List<Future<?>> futures = new ArrayList<>();
+        for (String key : keys) {
+            if (current.owner(key) == previous.owner(key)) {
+                continue;
+            }
+            chunk.add(key);
+            if (chunk.size() == 1000) {
+                futures.add(submitMigration(List.copyOf(chunk), previous, current, moved));
+                chunk.clear();
+                // completed parts are dropped to keep the memory use bounded
+                final List<Future<?>> done = new ArrayList<>();
+                for (Future<?> future : futures) {
+                    if (future.isDone()) {
+                        done.add(future);
+                    }
+                }
+                futures.removeAll(done);
+                waitFor(done);
+            }
+        }
+        futures.add(submitMigration(List.copyOf(chunk), previous, current, moved));
+        waitFor(futures);
+        log.debug("Migrated {} keys", moved.get());
+        return moved.get();
+    }
+
+    /**
+     * Stop reading keys from their previous shard.
+     */
+    public synchronized void completeMigration() {
+        if (previousRing != null) {
+            previousRing = null;
+            log.info("Completed migration to the shards {}", shards.keySet());
+        }
+    }
+
+    /**
+     * Whether a migration is in progress.
+     * 
+     * @return whether a migration is in progress
+     */
+    public boolean isMigrating() {
+        return previousRing != null;
+    }
+
+    /**
+     * Get the shard a key belongs to.
+     * 
+     * @param key the key
+     * @return the shard
+     */
+    @Nonnull
+    public StepUpAccountStorage getShard(@Nonnull String key) {
+        checkInitialized();
+        return ring.owner(key);
+    }
+
+    @Override
+    public void add(StepUpAccount account, String key) throws Exception {
+        checkInitialized();
+        final ReentrantReadWriteLock.ReadLock lock = lock(key).readLock();
+        lock.lock();
+        try {
+            ring.owner(key).add(account, key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void remove(StepUpAccount account, String key) throws Exception {
+        checkInitialized();
+        final ReentrantReadWriteLock.ReadLock lock = lock(key).readLock();
+        lock.lock();
+        try {
+            // the rings are read once the key is locked
+            final Ring previous = previousRing;
+            final StepUpAccountStorage owner = ring.owner(key);
+            owner.remove(account, key);
+            final StepUpAccountStorage previousOwner = previous != null ? previous.owner(key) : owner;
+            if (previousOwner != owner) {
+                previousOwner.remove(account, key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <T> StepUpAccount getAccount(String key, Class<T> aClass) throws Exception {
+        final Ring current = checkInitialized();
+        final Ring previous = previousRing;
+        final StepUpAccountStorage owner = current.owner(key);
+        if (previous == null || previous.owner(key) == owner) {
+            return owner.getAccount(key, aClass);
+        }
+        final ReentrantReadWriteLock.ReadLock lock = lock(key).readLock();
+        lock.lock();
+        try {
+            final StepUpAccount account = owner.getAccount(key, aClass);
+            if (account != null) {
+                return account;
+            }
+            log.trace("Reading key {} from its previous shard", key);
+            return previous.owner(key).getAccount(key, aClass);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <T> List<StepUpAccount> getAccounts(String key, Class<T> aClass) throws Exception {
+        final Ring current = checkInitialized();
+        final Ring previous = previousRing;
+        final StepUpAccountStorage owner = current.owner(key);
+        if (previous == null || previous.owner(key) == owner) {
+            return owner.getAccounts(key, aClass);
+        }
+        final ReentrantReadWriteLock.ReadLock lock = lock(key).readLock();
+        lock.lock();
+        try {
+            final List<StepUpAccount> accounts = owner.getAccounts(key, aClass);
+            return accounts.isEmpty() ? previous.owner(key).getAccounts(key, aClass) : accounts;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Split the operations by shard and execute the parts in parallel, if threads
+     * are configured. The keys are locked before the operations are split. During
+     * migration removals are executed also in the previous shard of the key, and
+     * the parts are executed by the calling thread.
+     * 
+     * @param operations operations to execute.
+     * @throws Exception if the part of a shard fails, the parts of the other
+     *             shards are executed nevertheless
+     */
+    @Override
+    public void executeBatch(List<StepUpAccountOperation> operations) throws Exception {
+        checkInitialized();
+        final BitSet stripes = new BitSet(LOCK_STRIPES);
+        for (StepUpAccountOperation operation : operations) {
+            stripes.set(stripe(operation.getKey()));
+        }
+        // read locks are taken in stripe order
+        for (int i = stripes.nextSetBit(0); i >= 0; i = stripes.nextSetBit(i + 1)) {
+            locks[i].readLock().lock();
+        }
+        try {
+            final Ring current = ring;
+            final Ring previous = previousRing;
+            final Map<StepUpAccountStorage, List<StepUpAccountOperation>> parts = new IdentityHashMap<>();
+            for (StepUpAccountOperation operation : operations) {
+                final StepUpAccountStorage owner = current.owner(operation.getKey());
+                parts.computeIfAbsent(owner, shard -> new ArrayList<>()).add(operation);
+                if (previous != null) {
+                    final StepUpAccountStorage previousOwner = previous.owner(operation.getKey());
+                    if (operation.getType() == StepUpAccountOperation.Type.REMOVE && previousOwner != owner) {
+                        parts.computeIfAbsent(previousOwner, shard -> new ArrayList<>()).add(operation);
+                    }
+                }
+            }
+            if (parts.size() == 1 || previous != null) {
+                // during migration the workers may be waiting for the locks held here
+                Exception failure = null;
+                for (Map.Entry<StepUpAccountStorage, List<StepUpAccountOperation>> part : parts.entrySet()) {
+                    try {
+                        part.getKey().executeBatch(part.getValue());
+                    } catch (Exception e) {
+                        log.warn("Operation on a shard failed", e);
+                        failure = failure == null ? e : failure;
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                return;
+            }
+            final List<Future<?>> futures = new ArrayList<>(parts.size());
+            for (Map.Entry<StepUpAccountStorage, List<StepUpAccountOperation>> part : parts.entrySet()) {
+                futures.add(submit(() -> {
+                    part.getKey().executeBatch(part.getValue());
+                    return null;
+                }));
+            }
+            waitFor(futures);
+        } finally {
+            for (int i = stripes.nextSetBit(0); i >= 0; i = stripes.nextSetBit(i + 1)) {
+                locks[i].readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Submit the migration of keys.
+     * 
+     * @param keys keys to migrate
+     * @param previous ring the keys are migrated from
+     * @param current ring the keys are migrated to
+     * @param moved number of keys moved
+     * @return future of the migration
+     */
+    @Nonnull
+    private Future<?> submitMigration(@Nonnull List<String> keys, @Nonnull Ring previous, @Nonnull Ring current,
+            @Nonnull AtomicInteger moved) {
+        return submit(() -> {
+            for (String key : keys) {
+                if (migrateKey(key, previous.owner(key), current.owner(key))) {
+                    moved.incrementAndGet();
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Move the accounts of a key, keeping their order. The accounts are copied to
+     * the new shard in one batch and removed from the previous shard only once
+     * written. Accounts added to the new shard during the migration are newer and
+     * are thus written again after the moved ones. Copies left in the new shard
+     * by an earlier attempt are replaced, so that a failed migration may be
+     * rerun.
+     * 
+     * @param key key to migrate
+     * @param from previous shard of the key
+     * @param to new shard of the key
+     * @return whether the key had accounts to move
+     * @throws Exception if moving fails
+     */
+    private boolean migrateKey(@Nonnull String key, @Nonnull StepUpAccountStorage from,
+            @Nonnull StepUpAccountStorage to) throws Exception {
+        final ReentrantReadWriteLock.WriteLock lock = lock(key).writeLock();
+        lock.lock();
+        try {
+            final List<StepUpAccount> moved = from.getAccounts(key, accountClass);
+            if (moved.isEmpty()) {
+                return false;
+            }
+            final List<StepUpAccount> newer = new ArrayList<>(to.getAccounts(key, accountClass));
+            for (StepUpAccount account : moved) {
+                final Iterator<StepUpAccount> copies = newer.iterator();
+                while (copies.hasNext()) {
+                    final StepUpAccount copy = copies.next();
+                    if (Objects.equals(copy.getName(), account.getName())
+                            && Objects.equals(copy.getTarget(), account.getTarget())) {
+                        copies.remove();
+                        break;
+                    }
+                }
+            }
+            final List<StepUpAccount> accounts = new ArrayList<>(moved);
+            accounts.addAll(newer);
+            final List<StepUpAccountOperation> operations = removals(key, accounts);
+            for (StepUpAccount account : accounts) {
+                operations.add(StepUpAccountOperation.add(account, key));
+            }
+            to.executeBatch(operations);
+            try {
+                from.executeBatch(removals(key, moved));
+            } catch (Exception e) {
+                log.error("Removing moved accounts of key {} from the previous shard failed", key);
+                throw e;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Create operations removing the accounts of a key, one for each target.
+     * 
+     * @param key the key
+     * @param accounts accounts to remove
+     * @return operations removing the accounts
+     */
+    @Nonnull
+    private static List<StepUpAccountOperation> removals(@Nonnull String key,
+            @Nonnull List<StepUpAccount> accounts) {
+        final Set<String> targets = new LinkedHashSet<>();
+        final List<StepUpAccountOperation> operations = new ArrayList<>();
+        for (StepUpAccount account : accounts) {
+            if (targets.add(account.getTarget())) {
+                operations.add(StepUpAccountOperation.remove(account, key));
+            }
+        }
+        return operations;
+    }
+
+    /**
+     * Run a task on the executor, or on the calling thread if no threads are
+     * configured.
+     * 
+     * @param task task to run
+     * @return future of the task
+     */
+    @Nonnull
+    private Future<?> submit(@Nonnull Callable<Void> task) {
+        final ThreadPoolExecutor workers = executor;
+        if (workers != null) {
+            return workers.submit(task);
+        }
+        final FutureTask<Void> future = new FutureTask<>(task);
+        future.run();
+        return future;
+    }
+
+    /**
+     * Wait for the tasks to complete.
+     * 
+     * @param futures futures of the tasks
+     * @throws Exception the first failure of a task
+     */
+    private void waitFor(@Nonnull List<Future<?>> futures) throws Exception {
+        Exception failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                log.warn("Operation on a shard failed", e.getCause());
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Get the lock of the stripe of a key.
+     * 
+     * @param key the key
+     * @return lock of the stripe
+     */
+    @Nonnull
+    private ReentrantReadWriteLock lock(@Nonnull String key) {
+        return locks[stripe(key)];
+    }
+
+    /**
+     * Get the stripe of a key.
+     * 
+     * @param key the key
+     * @return stripe of the key
+     */
+    private static int stripe(@Nonnull String key) {
+        return (int) (hash(key) >>> 58);
+    }
+
+    /**
+     * Check the storage is initialized.
+     * 
+     * @return ring of the shards
+     */
+    @Nonnull
+    private Ring checkInitialized() {
+        final Ring current = ring;
+        if (current == null) {
+            throw new IllegalStateException("Storage not initialized");
+        }
+        return current;
+    }
+
+    /**
+     * Hash a string, FNV-1a followed by the MurmurHash3 finalizer.
+     * 
+     * @param value string to hash
+     * @return hash of the string
+     */
+    private static long hash(@Nonnull String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * Thread factory creating daemon threads.
+     * 
+     * @param prefix
+     *            of the thread name
+     * @return thread factory
+     */
+    private static ThreadFactory daemonThreads(String prefix) {
+
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, prefix + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+    }
+
+    /** Hash ring of the shards. */
+    private static final class Ring {
+
+        /** Sorted hashes of the nodes. */
+        @Nonnull
+        private final long[] points;
+
+        /** Shards of the nodes. */
+        @Nonnull
+        private final StepUpAccountStorage[] owners;
+
+        /**
+         * Constructor.
+         * 
+         * @param shards shards by name
+         * @param nodes number of nodes of each shard
+         */
+        private Ring(@Nonnull Map<String, StepUpAccountStorage> shards, int nodes) {
+            final int size = shards.size() * nodes;
+            final long[][] entries = new long[size][];
+            final StepUpAccountStorage[] storages = shards.values().toArray(new StepUpAccountStorage[0]);
+            int i = 0;
+            int shard = 0;
+            for (String name : shards.keySet()) {
+                for (int node = 0; node < nodes; node++) {
+                    entries[i++] = new long[] { hash(name + "#" + node), shard };
+                }
+                shard++;
+            }
+            Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+            points = new long[size];
+            owners = new StepUpAccountStorage[size];
+            for (i = 0; i < size; i++) {
+                points[i] = entries[i][0];
+                owners[i] = storages[(int) entries[i][1]];
+            }
+        }
+
+        /**
+         * Get the shard of a key.
+         * 
+         * @param key the key
+         * @return shard of the key
+         */
+        @Nonnull
+        private StepUpAccountStorage owner(@Nonnull String key) {
+            int index = Arrays.binarySearch(points, hash(key));
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return owners[index == points.length ? 0 : index];
+        }
+    }
+}
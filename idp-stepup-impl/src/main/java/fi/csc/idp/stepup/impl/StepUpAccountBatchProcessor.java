@@ -0,0 +1,379 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpAccountOperation;
+import fi.csc.idp.stepup.api.StepUpAccountStorage;
+import fi.csc.idp.stepup.api.StepUpMethod;
+
+/**
+ * Processor of a batch of account operations read as a JSON stream
+ * 
+ * <pre>
+ * {"operations": [
+ *     {"op": "addaccount", "key": "user", "name": "TOTP", "target": "seed"},
+ *     {"op": "removeaccount", "key": "user", "target": "seed"},
+ *     {"op": "listaccounts", "key": "user"}]}
+ * </pre>
+ * 
+ * writing the result of each operation in order to a JSON stream
+ * 
+ * <pre>
+ * {"results": [
+ *     {"index": 0, "status": "ok"},
+ *     {"index": 1, "status": "forbidden"},
+ *     {"index": 2, "status": "ok", "accounts": [{"name": "TOTP", "target": "seed"}]}],
+ *  "operations": 3, "failed": 1}
+ * </pre>
+ * 
+ * Adds and removes are executed as storage batches of at most the batch size,
+ * a list executing the operations before it first. The results are written
+ * once their batch is executed, so the memory used does not grow with the
+ * number of operations. The status of a result is ok, forbidden, invalid or
+ * failed, a failed batch failing all its operations. A malformed request ends
+ * the results with an error. A list writes all accounts of the key, oldest
+ * first. The target of a listed account is left out if it is a secret, such as
+ * a TOTP seed.
+ */
+public class StepUpAccountBatchProcessor {
+
+    /** Operation listing the accounts of the key. */
+    public static final String LIST_ACCOUNTS = "listaccounts";
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(StepUpAccountBatchProcessor.class);
+
+    /** JSON reader and writer. */
+    @Nonnull
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /** Maximum number of operations executed as one storage batch. */
+    private int batchSize = 1000;
+
+    /** Maximum number of operations in a request. */
+    private int maxOperations = 1000000;
+
+    /**
+     * Set the maximum number of operations executed as one storage batch.
+     * Default is 1000.
+     * 
+     * @param size maximum number of operations in a storage batch
+     */
+    public void setBatchSize(int size) {
+        batchSize = Math.max(1, size);
+    }
+
+    /**
+     * Set the maximum number of operations in a request. Operations over the
+     * limit are not read. Default is 1000000.
+     * 
+     * @param max maximum number of operations in a request
+     */
+    public void setMaxOperations(int max) {
+        maxOperations = max;
+    }
+
+    /**
+     * Process the operations read from the input, writing their results to the
+     * output.
+     * 
+     * @param in input to read the operations from
+     * @param out output to write the results to
+     * @param storage storage to execute the operations against
+     * @param accountClass implementation of the accounts added and listed
+     * @param authorized whether operations on the key are allowed
+     * @return number of operations and failed operations
+     * @throws IOException if writing the results fails
+     */
+    @Nonnull
+    public Map<String, Object> process(@Nonnull InputStream in, @Nonnull OutputStream out,
+            @Nonnull StepUpAccountStorage storage, @Nonnull Class<? extends StepUpAccount> accountClass,
+            @Nonnull Predicate<String> authorized) throws IOException {
+        final JsonFactory factory = mapper.getFactory();
+        final Batch batch = new Batch(storage, accountClass);
+        String error = null;
+        try (JsonGenerator generator = factory.createGenerator(out, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("results");
+            batch.generator = generator;
+            try (JsonParser parser = factory.createParser(in)) {
+                error = readOperations(parser, batch, authorized);
+            } catch (IOException e) {
+                log.debug("Malformed batch request", e);
+                error = "Malformed request";
+            }
+            batch.execute();
+            generator.writeEndArray();
+            generator.writeNumberField("operations", batch.operations);
+            generator.writeNumberField("failed", batch.failed);
+            if (error != null) {
+                generator.writeStringField("error", error);
+            }
+            generator.writeEndObject();
+        }
+        log.debug("Processed {} operations, {} failed", batch.operations, batch.failed);
+        final Map<String, Object> summary = new HashMap<>();
+        summary.put("operations", batch.operations);
+        summary.put("failed", batch.failed);
+        if (error != null) {
+            summary.put("error", error);
+        }
+        return summary;
+    }
+
+    /**
+     * Read the operations and add them to the batch.
+     * 
+     * @param parser parser of the request
+     * @param batch batch to add the operations to
+     * @param authorized whether operations on the key are allowed
+     * @return error ending the request, null if none
+     * @throws IOException if the request is malformed or writing the results
+     *             fails
+     */
+    @Nullable
+    private String readOperations(@Nonnull JsonParser parser, @Nonnull Batch batch,
+            @Nonnull Predicate<String> authorized) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return "Request is not an object";
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            if (!"operations".equals(field)) {
+                parser.nextToken();
+                parser.skipChildren();
+                continue;
+            }
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                return "Operations is not an array";
+            }
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                if (batch.operations == maxOperations) {
+                    return "Too many operations";
+                }
+                final JsonNode operation = mapper.readTree(parser);
+                batch.add(operation, authorized);
+            }
+        }
+        return null;
+    }
+
+    /** Operations waiting for execution and the counts of the request. */
+    private final class Batch {
+
+        /** Storage to execute the operations against. */
+        @Nonnull
+        private final StepUpAccountStorage storage;
+
+        /** Implementation of the accounts added and listed. */
+        @Nonnull
+        private final Class<? extends StepUpAccount> accountClass;
+
+        /** Generator of the results. */
+        private JsonGenerator generator;
+
+        /** Operations waiting for execution, null for an operation already failed. */
+        @Nonnull
+        private final List<StepUpAccountOperation> pending = new ArrayList<>();
+
+        /** Status of the operations already failed. */
+        @Nonnull
+        private final List<String> statuses = new ArrayList<>();
+
+        /** Number of operations read. */
+        private int operations;
+
+        /** Number of operations failed. */
+        private int failed;
+
+        /** Number of results written. */
+        private int written;
+
+        /**
+         * Constructor.
+         * 
+         * @param accountStorage storage to execute the operations against
+         * @param implementation implementation of the accounts
+         */
+        private Batch(@Nonnull StepUpAccountStorage accountStorage,
+                @Nonnull Class<? extends StepUpAccount> implementation) {
+            storage = accountStorage;
+            accountClass = implementation;
+        }
+
+        /**
+         * Add an operation to the batch, executing the batch if full or the
+         * operation is a list.
+         * 
+         * @param operation the operation
+         * @param authorized whether operations on the key are allowed
+         * @throws IOException if writing the results fails
+         */
+        private void add(@Nonnull JsonNode operation, @Nonnull Predicate<String> authorized) throws IOException {
+            operations++;
+            final String op = operation.path("op").asText("");
+            final String key = operation.path("key").isTextual() ? operation.path("key").asText() : null;
+            final String target = operation.path("target").isTextual() ? operation.path("target").asText() : null;
+            final boolean list = LIST_ACCOUNTS.equals(op);
+            if (key == null || key.isEmpty() || !list && target == null
+                    || !list && !StepUpMethod.ADD_ACCOUNT.equals(op) && !StepUpMethod.REMOVE_ACCOUNT.equals(op)) {
+                addFailed("invalid");
+            } else if (!authorized.test(key)) {
+                addFailed("forbidden");
+            } else if (list) {
+                execute();
+                list(key);
+            } else {
+                try {
+                    final StepUpAccount account = accountClass.getDeclaredConstructor().newInstance();
+                    account.setName(operation.path("name").isTextual() ? operation.path("name").asText() : null);
+                    account.setTarget(target);
+                    pending.add(StepUpMethod.ADD_ACCOUNT.equals(op) ? StepUpAccountOperation.add(account, key)
+                            : StepUpAccountOperation.remove(account, key));
+                    statuses.add(null);
+                } catch (ReflectiveOperationException e) {
+                    log.error("Account implementation {} cannot be instantiated", accountClass.getName(), e);
+                    addFailed("failed");
+                }
+            }
+            if (pending.size() >= batchSize) {
+                execute();
+            }
+        }
+
+        /**
+         * Add an operation already failed.
+         * 
+         * @param status status of the operation
+         */
+        private void addFailed(@Nonnull String status) {
+            pending.add(null);
+            statuses.add(status);
+        }
+
+        /**
+         * Execute the waiting operations and write their results.
+         * 
+         * @throws IOException if writing the results fails
+         */
+        private void execute() throws IOException {
+            if (pending.isEmpty()) {
+                return;
+            }
+            final List<StepUpAccountOperation> executed = new ArrayList<>(pending.size());
+            for (StepUpAccountOperation operation : pending) {
+                if (operation != null) {
+                    executed.add(operation);
+                }
+            }
+            String status = "ok";
+            if (!executed.isEmpty()) {
+                try {
+                    storage.executeBatch(executed);
+                } catch (Exception e) {
+                    log.warn("Executing batch of {} operations failed", executed.size(), e);
+                    status = "failed";
+                }
+            }
+            for (int i = 0; i < pending.size(); i++) {
+                writeResult(pending.get(i) == null ? statuses.get(i) : status);
+            }
+            pending.clear();
+            statuses.clear();
+            generator.flush();
+        }
+
+        /**
+         * Look up the accounts of a key and write the result.
+         * 
+         * @param key the key
+         * @throws IOException if writing the result fails
+         */
+        private void list(@Nonnull String key) throws IOException {
+            final List<StepUpAccount> accounts;
+            try {
+                accounts = storage.getAccounts(key, accountClass);
+            } catch (Exception e) {
+                log.warn("Looking up accounts of key {} failed", key, e);
+                writeResult("failed");
+                return;
+            }
+            generator.writeStartObject();
+            generator.writeNumberField("index", written++);
+            generator.writeStringField("status", "ok");
+            generator.writeArrayFieldStart("accounts");
+            for (StepUpAccount account : accounts) {
+                generator.writeStartObject();
+                generator.writeStringField("name", account.getName());
+                if (!account.isTargetSecret()) {
+                    generator.writeStringField("target", account.getTarget());
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+
+        /**
+         * Write the result of an operation.
+         * 
+         * @param status status of the operation
+         * @throws IOException if writing the result fails
+         */
+        private void writeResult(@Nonnull String status) throws IOException {
+            if (!"ok".equals(status)) {
+                failed++;
+            }
+            generator.writeStartObject();
+            generator.writeNumberField("index", written++);
+            generator.writeStringField("status", status);
+            generator.writeEndObject();
+        }
+    }
+}
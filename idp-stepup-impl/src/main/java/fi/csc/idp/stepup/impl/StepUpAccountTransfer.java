@@ -0,0 +1,693 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.support.FileSystemXmlApplicationContext;
+
+import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpAccountOperation;
+import fi.csc.idp.stepup.api.StepUpAccountStorage;
+
+/**
+ * Bulk import and export of accounts through {@link StepUpAccountStorage}, for
+ * instance to move TOTP seeds and mail or SMS targets between environments.
+ * 
+ * <p>
+ * Accounts are transferred as UTF-8 text, one account per line after the
+ * header line {@value #HEADER}. A line has the tab separated fields key, name
+ * and target. The storages do not record the implementation of an account, so
+ * it is given to the import. Files without the header are read in the format
+ * of {@value #HEADER_V1}, whose lines have the class name of the account
+ * between the key and name, an empty type meaning the given implementation.
+ * Backslash, tab, newline and carriage return in a field are escaped as
+ * <code>\\</code>, <code>\t</code>, <code>\n</code> and <code>\r</code>, a
+ * missing value is written as <code>\N</code>. A key starting with # is
+ * written as <code>\#</code> followed by the rest of the key. Empty lines and
+ * lines starting with # are ignored.
+ * </p>
+ * 
+ * <p>
+ * Both directions stream the accounts, the memory used does not depend on the
+ * number of accounts. The import adds the accounts in chunks of at most the
+ * chunk size executed as storage batches, in parallel if threads are set. A
+ * chunk ends only where the key changes, so the accounts of a key keep their
+ * order if the lines of each key are adjacent, as in an export. If a
+ * checkpoint file is set, the import records the imported lines in it and a
+ * repeated import of the same file skips them, resuming an interrupted
+ * import. The checkpoint is removed once the import completes. Accounts whose
+ * key and target are already stored are not added again, so a chunk written
+ * but not yet recorded when the import was interrupted is not duplicated.
+ * </p>
+ */
+public class StepUpAccountTransfer {
+
+    /** Header line of the format. */
+    public static final String HEADER = "#stepup-accounts 2";
+
+    /** Header line of the first format, having the type of the account. */
+    public static final String HEADER_V1 = "#stepup-accounts 1";
+
+    /** Value of a missing field. */
+    private static final String NULL = "\\N";
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(StepUpAccountTransfer.class);
+
+    /** Maximum number of accounts added as one storage batch. */
+    private int chunkSize = 1000;
+
+    /** Number of threads adding the chunks. */
+    private int threads;
+
+    /** File recording the progress of the import. */
+    @Nullable
+    private Path checkpoint;
+
+    /**
+     * Set the maximum number of accounts added as one storage batch. Default is
+     * 1000.
+     * 
+     * @param size maximum number of accounts in a batch
+     */
+    public void setChunkSize(int size) {
+        chunkSize = Math.max(1, size);
+    }
+
+    /**
+     * Set the number of threads adding the chunks to the storage. If 0, the
+     * chunks are added by the reading thread. Default is 0.
+     * 
+     * @param count number of threads
+     */
+    public void setThreads(int count) {
+        threads = Math.max(0, count);
+    }
+
+    /**
+     * Set the file recording the progress of the import. If not set, an
+     * interrupted import cannot be resumed.
+     * 
+     * @param file checkpoint file
+     */
+    public void setCheckpoint(@Nullable Path file) {
+        checkpoint = file;
+    }
+
+    /**
+     * Export the accounts of the keys, the accounts of a key oldest first. Keys
+     * without an account are skipped.
+     * 
+     * @param keys keys of the accounts
+     * @param storage storage to export the accounts from
+     * @param accountClass implementation of the accounts
+     * @param out output to write the accounts to, not closed
+     * @return number of accounts exported
+     * @throws Exception if reading the storage or writing the output fails
+     */
+    public long exportAccounts(@Nonnull Iterator<String> keys, @Nonnull StepUpAccountStorage storage,
+            @Nonnull Class<? extends StepUpAccount> accountClass, @Nonnull OutputStream out) throws Exception {
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        writer.write(HEADER);
+        writer.write('\n');
+        long count = 0;
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            if (key == null || key.isEmpty()) {
+                continue;
+            }
+            for (StepUpAccount account : storage.getAccounts(key, accountClass)) {
+                if (key.charAt(0) == '#') {
+                    // the line would otherwise be read as a comment
+                    writer.write('\\');
+                }
+                escape(writer, key);
+                writer.write('\t');
+                escape(writer, account.getName());
+                writer.write('\t');
+                escape(writer, account.getTarget());
+                writer.write('\n');
+                count++;
+            }
+        }
+        writer.flush();
+        log.debug("Exported {} accounts", count);
+        return count;
+    }
+
+    /**
+     * Import the accounts read from the input, skipping the lines recorded in the
+     * checkpoint and the accounts already stored.
+     * 
+     * @param in input to read the accounts from, not closed
+     * @param storage storage to add the accounts to
+     * @param defaultClass implementation of the accounts, unless the line has a
+     *            type
+     * @return number of accounts imported, skipped accounts excluded
+     * @throws Exception if reading the input or adding a chunk fails
+     */
+    public long importAccounts(@Nonnull InputStream in, @Nonnull StepUpAccountStorage storage,
+            @Nonnull Class<? extends StepUpAccount> defaultClass) throws Exception {
+        final Progress progress = Progress.read(checkpoint);
+        final ExecutorService executor = threads > 0 ? Executors.newFixedThreadPool(threads, daemonThreads())
+                : null;
+        final Semaphore slots = new Semaphore(Math.max(1, threads) * 2);
+        final Map<String, Class<? extends StepUpAccount>> types = new HashMap<>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8),
+                1 << 16);
+        final String[] fields = new String[4];
+        // files without the header are in the first format
+        int fieldCount = 4;
+        final StringBuilder buffer = new StringBuilder();
+        long imported = 0;
+        long record = 0;
+        long lineNumber = 0;
+        String previousKey = null;
+        Chunk chunk = null;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null && progress.failure == null) {
+                lineNumber++;
+                if (line.isEmpty() || line.charAt(0) == '#') {
+                    if (line.equals(HEADER)) {
+                        fieldCount = 3;
+                    }
+                    continue;
+                }
+                final long index = record++;
+                if (progress.isDone(index)) {
+                    continue;
+                }
+                if (!split(line, fields, fieldCount, buffer)) {
+                    throw new IOException("Line " + lineNumber + " does not have key, "
+                            + (fieldCount == 4 ? "type, " : "") + "name and target");
+                }
+                if (chunk != null && chunk.operations.size() >= chunkSize && !fields[0].equals(previousKey)) {
+                    submit(chunk, storage, defaultClass, progress, executor, slots);
+                    chunk = null;
+                }
+                if (chunk == null) {
+                    chunk = new Chunk(index, Math.min(chunkSize, 1024));
+                }
+                final StepUpAccount account = resolve(fieldCount == 4 ? fields[1] : null, defaultClass, types,
+                        lineNumber).getDeclaredConstructor().newInstance();
+                account.setName(fields[fieldCount - 2]);
+                account.setTarget(fields[fieldCount - 1]);
+                chunk.operations.add(StepUpAccountOperation.add(account, fields[0]));
+                chunk.end = index + 1;
+                previousKey = fields[0];
+                imported++;
+            }
+            if (chunk != null && progress.failure == null) {
+                submit(chunk, storage, defaultClass, progress, executor, slots);
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (progress.failure != null) {
+            throw progress.failure;
+        }
+        if (checkpoint != null) {
+            Files.deleteIfExists(checkpoint);
+        }
+        log.debug("Imported {} accounts, skipped {} imported before", imported, record - imported);
+        return imported;
+    }
+
+    /**
+     * Add a chunk to the storage, on the executor if set. Waits for a free slot
+     * so that the number of chunks in memory stays bounded.
+     * 
+     * @param chunk the chunk
+     * @param storage storage to add the chunk to
+     * @param accountClass implementation the stored accounts are read with
+     * @param progress progress of the import
+     * @param executor executor adding the chunk, null for the calling thread
+     * @param slots free slots for chunks
+     * @throws Exception if adding the chunk on the calling thread fails
+     */
+    private void submit(@Nonnull Chunk chunk, @Nonnull StepUpAccountStorage storage,
+            @Nonnull Class<? extends StepUpAccount> accountClass, @Nonnull Progress progress,
+            @Nullable ExecutorService executor, @Nonnull Semaphore slots) throws Exception {
+        if (executor == null) {
+            add(chunk, storage, accountClass);
+            progress.done(chunk.start, chunk.end);
+            return;
+        }
+        slots.acquire();
+        executor.execute(() -> {
+            try {
+                add(chunk, storage, accountClass);
+                progress.done(chunk.start, chunk.end);
+            } catch (Exception e) {
+                log.error("Adding accounts of lines {} to {} failed", chunk.start, chunk.end, e);
+                progress.fail(e);
+            } finally {
+                slots.release();
+            }
+        });
+    }
+
+    /**
+     * Add the accounts of a chunk whose key and target are not already stored.
+     * 
+     * @param chunk the chunk
+     * @param storage storage to add the chunk to
+     * @param accountClass implementation the stored accounts are read with
+     * @throws Exception if reading or adding the accounts fails
+     */
+    private void add(@Nonnull Chunk chunk, @Nonnull StepUpAccountStorage storage,
+            @Nonnull Class<? extends StepUpAccount> accountClass) throws Exception {
+        final Map<String, Set<String>> stored = new HashMap<>();
+        final List<StepUpAccountOperation> operations = new ArrayList<>(chunk.operations.size());
+        for (StepUpAccountOperation operation : chunk.operations) {
+            Set<String> targets = stored.get(operation.getKey());
+            if (targets == null) {
+                targets = new HashSet<>();
+                for (StepUpAccount account : storage.getAccounts(operation.getKey(), accountClass)) {
+                    targets.add(account.getTarget());
+                }
+                stored.put(operation.getKey(), targets);
+            }
+            if (!targets.contains(operation.getAccount().getTarget())) {
+                operations.add(operation);
+            }
+        }
+        if (operations.size() < chunk.operations.size()) {
+            log.debug("Skipping {} accounts of lines {} to {} already stored",
+                    chunk.operations.size() - operations.size(), chunk.start, chunk.end);
+        }
+        if (!operations.isEmpty()) {
+            storage.executeBatch(operations);
+        }
+    }
+
+    /**
+     * Resolve the implementation of the accounts of a type.
+     * 
+     * @param type class name of the implementation, null for the default
+     * @param defaultClass default implementation
+     * @param types implementations already resolved
+     * @param lineNumber line of the type
+     * @return implementation
+     * @throws IOException if the type is not an account implementation
+     */
+    @Nonnull
+    private Class<? extends StepUpAccount> resolve(@Nullable String type,
+            @Nonnull Class<? extends StepUpAccount> defaultClass,
+            @Nonnull Map<String, Class<? extends StepUpAccount>> types, long lineNumber) throws IOException {
+        if (type == null || type.isEmpty()) {
+            return defaultClass;
+        }
+        Class<? extends StepUpAccount> resolved = types.get(type);
+        if (resolved == null) {
+            try {
+                final Class<?> candidate = Class.forName(type, false, getClass().getClassLoader());
+                if (!StepUpAccount.class.isAssignableFrom(candidate)) {
+                    throw new IOException("Type " + type + " of line " + lineNumber + " is not an account");
+                }
+                resolved = candidate.asSubclass(StepUpAccount.class);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Type " + type + " of line " + lineNumber + " is not known", e);
+            }
+            types.put(type, resolved);
+        }
+        return resolved;
+    }
+
+    /**
+     * Write a field escaped.
+     * 
+     * @param writer writer to write to
+     * @param value value of the field
+     * @throws IOException if writing fails
+     */
+    private static void escape(@Nonnull Writer writer, @Nullable String value) throws IOException {
+        if (value == null) {
+            writer.write(NULL);
+            return;
+        }
+        int from = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            final char escaped = c == '\\' ? '\\' : c == '\t' ? 't' : c == '\n' ? 'n' : c == '\r' ? 'r' : 0;
+            if (escaped != 0) {
+                writer.write(value, from, i - from);
+                writer.write('\\');
+                writer.write(escaped);
+                from = i + 1;
+            }
+        }
+        writer.write(value, from, value.length() - from);
+    }
+
+    /**
+     * Split a line to its unescaped fields.
+     * 
+     * @param line the line
+     * @param fields array to set the fields to
+     * @param count expected number of fields
+     * @param buffer buffer for unescaping
+     * @return whether the line has the expected number of fields
+     */
+    private static boolean split(@Nonnull String line, @Nonnull String[] fields, int count,
+            @Nonnull StringBuilder buffer) {
+        int field = 0;
+        int from = 0;
+        boolean escaped = false;
+        for (int i = 0; i <= line.length(); i++) {
+            final char c = i < line.length() ? line.charAt(i) : '\t';
+            if (c == '\\') {
+                escaped = true;
+                i++;
+            } else if (c == '\t') {
+                if (field == count) {
+                    return false;
+                }
+                fields[field++] = escaped ? unescape(line, from, i, buffer) : line.substring(from, i);
+                from = i + 1;
+                escaped = false;
+            }
+        }
+        return field == count;
+    }
+
+    /**
+     * Unescape a field.
+     * 
+     * @param line line of the field
+     * @param from start of the field
+     * @param to end of the field
+     * @param buffer buffer for unescaping
+     * @return the field, null if missing
+     */
+    @Nullable
+    private static String unescape(@Nonnull String line, int from, int to, @Nonnull StringBuilder buffer) {
+        if (to - from == 2 && line.startsWith(NULL, from)) {
+            return null;
+        }
+        buffer.setLength(0);
+        for (int i = from; i < to; i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < to) {
+                c = line.charAt(++i);
+                c = c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c;
+            }
+            buffer.append(c);
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Thread factory of the import threads.
+     * 
+     * @return thread factory
+     */
+    @Nonnull
+    private static ThreadFactory daemonThreads() {
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, "stepup-account-import-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /** Accounts of consecutive lines added as one storage batch. */
+    private static final class Chunk {
+
+        /** Index of the first account line. */
+        private final long start;
+
+        /** Index after the last account line. */
+        private long end;
+
+        /** Operations adding the accounts. */
+        @Nonnull
+        private final List<StepUpAccountOperation> operations;
+
+        /**
+         * Constructor.
+         * 
+         * @param first index of the first account line
+         * @param capacity initial capacity of the operations
+         */
+        private Chunk(long first, int capacity) {
+            start = first;
+            end = first;
+            operations = new ArrayList<>(capacity);
+        }
+    }
+
+    /**
+     * Account lines imported, recorded as the number of lines imported from the
+     * start and the ranges imported after them.
+     */
+    private static final class Progress {
+
+        /** File the progress is recorded to, null if not recorded. */
+        @Nullable
+        private final Path file;
+
+        /** Number of account lines imported from the start. */
+        private long imported;
+
+        /** Ranges of account lines imported after the first ones, by start. */
+        @Nonnull
+        private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+        /** First failure adding a chunk. */
+        @Nullable
+        private volatile Exception failure;
+
+        /**
+         * Constructor.
+         * 
+         * @param checkpoint file the progress is recorded to
+         */
+        private Progress(@Nullable Path checkpoint) {
+            file = checkpoint;
+        }
+
+        /**
+         * Read the progress recorded to a file.
+         * 
+         * @param checkpoint file the progress is recorded to, null if not
+         *            recorded
+         * @return the progress, empty if the file does not exist
+         * @throws IOException if the file cannot be read
+         */
+        @Nonnull
+        private static Progress read(@Nullable Path checkpoint) throws IOException {
+            final Progress progress = new Progress(checkpoint);
+            if (checkpoint == null || !Files.exists(checkpoint)) {
+                return progress;
+            }
+            try {
+                final List<String> lines = Files.readAllLines(checkpoint, StandardCharsets.US_ASCII);
+                progress.imported = Long.parseLong(lines.get(0).trim());
+                for (String line : lines.subList(1, lines.size())) {
+                    final String[] range = line.trim().split(" ");
+                    progress.ranges.put(Long.parseLong(range[0]), Long.parseLong(range[1]));
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Checkpoint " + checkpoint + " is malformed", e);
+            }
+            return progress;
+        }
+
+        /**
+         * Whether an account line has been imported.
+         * 
+         * @param index index of the account line
+         * @return whether the line has been imported
+         */
+        private synchronized boolean isDone(long index) {
+            if (index < imported) {
+                return true;
+            }
+            final Map.Entry<Long, Long> range = ranges.floorEntry(index);
+            return range != null && index < range.getValue();
+        }
+
+        /**
+         * Record account lines imported.
+         * 
+         * @param start index of the first line
+         * @param end index after the last line
+         * @throws IOException if recording the progress fails
+         */
+        private synchronized void done(long start, long end) throws IOException {
+            long from = start;
+            long to = end;
+            final Map.Entry<Long, Long> before = ranges.lowerEntry(from);
+            if (before != null && before.getValue() >= from) {
+                from = before.getKey();
+                to = Math.max(to, before.getValue());
+            }
+            final Long after = ranges.remove(to);
+            ranges.put(from, after != null ? after : to);
+            Map.Entry<Long, Long> first;
+            while ((first = ranges.firstEntry()) != null && first.getKey() <= imported) {
+                imported = Math.max(imported, first.getValue());
+                ranges.pollFirstEntry();
+            }
+            if (file == null) {
+                return;
+            }
+            final StringBuilder content = new StringBuilder().append(imported).append('\n');
+            for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+                content.append(range.getKey()).append(' ').append(range.getValue()).append('\n');
+            }
+            final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temporary, content.toString().getBytes(StandardCharsets.US_ASCII));
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Record the failure of adding a chunk, the first one kept.
+         * 
+         * @param e the failure
+         */
+        private synchronized void fail(@Nonnull Exception e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Import or export accounts from the command line.
+     * 
+     * <pre>
+     * import|export --file &lt;file&gt; (--mapped &lt;log&gt; | --context &lt;beans.xml&gt; --storage &lt;bean&gt;)
+     *     [--keys &lt;file&gt;] [--type &lt;class&gt;] [--checkpoint &lt;file&gt;] [--threads &lt;n&gt;] [--chunk &lt;n&gt;]
+     * </pre>
+     * 
+     * The accounts are exported from or imported to a local
+     * {@link MappedStepUpAccountStorage} log or a storage bean of a Spring
+     * context. Export reads the keys, one per line, from the keys file. The type
+     * is the account implementation the accounts are read and imported with, by
+     * default {@link GoogleAuthenticatorStepUpAccount}.
+     * 
+     * @param args command line arguments
+     * @throws Exception if the transfer fails
+     */
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        final String command = args.length > 0 ? args[0] : "";
+        final String file = options.get("--file");
+        if (!"import".equals(command) && !"export".equals(command) || file == null
+                || options.get("--mapped") == null
+                        && (options.get("--context") == null || options.get("--storage") == null)
+                || "export".equals(command) && options.get("--keys") == null) {
+            System.err.println("Usage: StepUpAccountTransfer import|export --file <file> (--mapped <log> | "
+                    + "--context <beans.xml> --storage <bean>) [--keys <file>] [--type <class>] "
+                    + "[--checkpoint <file>] [--threads <n>] [--chunk <n>]");
+            System.exit(2);
+        }
+        final StepUpAccountTransfer transfer = new StepUpAccountTransfer();
+        transfer.setThreads(Integer.parseInt(options.getOrDefault("--threads", "0")));
+        transfer.setChunkSize(Integer.parseInt(options.getOrDefault("--chunk", "1000")));
+        if (options.containsKey("--checkpoint")) {
+            transfer.setCheckpoint(Paths.get(options.get("--checkpoint")));
+        }
+        final Class<? extends StepUpAccount> type = Class
+                .forName(options.getOrDefault("--type", GoogleAuthenticatorStepUpAccount.class.getName()))
+                .asSubclass(StepUpAccount.class);
+        MappedStepUpAccountStorage mapped = null;
+        FileSystemXmlApplicationContext context = null;
+        final StepUpAccountStorage storage;
+        if (options.containsKey("--mapped")) {
+            mapped = new MappedStepUpAccountStorage();
+            mapped.setPath(options.get("--mapped"));
+            mapped.setCompactionInterval(0);
+            mapped.initialize();
+            storage = mapped;
+        } else {
+            context = new FileSystemXmlApplicationContext(options.get("--context"));
+            storage = context.getBean(options.get("--storage"), StepUpAccountStorage.class);
+        }
+        try {
+            final long count;
+            if ("import".equals(command)) {
+                try (InputStream in = Files.newInputStream(Paths.get(file))) {
+                    count = transfer.importAccounts(in, storage, type);
+                }
+            } else {
+                try (BufferedReader keys = Files.newBufferedReader(Paths.get(options.get("--keys")),
+                        StandardCharsets.UTF_8); OutputStream out = Files.newOutputStream(Paths.get(file))) {
+                    count = transfer.exportAccounts(keys.lines().iterator(), storage, type, out);
+                }
+            }
+            System.out.println(command + "ed " + count + " accounts");
+        } finally {
+            if (mapped != null) {
+                mapped.destroy();
+            }
+            if (context != null) {
+                context.close();
+            }
+        }
+    }
+}
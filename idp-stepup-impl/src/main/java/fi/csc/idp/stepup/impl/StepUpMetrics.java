@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.core.metrics.MetricsSupport;
+import org.opensaml.profile.action.EventIds;
+import org.opensaml.profile.context.EventContext;
+import org.opensaml.profile.context.ProfileRequestContext;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Timers of the step up flow in the metric registry of the IdP. A timer is
+ * named by the operation, the step up method and the outcome event, for
+ * instance <code>fi.csc.idp.stepup.GenerateStepUpChallenge.TOTP.proceed</code>,
+ * its count being the number of operations with the outcome. Nothing is
+ * recorded if the IdP has no metric registry.
+ */
+public final class StepUpMetrics {
+
+    /** Prefix of the timer names. */
+    public static final String PREFIX = "fi.csc.idp.stepup";
+
+    /** Operation of sending a challenge. */
+    public static final String SEND = "send";
+
+    /** Operation of verifying a response. */
+    public static final String VERIFY = "verify";
+
+    /** Operation of a challenge sender, named by the implementation. */
+    public static final String SENDER = "sender";
+
+    /** Operation of a challenge verifier, named by the implementation. */
+    public static final String VERIFIER = "verifier";
+
+    /** Tag of a step up method or outcome not known. */
+    public static final String UNKNOWN = "unknown";
+
+    /** Private constructor to prohibit use of it. */
+    private StepUpMetrics() {
+
+    }
+
+    /**
+     * Start timing an operation.
+     * 
+     * @return start time of the operation
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record an operation.
+     * 
+     * @param operation the operation
+     * @param method name of the step up method
+     * @param outcome outcome event of the operation
+     * @param started start time of the operation
+     */
+    public static void record(@Nonnull String operation, @Nullable String method, @Nullable String outcome,
+            long started) {
+        final MetricRegistry registry = MetricsSupport.getMetricRegistry();
+        if (registry == null) {
+            return;
+        }
+        registry.timer(MetricRegistry.name(PREFIX, operation, tag(method), tag(outcome)))
+                .update(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Record an operation of an implementation, the outcome being proceed or
+     * an exception.
+     * 
+     * @param operation the operation
+     * @param implementation implementation performing the operation
+     * @param failure exception thrown by the operation, null if none
+     * @param started start time of the operation
+     */
+    public static void recordImplementation(@Nonnull String operation, @Nonnull Object implementation,
+            @Nullable Exception failure, long started) {
+        record(operation, implementation.getClass().getSimpleName(),
+                failure != null ? failure.getClass().getSimpleName() : EventIds.PROCEED_EVENT_ID, started);
+    }
+
+    /**
+     * Record a profile action, the outcome being the event the action built or
+     * proceed if none.
+     * 
+     * @param action name of the action
+     * @param profileRequestContext profile request context of the action
+     * @param method name of the step up method
+     * @param started start time of the action
+     */
+    public static void recordAction(@Nonnull String action,
+            @Nonnull ProfileRequestContext profileRequestContext, @Nullable String method, long started) {
+        final String event = getEvent(profileRequestContext);
+        record(action, method, event != null ? event : EventIds.PROCEED_EVENT_ID, started);
+    }
+
+    /**
+     * Get the event a profile action has built.
+     * 
+     * @param profileRequestContext profile request context of the action
+     * @return the event, null if none
+     */
+    @Nullable
+    public static String getEvent(@Nonnull ProfileRequestContext profileRequestContext) {
+        final EventContext eventContext = profileRequestContext.getSubcontext(EventContext.class);
+        if (eventContext == null || eventContext.getEvent() == null) {
+            return null;
+        }
+        return eventContext.getEvent().toString();
+    }
+
+    /**
+     * Convert a value to a part of a timer name.
+     * 
+     * @param value the value
+     * @return the value with separators replaced, unknown if empty
+     */
+    @Nonnull
+    private static String tag(@Nullable String value) {
+        if (value == null || value.isEmpty()) {
+            return UNKNOWN;
+        }
+        final StringBuilder tag = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            tag.append(Character.isLetterOrDigit(c) || c == '-' || c == '_' ? c : '_');
+        }
+        return tag.toString();
+    }
+}
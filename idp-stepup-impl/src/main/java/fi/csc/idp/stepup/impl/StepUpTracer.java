@@ -0,0 +1,233 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.csc.idp.stepup.api.StepUpMethodContext;
+import fi.csc.idp.stepup.api.StepUpTraceContext;
+import fi.csc.idp.stepup.api.StepUpTraceExporter;
+import net.shibboleth.idp.authn.context.AuthenticationContext;
+
+/**
+ * Traces the phases of a step up login as spans of a {@link StepUpTraceContext}
+ * attached to the {@link StepUpMethodContext}. The spans are started and ended
+ * by the flow states and the trace is completed once the flow ends. A copy of
+ * a completed trace detached from the login is kept in a ring buffer
+ * overwriting the oldest trace and passed to the exporter, if set. Logins are
+ * not traced unless enabled.
+ */
+public class StepUpTracer {
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(StepUpTracer.class);
+
+    /** Whether the logins are traced. */
+    private boolean enabled;
+
+    /** Number of completed traces kept, rounded up to a power of two. */
+    private int bufferSize = 1024;
+
+    /** Service name of the dumped spans. */
+    @Nonnull
+    private String serviceName = "stepup";
+
+    /** Exporter of the completed traces. */
+    @Nullable
+    private StepUpTraceExporter exporter;
+
+    /** Completed traces. */
+    private AtomicReferenceArray<StepUpTraceContext> traces;
+
+    /** Number of traces completed. */
+    @Nonnull
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Set whether the logins are traced. Default is false.
+     * 
+     * @param enable whether the logins are traced
+     */
+    public void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * Set the number of completed traces kept. Rounded up to a power of two.
+     * 
+     * @param size number of completed traces kept
+     */
+    public void setBufferSize(int size) {
+        bufferSize = size;
+    }
+
+    /**
+     * Set the service name of the dumped spans.
+     * 
+     * @param name service name of the dumped spans
+     */
+    public void setServiceName(@Nonnull String name) {
+        serviceName = name;
+    }
+
+    /**
+     * Set the exporter of the completed traces.
+     * 
+     * @param traceExporter exporter of the completed traces
+     */
+    public void setExporter(@Nullable StepUpTraceExporter traceExporter) {
+        exporter = traceExporter;
+    }
+
+    /**
+     * Creates the ring buffer.
+     */
+    public synchronized void initialize() {
+        if (traces == null) {
+            traces = new AtomicReferenceArray<>(Integer.highestOneBit(Math.max(1, bufferSize) * 2 - 1));
+        }
+    }
+
+    /**
+     * Start a span of the login.
+     * 
+     * @param profileRequestContext profile request context of the login
+     * @param name name of the span, for instance the flow state
+     */
+    public void startSpan(@Nonnull ProfileRequestContext profileRequestContext, @Nonnull String name) {
+        final StepUpTraceContext trace = getTraceContext(profileRequestContext, true);
+        if (trace != null && !trace.isCompleted()) {
+            trace.startSpan(name);
+        }
+    }
+
+    /**
+     * End a span of the login.
+     * 
+     * @param profileRequestContext profile request context of the login
+     * @param name name of the span
+     * @param outcome outcome of the span, for instance the event of the flow
+     *            state
+     */
+    public void endSpan(@Nonnull ProfileRequestContext profileRequestContext, @Nonnull String name,
+            @Nullable String outcome) {
+        final StepUpTraceContext trace = getTraceContext(profileRequestContext, false);
+        if (trace != null && !trace.isCompleted()) {
+            trace.endSpan(name, outcome);
+        }
+    }
+
+    /**
+     * Complete the trace of the login. The trace is kept and exported once.
+     * 
+     * @param profileRequestContext profile request context of the login
+     */
+    public void complete(@Nonnull ProfileRequestContext profileRequestContext) {
+        final StepUpTraceContext context = getTraceContext(profileRequestContext, false);
+        if (context == null || !context.complete()) {
+            return;
+        }
+        // the context would keep the contexts of the login reachable
+        final StepUpTraceContext trace = context.copy();
+        log.debug("Trace {} of step up login completed in {} ms", trace.getTraceId(),
+                trace.getDurationNanos() / 1000000);
+        final AtomicReferenceArray<StepUpTraceContext> buffer = traces;
+        if (buffer != null) {
+            buffer.set((int) (sequence.getAndIncrement() & (buffer.length() - 1)), trace);
+        }
+        if (exporter != null) {
+            exporter.export(trace);
+        }
+    }
+
+    /**
+     * Get the completed traces kept, oldest first. Traces completed while
+     * reading may replace the oldest ones.
+     * 
+     * @return completed traces kept
+     */
+    @Nonnull
+    public List<StepUpTraceContext> getTraces() {
+        final List<StepUpTraceContext> result = new ArrayList<>();
+        final AtomicReferenceArray<StepUpTraceContext> buffer = traces;
+        if (buffer == null) {
+            return result;
+        }
+        final long last = sequence.get();
+        for (long i = Math.max(0, last - buffer.length()); i < last; i++) {
+            final StepUpTraceContext trace = buffer.get((int) (i & (buffer.length() - 1)));
+            if (trace != null) {
+                result.add(trace);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Dump the completed traces kept as Zipkin v2 JSON list of spans.
+     * 
+     * @param out stream to write to, not closed
+     * @throws IOException if writing fails
+     */
+    public void dump(@Nonnull OutputStream out) throws IOException {
+        ZipkinStepUpTraceExporter.write(getTraces(), serviceName, out);
+    }
+
+    /**
+     * Get the trace of the login.
+     * 
+     * @param profileRequestContext profile request context of the login
+     * @param create whether to create the trace if it does not exist
+     * @return trace of the login, null if not traced
+     */
+    @Nullable
+    private StepUpTraceContext getTraceContext(@Nonnull ProfileRequestContext profileRequestContext,
+            boolean create) {
+        if (!enabled) {
+            return null;
+        }
+        final AuthenticationContext authenticationContext = profileRequestContext
+                .getSubcontext(AuthenticationContext.class);
+        if (authenticationContext == null) {
+            return null;
+        }
+        final StepUpMethodContext stepUpMethodContext = authenticationContext
+                .getSubcontext(StepUpMethodContext.class, create);
+        return stepUpMethodContext == null ? null
+                : stepUpMethodContext.getSubcontext(StepUpTraceContext.class, create);
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.csc.idp.stepup.api.UsedCodeRegistry;
+
+/**
+ * Thread-safe verifier of TOTP codes, compatible with
+ * {@link com.warrenstrange.googleauth.GoogleAuthenticator} using Base32 keys
+ * and HmacSHA1. The HMAC instances are kept per thread and the decoded keys are
+ * cached in a bounded LRU cache keyed by the Base32 secret. If configured with
+ * a {@link UsedCodeRegistry}, a code is accepted only once.
+ */
+public class TotpVerifier {
+
+    /** HMAC algorithm. */
+    private static final String ALGORITHM = "HmacSHA1";
+
+    /** HMAC instance of each thread. */
+    private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " not supported", e);
+        }
+    });
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(TotpVerifier.class);
+
+    /** Length of the time step in milliseconds. */
+    private long timeStep = 30000;
+
+    /** Number of time steps accepted, centered to the current step. */
+    private int windowSize = 3;
+
+    /** Number of digits in a code. */
+    private int codeDigits = 6;
+
+    /** Maximum number of cached keys. */
+    private int cacheSize = 10000;
+
+    /** Registry of used codes, null if codes may be reused. */
+    private UsedCodeRegistry usedCodeRegistry;
+
+    /** Decoded keys by the Base32 secret, in access order. */
+    @Nonnull
+    private final Map<String, CachedKey> keys = new LinkedHashMap<>(16, 0.75f, true) {
+
+        /** Serial UID. */
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedKey> eldest) {
+            return size() > cacheSize;
+        }
+    };
+
+    /**
+     * Set the length of the time step.
+     * 
+     * @param millis length of the time step in milliseconds
+     */
+    public void setTimeStep(long millis) {
+        timeStep = millis;
+    }
+
+    /**
+     * Set the number of time steps accepted, centered to the current step.
+     * 
+     * @param size number of time steps
+     */
+    public void setWindowSize(int size) {
+        windowSize = size;
+    }
+
+    /**
+     * Set the number of digits in a code.
+     * 
+     * @param digits number of digits
+     */
+    public void setCodeDigits(int digits) {
+        codeDigits = digits;
+    }
+
+    /**
+     * Set the maximum number of cached keys.
+     * 
+     * @param size maximum number of cached keys
+     */
+    public void setCacheSize(int size) {
+        cacheSize = size;
+    }
+
+    /**
+     * Set the registry of used codes. If set, a code is accepted only once.
+     * 
+     * @param registry registry of used codes
+     */
+    public void setUsedCodeRegistry(UsedCodeRegistry registry) {
+        usedCodeRegistry = registry;
+    }
+
+    /**
+     * Verify the code at current time.
+     * 
+     * @param secret Base32 encoded key
+     * @param code   to verify
+     * @return true if the code is valid
+     */
+    public boolean verify(@Nonnull String secret, int code) {
+        return verify(secret, code, System.currentTimeMillis());
+    }
+
+    /**
+     * Verify the code at given time.
+     * 
+     * @param secret Base32 encoded key
+     * @param code   to verify
+     * @param time   in milliseconds
+     * @return true if the code is valid
+     */
+    public boolean verify(@Nonnull String secret, int code, long time) {
+        if (code <= 0 || code >= modulus()) {
+            return false;
+        }
+        final CachedKey key = getKey(secret);
+        final long step = time / timeStep;
+        for (int i = -((windowSize - 1) / 2); i <= windowSize / 2; i++) {
+            if (calculateCode(key.spec, step + i) == code) {
+                return markUsed(key, step + i);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Mark the code of the time step used.
+     * 
+     * @param key  the code is derived from
+     * @param step time step of the code
+     * @return true if the code had not been used before
+     */
+    private boolean markUsed(@Nonnull CachedKey key, long step) {
+        if (usedCodeRegistry == null) {
+            return true;
+        }
+        // the code is accepted until the step leaves the window
+        final long expires = (step + (windowSize - 1) / 2 + 1) * timeStep;
+        if (!usedCodeRegistry.markUsed(key.id, step, expires)) {
+            log.warn("Rejecting reused code");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Calculate the code for a time step.
+     * 
+     * @param key  decoded key
+     * @param step time step
+     * @return code
+     */
+    int calculateCode(@Nonnull SecretKeySpec key, long step) {
+        final Mac mac = MAC.get();
+        try {
+            mac.init(key);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Invalid key", e);
+        }
+        long value = step;
+        for (int i = 7; i >= 0; i--) {
+            mac.update((byte) (value >>> (i * 8)));
+        }
+        final byte[] hash = mac.doFinal();
+        final int offset = hash[hash.length - 1] & 0xF;
+        final int truncated = ((hash[offset] & 0x7F) << 24) | ((hash[offset + 1] & 0xFF) << 16)
+                | ((hash[offset + 2] & 0xFF) << 8) | (hash[offset + 3] & 0xFF);
+        return truncated % modulus();
+    }
+
+    /**
+     * Get the decoded key, from cache if available.
+     * 
+     * @param secret Base32 encoded key
+     * @return decoded key
+     */
+    @Nonnull
+    CachedKey getKey(@Nonnull String secret) {
+        synchronized (keys) {
+            final CachedKey key = keys.get(secret);
+            if (key != null) {
+                return key;
+            }
+        }
+        log.trace("Decoding key not in cache");
+        final CachedKey key = new CachedKey(secret);
+        synchronized (keys) {
+            keys.put(secret, key);
+        }
+        return key;
+    }
+
+    /**
+     * Get the number of cached keys.
+     * 
+     * @return number of cached keys
+     */
+    public int getCachedKeyCount() {
+        synchronized (keys) {
+            return keys.size();
+        }
+    }
+
+    /**
+     * Modulus for codes of configured length.
+     * 
+     * @return modulus
+     */
+    private int modulus() {
+        int modulus = 1;
+        for (int i = 0; i < codeDigits; i++) {
+            modulus *= 10;
+        }
+        return modulus;
+    }
+
+    /** Decoded key and its identifier. */
+    static final class CachedKey {
+
+        /** Decoded key. */
+        @Nonnull
+        private final SecretKeySpec spec;
+
+        /** Identifier of the key, hash of the secret. */
+        @Nonnull
+        private final String id;
+
+        /**
+         * Constructor.
+         * 
+         * @param secret Base32 encoded key
+         */
+        private CachedKey(@Nonnull String secret) {
+            final String normalized = secret.toUpperCase();
+            spec = new SecretKeySpec(new Base32().decode(normalized), ALGORITHM);
+            try {
+                id = Base64.getUrlEncoder().withoutPadding().encodeToString(
+                        MessageDigest.getInstance("SHA-256").digest(normalized.getBytes(StandardCharsets.UTF_8)));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("SHA-256 not supported", e);
+            }
+        }
+    }
+}
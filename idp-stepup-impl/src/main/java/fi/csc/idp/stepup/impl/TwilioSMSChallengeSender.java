@@ -23,17 +23,39 @@
 
 package fi.csc.idp.stepup.impl;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.annotation.Nonnull;
-import com.twilio.Twilio;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import com.twilio.http.NetworkHttpClient;
+import com.twilio.http.TwilioRestClient;
 import com.twilio.rest.api.v2010.account.Message;
 import com.twilio.rest.api.v2010.account.Message.Status;
 import com.twilio.type.PhoneNumber;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import fi.csc.idp.stepup.api.ChallengeSender;
+import fi.csc.idp.stepup.api.ChallengeDeliveryStatus;
+import fi.csc.idp.stepup.api.TrackedChallengeSender;
 
-/** Class implemented for sending a challenge to sms account of the user. */
-public class TwilioSMSChallengeSender implements ChallengeSender {
+/**
+ * Class implemented for sending a challenge to sms account of the user. In
+ * asynchronous mode the challenge is passed to a local outbox and sent by
+ * background workers. The delivery status of the challenge is tracked by
+ * polling the message status.
+ */
+public class TwilioSMSChallengeSender implements TrackedChallengeSender {
 
     /** Class logger. */
     @Nonnull
@@ -47,6 +69,39 @@ public class TwilioSMSChallengeSender implements ChallengeSender {
     private String message;
     /** the FROM number used, must be configured to tvilio. */
     private String senderNumber;
+    /** Maximum number of pooled connections. */
+    private int maxConnections = 20;
+    /** Time to live of a pooled connection in milliseconds. */
+    private long connectionTimeToLive = 300000;
+    /** Connect and read timeout of a request in milliseconds. */
+    private int timeout = 10000;
+    /** Maximum number of concurrent requests. */
+    private int maxConcurrentRequests = 20;
+    /** How long a request waits for a free request slot in milliseconds. */
+    private long acquireTimeout = 1000;
+    /** Connection pool shared by the requests. */
+    private PoolingHttpClientConnectionManager connectionManager;
+    /** Client shared by the requests. */
+    private volatile TwilioRestClient client;
+    /** Limits the number of concurrent requests. */
+    private volatile Semaphore concurrentRequests;
+    /** Whether the challenge is sent in background. */
+    private boolean async;
+    /** Number of background workers sending the challenges. */
+    private int outboxWorkers = 2;
+    /** Maximum number of challenges waiting in the outbox. */
+    private int outboxCapacity = 1000;
+    /** How often the status of undelivered messages is polled in milliseconds, 0 for not polling. */
+    private long statusPollInterval;
+    /** Maximum number of messages whose status is fetched in one poll. */
+    private int maxStatusPolls = 100;
+    /** Delivery status of the challenges sent. */
+    @Nonnull
+    private final ChallengeDeliveryTracker tracker = new ChallengeDeliveryTracker();
+    /** Background workers sending the challenges. */
+    private ThreadPoolExecutor outbox;
+    /** Background worker polling the message status. */
+    private ScheduledExecutorService statusPoller;
 
     /**
      * Set the FROM number used.
@@ -89,6 +144,192 @@ public class TwilioSMSChallengeSender implements ChallengeSender {
         this.authToken = token;
     }
 
+    /**
+     * Set the maximum number of pooled connections.
+     * 
+     * @param max
+     *            maximum number of pooled connections
+     */
+    public void setMaxConnections(int max) {
+        this.maxConnections = max;
+    }
+
+    /**
+     * Set the time to live of a pooled connection.
+     * 
+     * @param ttl
+     *            time to live in milliseconds
+     */
+    public void setConnectionTimeToLive(long ttl) {
+        this.connectionTimeToLive = ttl;
+    }
+
+    /**
+     * Set the connect and read timeout of a request. The same timeout is used
+     * for waiting a free pooled connection.
+     * 
+     * @param millis
+     *            timeout in milliseconds
+     */
+    public void setTimeout(int millis) {
+        this.timeout = millis;
+    }
+
+    /**
+     * Set the maximum number of concurrent requests.
+     * 
+     * @param max
+     *            maximum number of concurrent requests
+     */
+    public void setMaxConcurrentRequests(int max) {
+        this.maxConcurrentRequests = max;
+    }
+
+    /**
+     * Set how long a request waits for a free request slot before failing.
+     * 
+     * @param millis
+     *            timeout in milliseconds
+     */
+    public void setAcquireTimeout(long millis) {
+        this.acquireTimeout = millis;
+    }
+
+    /**
+     * Set whether the challenge is sent in background. The sending returns once
+     * the challenge is in the outbox, the result is available only as delivery
+     * status.
+     * 
+     * @param asynchronous
+     *            whether the challenge is sent in background
+     */
+    public void setAsync(boolean asynchronous) {
+        this.async = asynchronous;
+    }
+
+    /**
+     * Set the number of background workers sending the challenges.
+     * 
+     * @param workers
+     *            number of background workers
+     */
+    public void setOutboxWorkers(int workers) {
+        this.outboxWorkers = workers;
+    }
+
+    /**
+     * Set the maximum number of challenges waiting in the outbox.
+     * 
+     * @param capacity
+     *            maximum number of waiting challenges
+     */
+    public void setOutboxCapacity(int capacity) {
+        this.outboxCapacity = capacity;
+    }
+
+    /**
+     * Set how often the status of messages not yet delivered is polled. If 0,
+     * which is the default, the status is not polled.
+     * 
+     * @param interval
+     *            in milliseconds
+     */
+    public void setStatusPollInterval(long interval) {
+        this.statusPollInterval = interval;
+    }
+
+    /**
+     * Set the maximum number of messages whose status is fetched in one poll.
+     * The rest are fetched in the following polls.
+     * 
+     * @param max
+     *            maximum number of messages polled at once
+     */
+    public void setMaxStatusPolls(int max) {
+        this.maxStatusPolls = max;
+    }
+
+    /**
+     * Set how long the delivery status of a challenge is kept.
+     * 
+     * @param ttl
+     *            time to live in milliseconds
+     */
+    public void setStatusTimeToLive(long ttl) {
+        tracker.setTimeToLive(ttl);
+    }
+
+    /**
+     * Builds the client shared by the requests. Called by the container once
+     * the bean is configured.
+     */
+    public synchronized void initialize() {
+        if (client != null) {
+            return;
+        }
+        if (accountSid == null || authToken == null) {
+            log.warn("tvilio parameters not set, client not created");
+            return;
+        }
+        concurrentRequests = new Semaphore(maxConcurrentRequests);
+        connectionManager = new PoolingHttpClientConnectionManager(connectionTimeToLive, TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(maxConnections);
+        // all requests are to the same host
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        final RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(timeout)
+                .setSocketTimeout(timeout).setConnectionRequestTimeout(timeout).build();
+        final HttpClientBuilder builder = createHttpClientBuilder().setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig);
+        if (async) {
+            outbox = new ThreadPoolExecutor(outboxWorkers, outboxWorkers, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(outboxCapacity), daemonThreads("stepup-sms-"));
+        }
+        if (statusPollInterval > 0) {
+            statusPoller = Executors.newSingleThreadScheduledExecutor(daemonThreads("stepup-sms-status-"));
+            statusPoller.scheduleWithFixedDelay(this::pollStatus, statusPollInterval, statusPollInterval,
+                    TimeUnit.MILLISECONDS);
+        }
+        client = new TwilioRestClient.Builder(accountSid, authToken).httpClient(new NetworkHttpClient(builder))
+                .build();
+    }
+
+    /**
+     * Stops the background workers and closes the pooled connections.
+     */
+    public synchronized void destroy() {
+        if (statusPoller != null) {
+            statusPoller.shutdownNow();
+            statusPoller = null;
+        }
+        if (outbox != null) {
+            outbox.shutdown();
+            try {
+                if (!outbox.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                    log.warn("{} challenges left unsent in outbox", outbox.shutdownNow().size());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            outbox = null;
+        }
+        if (connectionManager != null) {
+            connectionManager.shutdown();
+            connectionManager = null;
+        }
+        client = null;
+    }
+
+    /**
+     * Creates the builder for the HTTP client. The connection manager and
+     * request configuration are set by the caller.
+     * 
+     * @return builder for the HTTP client
+     */
+    @Nonnull
+    protected HttpClientBuilder createHttpClientBuilder() {
+        return HttpClientBuilder.create();
+    }
+
     /**
      * Send challenge to SMS receiver.
      * 
@@ -105,15 +346,160 @@ public class TwilioSMSChallengeSender implements ChallengeSender {
 
             throw new Exception("bean not properly initialized");
         }
-        log.debug("Sending challenge {} to ", challenge, target);
-        Twilio.init(accountSid, authToken);
-        Message msg = Message.creator(new PhoneNumber(target), new PhoneNumber(senderNumber),
-                String.format(message, challenge)).create();
+        if (client == null) {
+            initialize();
+        }
+        final TwilioRestClient restClient = client;
+        if (restClient == null) {
+            throw new Exception("bean has been destroyed");
+        }
+        log.debug("Sending challenge {} to {}", challenge, target);
+        tracker.track(challenge, target, ChallengeDeliveryStatus.PENDING);
+        if (!async) {
+            dispatch(restClient, challenge, target);
+            log.debug("Challenge sending triggered");
+            return;
+        }
+        try {
+            outbox.execute(() -> {
+                try {
+                    dispatch(restClient, challenge, target);
+                } catch (Exception e) {
+                    log.error("Sending challenge to {} failed", target, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            tracker.update(challenge, target, ChallengeDeliveryStatus.FAILED, null);
+            log.error("SMS outbox is full");
+            throw new Exception("SMS outbox is full", e);
+        }
+        log.debug("Challenge queued to outbox");
+
+    }
+
+    /**
+     * Send the message and record the delivery status.
+     * 
+     * @param restClient
+     *            client for the request
+     * @param challenge
+     *            sent to the receiver
+     * @param target
+     *            receiver SMS number
+     * @throws Exception
+     *             if the sending failed.
+     */
+    private void dispatch(TwilioRestClient restClient, String challenge, String target) throws Exception {
+
+        final Semaphore limit = concurrentRequests;
+        if (!limit.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS)) {
+            tracker.update(challenge, target, ChallengeDeliveryStatus.FAILED, null);
+            log.error("Too many concurrent SMS requests");
+            throw new Exception("Too many concurrent SMS requests");
+        }
+        Message msg;
+        try {
+            msg = Message.creator(new PhoneNumber(target), new PhoneNumber(senderNumber),
+                    String.format(message, challenge)).create(restClient);
+        } catch (RuntimeException e) {
+            tracker.update(challenge, target, ChallengeDeliveryStatus.FAILED, null);
+            throw e;
+        } finally {
+            limit.release();
+        }
         log.debug("Message status {}", msg.getStatus());
-        if (msg.getStatus() == Status.FAILED || msg.getStatus() == Status.UNDELIVERED) {
+        final ChallengeDeliveryStatus status = toDeliveryStatus(msg.getStatus());
+        tracker.update(challenge, target, status, msg.getSid());
+        if (status == ChallengeDeliveryStatus.FAILED) {
             throw new Exception("Message sending failed");
         }
-        log.debug("Challenge sending triggered");
+
+    }
+
+    @Override
+    public ChallengeDeliveryStatus getDeliveryStatus(String challenge, String target) {
+
+        if (challenge == null || target == null) {
+            return null;
+        }
+        return tracker.getStatus(challenge, target);
+
+    }
+
+    /**
+     * Polls the status of messages not yet delivered and not expired. Each fetch
+     * takes a request slot, polling stops if none is free.
+     */
+    private void pollStatus() {
+
+        final TwilioRestClient restClient = client;
+        if (restClient == null) {
+            return;
+        }
+        final Semaphore limit = concurrentRequests;
+        for (final String sid : tracker.getUnresolvedIds(maxStatusPolls)) {
+            try {
+                if (!limit.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS)) {
+                    log.debug("No free request slot, polling status of messages postponed");
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                final Message msg = Message.fetcher(sid).fetch(restClient);
+                tracker.updateById(sid, toDeliveryStatus(msg.getStatus()));
+            } catch (RuntimeException e) {
+                log.warn("Polling status of message {} failed", sid, e);
+            } finally {
+                limit.release();
+            }
+        }
+
+    }
+
+    /**
+     * Maps the message status to delivery status.
+     * 
+     * @param status
+     *            of the message
+     * @return delivery status
+     */
+    private static ChallengeDeliveryStatus toDeliveryStatus(Status status) {
+
+        if (status == null) {
+            return ChallengeDeliveryStatus.SENT;
+        }
+        switch (status) {
+            case FAILED:
+            case UNDELIVERED:
+            case CANCELED:
+                return ChallengeDeliveryStatus.FAILED;
+            case DELIVERED:
+            case READ:
+                return ChallengeDeliveryStatus.DELIVERED;
+            default:
+                return ChallengeDeliveryStatus.SENT;
+        }
+
+    }
+
+    /**
+     * Thread factory for named daemon threads.
+     * 
+     * @param prefix
+     *            of the thread name
+     * @return thread factory
+     */
+    private static ThreadFactory daemonThreads(String prefix) {
+
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, prefix + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
 
     }
 
@@ -48,10 +48,18 @@ public class ValidateStepupAuthentication extends AbstractValidationAction {
     @Nullable
     private String requestSubject;
 
+    /** Name of the step up method. */
+    @Nullable
+    private String stepUpMethodName;
+
+    /** Start time of the action. */
+    private long started;
+
     /** {@inheritDoc} */
     @Override
     protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext,
             @Nonnull final AuthenticationContext authenticationContext) {
+        started = StepUpMetrics.start();
         if (!super.doPreExecute(profileRequestContext, authenticationContext)) {
             log.error("{} pre-execute failed ", getLogPrefix());
             return false;
@@ -61,12 +69,18 @@ public class ValidateStepupAuthentication extends AbstractValidationAction {
         if (stepUpMethodContext == null) {
             log.error("{} StepUpMethodContext not available under AuthenticationContext", getLogPrefix());
             ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.INVALID_AUTHN_CTX);
+            StepUpMetrics.recordAction(getClass().getSimpleName(), profileRequestContext, null, started);
             return false;
         }
+        if (stepUpMethodContext.getStepUpMethod() != null) {
+            stepUpMethodName = stepUpMethodContext.getStepUpMethod().getName();
+        }
         requestSubject = stepUpMethodContext.getSubject();
         if (requestSubject == null) {
             log.error("{} no subject in request, unable to continue", getLogPrefix());
             ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EVENTID_NO_USER);
+            StepUpMetrics.recordAction(getClass().getSimpleName(), profileRequestContext, stepUpMethodName,
+                    started);
             return false;
         }
         return true;
@@ -77,7 +91,7 @@ public class ValidateStepupAuthentication extends AbstractValidationAction {
     protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext,
             @Nonnull final AuthenticationContext authenticationContext) {
         buildAuthenticationResult(profileRequestContext, authenticationContext);
-        return;
+        StepUpMetrics.recordAction(getClass().getSimpleName(), profileRequestContext, stepUpMethodName, started);
     }
 
     @Override
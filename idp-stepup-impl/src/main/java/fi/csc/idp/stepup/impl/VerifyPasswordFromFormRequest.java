@@ -28,6 +28,7 @@ import net.shibboleth.idp.authn.context.AuthenticationContext;
 import net.shibboleth.shared.annotation.constraint.NotEmpty;
 
 import org.opensaml.profile.action.ActionSupport;
+import org.opensaml.profile.action.EventIds;
 import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,6 +48,8 @@ public class VerifyPasswordFromFormRequest extends AbstractStepUpMethodAction {
     private String challengeResponseParameter = "j_challengeResponse";
     /** Challenge response. */
     private String challengeResponse;
+    /** Throttle for failed responses. */
+    private FailedResponseThrottle throttle;
 
     /**
      * Sets the parameter the response is read from.
@@ -57,6 +60,16 @@ public class VerifyPasswordFromFormRequest extends AbstractStepUpMethodAction {
         this.challengeResponseParameter = parameter;
     }
 
+    /**
+     * Sets the throttle for failed responses. If not set, failed responses are
+     * not limited.
+     * 
+     * @param responseThrottle throttle for failed responses
+     */
+    public void setThrottle(FailedResponseThrottle responseThrottle) {
+        this.throttle = responseThrottle;
+    }
+
     /** {@inheritDoc} */
     @Override
     protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext,
@@ -68,18 +81,21 @@ public class VerifyPasswordFromFormRequest extends AbstractStepUpMethodAction {
         if (getStepUpMethodCtx().getStepUpAccount() == null) {
             log.debug("{} there is no chosen stepup account for user", getLogPrefix());
             ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EVENTID_INVALID_USER);
+            recordMetrics(profileRequestContext);
             return false;
         }
         final HttpServletRequest request = getHttpServletRequest();
         if (request == null) {
             log.debug("{} profile action does not contain an HttpServletRequest", getLogPrefix());
             ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EXCEPTION);
+            recordMetrics(profileRequestContext);
             return false;
         }
         challengeResponse = request.getParameter(challengeResponseParameter);
         if (challengeResponse == null) {
             log.debug("{} user did not present response to challenge", getLogPrefix());
             ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EVENTID_INVALID_RESPONSE);
+            recordMetrics(profileRequestContext);
             return false;
         }
         challengeResponse = challengeResponse.trim();
@@ -91,18 +107,63 @@ public class VerifyPasswordFromFormRequest extends AbstractStepUpMethodAction {
     protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext,
             @Nonnull final AuthenticationContext authenticationContext) {
 
+        try {
+            verify(profileRequestContext);
+        } finally {
+            recordMetrics(profileRequestContext);
+        }
+    }
+
+    /**
+     * Verify the response of the user, throttling failed responses.
+     * 
+     * @param profileRequestContext profile request context
+     */
+    private void verify(@Nonnull final ProfileRequestContext profileRequestContext) {
         log.debug("{} user challenge response was {}", getLogPrefix(), challengeResponse);
+        final String throttleKey = getThrottleKey();
+        // the attempt is counted as a failure before verifying so that concurrent attempts are limited too
+        if (throttle != null) {
+            final long retryAfter = throttle.tryAcquire(throttleKey);
+            if (retryAfter > 0) {
+                log.warn("{} too many failed responses, user must wait {} ms before retrying", getLogPrefix(),
+                        retryAfter);
+                ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EVENTID_RETRY_LATER);
+                return;
+            }
+        }
+        final long started = StepUpMetrics.start();
         try {
             if (!getStepUpMethodCtx().getStepUpAccount().verifyResponse(challengeResponse)) {
+                StepUpMetrics.record(StepUpMetrics.VERIFY, getStepUpMethodName(),
+                        StepUpEventIds.EVENTID_INVALID_RESPONSE, started);
                 log.debug("{} user presented wrong response to  challenge", getLogPrefix());
                 ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EVENTID_INVALID_RESPONSE);
-                Thread.sleep(3000);
                 return;
             }
         } catch (Exception e) {
+            StepUpMetrics.record(StepUpMetrics.VERIFY, getStepUpMethodName(), StepUpEventIds.EXCEPTION, started);
             log.debug("{} user response evaluation failed", getLogPrefix());
+            if (throttle != null) {
+                throttle.release(throttleKey);
+            }
             ActionSupport.buildEvent(profileRequestContext, StepUpEventIds.EXCEPTION);
             return;
         }
+        StepUpMetrics.record(StepUpMetrics.VERIFY, getStepUpMethodName(), EventIds.PROCEED_EVENT_ID, started);
+        if (throttle != null) {
+            throttle.reset(throttleKey);
+        }
+    }
+
+    /**
+     * Key failed responses are recorded by. Subject of the user if known,
+     * otherwise the target of the account.
+     * 
+     * @return key for failed responses
+     */
+    private String getThrottleKey() {
+        final String subject = getStepUpMethodCtx().getSubject();
+        return subject != null ? subject : String.valueOf(getStepUpMethodCtx().getStepUpAccount().getTarget());
     }
 }
\ No newline at end of file
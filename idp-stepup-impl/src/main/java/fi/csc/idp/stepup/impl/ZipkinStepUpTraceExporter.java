@@ -0,0 +1,332 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import fi.csc.idp.stepup.api.StepUpTraceContext;
+import fi.csc.idp.stepup.api.StepUpTraceExporter;
+
+/**
+ * Trace exporter posting the traces in Zipkin v2 JSON format to a collector.
+ * The traces are queued and posted in batches by a background thread, traces
+ * not fitting in the queue are dropped. The trace is exported as a root span
+ * named after the service having a child span for each phase of the login.
+ */
+public class ZipkinStepUpTraceExporter implements StepUpTraceExporter {
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(ZipkinStepUpTraceExporter.class);
+
+    /** Factory of the JSON generators. */
+    @Nonnull
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /** URL of the span endpoint of the collector. */
+    @Nonnull
+    private String url = "http://localhost:9411/api/v2/spans";
+
+    /** Service name of the spans. */
+    @Nonnull
+    private String serviceName = "stepup";
+
+    /** Maximum number of traces waiting to be posted. */
+    private int queueCapacity = 1000;
+
+    /** Maximum number of traces posted in one request. */
+    private int batchSize = 100;
+
+    /** Milliseconds to wait for connecting to and response from the collector. */
+    private long timeout = 5000;
+
+    /** Traces waiting to be posted. */
+    private BlockingQueue<StepUpTraceContext> queue;
+
+    /** Client posting the traces. */
+    private HttpClient client;
+
+    /** Background thread posting the traces. */
+    private Thread poster;
+
+    /** Traces posted to the collector. */
+    @Nonnull
+    private final AtomicLong exported = new AtomicLong();
+
+    /** Traces dropped as the queue was full. */
+    @Nonnull
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** Traces the collector failed to accept. */
+    @Nonnull
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Set the URL of the span endpoint of the collector.
+     * 
+     * @param collectorUrl URL of the span endpoint of the collector
+     */
+    public void setUrl(@Nonnull String collectorUrl) {
+        url = collectorUrl;
+    }
+
+    /**
+     * Set the service name of the spans.
+     * 
+     * @param name service name of the spans
+     */
+    public void setServiceName(@Nonnull String name) {
+        serviceName = name;
+    }
+
+    /**
+     * Set the maximum number of traces waiting to be posted.
+     * 
+     * @param capacity maximum number of traces waiting to be posted
+     */
+    public void setQueueCapacity(int capacity) {
+        queueCapacity = capacity;
+    }
+
+    /**
+     * Set the maximum number of traces posted in one request.
+     * 
+     * @param size maximum number of traces posted in one request
+     */
+    public void setBatchSize(int size) {
+        batchSize = size;
+    }
+
+    /**
+     * Set the milliseconds to wait for connecting to and response from the
+     * collector.
+     * 
+     * @param millis milliseconds to wait
+     */
+    public void setTimeout(long millis) {
+        timeout = millis;
+    }
+
+    /**
+     * Starts the background thread posting the traces.
+     */
+    public synchronized void initialize() {
+        if (poster != null) {
+            return;
+        }
+        queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        client = HttpClient.newBuilder().connectTimeout(Duration.ofMillis(timeout)).build();
+        poster = new Thread(this::post, "stepup-trace-exporter");
+        poster.setDaemon(true);
+        poster.start();
+    }
+
+    /**
+     * Stops the background thread, the queued traces are not posted.
+     */
+    public synchronized void destroy() {
+        if (poster == null) {
+            return;
+        }
+        poster.interrupt();
+        poster = null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void export(@Nonnull StepUpTraceContext trace) {
+        final BlockingQueue<StepUpTraceContext> traces = queue;
+        if (traces == null || !traces.offer(trace)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get the number of traces posted to the collector.
+     * 
+     * @return number of traces posted
+     */
+    public long getExportedCount() {
+        return exported.get();
+    }
+
+    /**
+     * Get the number of traces dropped as the queue was full.
+     * 
+     * @return number of dropped traces
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Get the number of traces the collector failed to accept.
+     * 
+     * @return number of failed traces
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Post the queued traces until interrupted.
+     */
+    private void post() {
+        final List<StepUpTraceContext> batch = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, Math.max(0, batchSize - 1));
+                final ByteArrayOutputStream body = new ByteArrayOutputStream();
+                write(batch, serviceName, body);
+                final HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                        .timeout(Duration.ofMillis(timeout)).header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray())).build();
+                final int status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+                if (status / 100 == 2) {
+                    exported.addAndGet(batch.size());
+                } else {
+                    log.warn("Collector {} responded with status {}, {} traces not exported", url, status,
+                            batch.size());
+                    failed.addAndGet(batch.size());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException | RuntimeException e) {
+                log.warn("Posting {} traces to collector {} failed: {}", batch.size(), url, e.getMessage());
+                failed.addAndGet(batch.size());
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Write the traces as a Zipkin v2 JSON list of spans.
+     * 
+     * @param traces traces to write
+     * @param service service name of the spans
+     * @param out stream to write to, not closed
+     * @throws IOException if writing fails
+     */
+    public static void write(@Nonnull Collection<StepUpTraceContext> traces, @Nonnull String service,
+            @Nonnull OutputStream out) throws IOException {
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+            generator.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+            generator.writeStartArray();
+            for (final StepUpTraceContext trace : traces) {
+                writeTrace(generator, trace, service);
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    /**
+     * Write the spans of a trace.
+     * 
+     * @param generator generator to write with
+     * @param trace trace to write
+     * @param service service name of the spans
+     * @throws IOException if writing fails
+     */
+    private static void writeTrace(@Nonnull JsonGenerator generator, @Nonnull StepUpTraceContext trace,
+            @Nonnull String service) throws IOException {
+        final String rootId = trace.getTraceId().substring(16);
+        writeSpan(generator, trace, service, rootId, null, service, trace.getStartEpochMicros(),
+                trace.getDurationNanos(), null);
+        final long root = Long.parseUnsignedLong(rootId, 16);
+        final List<StepUpTraceContext.Span> spans = trace.getSpans();
+        for (int i = 0; i < spans.size(); i++) {
+            final StepUpTraceContext.Span span = spans.get(i);
+            writeSpan(generator, trace, service, String.format("%016x", root + i + 1), rootId, span.getName(),
+                    trace.getStartEpochMicros() + (span.getStartNanos() - trace.getStartNanos()) / 1000,
+                    span.getDurationNanos(), span.getOutcome());
+        }
+    }
+
+    /**
+     * Write a span.
+     * 
+     * @param generator generator to write with
+     * @param trace trace of the span
+     * @param service service name of the span
+     * @param id identifier of the span
+     * @param parentId identifier of the parent span, null for the root span
+     * @param name name of the span
+     * @param timestamp start time in microseconds since the epoch
+     * @param durationNanos duration in nanoseconds, negative if not ended
+     * @param outcome outcome of the span, may be null
+     * @throws IOException if writing fails
+     */
+    private static void writeSpan(@Nonnull JsonGenerator generator, @Nonnull StepUpTraceContext trace,
+            @Nonnull String service, @Nonnull String id, String parentId, @Nonnull String name, long timestamp,
+            long durationNanos, String outcome) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("traceId", trace.getTraceId());
+        generator.writeStringField("id", id);
+        if (parentId != null) {
+            generator.writeStringField("parentId", parentId);
+        }
+        generator.writeStringField("name", name);
+        generator.writeNumberField("timestamp", timestamp);
+        if (durationNanos >= 0) {
+            generator.writeNumberField("duration", Math.max(1, durationNanos / 1000));
+        }
+        generator.writeObjectFieldStart("localEndpoint");
+        generator.writeStringField("serviceName", service);
+        generator.writeEndObject();
+        if (outcome != null || (parentId == null && trace.getDroppedSpans() > 0)) {
+            generator.writeObjectFieldStart("tags");
+            if (outcome != null) {
+                generator.writeStringField("outcome", outcome);
+            }
+            if (parentId == null && trace.getDroppedSpans() > 0) {
+                generator.writeStringField("droppedSpans", Integer.toString(trace.getDroppedSpans()));
+            }
+            generator.writeEndObject();
+        }
+        generator.writeEndObject();
+    }
+}
@@ -23,14 +23,23 @@
 
 package fi.csc.idp.stepup.impl;
 
+import java.lang.management.ManagementFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpAccountFactory;
+
 public class AbstractStepUpAccountManagerTest {
 
+    private final Logger log = LoggerFactory.getLogger(AbstractStepUpAccountManagerTest.class);
+
     private TestStepUpAccountManager testStepUpAccountManager;
 
     @BeforeMethod
@@ -40,9 +49,7 @@ public class AbstractStepUpAccountManagerTest {
 
     @Test
     public void testUnitialized() throws Exception {
-        Assert.assertNull(testStepUpAccountManager.getAccountID());
-        Assert.assertNull(testStepUpAccountManager.getAccount());
-        Assert.assertNull(testStepUpAccountManager.getAppContext());
+        Assert.assertNull(testStepUpAccountManager.getAccountFactory());
         Assert.assertNull(testStepUpAccountManager.getName());
     }
 
@@ -53,27 +60,66 @@ public class AbstractStepUpAccountManagerTest {
 
     @Test
     public void testSetters() {
-        ApplicationContext ctx = getApplicationContext();
-        testStepUpAccountManager.setAccountID("id");
+        StepUpAccountFactory factory = new ChallengeSenderStepUpAccountFactory();
+        testStepUpAccountManager.setAccountFactory(factory);
         testStepUpAccountManager.setName("methodName");
-        testStepUpAccountManager.setAppContext(ctx);
-        Assert.assertEquals("id", testStepUpAccountManager.getAccountID());
+        Assert.assertEquals(factory, testStepUpAccountManager.getAccountFactory());
         Assert.assertEquals("methodName", testStepUpAccountManager.getName());
-        Assert.assertEquals(ctx, testStepUpAccountManager.getAppContext());
     }
 
     @Test
     public void testDefaultAccountEditing() throws Exception {
         Assert.assertNull(testStepUpAccountManager.addAccount());
-        Assert.assertNull(testStepUpAccountManager.getAccount());
     }
 
     @Test
-    public void testInitialize() throws Exception {
-        testStepUpAccountManager.setAppContext(getApplicationContext());
-        testStepUpAccountManager.setAccountID("ChallengeSender");
-        testStepUpAccountManager.initialize(null);
-        Assert.assertNotNull(testStepUpAccountManager.getAccount());
+    public void testCreateAccount() throws Exception {
+        testStepUpAccountManager.setAccountFactory(
+                getApplicationContext().getBean("LogStepUpAccountFactory", StepUpAccountFactory.class));
+        StepUpAccount account = testStepUpAccountManager.createAccount(null);
+        Assert.assertTrue(account instanceof ChallengeSenderStepUpAccount);
+        Assert.assertNotSame(account, testStepUpAccountManager.createAccount(null));
+        account.sendChallenge();
+        Assert.assertTrue(account.verifyResponse(((ChallengeSenderStepUpAccount) account).getChallenge()));
+    }
+
+    @Test(expectedExceptions = Exception.class)
+    public void testCreateAccountNoFactory() throws Exception {
+        testStepUpAccountManager.createAccount(null);
+    }
+
+    /** Benchmark of account factory against prototype beans, run with the perf profile. */
+    @Test(groups = "perf")
+    public void testCreateAccountRate() throws Exception {
+        ApplicationContext ctx = getApplicationContext();
+        testStepUpAccountManager.setAccountFactory(ctx.getBean("LogStepUpAccountFactory", StepUpAccountFactory.class));
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        int rounds = 100000;
+        for (int i = 0; i < rounds; i++) {
+            ctx.getBean("LogStepUpAccount");
+            testStepUpAccountManager.createAccount(null);
+        }
+        long allocated = bean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            Assert.assertNotNull(ctx.getBean("LogStepUpAccount"));
+        }
+        long prototypeTime = System.nanoTime() - start;
+        long prototypeAllocated = bean.getThreadAllocatedBytes(threadId) - allocated;
+        allocated = bean.getThreadAllocatedBytes(threadId);
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            Assert.assertNotNull(testStepUpAccountManager.createAccount(null));
+        }
+        long factoryTime = System.nanoTime() - start;
+        long factoryAllocated = bean.getThreadAllocatedBytes(threadId) - allocated;
+        log.info("Prototype bean: {} accounts/s, {} bytes per account", rounds * 1000000000L / prototypeTime,
+                prototypeAllocated / rounds);
+        log.info("Account factory: {} accounts/s, {} bytes per account", rounds * 1000000000L / factoryTime,
+                factoryAllocated / rounds);
+        Assert.assertTrue(factoryTime < prototypeTime);
+        Assert.assertTrue(factoryAllocated < prototypeAllocated);
     }
 
     class TestStepUpAccountManager extends AbstractStepUpAccountManager {
@@ -25,6 +25,7 @@ package fi.csc.idp.stepup.impl;
 
 
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -36,6 +37,7 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
 
+import org.slf4j.LoggerFactory;
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -73,4 +75,130 @@ public class AttributeDecryptorTest {
                 "JBSWY3DPEHPK3PXP");
     }
 
+    @Test
+    public void testValueForms() throws Exception {
+        String key = "secretpassword1234567890";
+        Assert.assertEquals(decryptor.decrypt(encrypt("value:extra", key)), "value");
+        Assert.assertEquals(decryptor.decrypt(encrypt(":extra", key)), "");
+        Assert.assertEquals(decryptor.decrypt(encrypt("\u00e4\u00f6", key)), "\u00e4\u00f6");
+        for (String value : new String[] { "", ":", "::" }) {
+            try {
+                decryptor.decrypt(encrypt(value, key));
+                Assert.fail("value without content must fail");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testKeyChange() throws Exception {
+        String encrypted = encrypt("123456", "secretpassword1234567890");
+        Assert.assertEquals(decryptor.decrypt(encrypted), "123456");
+        decryptor.setKey("anotherpassword");
+        Assert.assertEquals(decryptor.decrypt(encrypt("654321", "anotherpassword")), "654321");
+        try {
+            decryptor.decrypt(encrypted);
+            Assert.fail("value encrypted with other key must fail");
+        } catch (BadPaddingException | IllegalArgumentException e) {
+            // expected, wrong key usually fails the padding
+        }
+        Assert.assertEquals(decryptor.decrypt(encrypt("654321", "anotherpassword")), "654321");
+    }
+
+    /** Benchmark of decryption rate and allocation, run with the perf profile. */
+    @Test(groups = "perf")
+    public void testDecryptionRate() throws Exception {
+        String encrypted = encrypt("JBSWY3DPEHPK3PXP", "secretpassword1234567890");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        int rounds = 100000;
+        for (int round = 0; round < 2; round++) {
+            long allocated = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                Assert.assertEquals(decryptor.decrypt(encrypted).length(), 16);
+            }
+            long end = System.nanoTime();
+            LoggerFactory.getLogger(AttributeDecryptorTest.class).info(
+                    "Decrypts per second {}, bytes allocated per decrypt {}", rounds * 1000000000L / (end - start),
+                    (threads.getThreadAllocatedBytes(threadId) - allocated) / rounds);
+        }
+    }
+
+    @Test
+    public void testEnvelope() throws Exception {
+        decryptor.setKeyring("2023=oldsecret, 2024=newsecret");
+        String old = decryptor.encrypt("2023", "JBSWY3DPEHPK3PXP");
+        String current = decryptor.encrypt("2024", "JBSWY3DPEHPK3PXP");
+        Assert.assertTrue(old.startsWith("v1.2023."));
+        Assert.assertNotEquals(decryptor.encrypt("2024", "JBSWY3DPEHPK3PXP"), current);
+        Assert.assertEquals(decryptor.decrypt(old), "JBSWY3DPEHPK3PXP");
+        Assert.assertEquals(decryptor.decrypt(current), "JBSWY3DPEHPK3PXP");
+        // legacy values are still decrypted with the single key
+        Assert.assertEquals(decryptor.decrypt("9ju34ArATuHxvs0qXw2Y/Z2/6MNQQQxhKykDS3bQDwI="), "123456");
+        // retired key
+        decryptor.setKeyring("2024=newsecret");
+        Assert.assertEquals(decryptor.decrypt(current), "JBSWY3DPEHPK3PXP");
+        try {
+            decryptor.decrypt(old);
+            Assert.fail("value encrypted with retired key must fail");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEnvelopeTampered() throws Exception {
+        decryptor.setKeyring("a=secret1,b=secret1");
+        String value = decryptor.encrypt("a", "JBSWY3DPEHPK3PXP");
+        // same key material under another key id must not be accepted
+        try {
+            decryptor.decrypt("v1.b." + value.substring("v1.a.".length()));
+            Assert.fail("key id is authenticated");
+        } catch (BadPaddingException e) {
+            // expected, AEADBadTagException
+        }
+        char[] chars = value.toCharArray();
+        chars[chars.length - 3] = chars[chars.length - 3] == 'A' ? 'B' : 'A';
+        try {
+            decryptor.decrypt(new String(chars));
+            Assert.fail("ciphertext is authenticated");
+        } catch (BadPaddingException e) {
+            // expected
+        }
+        for (String malformed : new String[] { "v1.a", "v1.a.AAAA", "v1.c." + value.substring(5) }) {
+            try {
+                decryptor.decrypt(malformed);
+                Assert.fail("malformed envelope must fail");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /** Benchmark of envelope against legacy decryption, run with the perf profile. */
+    @Test(groups = "perf")
+    public void testEnvelopeDecryptionRate() throws Exception {
+        decryptor.setKeyring("2024=secretpassword1234567890");
+        String envelope = decryptor.encrypt("2024", "JBSWY3DPEHPK3PXP");
+        String legacy = encrypt("JBSWY3DPEHPK3PXP", "secretpassword1234567890");
+        int rounds = 100000;
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                Assert.assertEquals(decryptor.decrypt(legacy).length(), 16);
+            }
+            long middle = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                Assert.assertEquals(decryptor.decrypt(envelope).length(), 16);
+            }
+            long end = System.nanoTime();
+            LoggerFactory.getLogger(AttributeDecryptorTest.class).info(
+                    "Decrypts per second: ECB {}, GCM envelope {}", rounds * 1000000000L / (middle - start),
+                    rounds * 1000000000L / (end - middle));
+        }
+    }
+
 }
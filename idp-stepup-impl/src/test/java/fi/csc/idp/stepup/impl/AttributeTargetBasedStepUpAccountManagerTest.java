@@ -22,59 +22,156 @@
  */
 package fi.csc.idp.stepup.impl;
 
-import org.mockito.Mockito;
-import org.springframework.context.support.ClassPathXmlApplicationContext;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import fi.csc.idp.stepup.api.StepUpAccount;
-import fi.csc.idp.stepup.api.StepUpAccountStorage;
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.StringAttributeValue;
 
 public class AttributeTargetBasedStepUpAccountManagerTest {
 
+    private final Logger log = LoggerFactory.getLogger(AttributeTargetBasedStepUpAccountManagerTest.class);
+
     private AttributeTargetBasedStepUpAccountManager manager;
-    // Collection<Entry> claims;
+
+    private Map<String, IdPAttribute> attributes;
 
     @BeforeMethod
     public void setUp() throws Exception {
         manager = new AttributeTargetBasedStepUpAccountManager();
-        StepUpAccountStorage storage = Mockito.mock(StepUpAccountStorage.class);
-        Mockito.doReturn(Mockito.mock(StepUpAccount.class)).when(storage).getAccount(Mockito.any(), Mockito.any());
-        manager.setAccountID("LogStepUpAccount");
-        manager.setAppContext(new ClassPathXmlApplicationContext("applicationContext.xml"));
-        // claims = new ArrayList<Entry>();
-        // claims.add(new Entry("sub", ClaimRequirement.ESSENTIAL, null, "XYZ"));
-        // claims.add(new Entry("mail", ClaimRequirement.ESSENTIAL, null,
-        // "mail@example.com"));
+        ChallengeSenderStepUpAccountFactory factory = new ChallengeSenderStepUpAccountFactory();
+        factory.setChallengeSender(new LogChallengeSender());
+        manager.setAccountFactory(factory);
         manager.setClaimName("mail");
+        attributes = new HashMap<String, IdPAttribute>();
+        attributes.put("sub", attribute("sub", "XYZ"));
+        attributes.put("mail", attribute("mail", "mail@example.com"));
+    }
+
+    private IdPAttribute attribute(String id, String... values) {
+        IdPAttribute attribute = new IdPAttribute(id);
+        StringAttributeValue[] attributeValues = new StringAttributeValue[values.length];
+        for (int i = 0; i < values.length; i++) {
+            attributeValues[i] = new StringAttributeValue(values[i]);
+        }
+        attribute.setValues(Arrays.asList(attributeValues));
+        return attribute;
     }
 
-    // @Test
+    @Test
     public void testInitialisationSuccess() throws Exception {
-        // manager.initialize(claims);
-        Assert.assertNotNull(manager.getAccount());
+        StepUpAccount account = manager.createAccount(attributes);
+        Assert.assertNotNull(account);
+        Assert.assertEquals("mail@example.com", account.getTarget());
+        Assert.assertNotSame(account, manager.createAccount(attributes));
     }
 
-    // @Test
+    @Test
     public void testInitialisationSuccessNoAccount() throws Exception {
         manager.setClaimName("not_eppn");
-        // manager.initialize(claims);
-        Assert.assertNull(manager.getAccount());
+        Assert.assertNull(manager.createAccount(attributes));
     }
 
-    // @Test(expectedExceptions = Exception.class)
-    public void testInitialisationFailNoAccountID() throws Exception {
-        manager.setAccountID(null);
-        // manager.initialize(claims);
-        Assert.assertNull(manager.getAccount());
+    @Test(expectedExceptions = Exception.class)
+    public void testInitialisationFailNoAccountFactory() throws Exception {
+        manager.setAccountFactory(null);
+        manager.createAccount(attributes);
     }
 
-    // @Test(expectedExceptions = Exception.class)
+    @Test(expectedExceptions = Exception.class)
     public void testInitialisationFailNoClaimName() throws Exception {
         manager.setClaimName(null);
-        // manager.initialize(claims);
-        Assert.assertNull(manager.getAccount());
+        manager.createAccount(attributes);
+    }
+
+    @Test(expectedExceptions = Exception.class)
+    public void testInitialisationFailNoAttributes() throws Exception {
+        manager.createAccount(null);
+    }
+
+    @Test
+    public void testValuePattern() throws Exception {
+        manager.setClaimName("mobile");
+        attributes.put("mobile", attribute("mobile", "+46700000001", "+358400000001", "+358400000002"));
+        Assert.assertEquals("+46700000001", manager.createAccount(attributes).getTarget());
+        manager.setValuePattern("\\+358.*");
+        Assert.assertEquals("+358400000001", manager.createAccount(attributes).getTarget());
+        manager.setValuePattern("\\+1.*");
+        Assert.assertNull(manager.createAccount(attributes));
+        manager.setValuePattern("");
+        Assert.assertEquals("+46700000001", manager.createAccount(attributes).getTarget());
+    }
+
+    @Test
+    public void testEncryptedValue() throws Exception {
+        AttributeDecryptor decryptor = new AttributeDecryptor();
+        decryptor.setKeyring("k1=secret");
+        manager.setDecryptor(decryptor);
+        manager.setValuePattern(".*@example.org");
+        attributes.put("mail", attribute("mail", decryptor.encrypt("k1", "user@example.com"),
+                decryptor.encrypt("k1", "user@example.org")));
+        Assert.assertEquals("user@example.org", manager.createAccount(attributes).getTarget());
+    }
+
+    /** Large map having the attribute looked for as the last one iterated. */
+    private Map<String, IdPAttribute> largeAttributeMap() {
+        Map<String, IdPAttribute> large = new LinkedHashMap<String, IdPAttribute>();
+        for (int i = 0; i < 60; i++) {
+            large.put("attribute" + i, attribute("attribute" + i, "value" + i, "other" + i, "third" + i));
+        }
+        large.put("mail", attribute("mail", "mail@example.com", "mail@example.org"));
+        return large;
+    }
+
+    @Test
+    public void testLargeAttributeMap() throws Exception {
+        Map<String, IdPAttribute> large = largeAttributeMap();
+        Assert.assertEquals("mail@example.com", manager.createAccount(large).getTarget());
+        Assert.assertEquals(manager.selectTarget(large.get("mail")), scan(large));
+    }
+
+    /** Benchmark of keyed lookup against scanning the entries, run with the perf profile. */
+    @Test(groups = "perf")
+    public void testLargeAttributeMapLookupTime() throws Exception {
+        Map<String, IdPAttribute> large = largeAttributeMap();
+        int rounds = 200000;
+        for (int i = 0; i < rounds; i++) {
+            scan(large);
+            manager.selectTarget(large.get("mail"));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            Assert.assertNotNull(scan(large));
+        }
+        long scanTime = System.nanoTime() - start;
+        Assert.assertEquals("mail@example.com", manager.createAccount(large).getTarget());
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            Assert.assertNotNull(manager.selectTarget(large.get("mail")));
+        }
+        long lookupTime = System.nanoTime() - start;
+        log.info("Entry scan {} ns, keyed lookup {} ns per user", scanTime / rounds,
+                lookupTime / rounds);
+        Assert.assertTrue(lookupTime < scanTime);
+    }
+
+    /** The lookup done before keyed lookup, for comparison. */
+    private String scan(Map<String, IdPAttribute> map) {
+        for (Map.Entry<String, IdPAttribute> attribute : map.entrySet()) {
+            if ("mail".equals(attribute.getKey())) {
+                return (String) attribute.getValue().getValues().get(0).getNativeValue();
+            }
+        }
+        return null;
     }
 
 }
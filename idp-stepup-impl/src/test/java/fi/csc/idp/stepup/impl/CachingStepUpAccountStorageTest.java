@@ -0,0 +1,294 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpAccountOperation;
+
+public class CachingStepUpAccountStorageTest {
+
+    private MockStorage backend;
+
+    private CachingStepUpAccountStorage storage;
+
+    @BeforeMethod
+    public void setUp() {
+        backend = new MockStorage();
+        storage = new CachingStepUpAccountStorage();
+        storage.setDelegate(backend);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        storage.destroy();
+    }
+
+    private StepUpAccount account(String name, String target) {
+        StepUpAccount account = new MockAccount();
+        account.setName(name);
+        account.setTarget(target);
+        return account;
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testNoDelegate() {
+        new CachingStepUpAccountStorage().initialize();
+    }
+
+    @Test
+    public void testReadThrough() throws Exception {
+        storage.initialize();
+        backend.add(account("name", "target"), "key");
+        StepUpAccount account = storage.getAccount("key", MockAccount.class);
+        Assert.assertEquals(account.getTarget(), "target");
+        StepUpAccount cached = storage.getAccount("key", MockAccount.class);
+        Assert.assertEquals(cached.getName(), "name");
+        Assert.assertEquals(cached.getTarget(), "target");
+        Assert.assertNotSame(cached, storage.getAccount("key", MockAccount.class));
+        Assert.assertEquals(backend.lookups.get(), 1);
+        Assert.assertEquals(storage.getHitCount(), 2);
+        Assert.assertEquals(storage.getMissCount(), 1);
+    }
+
+    @Test
+    public void testNegativeCaching() throws Exception {
+        storage.setNegativeTimeToLive(50);
+        storage.initialize();
+        Assert.assertNull(storage.getAccount("key", MockAccount.class));
+        backend.add(account("name", "target"), "key");
+        Assert.assertNull(storage.getAccount("key", MockAccount.class));
+        Assert.assertEquals(backend.lookups.get(), 1);
+        Thread.sleep(60);
+        Assert.assertNotNull(storage.getAccount("key", MockAccount.class));
+        Assert.assertEquals(backend.lookups.get(), 2);
+    }
+
+    @Test
+    public void testTimeToLive() throws Exception {
+        storage.setTimeToLive(50);
+        storage.initialize();
+        backend.add(account("name", "target"), "key");
+        storage.getAccount("key", MockAccount.class);
+        backend.add(account("name", "new target"), "key");
+        Assert.assertEquals(storage.getAccount("key", MockAccount.class).getTarget(), "target");
+        Thread.sleep(60);
+        Assert.assertEquals(storage.getAccount("key", MockAccount.class).getTarget(), "new target");
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        storage.setMaxSize(10);
+        storage.initialize();
+        for (int i = 0; i < 15; i++) {
+            storage.getAccount("key" + i, MockAccount.class);
+        }
+        Assert.assertEquals(storage.size(), 10);
+        Assert.assertEquals(storage.getEvictionCount(), 5);
+        storage.getAccount("key14", MockAccount.class);
+        storage.getAccount("key0", MockAccount.class);
+        Assert.assertEquals(backend.lookups.get(), 16);
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        storage.initialize();
+        backend.add(account("name", "target"), "key");
+        backend.delay = 100;
+        ExecutorService executor = Executors.newFixedThreadPool(20);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<StepUpAccount>> results = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            results.add(executor.submit((Callable<StepUpAccount>) () -> {
+                start.await();
+                return storage.getAccount("key", MockAccount.class);
+            }));
+        }
+        start.countDown();
+        for (Future<StepUpAccount> result : results) {
+            Assert.assertEquals(result.get().getTarget(), "target");
+        }
+        executor.shutdown();
+        Assert.assertEquals(backend.lookups.get(), 1);
+    }
+
+    @Test
+    public void testSingleFlightFailure() throws Exception {
+        storage.initialize();
+        backend.delay = 100;
+        backend.fail = true;
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        List<Future<StepUpAccount>> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            results.add(executor.submit(() -> storage.getAccount("key", MockAccount.class)));
+        }
+        for (Future<StepUpAccount> result : results) {
+            try {
+                result.get();
+                Assert.fail("Lookup must fail");
+            } catch (java.util.concurrent.ExecutionException e) {
+                Assert.assertEquals(e.getCause().getMessage(), "storage failure");
+            }
+        }
+        executor.shutdown();
+        backend.fail = false;
+        backend.delay = 0;
+        Assert.assertNull(storage.getAccount("key", MockAccount.class));
+    }
+
+    @Test
+    public void testWriteThrough() throws Exception {
+        storage.initialize();
+        Assert.assertNull(storage.getAccount("key", MockAccount.class));
+        StepUpAccount account = account("name", "target");
+        storage.add(account, "key");
+        Assert.assertEquals(backend.writes.get(), 1);
+        Assert.assertEquals(storage.getAccount("key", MockAccount.class).getTarget(), "target");
+        storage.remove(account, "key");
+        Assert.assertNull(storage.getAccount("key", MockAccount.class));
+        Assert.assertEquals(backend.lookups.get(), 3);
+        storage.executeBatch(List.of(StepUpAccountOperation.add(account, "key")));
+        Assert.assertEquals(storage.getAccount("key", MockAccount.class).getTarget(), "target");
+    }
+
+    @Test
+    public void testWriteBehind() throws Exception {
+        storage.setWriteBehind(true);
+        storage.initialize();
+        Assert.assertNull(storage.getAccount("first", MockAccount.class));
+        backend.delay = 50;
+        StepUpAccount first = account("first", "target1");
+        for (int i = 0; i < 100; i++) {
+            storage.add(account("name", "target" + i), "key" + i);
+        }
+        storage.add(first, "first");
+        Assert.assertEquals(storage.getAccount("first", MockAccount.class).getName(), "first");
+        storage.remove(first, "first");
+        Assert.assertNull(storage.getAccount("first", MockAccount.class));
+        Assert.assertEquals(backend.lookups.get(), 1);
+        Assert.assertTrue(storage.flush(5000));
+        Assert.assertEquals(backend.writes.get(), 102);
+        Assert.assertTrue(backend.batches.get() < 10);
+        Assert.assertEquals(backend.accounts.size(), 100);
+        backend.delay = 0;
+        Assert.assertNull(storage.getAccount("first", MockAccount.class));
+        Assert.assertEquals(storage.getAccount("key99", MockAccount.class).getTarget(), "target99");
+    }
+
+    @Test
+    public void testWriteBehindRemoveOneOfTwo() throws Exception {
+        backend.add(account("first", "target1"), "key");
+        backend.add(account("second", "target2"), "key");
+        storage.setWriteBehind(true);
+        storage.initialize();
+        Assert.assertEquals(storage.getAccount("key", MockAccount.class).getName(), "second");
+        backend.delay = 50;
+        storage.remove(account("second", "target2"), "key");
+        Assert.assertNotNull(storage.getAccount("key", MockAccount.class));
+        Assert.assertTrue(storage.flush(5000));
+        backend.delay = 0;
+        Assert.assertEquals(storage.getAccount("key", MockAccount.class).getName(), "first");
+        storage.add(account("third", "target3"), "other");
+        storage.remove(account("third", "target3"), "other");
+        Assert.assertTrue(storage.flush(5000));
+        Assert.assertNull(storage.getAccount("other", MockAccount.class));
+    }
+
+    @Test
+    public void testPendingNotEvicted() throws Exception {
+        storage.setWriteBehind(true);
+        storage.setMaxSize(10);
+        storage.initialize();
+        backend.delay = 200;
+        for (int i = 0; i < 15; i++) {
+            storage.add(account("name", "target" + i), "key" + i);
+        }
+        Assert.assertEquals(storage.size(), 15);
+        Assert.assertEquals(storage.getEvictionCount(), 0);
+        for (int i = 0; i < 15; i++) {
+            Assert.assertEquals(storage.getAccount("key" + i, MockAccount.class).getTarget(), "target" + i);
+        }
+        Assert.assertEquals(backend.lookups.get(), 0);
+        Assert.assertTrue(storage.flush(5000));
+    }
+
+    @Test
+    public void testWriteBehindRetry() throws Exception {
+        storage.setWriteBehind(true);
+        storage.setRetryInterval(50);
+        storage.initialize();
+        backend.fail = true;
+        storage.add(account("name", "target"), "key");
+        while (backend.batches.get() < 2) {
+            Thread.sleep(1);
+        }
+        backend.fail = false;
+        Assert.assertTrue(storage.flush(5000));
+        Assert.assertTrue(backend.batches.get() > 1);
+        Assert.assertEquals(backend.accounts.get("key").size(), 1);
+    }
+
+    @Test
+    public void testWriteBehindFailure() throws Exception {
+        storage.setWriteBehind(true);
+        storage.setWriteRetries(1);
+        storage.setRetryInterval(10);
+        storage.initialize();
+        backend.fail = true;
+        storage.add(account("name", "target"), "key");
+        try {
+            storage.flush(5000);
+            Assert.fail("flush must fail");
+        } catch (Exception e) {
+            Assert.assertEquals(e.getCause().getMessage(), "storage failure");
+        }
+        Assert.assertEquals(backend.batches.get(), 2);
+        Assert.assertTrue(storage.flush(5000));
+    }
+
+    @Test(expectedExceptions = Exception.class)
+    public void testWriteBehindQueueFull() throws Exception {
+        storage.setWriteBehind(true);
+        storage.setQueueCapacity(1);
+        storage.setBatchSize(1);
+        storage.initialize();
+        backend.delay = 1000;
+        for (int i = 0; i < 5; i++) {
+            storage.add(account("name", "target"), "key" + i);
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.csc.idp.stepup.impl;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import fi.csc.idp.stepup.api.ChallengeDeliveryStatus;
+
+public class ChallengeDeliveryTrackerTest {
+
+    private ChallengeDeliveryTracker tracker;
+
+    @BeforeMethod
+    public void setUp() {
+        tracker = new ChallengeDeliveryTracker();
+    }
+
+    @Test
+    public void testTracking() {
+        Assert.assertNull(tracker.getStatus("1", "target"));
+        tracker.track("1", "target", ChallengeDeliveryStatus.PENDING);
+        Assert.assertEquals(tracker.getStatus("1", "target"), ChallengeDeliveryStatus.PENDING);
+        Assert.assertNull(tracker.getStatus("1", "other"));
+        tracker.update("1", "target", ChallengeDeliveryStatus.SENT, "id1");
+        Assert.assertEquals(tracker.getStatus("1", "target"), ChallengeDeliveryStatus.SENT);
+        Assert.assertEquals(tracker.getUnresolvedIds(10).size(), 1);
+        Assert.assertTrue(tracker.updateById("id1", ChallengeDeliveryStatus.DELIVERED));
+        Assert.assertEquals(tracker.getStatus("1", "target"), ChallengeDeliveryStatus.DELIVERED);
+        Assert.assertTrue(tracker.getUnresolvedIds(10).isEmpty());
+        Assert.assertFalse(tracker.updateById("id2", ChallengeDeliveryStatus.DELIVERED));
+    }
+
+    @Test
+    public void testResolvedNotChanged() {
+        tracker.track("1", "target", ChallengeDeliveryStatus.PENDING);
+        tracker.update("1", "target", ChallengeDeliveryStatus.FAILED, null);
+        tracker.update("1", "target", ChallengeDeliveryStatus.SENT, "id1");
+        Assert.assertEquals(tracker.getStatus("1", "target"), ChallengeDeliveryStatus.FAILED);
+        // new challenge to the same target starts a new tracking
+        tracker.track("1", "target", ChallengeDeliveryStatus.PENDING);
+        Assert.assertEquals(tracker.getStatus("1", "target"), ChallengeDeliveryStatus.PENDING);
+        Assert.assertFalse(tracker.updateById("id1", ChallengeDeliveryStatus.DELIVERED));
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        tracker.setTimeToLive(50);
+        tracker.track("1", "target", ChallengeDeliveryStatus.PENDING);
+        tracker.update("1", "target", ChallengeDeliveryStatus.SENT, "id1");
+        Thread.sleep(100);
+        Assert.assertNull(tracker.getStatus("1", "target"));
+        tracker.track("2", "target", ChallengeDeliveryStatus.PENDING);
+        Assert.assertEquals(tracker.size(), 1);
+        Assert.assertFalse(tracker.updateById("id1", ChallengeDeliveryStatus.DELIVERED));
+    }
+
+    @Test
+    public void testExpiredNotUnresolved() throws InterruptedException {
+        tracker.setTimeToLive(50);
+        tracker.track("1", "target", ChallengeDeliveryStatus.PENDING);
+        tracker.update("1", "target", ChallengeDeliveryStatus.SENT, "id1");
+        Assert.assertEquals(tracker.getUnresolvedIds(10).size(), 1);
+        Thread.sleep(100);
+        Assert.assertTrue(tracker.getUnresolvedIds(10).isEmpty());
+        Assert.assertEquals(tracker.size(), 0);
+    }
+
+    @Test
+    public void testUnresolvedLimited() {
+        for (int i = 0; i < 5; i++) {
+            tracker.track(String.valueOf(i), "target", ChallengeDeliveryStatus.PENDING);
+            tracker.update(String.valueOf(i), "target", ChallengeDeliveryStatus.SENT, "id" + i);
+        }
+        Assert.assertEquals(tracker.getUnresolvedIds(3).size(), 3);
+        Assert.assertEquals(tracker.getUnresolvedIds(10).size(), 5);
+    }
+}
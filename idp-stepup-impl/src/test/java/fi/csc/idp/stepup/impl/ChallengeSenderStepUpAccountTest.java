@@ -5,7 +5,9 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import fi.csc.idp.stepup.api.ChallengeGenerator;
+import fi.csc.idp.stepup.api.ChallengeDeliveryStatus;
 import fi.csc.idp.stepup.api.ChallengeSender;
+import fi.csc.idp.stepup.api.TrackedChallengeSender;
 
 public class ChallengeSenderStepUpAccountTest {
 
@@ -38,6 +40,17 @@ public class ChallengeSenderStepUpAccountTest {
         Assert.assertEquals("challengeGenerated", sentChallenge);
     }
 
+    @Test
+    public void testDeliveryStatus() throws Exception {
+        challengeSenderStepUpAccount.setChallengeGenerator(new ChallengeGen());
+        challengeSenderStepUpAccount.setTarget("target");
+        challengeSenderStepUpAccount.setChallengeSender(new ChallengeSen());
+        challengeSenderStepUpAccount.sendChallenge();
+        Assert.assertNull(challengeSenderStepUpAccount.getDeliveryStatus());
+        challengeSenderStepUpAccount.setChallengeSender(new TrackedChallengeSen());
+        Assert.assertEquals(challengeSenderStepUpAccount.getDeliveryStatus(), ChallengeDeliveryStatus.DELIVERED);
+    }
+
     class ChallengeGen implements ChallengeGenerator {
 
         @Override
@@ -57,4 +70,15 @@ public class ChallengeSenderStepUpAccountTest {
 
     }
 
+    class TrackedChallengeSen extends ChallengeSen implements TrackedChallengeSender {
+
+        @Override
+        public ChallengeDeliveryStatus getDeliveryStatus(String challenge, String target) {
+            return "challengeGenerated".equals(challenge) && "target".equals(target)
+                    ? ChallengeDeliveryStatus.DELIVERED
+                    : null;
+        }
+
+    }
+
 }
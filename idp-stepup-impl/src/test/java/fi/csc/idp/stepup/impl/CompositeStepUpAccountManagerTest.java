@@ -0,0 +1,180 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpMethod;
+import net.shibboleth.idp.attribute.IdPAttribute;
+
+public class CompositeStepUpAccountManagerTest {
+
+    private final Logger log = LoggerFactory.getLogger(CompositeStepUpAccountManagerTest.class);
+
+    private CompositeStepUpAccountManager manager;
+
+    private Map<String, IdPAttribute> attributes = Collections.emptyMap();
+
+    @BeforeMethod
+    public void setUp() {
+        manager = new CompositeStepUpAccountManager();
+        manager.setName("Composite");
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        manager.destroy();
+    }
+
+    /** Method creating a named account after a delay, or failing if the name is null. */
+    private StepUpMethod method(String name, long delay) {
+        DefaultStepUpAccountManager method = new DefaultStepUpAccountManager() {
+
+            @Override
+            public StepUpAccount createAccount(Map<String, IdPAttribute> attributes) throws Exception {
+                Thread.sleep(delay);
+                if (name == null) {
+                    throw new Exception("failing method");
+                }
+                return super.createAccount(attributes);
+            }
+        };
+        method.setName(name);
+        method.setAccountFactory(new ChallengeSenderStepUpAccountFactory());
+        return method;
+    }
+
+    private String names(List<StepUpAccount> accounts) {
+        StringBuilder names = new StringBuilder();
+        for (StepUpAccount account : accounts) {
+            names.append(account.getName()).append(' ');
+        }
+        return names.toString().trim();
+    }
+
+    @Test
+    public void testNoMethods() throws Exception {
+        manager.initialize();
+        Assert.assertTrue(manager.createAccounts(attributes).isEmpty());
+        Assert.assertNull(manager.createAccount(attributes));
+    }
+
+    @Test
+    public void testSequential() throws Exception {
+        manager.setStepUpMethods(Arrays.asList(method("TOTP", 0), method("Email", 0), method("SMS", 0)));
+        manager.initialize();
+        Assert.assertEquals(names(manager.createAccounts(attributes)), "TOTP Email SMS");
+        Assert.assertEquals(manager.createAccount(attributes).getName(), "TOTP");
+    }
+
+    @Test
+    public void testNoAccount() throws Exception {
+        DefaultStepUpAccountManager none = new DefaultStepUpAccountManager() {
+
+            @Override
+            public StepUpAccount createAccount(Map<String, IdPAttribute> attributes) throws Exception {
+                return null;
+            }
+        };
+        manager.setStepUpMethods(Arrays.asList(none, method("SMS", 0)));
+        manager.setThreads(2);
+        manager.initialize();
+        Assert.assertEquals(names(manager.createAccounts(attributes)), "SMS");
+    }
+
+    @Test
+    public void testFailingMethod() throws Exception {
+        manager.setStepUpMethods(Arrays.asList(method(null, 0), method("Email", 0)));
+        manager.setThreads(2);
+        manager.initialize();
+        Assert.assertEquals(names(manager.createAccounts(attributes)), "Email");
+    }
+
+    @Test(expectedExceptions = Exception.class)
+    public void testAllMethodsFailing() throws Exception {
+        manager.setStepUpMethods(Arrays.asList(method(null, 0), method(null, 0)));
+        manager.setThreads(2);
+        manager.initialize();
+        manager.createAccounts(attributes);
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        manager.setStepUpMethods(Arrays.asList(method("TOTP", 0), method("Email", 2000)));
+        manager.setThreads(2);
+        manager.setTimeout(100);
+        manager.initialize();
+        long start = System.nanoTime();
+        Assert.assertEquals(names(manager.createAccounts(attributes)), "TOTP");
+        Assert.assertTrue(System.nanoTime() - start < 1000000000L);
+    }
+
+    @Test
+    public void testTimeoutFirstMethod() throws Exception {
+        manager.setStepUpMethods(Arrays.asList(method("TOTP", 2000), method("Email", 0)));
+        manager.setThreads(2);
+        manager.setTimeout(100);
+        manager.initialize();
+        long start = System.nanoTime();
+        Assert.assertEquals(names(manager.createAccounts(attributes)), "Email");
+        Assert.assertTrue(System.nanoTime() - start < 1000000000L);
+    }
+
+    @Test
+    public void testTimeoutWithoutThreads() throws Exception {
+        manager.setStepUpMethods(Arrays.asList(method("TOTP", 0), method("Email", 200), method("SMS", 0)));
+        manager.setTimeout(100);
+        // the method running over the time is completed, the methods after it are skipped
+        Assert.assertEquals(names(manager.createAccounts(attributes)), "TOTP Email");
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        List<StepUpMethod> methods = Arrays.asList(method("TOTP", 50), method("Email", 50), method("SMS", 50));
+        manager.setStepUpMethods(methods);
+        long start = System.nanoTime();
+        Assert.assertEquals(names(manager.createAccounts(attributes)), "TOTP Email SMS");
+        long sequential = System.nanoTime() - start;
+        manager.setThreads(4);
+        manager.initialize();
+        start = System.nanoTime();
+        Assert.assertEquals(names(manager.createAccounts(attributes)), "TOTP Email SMS");
+        long parallel = System.nanoTime() - start;
+        log.info("Accounts of three 50 ms methods created in {} ms sequentially, {} ms concurrently",
+                sequential / 1000000, parallel / 1000000);
+        Assert.assertTrue(parallel < sequential, "parallel " + parallel + " ns, sequential " + sequential + " ns");
+    }
+
+}
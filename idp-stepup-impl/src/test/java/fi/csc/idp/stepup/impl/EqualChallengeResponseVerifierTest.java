@@ -1,12 +1,18 @@
 package fi.csc.idp.stepup.impl;
 
 
+import java.lang.management.ManagementFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 public class EqualChallengeResponseVerifierTest {
 
+    private final Logger log = LoggerFactory.getLogger(EqualChallengeResponseVerifierTest.class);
+
     private EqualChallengeResponseVerifier equalChallengeResponseVerifier;  
     
     @BeforeMethod
@@ -39,4 +45,76 @@ public class EqualChallengeResponseVerifierTest {
         
     }
  
+    @Test
+    public void testLength() throws Exception  {
+        Assert.assertFalse(equalChallengeResponseVerifier.verify("notnull", "notnul", null));
+        Assert.assertFalse(equalChallengeResponseVerifier.verify("notnul", "notnull", null));
+        Assert.assertFalse(equalChallengeResponseVerifier.verify("", "notnull", null));
+        Assert.assertTrue(equalChallengeResponseVerifier.verify("  ", "", null));
+    }
+
+    @Test
+    public void testCaseInsensitive() throws Exception  {
+        equalChallengeResponseVerifier.setCaseInsensitive(true);
+        Assert.assertTrue(equalChallengeResponseVerifier.verify("0A1B2C", " 0a1b2c", null));
+        Assert.assertFalse(equalChallengeResponseVerifier.verify("0A1B2C", "0a1b2d", null));
+    }
+
+    @Test
+    public void testIgnoredCharacters() throws Exception  {
+        equalChallengeResponseVerifier.setIgnoredCharacters(" -");
+        Assert.assertTrue(equalChallengeResponseVerifier.verify("12345678", "1234-5678", null));
+        Assert.assertTrue(equalChallengeResponseVerifier.verify("1234 5678", "12 34 56 78 ", null));
+        Assert.assertTrue(equalChallengeResponseVerifier.verify("1234-5678", "12345678-", null));
+        Assert.assertFalse(equalChallengeResponseVerifier.verify("12345678", "1234-567", null));
+        Assert.assertFalse(equalChallengeResponseVerifier.verify("12345678", "1234_5678", null));
+    }
+
+    /** Benchmark of the allocation of verification, run with the perf profile. */
+    @Test(groups = "perf")
+    public void testNoAllocation() throws Exception  {
+        equalChallengeResponseVerifier.setCaseInsensitive(true);
+        equalChallengeResponseVerifier.setIgnoredCharacters("-");
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        String challenge = "1234-ABCD";
+        String response = " 1234abcd ";
+        boolean result = true;
+        for (int i = 0; i < 100000; i++) {
+            result &= equalChallengeResponseVerifier.verify(challenge, response, null);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100000; i++) {
+            result &= equalChallengeResponseVerifier.verify(challenge, response, null);
+        }
+        long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+        log.info("Allocated {} bytes for 100000 verifications", allocated);
+        Assert.assertTrue(result);
+    }
+
+    /** Benchmark of the timing of mismatches, run with the perf profile. */
+    @Test(groups = "perf")
+    public void testNoEarlyExit() throws Exception  {
+        String challenge = "0123456789abcdef0123456789abcdef";
+        String first = "x123456789abcdef0123456789abcdef";
+        String last = "0123456789abcdef0123456789abcdex";
+        long firstTime = Long.MAX_VALUE;
+        long lastTime = Long.MAX_VALUE;
+        boolean result = false;
+        for (int round = 0; round < 20; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < 100000; i++) {
+                result |= equalChallengeResponseVerifier.verify(challenge, first, null);
+            }
+            firstTime = Math.min(firstTime, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int i = 0; i < 100000; i++) {
+                result |= equalChallengeResponseVerifier.verify(challenge, last, null);
+            }
+            lastTime = Math.min(lastTime, System.nanoTime() - start);
+        }
+        log.info("Mismatch at first character {} ns, at last character {} ns", firstTime, lastTime);
+        Assert.assertFalse(result);
+    }
+
 }
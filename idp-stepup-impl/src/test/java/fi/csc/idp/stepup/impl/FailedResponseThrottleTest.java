@@ -0,0 +1,170 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FailedResponseThrottleTest {
+
+    private FailedResponseThrottle throttle;
+
+    @BeforeMethod
+    public void setUp() {
+        throttle = new FailedResponseThrottle();
+        throttle.setMaxFailures(3);
+        throttle.setWindow(10000);
+    }
+
+    @Test
+    public void testUnderLimit() {
+        long now = 1000000;
+        Assert.assertEquals(throttle.getRetryAfter("user", now), 0);
+        throttle.recordFailure("user", now);
+        throttle.recordFailure("user", now + 1);
+        Assert.assertEquals(throttle.getRetryAfter("user", now + 2), 0);
+    }
+
+    @Test
+    public void testOverLimit() {
+        long now = 1000000;
+        throttle.recordFailure("user", now);
+        throttle.recordFailure("user", now + 5000);
+        throttle.recordFailure("user", now + 5000);
+        // first failure ages out after 10 seconds
+        Assert.assertEquals(throttle.getRetryAfter("user", now + 5000), 5000);
+        Assert.assertEquals(throttle.getRetryAfter("user", now + 9999), 1);
+        Assert.assertEquals(throttle.getRetryAfter("user", now + 10000), 0);
+        // other users are not affected
+        Assert.assertEquals(throttle.getRetryAfter("other", now + 5000), 0);
+    }
+
+    @Test
+    public void testReset() {
+        long now = 1000000;
+        for (int i = 0; i < 3; i++) {
+            throttle.recordFailure("user", now);
+        }
+        Assert.assertTrue(throttle.getRetryAfter("user", now) > 0);
+        throttle.reset("user");
+        Assert.assertEquals(throttle.getRetryAfter("user", now), 0);
+    }
+
+    @Test
+    public void testSweep() {
+        long now = 1000000;
+        for (int i = 0; i < 100; i++) {
+            throttle.recordFailure("user" + i, now);
+        }
+        Assert.assertEquals(throttle.size(), 100);
+        throttle.recordFailure("user", now + 20000);
+        Assert.assertEquals(throttle.size(), 1);
+    }
+
+    @Test
+    public void testAcquire() {
+        long now = 1000000;
+        Assert.assertEquals(throttle.tryAcquire("user", now), 0);
+        Assert.assertEquals(throttle.tryAcquire("user", now), 0);
+        Assert.assertEquals(throttle.tryAcquire("user", now), 0);
+        // reserved attempts count as failures until released
+        Assert.assertTrue(throttle.tryAcquire("user", now) > 0);
+        throttle.release("user", now + 1);
+        Assert.assertEquals(throttle.tryAcquire("user", now + 1), 0);
+        Assert.assertTrue(throttle.getRetryAfter("user", now + 1) > 0);
+        throttle.reset("user");
+        Assert.assertEquals(throttle.tryAcquire("user", now + 1), 0);
+    }
+
+    /** Concurrent attempts cannot pass the check before the failures are recorded. */
+    @Test
+    public void testConcurrentAcquire() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(20);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Long>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                return throttle.tryAcquire("user");
+            }));
+        }
+        start.countDown();
+        int acquired = 0;
+        for (Future<Long> future : futures) {
+            if (future.get(10, TimeUnit.SECONDS) == 0) {
+                acquired++;
+            }
+        }
+        executor.shutdown();
+        Assert.assertEquals(acquired, 3);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidMaxFailures() {
+        throttle.setMaxFailures(0);
+    }
+
+    /** 1000 concurrent wrong responses are recorded without any thread waiting. */
+    @Test
+    public void testConcurrentFailures() throws Exception {
+        throttle.setMaxFailures(1000);
+        throttle.setWindow(600000);
+        ExecutorService executor = Executors.newFixedThreadPool(50);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            final String key = "user" + (i % 10);
+            futures.add(executor.submit(() -> {
+                start.await();
+                throttle.recordFailure(key);
+                return throttle.getRetryAfter(key);
+            }));
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        executor.shutdown();
+        // with a 3 second sleep per failure 50 threads would be occupied for a minute
+        Assert.assertTrue(elapsed < 3000, "1000 failures took " + elapsed + " ms");
+        Assert.assertEquals(throttle.size(), 10);
+        throttle.setMaxFailures(100);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(throttle.getRetryAfter("user" + i) > 0);
+        }
+        throttle.setMaxFailures(101);
+        Assert.assertEquals(throttle.getRetryAfter("user0"), 0);
+    }
+}
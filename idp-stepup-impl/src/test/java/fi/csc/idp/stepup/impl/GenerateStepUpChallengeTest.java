@@ -24,12 +24,28 @@
 package fi.csc.idp.stepup.impl;
 
 
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.opensaml.core.config.ConfigurationService;
 import org.opensaml.profile.context.ProfileRequestContext;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
+import org.springframework.context.expression.StandardBeanExpressionResolver;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.webflow.execution.Event;
 import org.springframework.webflow.execution.RequestContext;
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.codahale.metrics.MetricRegistry;
 
 import fi.csc.idp.stepup.api.ChallengeGenerator;
 import fi.csc.idp.stepup.api.ChallengeSender;
@@ -41,6 +57,7 @@ import net.shibboleth.idp.profile.context.navigate.WebflowRequestContextProfileR
 import net.shibboleth.idp.profile.testing.ActionTestingSupport;
 import net.shibboleth.idp.profile.testing.RequestContextBuilder;
 import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.primitive.NonnullSupplier;
 
 public class GenerateStepUpChallengeTest {
 
@@ -109,6 +126,133 @@ public class GenerateStepUpChallengeTest {
         Assert.assertNull(event);
     }
 
+    /** Test that action rejects sends over the limit of the throttle */
+    @Test
+    public void testThrottledSend() throws ComponentInitializationException {
+        FailedResponseThrottle throttle = new FailedResponseThrottle();
+        throttle.setMaxFailures(1);
+        action.setThrottle(throttle);
+        testSuccess();
+        sentChallenge = null;
+        action = new GenerateStepUpChallenge();
+        action.setThrottle(throttle);
+        action.initialize();
+        final Event event = action.execute(src);
+        ActionTestingSupport.assertEvent(event, StepUpEventIds.EVENTID_RETRY_LATER);
+        Assert.assertNull(sentChallenge);
+    }
+
+    /** Test that action does not count sends of accounts delivering nothing */
+    @Test
+    public void testThrottleSkipsAccountNotSending() throws ComponentInitializationException {
+        FailedResponseThrottle throttle = new FailedResponseThrottle();
+        throttle.setMaxFailures(1);
+        AuthenticationContext ctx = (AuthenticationContext) prc.addSubcontext(new AuthenticationContext(), true);
+        StepUpMethodContext sumCtx = (StepUpMethodContext) ctx.addSubcontext(new StepUpMethodContext(), true);
+        sumCtx.setStepUpAccount(new GoogleAuthenticatorStepUpAccount());
+        for (int i = 0; i < 3; i++) {
+            action = new GenerateStepUpChallenge();
+            action.setThrottle(throttle);
+            action.initialize();
+            Assert.assertNull(action.execute(src));
+        }
+        Assert.assertEquals(throttle.size(), 0);
+    }
+
+    /**
+     * Test that the flow as configured sends the challenge of every login while
+     * limiting the resends after selecting another account.
+     */
+    @Test
+    public void testRepeatedLoginsNotThrottled() throws Exception {
+        final String flow = "META-INF/net/shibboleth/idp/flows/authn/Stepup/";
+        final DefaultListableBeanFactory factory = new DefaultListableBeanFactory();
+        new XmlBeanDefinitionReader(factory).loadBeanDefinitions(new ClassPathResource(flow + "Stepup-beans.xml"));
+        factory.setBeanExpressionResolver(new StandardBeanExpressionResolver());
+        final PropertySourcesPlaceholderConfigurer placeholders = new PropertySourcesPlaceholderConfigurer();
+        placeholders.setPlaceholderPrefix("%{");
+        placeholders.setPlaceholderSuffix("}");
+        placeholders.postProcessBeanFactory(factory);
+        factory.registerSingleton("shibboleth.HttpServletRequestSupplier", new NonnullSupplier<Object>() {
+            public Object get() {
+                return new Object();
+            }
+        });
+        final Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ClassPathResource(flow + "Stepup-flow.xml").getInputStream());
+        final List<String> initialize = sendActions(factory, document, "InitializeStepUp");
+        final List<String> select = sendActions(factory, document, "SelectStepUpAccount");
+        Assert.assertEquals(initialize.size(), 1);
+        Assert.assertEquals(select.size(), 1);
+        for (int i = 0; i < 10; i++) {
+            login();
+            sentChallenge = null;
+            Assert.assertNull(((GenerateStepUpChallenge) factory.getBean(initialize.get(0))).execute(src));
+            Assert.assertEquals(sentChallenge, "challengeGenerated");
+        }
+        for (int i = 0; i < 5; i++) {
+            Assert.assertNull(((GenerateStepUpChallenge) factory.getBean(select.get(0))).execute(src));
+        }
+        sentChallenge = null;
+        ActionTestingSupport.assertEvent(((GenerateStepUpChallenge) factory.getBean(select.get(0))).execute(src),
+                StepUpEventIds.EVENTID_RETRY_LATER);
+        Assert.assertNull(sentChallenge);
+        login();
+        Assert.assertNull(((GenerateStepUpChallenge) factory.getBean(initialize.get(0))).execute(src));
+        Assert.assertEquals(sentChallenge, "challengeGenerated");
+    }
+
+    /** Starts a new login of a user having a mail or SMS account. */
+    private void login() {
+        src = new RequestContextBuilder().buildRequestContext();
+        prc = new WebflowRequestContextProfileRequestContextLookup().apply(src);
+        AuthenticationContext ctx = (AuthenticationContext) prc.addSubcontext(new AuthenticationContext(), true);
+        StepUpMethodContext sumCtx = (StepUpMethodContext) ctx.addSubcontext(new StepUpMethodContext(), true);
+        ChallengeSenderStepUpAccount account = new ChallengeSenderStepUpAccount();
+        account.setChallengeGenerator(new ChallengeGen());
+        account.setChallengeSender(new ChallengeSen());
+        account.setTarget("user@example.com");
+        sumCtx.setStepUpAccount(account);
+    }
+
+    /** Names of the challenge sending beans evaluated in the action state of the flow. */
+    private List<String> sendActions(DefaultListableBeanFactory factory, Document document,
+            String state) {
+        final List<String> actions = new ArrayList<>();
+        final NodeList states = document.getElementsByTagName("action-state");
+        for (int i = 0; i < states.getLength(); i++) {
+            final Element element = (Element) states.item(i);
+            if (!state.equals(element.getAttribute("id"))) {
+                continue;
+            }
+            final NodeList evaluates = element.getElementsByTagName("evaluate");
+            for (int j = 0; j < evaluates.getLength(); j++) {
+                final String expression = ((Element) evaluates.item(j)).getAttribute("expression");
+                if (factory.containsBean(expression)
+                        && factory.isTypeMatch(expression, GenerateStepUpChallenge.class)) {
+                    actions.add(expression);
+                }
+            }
+        }
+        return actions;
+    }
+
+    /** Test that action records the action and the sending to metrics */
+    @Test
+    public void testMetrics() throws ComponentInitializationException {
+        MetricRegistry registry = new MetricRegistry();
+        ConfigurationService.register(MetricRegistry.class, registry);
+        try {
+            testSuccess();
+            Assert.assertEquals(
+                    registry.timer("fi.csc.idp.stepup.GenerateStepUpChallenge.unknown.proceed").getCount(), 1);
+            Assert.assertEquals(registry.timer("fi.csc.idp.stepup.send.unknown.proceed").getCount(), 1);
+            Assert.assertEquals(registry.timer("fi.csc.idp.stepup.sender.ChallengeSen.proceed").getCount(), 1);
+        } finally {
+            ConfigurationService.deregister(MetricRegistry.class);
+        }
+    }
+
     class ChallengeGen implements ChallengeGenerator {
 
         @Override
@@ -27,6 +27,8 @@ import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import com.warrenstrange.googleauth.GoogleAuthenticator;
+
 public class GoogleAuthenticatorStepUpAccountTest {
 
     private GoogleAuthenticatorStepUpAccount gaStepUpAccount;
@@ -55,5 +57,11 @@ public class GoogleAuthenticatorStepUpAccountTest {
 
     }
 
-    // TODO: success case
+    @Test
+    public void testSuccessfulVerification() throws Exception {
+        int code = new GoogleAuthenticator().getTotpPassword(gaStepUpAccount.getTarget());
+        Assert.assertTrue(gaStepUpAccount.verifyResponse(String.format("%06d", code)));
+        gaStepUpAccount.setTotpVerifier(new TotpVerifier());
+        Assert.assertTrue(gaStepUpAccount.verifyResponse(String.format("%06d", code)));
+    }
 }
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.springframework.webflow.execution.Event;
+import org.springframework.webflow.execution.RequestContext;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import fi.csc.idp.stepup.api.StepUpApiContext;
+import fi.csc.idp.stepup.api.StepUpEventIds;
+import net.shibboleth.idp.profile.context.navigate.WebflowRequestContextProfileRequestContextLookup;
+import net.shibboleth.idp.profile.testing.ActionTestingSupport;
+import net.shibboleth.idp.profile.testing.RequestContextBuilder;
+import net.shibboleth.shared.component.ComponentInitializationException;
+
+public class InitializeStepUpApiContextTest {
+
+    private InitializeStepUpApiContext action;
+
+    protected RequestContext src;
+    protected ProfileRequestContext prc;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        src = new RequestContextBuilder().buildRequestContext();
+        prc = new WebflowRequestContextProfileRequestContextLookup().apply(src);
+        action = new InitializeStepUpApiContext();
+    }
+
+    /** Test that action copes with no storage set */
+    @Test
+    public void testNoStorage() throws ComponentInitializationException {
+        action.setAccountPrototype(new MockAccount());
+        action.initialize();
+        final Event event = action.execute(src);
+        ActionTestingSupport.assertEvent(event, StepUpEventIds.EXCEPTION);
+        Assert.assertNull(prc.getSubcontext(StepUpApiContext.class));
+    }
+
+    /** Test that action creates the api context */
+    @Test
+    public void testSuccess() throws ComponentInitializationException {
+        MockAccount prototype = new MockAccount();
+        MockStorage storage = new MockStorage();
+        action.setAccountPrototype(prototype);
+        action.setStorage(storage);
+        action.initialize();
+        final Event event = action.execute(src);
+        ActionTestingSupport.assertProceedEvent(event);
+        StepUpApiContext ctx = prc.getSubcontext(StepUpApiContext.class);
+        Assert.assertSame(ctx.getAccountPrototype(), prototype);
+        Assert.assertSame(ctx.getStorage(), storage);
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpAccountOperation;
+
+public class JDBCStepUpAccountStorageTest {
+
+    private final Logger log = LoggerFactory.getLogger(JDBCStepUpAccountStorageTest.class);
+
+    private static int databases;
+
+    private JdbcConnectionPool pool;
+
+    private JDBCStepUpAccountStorage storage;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        pool = JdbcConnectionPool.create("jdbc:h2:mem:stepup" + databases++ + ";DB_CLOSE_DELAY=-1", "sa", "");
+        storage = new JDBCStepUpAccountStorage();
+        storage.setDataSource(pool);
+        storage.setCreateSchema(true);
+        storage.initialize();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        storage.destroy();
+        pool.getConnection().createStatement().execute("SHUTDOWN");
+        pool.dispose();
+    }
+
+    private StepUpAccount account(String name, String target) {
+        StepUpAccount account = new MockAccount();
+        account.setName(name);
+        account.setTarget(target);
+        return account;
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testNoDataSource() throws Exception {
+        new JDBCStepUpAccountStorage().initialize();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidTableName() throws Exception {
+        storage.setTableName("account; DROP TABLE stepup_account");
+    }
+
+    @Test
+    public void testSchemaExists() throws Exception {
+        storage.initialize();
+        storage.add(account("name", "target"), "key");
+        Assert.assertNotNull(storage.getAccount("key", MockAccount.class));
+    }
+
+    @Test
+    public void testAddGetRemove() throws Exception {
+        Assert.assertNull(storage.getAccount("key", MockAccount.class));
+        storage.add(account("name", "target"), "key");
+        StepUpAccount account = storage.getAccount("key", MockAccount.class);
+        Assert.assertTrue(account instanceof MockAccount);
+        Assert.assertEquals(account.getName(), "name");
+        Assert.assertEquals(account.getTarget(), "target");
+        Assert.assertNull(storage.getAccount("other", MockAccount.class));
+        storage.remove(account("name", "other target"), "key");
+        Assert.assertNotNull(storage.getAccount("key", MockAccount.class));
+        storage.remove(account, "key");
+        Assert.assertNull(storage.getAccount("key", MockAccount.class));
+    }
+
+    @Test
+    public void testConnections() throws Exception {
+        storage.add(account("name", "target"), "key");
+        Assert.assertEquals(pool.getActiveConnections(), 1);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertNotNull(storage.getAccount("key", MockAccount.class));
+        }
+        Assert.assertEquals(pool.getActiveConnections(), 1);
+        storage.destroy();
+        Assert.assertEquals(pool.getActiveConnections(), 0);
+        storage.setMaxIdleConnections(0);
+        Assert.assertNotNull(storage.getAccount("key", MockAccount.class));
+        Assert.assertEquals(pool.getActiveConnections(), 0);
+    }
+
+    @Test
+    public void testInvalidConnection() throws Exception {
+        storage.setValidationInterval(0);
+        storage.add(account("name", "target"), "key");
+        pool.getConnection().createStatement().execute("SHUTDOWN");
+        pool = JdbcConnectionPool.create("jdbc:h2:mem:stepup" + databases++ + ";DB_CLOSE_DELAY=-1", "sa", "");
+        storage.setDataSource(pool);
+        storage.initialize();
+        Assert.assertNull(storage.getAccount("key", MockAccount.class));
+    }
+
+    @Test
+    public void testNewestAccount() throws Exception {
+        storage.add(account("name", "first"), "key");
+        Thread.sleep(5);
+        storage.add(account("name", "second"), "key");
+        Assert.assertEquals(storage.getAccount("key", MockAccount.class).getTarget(), "second");
+    }
+
+    @Test(expectedExceptions = Exception.class)
+    public void testNotAccountClass() throws Exception {
+        storage.add(account("name", "target"), "key");
+        storage.getAccount("key", String.class);
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        storage.setBatchSize(2);
+        StepUpAccount first = account("first", "target1");
+        StepUpAccount second = account("second", "target2");
+        StepUpAccount third = account("third", "target3");
+        storage.executeBatch(Arrays.asList(StepUpAccountOperation.add(first, "key1"),
+                StepUpAccountOperation.add(second, "key2"), StepUpAccountOperation.add(third, "key3"),
+                StepUpAccountOperation.remove(first, "key1"), StepUpAccountOperation.add(first, "key4")));
+        Assert.assertNull(storage.getAccount("key1", MockAccount.class));
+        Assert.assertEquals(storage.getAccount("key2", MockAccount.class).getName(), "second");
+        Assert.assertEquals(storage.getAccount("key3", MockAccount.class).getName(), "third");
+        Assert.assertEquals(storage.getAccount("key4", MockAccount.class).getName(), "first");
+    }
+
+    @Test
+    public void testBatchRollback() throws Exception {
+        try {
+            storage.executeBatch(Arrays.asList(StepUpAccountOperation.add(account("first", "target1"), "key1"),
+                    StepUpAccountOperation.add(account("second", null), "key2")));
+            Assert.fail("Null target must fail");
+        } catch (Exception e) {
+            // expected
+        }
+        Assert.assertNull(storage.getAccount("key1", MockAccount.class));
+        storage.add(account("first", "target1"), "key1");
+        Assert.assertNotNull(storage.getAccount("key1", MockAccount.class));
+    }
+
+    /** Data source whose connections fail to restore auto-commit. */
+    private DataSource failingResetDataSource() {
+        return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DataSource.class },
+                (proxy, method, args) -> {
+                    Object result = invoke(pool, method, args);
+                    if (!(result instanceof Connection)) {
+                        return result;
+                    }
+                    Connection connection = (Connection) result;
+                    return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class },
+                            (p, m, a) -> {
+                                if (m.getName().equals("setAutoCommit") && Boolean.TRUE.equals(a[0])) {
+                                    throw new SQLException("reset failed");
+                                }
+                                return invoke(connection, m, a);
+                            });
+                });
+    }
+
+    private static Object invoke(Object target, java.lang.reflect.Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Test
+    public void testGetAccounts() throws Exception {
+        Assert.assertTrue(storage.getAccounts("user", MockAccount.class).isEmpty());
+        storage.executeBatch(Arrays.asList(StepUpAccountOperation.add(account("first", "+35840"), "user"),
+                StepUpAccountOperation.add(account("second", "+35841"), "user"),
+                StepUpAccountOperation.add(account("third", "+35840"), "user")));
+        List<StepUpAccount> accounts = storage.getAccounts("user", MockAccount.class);
+        Assert.assertEquals(accounts.size(), 3);
+        Assert.assertEquals(accounts.get(0).getName(), "first");
+        Assert.assertEquals(accounts.get(2).getName(), "third");
+        Assert.assertEquals(storage.getAccount("user", MockAccount.class).getName(), "third");
+    }
+
+    @Test
+    public void testBatchFailureNotHidden() throws Exception {
+        storage.destroy();
+        storage = new JDBCStepUpAccountStorage();
+        storage.setDataSource(failingResetDataSource());
+        storage.setCreateSchema(true);
+        storage.initialize();
+        pool.getConnection().createStatement().execute("DROP TABLE stepup_account");
+        try {
+            storage.executeBatch(Arrays.asList(StepUpAccountOperation.add(account("SMS", "+35840"), "user")));
+            Assert.fail("batch must fail");
+        } catch (SQLException e) {
+            Assert.assertNotEquals(e.getMessage(), "reset failed");
+            Assert.assertEquals(e.getSuppressed().length, 1);
+            Assert.assertEquals(e.getSuppressed()[0].getMessage(), "reset failed");
+        }
+    }
+
+    @Test
+    public void testManyAccounts() throws Exception {
+        List<StepUpAccountOperation> operations = new ArrayList<>();
+        for (int i = 0; i < 25000; i++) {
+            operations.add(StepUpAccountOperation.add(account("SMS", "+35840" + i), "user" + i));
+        }
+        storage.setBatchSize(1000);
+        storage.executeBatch(operations);
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            int user = random.nextInt(25000);
+            Assert.assertEquals(storage.getAccount("user" + user, MockAccount.class).getTarget(), "+35840" + user);
+        }
+    }
+
+    /** Benchmark of batched against single writes, run with the perf profile. */
+    @Test(groups = "perf")
+    public void testMillionAccounts() throws Exception {
+        int accounts = 1000000;
+        long start = System.nanoTime();
+        List<StepUpAccountOperation> operations = new ArrayList<>(10000);
+        for (int i = 0; i < accounts; i++) {
+            operations.add(StepUpAccountOperation.add(account("SMS", "+35840" + i), "user" + i));
+            if (operations.size() == 10000) {
+                storage.executeBatch(operations);
+                operations.clear();
+            }
+        }
+        long batchTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            storage.add(account("SMS", "+35850" + i), "single" + i);
+        }
+        long singleTime = System.nanoTime() - start;
+        Random random = new Random(1);
+        int lookups = 100000;
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            int user = random.nextInt(accounts);
+            Assert.assertEquals(storage.getAccount("user" + user, MockAccount.class).getTarget(), "+35840" + user);
+        }
+        long lookupTime = System.nanoTime() - start;
+        log.info("Stored {} accounts in batches at {} accounts/s, one by one at {} accounts/s", accounts,
+                accounts * 1000000000L / batchTime, 1000 * 1000000000L / singleTime);
+        log.info("Looked up {} accounts at {} lookups/s", lookups, lookups * 1000000000L / lookupTime);
+        Assert.assertTrue(batchTime / accounts < singleTime / 1000);
+    }
+
+}
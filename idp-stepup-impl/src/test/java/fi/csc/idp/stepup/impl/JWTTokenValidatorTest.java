@@ -0,0 +1,327 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class JWTTokenValidatorTest {
+
+    private final Logger log = LoggerFactory.getLogger(JWTTokenValidatorTest.class);
+
+    private static final String SECRET = "0123456789abcdef0123456789abcdef";
+
+    private JWTTokenValidator validator;
+
+    private File jwks;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        validator = new JWTTokenValidator();
+        validator.setSecret(SECRET);
+        validator.setIssuer("https://issuer.example.org");
+        validator.setAudience("stepup");
+        validator.initialize();
+        jwks = File.createTempFile("jwks", ".json");
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        validator.destroy();
+        jwks.delete();
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static String encode(String json) {
+        return encode(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    private static String payload(String sub, String scope, long exp) {
+        return "{\"iss\":\"https://issuer.example.org\",\"aud\":[\"stepup\",\"other\"],\"sub\":\"" + sub
+                + "\",\"scope\":\"" + scope + "\",\"exp\":" + exp + "}";
+    }
+
+    private static String hmac(String header, String payload, String secret) throws Exception {
+        String signed = encode(header) + "." + encode(payload);
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        return signed + "." + encode(mac.doFinal(signed.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static String hmac(String payload) throws Exception {
+        return hmac("{\"alg\":\"HS256\",\"typ\":\"JWT\"}", payload, SECRET);
+    }
+
+    private static String sign(String header, String payload, String algorithm, PrivateKey key) throws Exception {
+        String signed = encode(header) + "." + encode(payload);
+        Signature signature = Signature.getInstance(algorithm);
+        signature.initSign(key);
+        signature.update(signed.getBytes(StandardCharsets.US_ASCII));
+        return signed + "." + encode(signature.sign());
+    }
+
+    private static String unsigned(BigInteger value, int length) {
+        byte[] bytes = value.toByteArray();
+        if (bytes[0] == 0 && bytes.length > 1) {
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        if (bytes.length < length) {
+            byte[] padded = new byte[length];
+            System.arraycopy(bytes, 0, padded, length - bytes.length, bytes.length);
+            bytes = padded;
+        }
+        return encode(bytes);
+    }
+
+    private static String rsaJwk(String kid, KeyPair pair) {
+        RSAPublicKey key = (RSAPublicKey) pair.getPublic();
+        return "{\"kty\":\"RSA\",\"kid\":\"" + kid + "\",\"use\":\"sig\",\"n\":\"" + unsigned(key.getModulus(), 0)
+                + "\",\"e\":\"" + unsigned(key.getPublicExponent(), 0) + "\"}";
+    }
+
+    private static String ecJwk(String kid, KeyPair pair) {
+        ECPublicKey key = (ECPublicKey) pair.getPublic();
+        return "{\"kty\":\"EC\",\"kid\":\"" + kid + "\",\"crv\":\"P-256\",\"x\":\""
+                + unsigned(key.getW().getAffineX(), 32) + "\",\"y\":\"" + unsigned(key.getW().getAffineY(), 32) + "\"}";
+    }
+
+    private void writeJwks(String... keys) throws Exception {
+        Files.writeString(jwks.toPath(), "{\"keys\":[" + String.join(",", keys) + "]}");
+    }
+
+    private static KeyPair rsa() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        return generator.generateKeyPair();
+    }
+
+    private static KeyPair ec() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return generator.generateKeyPair();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testNoKeySource() {
+        new JWTTokenValidator().initialize();
+    }
+
+    @Test
+    public void testSelfService() throws Exception {
+        String token = hmac(payload("user", "openid stepup.selfservice", now() + 300));
+        Assert.assertTrue(validator.validate(token, "user", true));
+        Assert.assertFalse(validator.validate(token, "other", true));
+        Assert.assertFalse(validator.validate(token, "user", false));
+        Assert.assertFalse(validator.validate(hmac(payload("user", "openid", now() + 300)), "user", true));
+    }
+
+    @Test
+    public void testAdmin() throws Exception {
+        String token = hmac("{\"alg\":\"HS256\"}", "{\"iss\":\"https://issuer.example.org\",\"aud\":\"stepup\","
+                + "\"sub\":\"admin\",\"scp\":[\"stepup.admin\"],\"exp\":" + (now() + 300) + "}", SECRET);
+        Assert.assertTrue(validator.validate(token, "user", false));
+        Assert.assertTrue(validator.validate(token, "user", true));
+    }
+
+    @Test
+    public void testInvalidTokens() throws Exception {
+        String payload = payload("user", "stepup.selfservice", now() + 300);
+        Assert.assertFalse(validator.validate(hmac("{\"alg\":\"HS256\"}", payload, "wrong secret"), "user", true));
+        Assert.assertFalse(validator.validate(hmac(payload("user", "stepup.selfservice", now() - 120)), "user", true));
+        Assert.assertFalse(validator.validate(hmac("{\"iss\":\"https://issuer.example.org\",\"aud\":\"stepup\","
+                + "\"sub\":\"user\",\"scope\":\"stepup.selfservice\",\"exp\":" + (now() + 600) + ",\"nbf\":"
+                + (now() + 300) + "}"), "user", true));
+        Assert.assertFalse(validator.validate(hmac(payload.replace("issuer.example", "other.example")), "user", true));
+        Assert.assertFalse(validator.validate(hmac(payload.replace("\"stepup\",", "")), "user", true));
+        Assert.assertFalse(validator.validate(hmac("{\"iss\":\"https://issuer.example.org\",\"aud\":\"stepup\","
+                + "\"sub\":\"user\",\"scope\":\"stepup.selfservice\"}"), "user", true));
+        String unsigned = encode("{\"alg\":\"none\"}") + "." + encode(payload) + ".";
+        Assert.assertFalse(validator.validate(unsigned, "user", true));
+        String valid = hmac(payload);
+        Assert.assertFalse(validator.validate(valid.substring(0, valid.length() - 2) + "AA", "user", true));
+        for (String malformed : new String[] { null, "", "abc", "a.b", "a.b.c.d", "!!.??.**", ".." }) {
+            Assert.assertFalse(validator.validate(malformed, "user", true));
+        }
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        String token = hmac(payload("user", "stepup.selfservice", now() + 300));
+        Assert.assertTrue(validator.validate(token, "user", true));
+        Assert.assertTrue(validator.validate(token, "user", true));
+        Assert.assertFalse(validator.validate(token, "other", true));
+        Assert.assertEquals(validator.getMissCount(), 1);
+        Assert.assertEquals(validator.getHitCount(), 2);
+        Assert.assertEquals(validator.size(), 1);
+    }
+
+    @Test
+    public void testCachedUntilExpiry() throws Exception {
+        validator.setClockSkew(0);
+        long exp = now() + 1;
+        String token = hmac(payload("user", "stepup.selfservice", exp));
+        Assert.assertTrue(validator.validate(token, "user", true));
+        Thread.sleep(exp * 1000 - System.currentTimeMillis() + 50);
+        Assert.assertFalse(validator.validate(token, "user", true));
+    }
+
+    @Test
+    public void testCacheSize() throws Exception {
+        validator.setCacheSize(10);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(validator.validate(hmac(payload("user" + i, "stepup.selfservice", now() + 300)),
+                    "user" + i, true));
+            Assert.assertTrue(validator.size() <= 10);
+        }
+    }
+
+    @Test
+    public void testKeySet() throws Exception {
+        KeyPair rsa = rsa();
+        KeyPair ec = ec();
+        writeJwks(rsaJwk("rsa", rsa), ecJwk("ec", ec));
+        validator.setSecret("");
+        validator.setJwksUrl(jwks.toURI().toString());
+        String payload = payload("user", "stepup.selfservice", now() + 300);
+        Assert.assertTrue(validator.validate(
+                sign("{\"alg\":\"RS256\",\"kid\":\"rsa\"}", payload, "SHA256withRSA", rsa.getPrivate()), "user", true));
+        Assert.assertTrue(validator.validate(sign("{\"alg\":\"ES256\",\"kid\":\"ec\"}", payload,
+                "SHA256withECDSAinP1363Format", ec.getPrivate()), "user", true));
+        Assert.assertFalse(validator.validate(
+                sign("{\"alg\":\"RS256\",\"kid\":\"ec\"}", payload, "SHA256withRSA", rsa.getPrivate()), "user", true));
+        Assert.assertFalse(validator.validate(hmac("{\"alg\":\"HS256\",\"kid\":\"rsa\"}", payload, SECRET), "user",
+                true));
+    }
+
+    @Test
+    public void testKeyRotation() throws Exception {
+        KeyPair first = rsa();
+        KeyPair second = rsa();
+        writeJwks(rsaJwk("first", first));
+        validator.setJwksUrl(jwks.toURI().toString());
+        validator.setKeySetRefreshInterval(0);
+        String payload = payload("user", "stepup.selfservice", now() + 300);
+        Assert.assertTrue(validator.validate(
+                sign("{\"alg\":\"RS256\",\"kid\":\"first\"}", payload, "SHA256withRSA", first.getPrivate()), "user",
+                true));
+        String rotated = sign("{\"alg\":\"RS256\",\"kid\":\"second\"}", payload, "SHA256withRSA", second.getPrivate());
+        Assert.assertFalse(validator.validate(rotated, "user", true));
+        writeJwks(rsaJwk("first", first), rsaJwk("second", second));
+        Thread.sleep(5);
+        Assert.assertTrue(validator.validate(rotated, "user", true));
+    }
+
+    @Test
+    public void testConcurrentValidation() throws Exception {
+        int users = 200;
+        validateConcurrently(4, users, 2000);
+        Assert.assertTrue(validator.getMissCount() < users * 2);
+    }
+
+    /** Benchmark of the latency of concurrent validation, run with the perf profile. */
+    @Test(groups = "perf")
+    public void testConcurrentLatency() throws Exception {
+        int threads = 8;
+        int users = 1000;
+        long[] all = validateConcurrently(threads, users, 20000);
+        long p50 = all[all.length / 2];
+        long p99 = all[all.length * 99 / 100];
+        log.info("Validated {} tokens in {} threads, {} verified, median {} ns, p99 {} ns, max {} ns", all.length,
+                threads, validator.getMissCount(), p50, p99, all[all.length - 1]);
+        Assert.assertTrue(validator.getMissCount() < users * 2);
+        Assert.assertTrue(p99 < 1000000, "p99 " + p99 + " ns");
+    }
+
+    private long[] validateConcurrently(int threads, int users, int iterations) throws Exception {
+        KeyPair rsa = rsa();
+        writeJwks(rsaJwk("rsa", rsa));
+        validator.setJwksUrl(jwks.toURI().toString());
+        List<String> tokens = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            tokens.add(sign("{\"alg\":\"RS256\",\"kid\":\"rsa\"}", payload("user" + i, "stepup.selfservice",
+                    now() + 300), "SHA256withRSA", rsa.getPrivate()));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<long[]>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            results.add(executor.submit((Callable<long[]>) () -> {
+                long[] latencies = new long[iterations];
+                for (int i = 0; i < latencies.length; i++) {
+                    int user = (i * 7 + offset * 131) % users;
+                    long start = System.nanoTime();
+                    boolean valid = validator.validate(tokens.get(user), "user" + user, true);
+                    latencies[i] = System.nanoTime() - start;
+                    Assert.assertTrue(valid);
+                }
+                return latencies;
+            }));
+        }
+        long[] all = new long[0];
+        for (Future<long[]> result : results) {
+            long[] latencies = result.get();
+            int length = all.length;
+            all = Arrays.copyOf(all, length + latencies.length);
+            System.arraycopy(latencies, 0, all, length, latencies.length);
+        }
+        executor.shutdown();
+        Arrays.sort(all);
+        return all;
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.csc.idp.stepup.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class LocalUsedCodeRegistryTest {
+
+    private LocalUsedCodeRegistry registry;
+
+    @BeforeMethod
+    public void setUp() {
+        registry = new LocalUsedCodeRegistry();
+    }
+
+    @Test
+    public void testReuseRejected() {
+        long expires = System.currentTimeMillis() + 60000;
+        Assert.assertTrue(registry.markUsed("key", 1, expires));
+        Assert.assertFalse(registry.markUsed("key", 1, expires));
+        Assert.assertTrue(registry.markUsed("key", 2, expires));
+        Assert.assertTrue(registry.markUsed("other", 1, expires));
+        Assert.assertEquals(registry.size(), 3);
+    }
+
+    @Test
+    public void testExpiredStepsEvicted() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(registry.markUsed("key" + i, 1, now + 50));
+        }
+        Assert.assertEquals(registry.size(), 1000);
+        Thread.sleep(100);
+        Assert.assertTrue(registry.markUsed("key0", 2, System.currentTimeMillis() + 60000));
+        Assert.assertEquals(registry.size(), 1);
+    }
+
+    @Test
+    public void testConcurrentUseAcceptedOnce() throws Exception {
+        long expires = System.currentTimeMillis() + 60000;
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            futures.add(executor.submit(() -> {
+                int accepted = 0;
+                for (int i = 0; i < 10000; i++) {
+                    if (registry.markUsed("key" + i, 1, expires)) {
+                        accepted++;
+                    }
+                }
+                return accepted;
+            }));
+        }
+        int accepted = 0;
+        for (Future<Integer> future : futures) {
+            accepted += future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        Assert.assertEquals(accepted, 10000);
+    }
+}
@@ -23,8 +23,24 @@
 package fi.csc.idp.stepup.impl;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
+import org.slf4j.LoggerFactory;
 import org.testng.Assert;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
@@ -34,8 +50,15 @@ import com.icegreen.greenmail.util.GreenMail;
 import com.icegreen.greenmail.util.GreenMailUtil;
 import com.icegreen.greenmail.util.ServerSetupTest;
 
+import jakarta.mail.Address;
+import jakarta.mail.Message;
 import jakarta.mail.MessagingException;
+import jakarta.mail.Provider;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.URLName;
 import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.MimeMessage;
 
 public class MailChallengeSenderTest {
 
@@ -55,6 +78,15 @@ public class MailChallengeSenderTest {
         mailServer.stop();
     }
 
+    private void configure() {
+        mailChallengeSender.setFromField("from@foo.bar");
+        mailChallengeSender.setHost("127.0.0.1");
+        mailChallengeSender.setSMTPAuth("false");
+        mailChallengeSender.setSMTPTtls("true");
+        mailChallengeSender.setPort(Integer.valueOf(mailServer.getSmtp().getPort()).toString());
+        mailChallengeSender.setSubjectField("subjectField %s");
+    }
+
     @Test
     public void successSendMany() throws AddressException, MessagingException, IOException {
 
@@ -79,4 +111,240 @@ public class MailChallengeSenderTest {
         
 
     }
+
+    @Test
+    public void successSendManyInBackground() throws Exception {
+        configure();
+        mailChallengeSender.setWorkers(4);
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < 500; i++) {
+                mailChallengeSender.send("" + i, "to@foo.bar");
+            }
+            long queued = System.nanoTime();
+            Assert.assertTrue(mailServer.waitForIncomingEmail(30000, 500));
+            long delivered = System.nanoTime();
+            LoggerFactory.getLogger(MailChallengeSenderTest.class).info(
+                    "500 mails queued in {} ms, delivered in {} ms", (queued - start) / 1000000,
+                    (delivered - start) / 1000000);
+        } finally {
+            mailChallengeSender.destroy();
+        }
+        Assert.assertEquals(mailServer.getReceivedMessages().length, 500);
+        Set<String> subjects = new HashSet<>();
+        for (MimeMessage message : mailServer.getReceivedMessages()) {
+            subjects.add(message.getSubject());
+        }
+        Assert.assertEquals(subjects.size(), 500);
+    }
+
+    @Test
+    public void successReconnect() throws Exception {
+        configure();
+        mailChallengeSender.setWorkers(1);
+        try {
+            mailChallengeSender.send("1", "to@foo.bar");
+            Assert.assertTrue(mailServer.waitForIncomingEmail(10000, 1));
+            // server drops the kept open connection
+            mailServer.stop();
+            mailServer = new GreenMail(ServerSetupTest.SMTP);
+            mailServer.start();
+            mailChallengeSender.send("2", "to@foo.bar");
+            Assert.assertTrue(mailServer.waitForIncomingEmail(10000, 1));
+        } finally {
+            mailChallengeSender.destroy();
+        }
+        Assert.assertEquals(mailServer.getReceivedMessages()[0].getSubject(), "subjectField 2");
+    }
+
+    @Test(expectedExceptions = MessagingException.class)
+    public void failQueueFull() throws Exception {
+        Session session = Session.getInstance(new Properties());
+        MailDeliveryPipeline pipeline = new MailDeliveryPipeline(session, 1, 1, 10, 1000);
+        // workers are not started, so the queue is never drained
+        pipeline.submit(new MimeMessage(session));
+        Assert.assertEquals(pipeline.getQueueSize(), 1);
+        pipeline.submit(new MimeMessage(session));
+    }
+
+    /**
+     * Compares delivery of concurrent mails one session per mail to delivery in
+     * batches sharing one session.
+     */
+    @Test
+    public void successSendBatches() throws Exception {
+        configure();
+        long perMail = sendConcurrently(200);
+        Assert.assertTrue(mailServer.waitForIncomingEmail(30000, 200));
+        mailServer.reset();
+
+        mailChallengeSender = new MailChallengeSender();
+        configure();
+        mailChallengeSender.setWorkers(1);
+        mailChallengeSender.setBatchWindow(20);
+        mailChallengeSender.setAwaitDelivery(true);
+        long batched;
+        try {
+            batched = sendConcurrently(200);
+        } finally {
+            mailChallengeSender.destroy();
+        }
+        // sending waited for delivery
+        Assert.assertEquals(mailServer.getReceivedMessages().length, 200);
+        LoggerFactory.getLogger(MailChallengeSenderTest.class)
+                .info("200 concurrent mails sent in {} ms one session per mail, in {} ms batched", perMail, batched);
+    }
+
+    @Test
+    public void successBatchOneConnection() throws Exception {
+        Properties props = new Properties();
+        props.put("mail.smtp.host", "127.0.0.1");
+        props.put("mail.smtp.port", Integer.valueOf(mailServer.getSmtp().getPort()).toString());
+        Session session = Session.getInstance(props);
+        MailDeliveryPipeline pipeline = new MailDeliveryPipeline(session, 1, 100, 10, 60000);
+        pipeline.setBatching(50, 100);
+        List<Future<Void>> results = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            MimeMessage message = new MimeMessage(session);
+            message.setFrom("from@foo.bar");
+            message.setRecipients(Message.RecipientType.TO, "to@foo.bar");
+            message.setSubject("batch " + i);
+            message.setText("text");
+            message.saveChanges();
+            results.add(pipeline.submit(message));
+        }
+        pipeline.start();
+        try {
+            for (Future<Void> result : results) {
+                result.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            pipeline.stop();
+        }
+        Assert.assertEquals(mailServer.getReceivedMessages().length, 50);
+        Assert.assertEquals(pipeline.getConnectionCount(), 1);
+    }
+
+    /** Transport counting its connections and failing once told to. */
+    public static class FailingTransport extends Transport {
+
+        static final AtomicInteger OPEN = new AtomicInteger();
+
+        static volatile boolean fail;
+
+        public FailingTransport(Session session, URLName urlname) {
+            super(session, urlname);
+        }
+
+        @Override
+        protected boolean protocolConnect(String host, int port, String user, String password) {
+            OPEN.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public void sendMessage(Message msg, Address[] addresses) throws MessagingException {
+            if (fail) {
+                throw new MessagingException("connection dropped");
+            }
+        }
+
+        @Override
+        public synchronized void close() throws MessagingException {
+            if (isConnected()) {
+                OPEN.decrementAndGet();
+            }
+            super.close();
+        }
+    }
+
+    @Test
+    public void failReconnectClosesConnection() throws Exception {
+        Session session = Session.getInstance(new Properties());
+        Provider provider = new Provider(Provider.Type.TRANSPORT, "smtp", FailingTransport.class.getName(), "test",
+                "1");
+        session.setProvider(provider);
+        FailingTransport.OPEN.set(0);
+        FailingTransport.fail = false;
+        MailDeliveryPipeline pipeline = new MailDeliveryPipeline(session, 1, 100, 10, 60000);
+        pipeline.start();
+        try {
+            MimeMessage message = new MimeMessage(session);
+            message.setRecipients(Message.RecipientType.TO, "to@foo.bar");
+            pipeline.submit(message).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(FailingTransport.OPEN.get(), 1);
+            FailingTransport.fail = true;
+            for (int i = 0; i < 3; i++) {
+                try {
+                    pipeline.submit(message).get(10, TimeUnit.SECONDS);
+                    Assert.fail("delivery failure must be reported");
+                } catch (ExecutionException e) {
+                    // expected
+                }
+            }
+            // both the dropped and the reconnected connections are closed
+            Assert.assertEquals(FailingTransport.OPEN.get(), 0);
+        } finally {
+            pipeline.stop();
+        }
+    }
+
+    @Test
+    public void failAwaitDelivery() throws Exception {
+        configure();
+        // nothing listens on the port
+        mailChallengeSender.setPort("1");
+        mailChallengeSender.setWorkers(1);
+        mailChallengeSender.setAwaitDelivery(true);
+        try {
+            mailChallengeSender.send("1", "to@foo.bar");
+            Assert.fail("delivery failure must be reported");
+        } catch (MessagingException e) {
+            // expected
+        } finally {
+            mailChallengeSender.destroy();
+        }
+    }
+
+    @Test
+    public void successTemplateReload() throws Exception {
+        configure();
+        Path dir = Files.createTempDirectory("templates");
+        Path file = dir.resolve("otp.vm");
+        Files.write(file, "first $otp".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(1000000));
+        mailChallengeSender.setTemplatePath(dir.toString());
+        mailChallengeSender.setTemplateFile("otp.vm");
+        mailChallengeSender.setTemplateCheckInterval(0);
+        mailChallengeSender.send("1", "to@foo.bar");
+        Files.write(file, "second ${otp} #if(true)velocity#end".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(2000000));
+        mailChallengeSender.send("2", "to@foo.bar");
+        Files.write(file, "third $!otp".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(3000000));
+        mailChallengeSender.send("3", "to@foo.bar");
+        MimeMessage[] messages = mailServer.getReceivedMessages();
+        Assert.assertEquals(messages.length, 3);
+        Assert.assertEquals(GreenMailUtil.getBody(messages[0]).trim(), "first 1");
+        Assert.assertEquals(GreenMailUtil.getBody(messages[1]).trim(), "second 2 velocity");
+        Assert.assertEquals(GreenMailUtil.getBody(messages[2]).trim(), "third 3");
+    }
+
+    private long sendConcurrently(int count) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(50);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            final String challenge = "" + i;
+            futures.add(executor.submit(() -> {
+                mailChallengeSender.send(challenge, "to@foo.bar");
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
 }
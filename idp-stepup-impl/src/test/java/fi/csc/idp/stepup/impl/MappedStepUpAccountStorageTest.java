@@ -0,0 +1,393 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpAccountOperation;
+
+public class MappedStepUpAccountStorageTest {
+
+    private final Logger log = LoggerFactory.getLogger(MappedStepUpAccountStorageTest.class);
+
+    private File file;
+
+    private MappedStepUpAccountStorage storage;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        file = File.createTempFile("stepup", ".log");
+        file.delete();
+        storage = open();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        storage.destroy();
+        file.delete();
+        new File(file.getPath() + ".compact").delete();
+    }
+
+    private MappedStepUpAccountStorage open() throws Exception {
+        MappedStepUpAccountStorage opened = new MappedStepUpAccountStorage();
+        opened.setPath(file.getPath());
+        opened.setInitialSize(4096);
+        opened.setCompactionInterval(0);
+        opened.initialize();
+        return opened;
+    }
+
+    private MappedStepUpAccountStorage reopen() throws Exception {
+        storage.destroy();
+        storage = open();
+        return storage;
+    }
+
+    private StepUpAccount account(String name, String target) {
+        StepUpAccount account = new MockAccount();
+        account.setName(name);
+        account.setTarget(target);
+        return account;
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testNoPath() throws Exception {
+        new MappedStepUpAccountStorage().initialize();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testNotInitialized() throws Exception {
+        new MappedStepUpAccountStorage().getAccount("key", MockAccount.class);
+    }
+
+    @Test(expectedExceptions = Exception.class)
+    public void testNoTarget() throws Exception {
+        storage.add(account("name", null), "key");
+    }
+
+    @Test
+    public void testNotAccountLog() throws Exception {
+        storage.destroy();
+        File other = File.createTempFile("stepup", ".txt");
+        try (RandomAccessFile out = new RandomAccessFile(other, "rw")) {
+            out.writeBytes("not a log");
+        }
+        storage.setPath(other.getPath());
+        try {
+            storage.initialize();
+            Assert.fail("Initialization must fail");
+        } catch (java.io.IOException e) {
+            Assert.assertTrue(e.getMessage().contains("not an account log"));
+        } finally {
+            other.delete();
+        }
+    }
+
+    @Test
+    public void testAddRemove() throws Exception {
+        Assert.assertNull(storage.getAccount("key", MockAccount.class));
+        storage.add(account("name", "target"), "key");
+        storage.add(account(null, "other"), "other key");
+        StepUpAccount account = storage.getAccount("key", MockAccount.class);
+        Assert.assertTrue(account instanceof MockAccount);
+        Assert.assertEquals(account.getName(), "name");
+        Assert.assertEquals(account.getTarget(), "target");
+        Assert.assertNull(storage.getAccount("other key", MockAccount.class).getName());
+        storage.remove(account("name", "wrong"), "key");
+        Assert.assertNotNull(storage.getAccount("key", MockAccount.class));
+        storage.remove(account("name", "target"), "key");
+        Assert.assertNull(storage.getAccount("key", MockAccount.class));
+        Assert.assertEquals(storage.size(), 1);
+    }
+
+    @Test
+    public void testNewestAccount() throws Exception {
+        storage.add(account("first", "target1"), "key");
+        storage.add(account("second", "target2"), "key");
+        storage.add(account("third", "target3"), "key");
+        Assert.assertEquals(storage.getAccount("key", MockAccount.class).getName(), "third");
+        storage.remove(account(null, "target3"), "key");
+        Assert.assertEquals(storage.getAccount("key", MockAccount.class).getName(), "second");
+        storage.add(account("fourth", "target4"), "key");
+        storage.remove(account(null, "target2"), "key");
+        Assert.assertEquals(storage.getAccount("key", MockAccount.class).getName(), "fourth");
+        storage.remove(account(null, "target4"), "key");
+        Assert.assertEquals(storage.getAccount("key", MockAccount.class).getName(), "first");
+        reopen();
+        Assert.assertEquals(storage.getAccount("key", MockAccount.class).getName(), "first");
+        storage.remove(account(null, "target1"), "key");
+        Assert.assertNull(storage.getAccount("key", MockAccount.class));
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        List<StepUpAccountOperation> operations = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            operations.add(StepUpAccountOperation.add(account("name" + i, "target" + i), "key" + i));
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            operations.add(StepUpAccountOperation.remove(account(null, "target" + i), "key" + i));
+        }
+        storage.executeBatch(operations);
+        storage.add(account("\u00e4\u00e4kk\u00f6set", "+358 40 123"), "\u043a\u043b\u044e\u0447");
+        reopen();
+        Assert.assertEquals(storage.size(), 501);
+        for (int i = 0; i < 1000; i++) {
+            StepUpAccount account = storage.getAccount("key" + i, MockAccount.class);
+            if (i % 2 == 0) {
+                Assert.assertNull(account);
+            } else {
+                Assert.assertEquals(account.getTarget(), "target" + i);
+            }
+        }
+        Assert.assertEquals(storage.getAccount("\u043a\u043b\u044e\u0447", MockAccount.class).getName(), "\u00e4\u00e4kk\u00f6set");
+    }
+
+    @Test
+    public void testCorruptTail() throws Exception {
+        storage.add(account("name", "target1"), "key1");
+        storage.add(account("name", "target2"), "key2");
+        int length = storage.getLogLength();
+        storage.add(account("name", "target3"), "key3");
+        storage.destroy();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            // flip a byte of the target of the last record
+            out.seek(storage.getLogLength() - 1);
+            out.write('x');
+        }
+        storage = open();
+        Assert.assertEquals(storage.getLogLength(), length);
+        Assert.assertNotNull(storage.getAccount("key2", MockAccount.class));
+        Assert.assertNull(storage.getAccount("key3", MockAccount.class));
+        storage.add(account("name", "target4"), "key4");
+        reopen();
+        Assert.assertEquals(storage.size(), 3);
+        Assert.assertNotNull(storage.getAccount("key4", MockAccount.class));
+    }
+
+    @Test
+    public void testTruncatedLog() throws Exception {
+        storage.add(account("name", "target1"), "key1");
+        int length = storage.getLogLength();
+        storage.add(account("name", "target2"), "key2");
+        storage.destroy();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(length + 10);
+        }
+        storage = open();
+        Assert.assertEquals(storage.getLogLength(), length);
+        Assert.assertEquals(storage.size(), 1);
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            storage.add(account("name", "target" + i), "key" + (i % 100));
+        }
+        for (int i = 0; i < 50; i++) {
+            storage.remove(account(null, "target" + (900 + i)), "key" + i);
+        }
+        int length = storage.getLogLength();
+        storage.compact();
+        Assert.assertTrue(storage.getLogLength() < length);
+        Assert.assertEquals(storage.size(), 100);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(storage.getAccount("key" + i, MockAccount.class).getTarget(),
+                    "target" + (i < 50 ? 800 + i : 900 + i));
+        }
+        storage.compact();
+        Assert.assertTrue(storage.getLogLength() < length);
+        storage.add(account("name", "new"), "key0");
+        reopen();
+        Assert.assertEquals(storage.size(), 100);
+        Assert.assertEquals(storage.getAccount("key0", MockAccount.class).getTarget(), "new");
+        storage.remove(account(null, "new"), "key0");
+        Assert.assertEquals(storage.getAccount("key0", MockAccount.class).getTarget(), "target800");
+        Assert.assertFalse(new File(file.getPath() + ".compact").exists());
+    }
+
+    @Test
+    public void testPeriodicCompaction() throws Exception {
+        storage.destroy();
+        storage = new MappedStepUpAccountStorage();
+        storage.setPath(file.getPath());
+        storage.setCompactionInterval(50);
+        storage.setCompactionRatio(0.5);
+        storage.initialize();
+        for (int i = 0; i < 100; i++) {
+            storage.add(account("name", "target"), "key" + i);
+            storage.remove(account("name", "target"), "key" + i);
+        }
+        storage.add(account("name", "target"), "key");
+        int length = storage.getLogLength();
+        Thread.sleep(200);
+        Assert.assertTrue(storage.getLogLength() < length);
+        Assert.assertEquals(storage.getAccount("key", MockAccount.class).getTarget(), "target");
+    }
+
+    @Test
+    public void testRemoveIsOneRecord() throws Exception {
+        storage.add(account("first", "target1"), "key");
+        storage.add(account("second", "target2"), "key");
+        storage.add(account("third", "target3"), "key");
+        storage.add(account("again", "target2"), "key");
+        int length = storage.getLogLength();
+        storage.remove(account(null, "target2"), "key");
+        Assert.assertTrue(storage.getLogLength() - length < 40);
+        Assert.assertEquals(storage.getAccount("key", MockAccount.class).getName(), "third");
+        int removed = storage.getLogLength();
+        storage.destroy();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            // the remove record cut short by a crash
+            out.setLength(removed - 1);
+        }
+        storage = open();
+        Assert.assertEquals(storage.getLogLength(), length);
+        Assert.assertEquals(storage.getAccount("key", MockAccount.class).getName(), "again");
+        storage.remove(account(null, "target2"), "key");
+        List<StepUpAccount> accounts = storage.getAccounts("key", MockAccount.class);
+        Assert.assertEquals(accounts.size(), 2);
+        Assert.assertEquals(accounts.get(0).getName(), "first");
+        Assert.assertEquals(accounts.get(1).getName(), "third");
+        storage.remove(account(null, "target3"), "key");
+        reopen();
+        Assert.assertEquals(storage.getAccount("key", MockAccount.class).getName(), "first");
+        storage.compact();
+        Assert.assertEquals(storage.getAccount("key", MockAccount.class).getName(), "first");
+        storage.add(account("fourth", "target4"), "key");
+        reopen();
+        Assert.assertEquals(storage.getAccount("key", MockAccount.class).getName(), "fourth");
+        storage.remove(account(null, "target4"), "key");
+        storage.remove(account(null, "target1"), "key");
+        Assert.assertNull(storage.getAccount("key", MockAccount.class));
+        Assert.assertEquals(storage.size(), 0);
+    }
+
+    @Test
+    public void testBatchNotFitting() throws Exception {
+        storage.destroy();
+        storage = new MappedStepUpAccountStorage();
+        storage.setPath(file.getPath());
+        storage.setInitialSize(4096);
+        storage.setCompactionInterval(0);
+        storage.setMaxLength(8192);
+        storage.initialize();
+        storage.add(account("name", "target"), "key");
+        int length = storage.getLogLength();
+        List<StepUpAccountOperation> operations = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            operations.add(StepUpAccountOperation.add(account("name", "target" + i), "key" + i));
+        }
+        try {
+            storage.executeBatch(operations);
+            Assert.fail("Batch must not fit");
+        } catch (java.io.IOException e) {
+            Assert.assertTrue(e.getMessage().contains("is full"));
+        }
+        Assert.assertEquals(storage.getLogLength(), length);
+        Assert.assertEquals(storage.size(), 1);
+        storage.executeBatch(operations.subList(0, 100));
+        reopen();
+        Assert.assertEquals(storage.size(), 101);
+    }
+
+    @Test
+    public void testManyAccounts() throws Exception {
+        final int accounts = 50000;
+        List<StepUpAccountOperation> batch = new ArrayList<>();
+        for (int i = 0; i < accounts; i++) {
+            batch.add(StepUpAccountOperation.add(account("TOTP", "SEED" + i), "user" + i + "@example.org"));
+            if (batch.size() == 10000) {
+                storage.executeBatch(batch);
+                batch.clear();
+            }
+        }
+        reopen();
+        Assert.assertEquals(storage.size(), accounts);
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            int user = random.nextInt(accounts);
+            Assert.assertEquals(storage.getAccount("user" + user + "@example.org", MockAccount.class).getTarget(),
+                    "SEED" + user);
+        }
+    }
+
+    /** Benchmark of replay and lookup latency, run with the perf profile. */
+    @Test(groups = "perf")
+    public void testMillionsOfAccounts() throws Exception {
+        final int accounts = 3000000;
+        List<StepUpAccountOperation> batch = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < accounts; i++) {
+            batch.add(StepUpAccountOperation.add(account("TOTP", "SEED" + i), "user" + i + "@example.org"));
+            if (batch.size() == 10000) {
+                storage.executeBatch(batch);
+                batch.clear();
+            }
+        }
+        log.info("Added {} accounts in {} ms, log is {} bytes", accounts, (System.nanoTime() - start) / 1000000,
+                storage.getLogLength());
+
+        start = System.nanoTime();
+        reopen();
+        long startup = (System.nanoTime() - start) / 1000000;
+        log.info("Replayed {} accounts in {} ms", accounts, startup);
+        Assert.assertEquals(storage.size(), accounts);
+        Assert.assertTrue(startup < 30000);
+
+        Random random = new Random(1);
+        String[] keys = new String[100000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "user" + random.nextInt(accounts) + "@example.org";
+        }
+        for (String key : keys) {
+            Assert.assertNotNull(storage.getAccount(key, MockAccount.class));
+        }
+        long[] latencies = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            long lookup = System.nanoTime();
+            storage.getAccount(keys[i], MockAccount.class);
+            latencies[i] = System.nanoTime() - lookup;
+        }
+        Arrays.sort(latencies);
+        log.info("Lookup latency median {} ns, 99th percentile {} ns", latencies[latencies.length / 2],
+                latencies[latencies.length * 99 / 100]);
+        Assert.assertTrue(latencies[latencies.length / 2] < 100000);
+        Assert.assertEquals(storage.getAccount("user42@example.org", MockAccount.class).getTarget(), "SEED42");
+    }
+
+}
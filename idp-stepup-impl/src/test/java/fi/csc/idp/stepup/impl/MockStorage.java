@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpAccountOperation;
+
+/** In-memory storage keeping the accounts by key, newest last. */
+public class MockStorage extends AbstractStepUpAccountStorage {
+
+    public final Map<String, List<String[]>> accounts = new ConcurrentHashMap<>();
+
+    public final AtomicInteger lookups = new AtomicInteger();
+
+    public final AtomicInteger writes = new AtomicInteger();
+
+    public final AtomicInteger batches = new AtomicInteger();
+
+    public volatile long delay;
+
+    public volatile boolean fail;
+
+    public volatile boolean failWrites;
+
+    private void call() throws Exception {
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+        if (fail) {
+            throw new Exception("storage failure");
+        }
+    }
+
+    private void write() throws Exception {
+        call();
+        if (failWrites) {
+            throw new Exception("storage write failure");
+        }
+    }
+
+    @Override
+    public void add(StepUpAccount account, String key) throws Exception {
+        write();
+        writes.incrementAndGet();
+        put(key, account);
+    }
+
+    @Override
+    public void remove(StepUpAccount account, String key) throws Exception {
+        write();
+        writes.incrementAndGet();
+        delete(key, account);
+    }
+
+    @Override
+    public <T> StepUpAccount getAccount(String key, Class<T> aClass) throws Exception {
+        lookups.incrementAndGet();
+        call();
+        List<String[]> list = accounts.get(key);
+        if (list == null) {
+            return null;
+        }
+        synchronized (list) {
+            String[] account = list.get(list.size() - 1);
+            return newAccount(aClass, account[0], account[1]);
+        }
+    }
+
+    @Override
+    public <T> List<StepUpAccount> getAccounts(String key, Class<T> aClass) throws Exception {
+        lookups.incrementAndGet();
+        call();
+        List<StepUpAccount> result = new ArrayList<>();
+        List<String[]> list = accounts.get(key);
+        if (list != null) {
+            synchronized (list) {
+                for (String[] account : list) {
+                    result.add(newAccount(aClass, account[0], account[1]));
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void executeBatch(List<StepUpAccountOperation> operations) throws Exception {
+        batches.incrementAndGet();
+        write();
+        for (StepUpAccountOperation operation : operations) {
+            writes.incrementAndGet();
+            if (operation.getType() == StepUpAccountOperation.Type.ADD) {
+                put(operation.getKey(), operation.getAccount());
+            } else {
+                delete(operation.getKey(), operation.getAccount());
+            }
+        }
+    }
+
+    private void put(String key, StepUpAccount account) {
+        accounts.compute(key, (k, list) -> {
+            List<String[]> updated = list == null ? new ArrayList<>() : list;
+            synchronized (updated) {
+                updated.add(new String[] { account.getName(), account.getTarget() });
+            }
+            return updated;
+        });
+    }
+
+    private void delete(String key, StepUpAccount account) {
+        accounts.computeIfPresent(key, (k, list) -> {
+            synchronized (list) {
+                list.removeIf(stored -> stored[1].equals(account.getTarget()));
+                return list.isEmpty() ? null : list;
+            }
+        });
+    }
+}
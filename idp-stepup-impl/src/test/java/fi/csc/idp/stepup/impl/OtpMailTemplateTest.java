@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.csc.idp.stepup.impl;
+
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class OtpMailTemplateTest {
+
+    private VelocityEngine velocityEngine;
+
+    @BeforeMethod
+    public void setUp() {
+        velocityEngine = new VelocityEngine();
+        velocityEngine.setProperty(RuntimeConstants.RESOURCE_LOADERS, "classpath");
+        velocityEngine.setProperty("resource.loader.classpath.class", ClasspathResourceLoader.class.getName());
+        velocityEngine.init();
+    }
+
+    private String merge(String source, String otp) {
+        VelocityContext context = new VelocityContext();
+        context.put("otp", otp);
+        StringWriter writer = new StringWriter();
+        velocityEngine.evaluate(context, writer, "test", source);
+        return writer.toString();
+    }
+
+    private void assertSameAsVelocity(String source) {
+        OtpMailTemplate template = OtpMailTemplate.compile(source);
+        Assert.assertNotNull(template, source);
+        Assert.assertEquals(template.render("123456"), merge(source, "123456"), source);
+        Assert.assertEquals(template.render(null), merge(source, null), source);
+    }
+
+    @Test
+    public void testSupportedReferences() {
+        assertSameAsVelocity("Dear recipient,\n\nyour final password is $otp.\n\nBye.\n");
+        assertSameAsVelocity("${otp}$otp");
+        assertSameAsVelocity("$!otp and $!{otp}, $otp-$otp");
+        assertSameAsVelocity("");
+        assertSameAsVelocity("no references");
+        assertSameAsVelocity("costs 5$ or $ 5, item #1, $otp!");
+        assertSameAsVelocity("$otp");
+        Assert.assertEquals(OtpMailTemplate.compile("$otp ${otp} $!otp").getSubstitutionCount(), 3);
+    }
+
+    @Test
+    public void testUnsupported() {
+        Assert.assertNull(OtpMailTemplate.compile("$user $otp"));
+        Assert.assertNull(OtpMailTemplate.compile("$otpx"));
+        Assert.assertNull(OtpMailTemplate.compile("$otp.length()"));
+        Assert.assertNull(OtpMailTemplate.compile("${otp.length()}"));
+        Assert.assertNull(OtpMailTemplate.compile("#set($a = 1)$otp"));
+        Assert.assertNull(OtpMailTemplate.compile("## comment\n$otp"));
+        Assert.assertNull(OtpMailTemplate.compile("#* comment *#$otp"));
+        Assert.assertNull(OtpMailTemplate.compile("\\$otp"));
+    }
+
+    @Test
+    public void testDefaultTemplate() throws Exception {
+        OtpMailTemplate template = OtpMailTemplate.compile(defaultSource());
+        Template velocityTemplate = velocityEngine.getTemplate("/emails/default.vm");
+        VelocityContext context = new VelocityContext();
+        context.put("otp", "1");
+        StringWriter writer = new StringWriter();
+        velocityTemplate.merge(context, writer);
+        Assert.assertEquals(template.render("1"), writer.toString());
+    }
+
+    /** Benchmark of precompiled rendering against Velocity merge, run with the perf profile. */
+    @Test(groups = "perf")
+    public void testRenderingTime() throws Exception {
+        OtpMailTemplate template = OtpMailTemplate.compile(defaultSource());
+        Template velocityTemplate = velocityEngine.getTemplate("/emails/default.vm");
+        int rounds = 100000;
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                Assert.assertNotNull(template.render(Integer.toString(i)));
+            }
+            long compiled = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                VelocityContext context = new VelocityContext();
+                context.put("otp", Integer.toString(i));
+                StringWriter writer = new StringWriter();
+                velocityTemplate.merge(context, writer);
+            }
+            long merged = System.nanoTime();
+            LoggerFactory.getLogger(OtpMailTemplateTest.class).info(
+                    "{} renders: precompiled {} ms, Template.merge {} ms", rounds, (compiled - start) / 1000000,
+                    (merged - compiled) / 1000000);
+        }
+    }
+
+    private String defaultSource() throws Exception {
+        try (InputStream in = OtpMailTemplateTest.class.getResourceAsStream("/emails/default.vm")) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
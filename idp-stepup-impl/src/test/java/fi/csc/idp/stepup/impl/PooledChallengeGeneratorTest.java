@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.csc.idp.stepup.impl;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import fi.csc.idp.stepup.api.ChallengeGenerator;
+
+public class PooledChallengeGeneratorTest {
+
+    private PooledChallengeGenerator generator;
+
+    private AtomicInteger generated;
+
+    private ChallengeGenerator counting;
+
+    @BeforeMethod
+    public void setUp() {
+        generated = new AtomicInteger();
+        counting = target -> (target == null ? "" : target) + generated.incrementAndGet();
+        generator = new PooledChallengeGenerator();
+        generator.setDelegate(counting);
+        generator.setCapacity(100);
+    }
+
+    @AfterMethod
+    public void end() {
+        generator.destroy();
+    }
+
+    private void awaitDepth(int depth) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (generator.getDepth() != depth && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(generator.getDepth(), depth);
+    }
+
+    @Test
+    public void testPooled() throws Exception {
+        generator.initialize();
+        awaitDepth(100);
+        Assert.assertEquals(generator.getRefillCount(), 100);
+        Set<String> challenges = new HashSet<>();
+        for (int i = 0; i < 70; i++) {
+            Assert.assertTrue(challenges.add(generator.generate(null)));
+        }
+        Assert.assertEquals(generated.get(), 100);
+        Assert.assertEquals(generator.getFallbackCount(), 0);
+        // below the low watermark of 25 the pool is refilled, the refill may
+        // race the polling so the refilled count follows the taken challenges
+        while (generator.getDepth() >= 25) {
+            Assert.assertTrue(challenges.add(generator.generate(null)));
+        }
+        awaitDepth(100);
+        Assert.assertEquals(generator.getRefillCount(), 100 + challenges.size());
+        Assert.assertTrue(generator.getRefillCount() >= 176);
+    }
+
+    @Test
+    public void testFallback() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        generator.setDelegate(target -> {
+            if (Thread.currentThread().getName().equals("stepup-challenge-pool")) {
+                release.await();
+            }
+            return counting.generate(target);
+        });
+        generator.initialize();
+        Assert.assertEquals(generator.generate(null), "1");
+        Assert.assertEquals(generator.getFallbackCount(), 1);
+        release.countDown();
+        awaitDepth(100);
+        generator.generate(null);
+        Assert.assertEquals(generator.getFallbackCount(), 1);
+    }
+
+    /** However the takes interleave with the refill, the pool is not left below the low watermark. */
+    @Test
+    public void testConcurrentTakes() throws Exception {
+        generator.initialize();
+        awaitDepth(100);
+        Thread[] takers = new Thread[4];
+        for (int i = 0; i < takers.length; i++) {
+            takers[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 20000; j++) {
+                        generator.generate(null);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            takers[i].start();
+        }
+        for (Thread taker : takers) {
+            taker.join();
+        }
+        long end = System.currentTimeMillis() + 5000;
+        while (generator.getDepth() < 25 && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        Assert.assertTrue(generator.getDepth() >= 25, "depth " + generator.getDepth());
+    }
+
+    @Test
+    public void testTargetNotPooled() throws Exception {
+        generator.initialize();
+        awaitDepth(100);
+        Assert.assertEquals(generator.generate("user"), "user101");
+        Assert.assertEquals(generator.getDepth(), 100);
+    }
+
+    @Test
+    public void testNotPooled() throws Exception {
+        generator.setCapacity(0);
+        generator.initialize();
+        Assert.assertEquals(generator.generate(null), "1");
+        Assert.assertEquals(generator.generate(null), "2");
+        Assert.assertEquals(generator.getDepth(), 0);
+    }
+
+    @Test(expectedExceptions = Exception.class)
+    public void testNoDelegate() throws Exception {
+        new PooledChallengeGenerator().generate(null);
+    }
+}
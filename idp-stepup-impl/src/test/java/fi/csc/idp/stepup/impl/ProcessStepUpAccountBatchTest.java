@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.nio.charset.StandardCharsets;
+
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.webflow.execution.Event;
+import org.springframework.webflow.execution.RequestContext;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import fi.csc.idp.stepup.api.StepUpApiContext;
+import fi.csc.idp.stepup.api.StepUpEventIds;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import net.shibboleth.idp.profile.context.navigate.WebflowRequestContextProfileRequestContextLookup;
+import net.shibboleth.idp.profile.testing.ActionTestingSupport;
+import net.shibboleth.idp.profile.testing.RequestContextBuilder;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.primitive.NonnullSupplier;
+
+public class ProcessStepUpAccountBatchTest {
+
+    private ProcessStepUpAccountBatch action;
+
+    private MockStorage storage;
+
+    private MockHttpServletRequest request;
+
+    private MockHttpServletResponse response;
+
+    protected RequestContext src;
+    protected ProfileRequestContext prc;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        src = new RequestContextBuilder().buildRequestContext();
+        prc = new WebflowRequestContextProfileRequestContextLookup().apply(src);
+        storage = new MockStorage();
+        request = new MockHttpServletRequest();
+        response = new MockHttpServletResponse();
+        action = new ProcessStepUpAccountBatch();
+        action.setTokenValidator((token, targetUser, selfService) -> "token".equals(token) && selfService
+                && "user".equals(targetUser));
+        action.setHttpServletRequestSupplier(new NonnullSupplier<>() {
+            public HttpServletRequest get() {
+                return request;
+            }
+        });
+        action.setHttpServletResponseSupplier(new NonnullSupplier<>() {
+            public HttpServletResponse get() {
+                return response;
+            }
+        });
+    }
+
+    /** Test that action copes with no api context present */
+    @Test
+    public void testNoApiContext() throws ComponentInitializationException {
+        action.initialize();
+        final Event event = action.execute(src);
+        ActionTestingSupport.assertEvent(event, StepUpEventIds.EXCEPTION);
+    }
+
+    /** Test that action requires a bearer access token */
+    @Test
+    public void testNoToken() throws ComponentInitializationException {
+        prc.addSubcontext(new StepUpApiContext(new MockAccount(), storage), true);
+        action.initialize();
+        final Event event = action.execute(src);
+        ActionTestingSupport.assertEvent(event, StepUpEventIds.EVENTID_FORBIDDEN);
+        Assert.assertEquals(response.getStatus(), HttpServletResponse.SC_UNAUTHORIZED);
+    }
+
+    /** Test that action executes the authorized operations */
+    @Test
+    public void testSuccess() throws Exception {
+        StepUpApiContext ctx = new StepUpApiContext(new MockAccount(), storage);
+        prc.addSubcontext(ctx, true);
+        request.addHeader("Authorization", "Bearer token");
+        request.setContent(("{\"operations\":[{\"op\":\"addaccount\",\"key\":\"user\",\"target\":\"seed\"},"
+                + "{\"op\":\"addaccount\",\"key\":\"other\",\"target\":\"seed\"}]}")
+                        .getBytes(StandardCharsets.UTF_8));
+        action.initialize();
+        final Event event = action.execute(src);
+        ActionTestingSupport.assertProceedEvent(event);
+        Assert.assertEquals(response.getContentType(), "application/json;charset=UTF-8");
+        Assert.assertTrue(response.getContentAsString().contains("\"forbidden\""));
+        Assert.assertEquals(ctx.getResponse().get("operations"), 2);
+        Assert.assertEquals(ctx.getResponse().get("failed"), 1);
+        Assert.assertTrue(storage.accounts.containsKey("user"));
+        Assert.assertFalse(storage.accounts.containsKey("other"));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.csc.idp.stepup.impl;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class RandomChallengeGeneratorTest {
+
+    private RandomChallengeGenerator generator;
+
+    @BeforeMethod
+    public void setUp() {
+        generator = new RandomChallengeGenerator();
+    }
+
+    @Test
+    public void testDefaults() throws Exception {
+        String challenge = generator.generate(null);
+        Assert.assertEquals(challenge.length(), 8);
+        Assert.assertTrue(challenge.matches("[0-9]{8}"));
+    }
+
+    @Test
+    public void testAlphabetAndLength() throws Exception {
+        generator.setAlphabet("ABCDEFGHJKLMNPQRSTUVWXYZ23456789");
+        generator.setLength(12);
+        Assert.assertTrue(generator.generate("target").matches("[A-HJ-NP-Z2-9]{12}"));
+        generator.setLength(0);
+        Assert.assertEquals(generator.generate(null), "");
+        generator.setLength(100);
+        Assert.assertEquals(generator.generate(null).length(), 100);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidAlphabet() {
+        generator.setAlphabet("0");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testDuplicateInAlphabet() {
+        generator.setAlphabet("0123456789012");
+    }
+
+    @Test
+    public void testDistribution() throws Exception {
+        int codes = 1000000;
+        int length = 8;
+        long[][] counts = new long[length][10];
+        for (int i = 0; i < codes; i++) {
+            String challenge = generator.generate(null);
+            for (int position = 0; position < length; position++) {
+                counts[position][challenge.charAt(position) - '0']++;
+            }
+        }
+        // positions are independent, so the sum is chi-square with 8 * 9 = 72
+        // degrees of freedom, a uniform generator exceeds 170 with probability
+        // below 1e-9 while a biased one exceeds it by orders of magnitude
+        double expected = codes / 10.0;
+        double chiSquare = 0;
+        for (int position = 0; position < length; position++) {
+            for (long count : counts[position]) {
+                chiSquare += (count - expected) * (count - expected) / expected;
+            }
+        }
+        Assert.assertTrue(chiSquare < 170, "chi-square " + chiSquare);
+    }
+
+    @Test
+    public void testUniqueness() throws Exception {
+        // 1M codes of 8 digits are expected to have n^2 / 2N = 5000 duplicates
+        int codes = 1000000;
+        Set<String> seen = new HashSet<>(2 * codes);
+        int duplicates = 0;
+        for (int i = 0; i < codes; i++) {
+            if (!seen.add(generator.generate(null))) {
+                duplicates++;
+            }
+        }
+        Assert.assertTrue(duplicates > 4500 && duplicates < 5500, "duplicates " + duplicates);
+        generator.setAlphabet("ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789");
+        generator.setLength(16);
+        seen.clear();
+        for (int i = 0; i < codes; i++) {
+            Assert.assertTrue(seen.add(generator.generate(null)));
+        }
+    }
+
+    /** Benchmark of random against digest challenge generation, run with the perf profile. */
+    @Test(groups = "perf")
+    public void testGenerationRate() throws Exception {
+        DigestChallengeGenerator digestGenerator = new DigestChallengeGenerator();
+        digestGenerator.setDecimal(true);
+        int rounds = 200000;
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                digestGenerator.generate("target");
+            }
+            long middle = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                generator.generate("target");
+            }
+            long end = System.nanoTime();
+            LoggerFactory.getLogger(RandomChallengeGeneratorTest.class).info(
+                    "Challenges per second: DigestChallengeGenerator {}, RandomChallengeGenerator {}",
+                    rounds * 1000000000L / (middle - start), rounds * 1000000000L / (end - middle));
+        }
+    }
+}
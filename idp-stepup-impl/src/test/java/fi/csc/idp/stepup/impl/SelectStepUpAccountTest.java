@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.util.Arrays;
+
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.webflow.execution.Event;
+import org.springframework.webflow.execution.RequestContext;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import fi.csc.idp.stepup.api.StepUpEventIds;
+import fi.csc.idp.stepup.api.StepUpMethodContext;
+import jakarta.servlet.http.HttpServletRequest;
+import net.shibboleth.idp.authn.AuthnEventIds;
+import net.shibboleth.idp.authn.context.AuthenticationContext;
+import net.shibboleth.idp.profile.context.navigate.WebflowRequestContextProfileRequestContextLookup;
+import net.shibboleth.idp.profile.testing.ActionTestingSupport;
+import net.shibboleth.idp.profile.testing.RequestContextBuilder;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.primitive.NonnullSupplier;
+
+public class SelectStepUpAccountTest {
+
+    private SelectStepUpAccount action;
+
+    protected RequestContext src;
+    protected ProfileRequestContext prc;
+
+    private StepUpMethodContext stepUpContext;
+
+    private MockAccount first;
+
+    private MockAccount second;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        src = new RequestContextBuilder().buildRequestContext();
+        prc = new WebflowRequestContextProfileRequestContextLookup().apply(src);
+        action = new SelectStepUpAccount();
+        first = new MockAccount();
+        second = new MockAccount();
+    }
+
+    private void baseInit(String selection) {
+        AuthenticationContext ctx = (AuthenticationContext) prc.addSubcontext(new AuthenticationContext(), true);
+        stepUpContext = new StepUpMethodContext();
+        stepUpContext.setStepUpAccounts(Arrays.asList(first, second));
+        stepUpContext.setStepUpAccount(first);
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        if (selection != null) {
+            request.addParameter("j_stepUpAccount", selection);
+        }
+        action.setHttpServletRequestSupplier(new NonnullSupplier<>() {
+            public HttpServletRequest get() {
+                return request;
+            }
+        });
+        ctx.addSubcontext(stepUpContext, true);
+    }
+
+    /** Test that action copes with no authentication context being present */
+    @Test
+    public void testUninitiailizedContext() throws ComponentInitializationException {
+        action.initialize();
+        final Event event = action.execute(src);
+        ActionTestingSupport.assertEvent(event, AuthnEventIds.INVALID_AUTHN_CTX);
+    }
+
+    /** Test that action copes with no step up method context present */
+    @Test
+    public void testNoStepUpMethodContext() throws ComponentInitializationException {
+        prc.addSubcontext(new AuthenticationContext(), true);
+        action.initialize();
+        final Event event = action.execute(src);
+        ActionTestingSupport.assertEvent(event, StepUpEventIds.EVENTID_MISSING_STEPUPMETHODCONTEXT);
+    }
+
+    /** Test that action copes with no servlet request present */
+    @Test
+    public void testNoServletRequest() throws ComponentInitializationException {
+        AuthenticationContext ctx = (AuthenticationContext) prc.addSubcontext(new AuthenticationContext(), true);
+        ctx.addSubcontext(new StepUpMethodContext(), true);
+        action.initialize();
+        final Event event = action.execute(src);
+        ActionTestingSupport.assertEvent(event, StepUpEventIds.EXCEPTION);
+    }
+
+    /** Test that action keeps the active account if the selection is missing or invalid */
+    @Test
+    public void testInvalidSelection() throws ComponentInitializationException {
+        for (String selection : new String[] { null, "2", "-1", "second" }) {
+            action = new SelectStepUpAccount();
+            baseInit(selection);
+            action.initialize();
+            final Event event = action.execute(src);
+            ActionTestingSupport.assertEvent(event, StepUpEventIds.EVENTID_INVALID_SELECTION);
+            Assert.assertSame(stepUpContext.getStepUpAccount(), first);
+        }
+    }
+
+    /** Test that selecting the active account is signaled so that the challenge is not sent again */
+    @Test
+    public void testUnchangedSelection() throws ComponentInitializationException {
+        baseInit("0");
+        action.initialize();
+        final Event event = action.execute(src);
+        ActionTestingSupport.assertEvent(event, StepUpEventIds.EVENTID_UNCHANGED_SELECTION);
+        Assert.assertSame(stepUpContext.getStepUpAccount(), first);
+    }
+
+    /** Test that action sets the selected account active */
+    @Test
+    public void testSelection() throws ComponentInitializationException {
+        baseInit("1");
+        action.initialize();
+        final Event event = action.execute(src);
+        Assert.assertNull(event);
+        Assert.assertSame(stepUpContext.getStepUpAccount(), second);
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpAccountOperation;
+import fi.csc.idp.stepup.api.StepUpAccountStorage;
+
+public class ShardedStepUpAccountStorageTest {
+
+    private Map<String, StepUpAccountStorage> shards;
+
+    private ShardedStepUpAccountStorage storage;
+
+    private List<String> keys;
+
+    @BeforeMethod
+    public void setUp() {
+        shards = new LinkedHashMap<>();
+        for (int i = 0; i < 4; i++) {
+            shards.put("shard" + i, new MockStorage());
+        }
+        storage = new ShardedStepUpAccountStorage();
+        storage.setShards(shards);
+        storage.setThreads(4);
+        storage.initialize();
+        keys = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            keys.add("user" + i + "@example.org");
+        }
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        storage.destroy();
+    }
+
+    private StepUpAccount account(String name, String target) {
+        StepUpAccount account = new MockAccount();
+        account.setName(name);
+        account.setTarget(target);
+        return account;
+    }
+
+    private MockStorage shard(int i) {
+        return (MockStorage) shards.get("shard" + i);
+    }
+
+    private void addAll() throws Exception {
+        List<StepUpAccountOperation> operations = new ArrayList<>();
+        for (String key : keys) {
+            operations.add(StepUpAccountOperation.add(account("name", "target " + key), key));
+        }
+        storage.executeBatch(operations);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testNoShards() {
+        new ShardedStepUpAccountStorage().initialize();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testNotInitialized() throws Exception {
+        new ShardedStepUpAccountStorage().getAccount("key", MockAccount.class);
+    }
+
+    @Test
+    public void testAddRemove() throws Exception {
+        storage.add(account("name", "target"), "key");
+        MockStorage owner = (MockStorage) storage.getShard("key");
+        Assert.assertTrue(owner.accounts.containsKey("key"));
+        Assert.assertEquals(storage.getAccount("key", MockAccount.class).getTarget(), "target");
+        storage.remove(account("name", "target"), "key");
+        Assert.assertNull(storage.getAccount("key", MockAccount.class));
+    }
+
+    @Test
+    public void testDistribution() throws Exception {
+        addAll();
+        for (int i = 0; i < 4; i++) {
+            int size = shard(i).accounts.size();
+            Assert.assertTrue(size > 1500 && size < 3500, "shard" + i + " has " + size + " keys");
+            Assert.assertEquals(shard(i).batches.get(), 1);
+        }
+        for (String key : keys) {
+            Assert.assertEquals(storage.getAccount(key, MockAccount.class).getTarget(), "target " + key);
+        }
+    }
+
+    @Test
+    public void testParallelBatch() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            shard(i).delay = 200;
+        }
+        long start = System.currentTimeMillis();
+        addAll();
+        Assert.assertTrue(System.currentTimeMillis() - start < 600);
+    }
+
+    @Test
+    public void testBatchFailure() throws Exception {
+        shard(1).fail = true;
+        try {
+            addAll();
+            Assert.fail("Batch must fail");
+        } catch (Exception e) {
+            Assert.assertEquals(e.getMessage(), "storage failure");
+        }
+        Assert.assertFalse(shard(0).accounts.isEmpty());
+        Assert.assertTrue(shard(1).accounts.isEmpty());
+    }
+
+    @Test
+    public void testAddShard() throws Exception {
+        addAll();
+        MockStorage added = new MockStorage();
+        storage.addShard("shard4", added);
+        Assert.assertTrue(storage.isMigrating());
+        int moving = 0;
+        for (String key : keys) {
+            if (storage.getShard(key) == added) {
+                moving++;
+            }
+            // keys not yet moved are read from their previous shard
+            Assert.assertEquals(storage.getAccount(key, MockAccount.class).getTarget(), "target " + key);
+        }
+        Assert.assertTrue(moving > 1000 && moving < 3000, moving + " keys moving");
+
+        Assert.assertEquals(storage.migrate(keys), moving);
+        Assert.assertEquals(added.accounts.size(), moving);
+        int total = 0;
+        for (int i = 0; i < 4; i++) {
+            total += shard(i).accounts.size();
+        }
+        Assert.assertEquals(total, keys.size() - moving);
+        storage.completeMigration();
+        Assert.assertFalse(storage.isMigrating());
+        for (String key : keys) {
+            Assert.assertEquals(storage.getAccount(key, MockAccount.class).getTarget(), "target " + key);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testAddShardWhileMigrating() {
+        storage.addShard("shard4", new MockStorage());
+        storage.addShard("shard5", new MockStorage());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testAddExistingShard() {
+        storage.addShard("shard0", new MockStorage());
+    }
+
+    @Test
+    public void testWritesDuringMigration() throws Exception {
+        addAll();
+        MockStorage added = new MockStorage();
+        storage.addShard("shard4", added);
+        String moved = null;
+        String other = null;
+        for (String key : keys) {
+            if (storage.getShard(key) == added) {
+                if (moved == null) {
+                    moved = key;
+                } else if (other == null) {
+                    other = key;
+                }
+            }
+        }
+        // removal is applied to the previous shard, the account is not read from there
+        storage.remove(account(null, "target " + moved), moved);
+        Assert.assertNull(storage.getAccount(moved, MockAccount.class));
+        // an added account is newer than the migrated one
+        storage.add(account("new", "new target"), other);
+        Assert.assertEquals(storage.getAccount(other, MockAccount.class).getTarget(), "new target");
+        storage.migrate(keys);
+        storage.completeMigration();
+        Assert.assertNull(storage.getAccount(moved, MockAccount.class));
+        Assert.assertEquals(storage.getAccount(other, MockAccount.class).getTarget(), "new target");
+    }
+
+    @Test
+    public void testAddDuringAddShard() throws Exception {
+        MockStorage added = new MockStorage();
+        Map<String, StepUpAccountStorage> grown = new LinkedHashMap<>(shards);
+        grown.put("shard4", added);
+        ShardedStepUpAccountStorage probe = new ShardedStepUpAccountStorage();
+        probe.setShards(grown);
+        probe.initialize();
+        String moving = null;
+        for (String key : keys) {
+            if (probe.getShard(key) == added) {
+                moving = key;
+                break;
+            }
+        }
+        MockStorage previous = (MockStorage) storage.getShard(moving);
+        previous.delay = 300;
+        final String key = moving;
+        Thread writer = new Thread(() -> {
+            try {
+                storage.add(account("name", "target"), key);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+        Thread.sleep(50);
+        // the shard is added once the add routed by the previous ring is written
+        storage.addShard("shard4", added);
+        previous.delay = 0;
+        Assert.assertEquals(storage.migrate(keys), 1);
+        storage.completeMigration();
+        writer.join();
+        Assert.assertEquals(storage.getAccount(key, MockAccount.class).getTarget(), "target");
+        Assert.assertTrue(added.accounts.containsKey(key));
+        Assert.assertFalse(previous.accounts.containsKey(key));
+    }
+
+    @Test
+    public void testMigrationKeepsOrder() throws Exception {
+        for (String key : keys) {
+            storage.add(account("first", "target1"), key);
+            storage.add(account("second", "target2"), key);
+        }
+        MockStorage added = new MockStorage();
+        storage.addShard("shard4", added);
+        storage.migrate(keys);
+        storage.completeMigration();
+        for (String key : keys) {
+            Assert.assertEquals(storage.getAccount(key, MockAccount.class).getName(), "second");
+        }
+        String key = added.accounts.keySet().iterator().next();
+        Assert.assertEquals(added.accounts.get(key).size(), 2);
+        storage.remove(account(null, "target2"), key);
+        Assert.assertEquals(storage.getAccount(key, MockAccount.class).getName(), "first");
+    }
+
+    @Test
+    public void testMigrationKeepsDuplicates() throws Exception {
+        for (String key : keys) {
+            storage.add(account("first", "target"), key);
+            storage.add(account("second", "target"), key);
+        }
+        MockStorage added = new MockStorage();
+        storage.addShard("shard4", added);
+        storage.migrate(keys);
+        storage.completeMigration();
+        String key = added.accounts.keySet().iterator().next();
+        List<StepUpAccount> accounts = storage.getAccounts(key, MockAccount.class);
+        Assert.assertEquals(accounts.size(), 2);
+        Assert.assertEquals(accounts.get(0).getName(), "first");
+        Assert.assertEquals(accounts.get(1).getName(), "second");
+    }
+
+    @Test
+    public void testFailedMigrationKeepsAccounts() throws Exception {
+        addAll();
+        MockStorage added = new MockStorage();
+        storage.addShard("shard4", added);
+        added.fail = true;
+        try {
+            storage.migrate(keys);
+            Assert.fail("Migration must fail");
+        } catch (Exception e) {
+            Assert.assertEquals(e.getMessage(), "storage failure");
+        }
+        added.fail = false;
+        for (String key : keys) {
+            Assert.assertEquals(storage.getAccount(key, MockAccount.class).getTarget(), "target " + key);
+        }
+        // removal from the previous shard failing leaves the copies, which a rerun replaces
+        shard(0).failWrites = true;
+        try {
+            storage.migrate(keys);
+            Assert.fail("Migration must fail");
+        } catch (Exception e) {
+            Assert.assertEquals(e.getMessage(), "storage write failure");
+        }
+        shard(0).failWrites = false;
+        storage.migrate(keys);
+        storage.completeMigration();
+        for (String key : keys) {
+            if (storage.getShard(key) == added) {
+                Assert.assertEquals(added.accounts.get(key).size(), 1);
+            }
+            Assert.assertEquals(storage.getAccount(key, MockAccount.class).getTarget(), "target " + key);
+        }
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class StepUpAccountBatchProcessorTest {
+
+    private MockStorage storage;
+
+    private StepUpAccountBatchProcessor processor;
+
+    @BeforeMethod
+    public void setUp() {
+        storage = new MockStorage();
+        processor = new StepUpAccountBatchProcessor();
+    }
+
+    private JsonNode process(String request) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        processor.process(new ByteArrayInputStream(request.getBytes(StandardCharsets.UTF_8)), out, storage,
+                MockAccount.class, key -> !key.startsWith("other"));
+        return new ObjectMapper().readTree(out.toByteArray());
+    }
+
+    @Test
+    public void testOperations() throws Exception {
+        JsonNode response = process("{\"operations\":["
+                + "{\"op\":\"addaccount\",\"key\":\"user\",\"name\":\"TOTP\",\"target\":\"seed1\"},"
+                + "{\"op\":\"addaccount\",\"key\":\"user\",\"name\":\"TOTP\",\"target\":\"seed2\"},"
+                + "{\"op\":\"listaccounts\",\"key\":\"user\"},"
+                + "{\"op\":\"removeaccount\",\"key\":\"user\",\"target\":\"seed2\"},"
+                + "{\"op\":\"listaccounts\",\"key\":\"user\"},"
+                + "{\"op\":\"listaccounts\",\"key\":\"nobody\"}]}");
+        JsonNode results = response.get("results");
+        Assert.assertEquals(results.size(), 6);
+        for (int i = 0; i < 6; i++) {
+            Assert.assertEquals(results.get(i).get("index").asInt(), i);
+            Assert.assertEquals(results.get(i).get("status").asText(), "ok");
+        }
+        Assert.assertEquals(results.get(2).get("accounts").size(), 2);
+        Assert.assertEquals(results.get(2).get("accounts").get(0).get("target").asText(), "seed1");
+        Assert.assertEquals(results.get(2).get("accounts").get(1).get("target").asText(), "seed2");
+        Assert.assertEquals(results.get(2).get("accounts").get(1).get("name").asText(), "TOTP");
+        Assert.assertEquals(results.get(4).get("accounts").size(), 1);
+        Assert.assertEquals(results.get(4).get("accounts").get(0).get("target").asText(), "seed1");
+        Assert.assertEquals(results.get(5).get("accounts").size(), 0);
+        Assert.assertEquals(response.get("operations").asInt(), 6);
+        Assert.assertEquals(response.get("failed").asInt(), 0);
+        Assert.assertNull(response.get("error"));
+        Assert.assertEquals(storage.batches.get(), 2);
+    }
+
+    @Test
+    public void testSecretTargetNotListed() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        processor.process(new ByteArrayInputStream(("{\"operations\":["
+                + "{\"op\":\"addaccount\",\"key\":\"user\",\"name\":\"TOTP\",\"target\":\"JBSWY3DPEHPK3PXP\"},"
+                + "{\"op\":\"listaccounts\",\"key\":\"user\"}]}").getBytes(StandardCharsets.UTF_8)), out, storage,
+                GoogleAuthenticatorStepUpAccount.class, key -> true);
+        String written = out.toString(StandardCharsets.UTF_8);
+        Assert.assertFalse(written.contains("JBSWY3DPEHPK3PXP"));
+        JsonNode account = new ObjectMapper().readTree(written).get("results").get(1).get("accounts").get(0);
+        Assert.assertEquals(account.get("name").asText(), "TOTP");
+        Assert.assertNull(account.get("target"));
+        Assert.assertEquals(storage.accounts.get("user").get(0)[1], "JBSWY3DPEHPK3PXP");
+    }
+
+    @Test
+    public void testForbiddenAndInvalid() throws Exception {
+        JsonNode response = process("{\"operations\":["
+                + "{\"op\":\"addaccount\",\"key\":\"other\",\"target\":\"seed\"},"
+                + "{\"op\":\"addaccount\",\"key\":\"user\"},"
+                + "{\"op\":\"unknown\",\"key\":\"user\",\"target\":\"seed\"},"
+                + "{\"op\":\"removeaccount\",\"target\":\"seed\"},"
+                + "{\"op\":\"addaccount\",\"key\":\"user\",\"target\":\"seed\"}]}");
+        JsonNode results = response.get("results");
+        Assert.assertEquals(results.get(0).get("status").asText(), "forbidden");
+        Assert.assertEquals(results.get(1).get("status").asText(), "invalid");
+        Assert.assertEquals(results.get(2).get("status").asText(), "invalid");
+        Assert.assertEquals(results.get(3).get("status").asText(), "invalid");
+        Assert.assertEquals(results.get(4).get("status").asText(), "ok");
+        Assert.assertEquals(response.get("failed").asInt(), 4);
+        Assert.assertFalse(storage.accounts.containsKey("other"));
+        Assert.assertEquals(storage.accounts.get("user").size(), 1);
+    }
+
+    @Test
+    public void testStorageFailure() throws Exception {
+        storage.fail = true;
+        Map<String, Object> summary = processor.process(new ByteArrayInputStream(("{\"operations\":["
+                + "{\"op\":\"addaccount\",\"key\":\"user\",\"target\":\"seed\"},"
+                + "{\"op\":\"listaccounts\",\"key\":\"user\"}]}").getBytes(StandardCharsets.UTF_8)),
+                new ByteArrayOutputStream(), storage, MockAccount.class, key -> true);
+        Assert.assertEquals(summary.get("operations"), 2);
+        Assert.assertEquals(summary.get("failed"), 2);
+    }
+
+    @Test
+    public void testMalformed() throws Exception {
+        JsonNode response = process("{\"operations\":["
+                + "{\"op\":\"addaccount\",\"key\":\"user\",\"target\":\"seed\"},{\"op\":");
+        Assert.assertEquals(response.get("results").size(), 1);
+        Assert.assertEquals(response.get("results").get(0).get("status").asText(), "ok");
+        Assert.assertEquals(response.get("error").asText(), "Malformed request");
+        Assert.assertEquals(storage.accounts.get("user").size(), 1);
+        Assert.assertEquals(process("[]").get("error").asText(), "Request is not an object");
+        Assert.assertEquals(process("{\"operations\":{}}").get("error").asText(), "Operations is not an array");
+    }
+
+    @Test
+    public void testMaxOperations() throws Exception {
+        processor.setMaxOperations(1);
+        JsonNode response = process("{\"operations\":["
+                + "{\"op\":\"addaccount\",\"key\":\"user\",\"target\":\"seed1\"},"
+                + "{\"op\":\"addaccount\",\"key\":\"user\",\"target\":\"seed2\"}]}");
+        Assert.assertEquals(response.get("operations").asInt(), 1);
+        Assert.assertEquals(response.get("error").asText(), "Too many operations");
+        Assert.assertEquals(storage.accounts.get("user").size(), 1);
+    }
+
+    @Test
+    public void testChunking() throws Exception {
+        processor.setBatchSize(10);
+        StringBuilder request = new StringBuilder("{\"operations\":[");
+        for (int i = 0; i < 95; i++) {
+            request.append(i == 0 ? "" : ",").append("{\"op\":\"addaccount\",\"key\":\"user").append(i)
+                    .append("\",\"target\":\"seed\"}");
+        }
+        JsonNode response = process(request.append("]}").toString());
+        Assert.assertEquals(response.get("results").size(), 95);
+        Assert.assertEquals(response.get("results").get(94).get("index").asInt(), 94);
+        Assert.assertEquals(storage.batches.get(), 10);
+        Assert.assertEquals(storage.accounts.size(), 95);
+    }
+
+    /** Streams a large request generated on the fly, the results discarded. */
+    @Test
+    public void testStreaming() throws Exception {
+        final int count = 200000;
+        InputStream in = new InputStream() {
+
+            private byte[] chunk = "{\"operations\":[".getBytes(StandardCharsets.UTF_8);
+
+            private int position;
+
+            private int generated;
+
+            @Override
+            public int read() {
+                if (position == chunk.length) {
+                    if (generated > count) {
+                        return -1;
+                    }
+                    String next = generated == count ? "]}"
+                            : (generated == 0 ? "" : ",") + "{\"op\":\"addaccount\",\"key\":\"user" + generated
+                                    + "\",\"target\":\"seed\"}";
+                    generated++;
+                    chunk = next.getBytes(StandardCharsets.UTF_8);
+                    position = 0;
+                }
+                return chunk[position++];
+            }
+        };
+        long[] written = new long[1];
+        OutputStream out = new OutputStream() {
+
+            @Override
+            public void write(int b) {
+                written[0]++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                written[0] += len;
+            }
+        };
+        long start = System.nanoTime();
+        Map<String, Object> summary = processor.process(in, out, storage, MockAccount.class, key -> true);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        Assert.assertEquals(summary.get("operations"), count);
+        Assert.assertEquals(summary.get("failed"), 0);
+        Assert.assertEquals(storage.accounts.size(), count);
+        Assert.assertEquals(storage.batches.get(), count / 1000);
+        Assert.assertTrue(written[0] > count * 20L);
+        Assert.assertTrue(elapsed < 30000, "took " + elapsed + " ms");
+    }
+}
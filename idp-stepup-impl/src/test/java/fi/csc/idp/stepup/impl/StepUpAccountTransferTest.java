@@ -0,0 +1,335 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import fi.csc.idp.stepup.api.StepUpAccount;
+import fi.csc.idp.stepup.api.StepUpAccountOperation;
+
+public class StepUpAccountTransferTest {
+
+    private final Logger log = LoggerFactory.getLogger(StepUpAccountTransferTest.class);
+
+    private MockStorage storage;
+
+    private StepUpAccountTransfer transfer;
+
+    private Path directory;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        storage = new MockStorage();
+        transfer = new StepUpAccountTransfer();
+        directory = Files.createTempDirectory("stepup-transfer");
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        for (File file : directory.toFile().listFiles()) {
+            file.delete();
+        }
+        Files.delete(directory);
+    }
+
+    private StepUpAccount account(String name, String target) {
+        StepUpAccount account = new MockAccount();
+        account.setName(name);
+        account.setTarget(target);
+        return account;
+    }
+
+    private InputStream input(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        storage.add(account("TOTP", "seed"), "user1");
+        storage.add(account(null, "tab\there\\back\nline\r"), "user\t2");
+        storage.add(account("\u00e4\u20ac", "\\N"), "user3");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long count = transfer.exportAccounts(Arrays.asList("user1", "user\t2", "nobody", "", "user3").iterator(),
+                storage, MockAccount.class, out);
+        Assert.assertEquals(count, 3);
+        String exported = out.toString(StandardCharsets.UTF_8);
+        Assert.assertTrue(exported.startsWith(StepUpAccountTransfer.HEADER + "\n"));
+        Assert.assertEquals(exported.split("\n").length, 4);
+        Assert.assertTrue(exported.contains("\nuser1\tTOTP\tseed\n"));
+
+        MockStorage target = new MockStorage();
+        Assert.assertEquals(transfer.importAccounts(new ByteArrayInputStream(out.toByteArray()), target,
+                MockAccount.class), 3);
+        StepUpAccount account = target.getAccount("user\t2", MockAccount.class);
+        Assert.assertNull(account.getName());
+        Assert.assertEquals(account.getTarget(), "tab\there\\back\nline\r");
+        account = target.getAccount("user3", MockAccount.class);
+        Assert.assertEquals(account.getName(), "\u00e4\u20ac");
+        Assert.assertEquals(account.getTarget(), "\\N");
+        Assert.assertEquals(target.getAccount("user1", MockAccount.class).getTarget(), "seed");
+    }
+
+    @Test
+    public void testCommentLikeKey() throws Exception {
+        storage.add(account("TOTP", "seed1"), "#user");
+        storage.add(account("TOTP", "seed2"), "#");
+        storage.add(account("TOTP", "seed3"), "\\#user");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(transfer.exportAccounts(Arrays.asList("#user", "#", "\\#user").iterator(), storage,
+                MockAccount.class, out), 3);
+        Assert.assertTrue(out.toString(StandardCharsets.UTF_8).contains("\n\\#user\tTOTP\tseed1\n"));
+        MockStorage target = new MockStorage();
+        Assert.assertEquals(transfer.importAccounts(new ByteArrayInputStream(out.toByteArray()), target,
+                MockAccount.class), 3);
+        Assert.assertEquals(target.getAccount("#user", MockAccount.class).getTarget(), "seed1");
+        Assert.assertEquals(target.getAccount("#", MockAccount.class).getTarget(), "seed2");
+        Assert.assertEquals(target.getAccount("\\#user", MockAccount.class).getTarget(), "seed3");
+        Assert.assertEquals(target.accounts.size(), 3);
+    }
+
+    @Test
+    public void testTypes() throws Exception {
+        transfer.importAccounts(input("#comment\n\nkey1\t\tname\ttarget\nkey2\t"
+                + ChallengeSenderStepUpAccount.class.getName() + "\tname\ttarget\n"), storage, MockAccount.class);
+        Assert.assertEquals(storage.accounts.size(), 2);
+        try {
+            transfer.importAccounts(input("key\tjava.lang.String\tname\ttarget\n"), storage, MockAccount.class);
+            Assert.fail("String is not an account");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("line 1"));
+        }
+        try {
+            transfer.importAccounts(input("key\tno.such.Account\tname\ttarget\n"), storage, MockAccount.class);
+            Assert.fail("type is not known");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("not known"));
+        }
+    }
+
+    @Test
+    public void testAllAccountsOfKey() throws Exception {
+        storage.add(account("first", "target1"), "user");
+        storage.add(account("second", "target2"), "user");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(transfer.exportAccounts(Arrays.asList("user").iterator(), storage, MockAccount.class,
+                out), 2);
+        MockStorage target = new MockStorage();
+        transfer.importAccounts(new ByteArrayInputStream(out.toByteArray()), target, MockAccount.class);
+        Assert.assertEquals(target.accounts.get("user").size(), 2);
+        Assert.assertEquals(target.getAccount("user", MockAccount.class).getName(), "second");
+    }
+
+    @Test
+    public void testFirstFormat() throws Exception {
+        transfer.importAccounts(input(StepUpAccountTransfer.HEADER_V1 + "\nkey1\t\tname\ttarget\n"), storage,
+                MockAccount.class);
+        Assert.assertEquals(storage.getAccount("key1", MockAccount.class).getName(), "name");
+        try {
+            transfer.importAccounts(input(StepUpAccountTransfer.HEADER + "\nkey\t\tname\ttarget\n"), storage,
+                    MockAccount.class);
+            Assert.fail("line has too many fields");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("key, name and target"));
+        }
+    }
+
+    @Test
+    public void testImportTwice() throws Exception {
+        String content = StepUpAccountTransfer.HEADER + "\nuser1\tTOTP\tseed1\nuser1\tTOTP\tseed2\nuser2\tTOTP\tseed\n";
+        Assert.assertEquals(transfer.importAccounts(input(content), storage, MockAccount.class), 3);
+        storage.add(account("TOTP", "seed3"), "user2");
+        transfer.importAccounts(input(content), storage, MockAccount.class);
+        Assert.assertEquals(storage.accounts.get("user1").size(), 2);
+        Assert.assertEquals(storage.accounts.get("user2").size(), 2);
+        Assert.assertEquals(storage.getAccount("user2", MockAccount.class).getTarget(), "seed3");
+    }
+
+    @Test
+    public void testMalformed() throws Exception {
+        try {
+            transfer.importAccounts(input("key\t\tname\ttarget\nkey\tname\ttarget\n"), storage, MockAccount.class);
+            Assert.fail("line has too few fields");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("Line 2"));
+        }
+        try {
+            transfer.importAccounts(input("key\t\tname\ttarget\textra\n"), storage, MockAccount.class);
+            Assert.fail("line has too many fields");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("Line 1"));
+        }
+    }
+
+    @Test
+    public void testChunksKeepKeys() throws Exception {
+        transfer.setChunkSize(2);
+        transfer.importAccounts(input("a\t\tn\t1\na\t\tn\t2\na\t\tn\t3\nb\t\tn\t1\nc\t\tn\t1\nc\t\tn\t2\n"), storage,
+                MockAccount.class);
+        Assert.assertEquals(storage.batches.get(), 2);
+        Assert.assertEquals(storage.accounts.get("a").size(), 3);
+        Assert.assertEquals(storage.getAccount("a", MockAccount.class).getTarget(), "3");
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        transfer.setThreads(4);
+        transfer.setChunkSize(100);
+        storage.delay = 1;
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            content.append("user").append(i / 3).append("\t\tTOTP\t").append(i).append('\n');
+        }
+        Assert.assertEquals(transfer.importAccounts(input(content.toString()), storage, MockAccount.class), 10000);
+        Assert.assertEquals(storage.accounts.size(), 3334);
+        for (int i = 0; i < 3333; i++) {
+            List<String[]> accounts = storage.accounts.get("user" + i);
+            Assert.assertEquals(accounts.get(2)[1], String.valueOf(i * 3 + 2));
+        }
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        Path checkpoint = directory.resolve("checkpoint");
+        transfer.setCheckpoint(checkpoint);
+        transfer.setThreads(3);
+        transfer.setChunkSize(10);
+        StringBuilder content = new StringBuilder(StepUpAccountTransfer.HEADER).append('\n');
+        for (int i = 0; i < 1000; i++) {
+            content.append("user").append(i).append("\tTOTP\t").append(i).append('\n');
+        }
+        AtomicInteger calls = new AtomicInteger();
+        MockStorage failing = new MockStorage() {
+
+            @Override
+            public void executeBatch(List<StepUpAccountOperation> operations) throws Exception {
+                if (calls.incrementAndGet() == 40) {
+                    throw new Exception("storage failure");
+                }
+                super.executeBatch(operations);
+            }
+        };
+        try {
+            transfer.importAccounts(input(content.toString()), failing, MockAccount.class);
+            Assert.fail("import should fail");
+        } catch (Exception e) {
+            Assert.assertEquals(e.getMessage(), "storage failure");
+        }
+        Assert.assertTrue(Files.exists(checkpoint));
+        int imported = failing.accounts.size();
+        Assert.assertTrue(imported < 1000);
+        long resumed = transfer.importAccounts(input(content.toString()), failing, MockAccount.class);
+        Assert.assertEquals(resumed, 1000 - imported);
+        Assert.assertEquals(failing.accounts.size(), 1000);
+        for (List<String[]> accounts : failing.accounts.values()) {
+            Assert.assertEquals(accounts.size(), 1);
+        }
+        Assert.assertFalse(Files.exists(checkpoint));
+    }
+
+    @Test
+    public void testManyAccounts() throws Exception {
+        transfer(20000);
+    }
+
+    /** Benchmark transferring millions of accounts through files and a mapped storage, run with the perf profile. */
+    @Test(groups = "perf")
+    public void testMillions() throws Exception {
+        transfer(2000000);
+    }
+
+    /**
+     * Transfer accounts through files and a mapped storage on local disk.
+     * 
+     * @param count number of accounts
+     */
+    private void transfer(final int count) throws Exception {
+        Path source = directory.resolve("source.txt");
+        try (Writer writer = Files.newBufferedWriter(source, StandardCharsets.UTF_8)) {
+            writer.write(StepUpAccountTransfer.HEADER + "\n");
+            for (int i = 0; i < count; i++) {
+                writer.write("user" + i + "\tTOTP\tJBSWY3DPEHPK3PXP" + i + "\n");
+            }
+        }
+        MappedStepUpAccountStorage mapped = new MappedStepUpAccountStorage();
+        mapped.setPath(directory.resolve("accounts.log").toString());
+        mapped.setCompactionInterval(0);
+        mapped.initialize();
+        try {
+            transfer.setThreads(4);
+            transfer.setCheckpoint(directory.resolve("checkpoint"));
+            long start = System.nanoTime();
+            try (InputStream in = Files.newInputStream(source)) {
+                Assert.assertEquals(transfer.importAccounts(in, mapped, MockAccount.class), count);
+            }
+            long imported = System.nanoTime();
+            Assert.assertEquals(mapped.size(), count);
+            Path target = directory.resolve("target.txt");
+            Iterator<String> keys = new Iterator<>() {
+
+                private int next;
+
+                @Override
+                public boolean hasNext() {
+                    return next < count;
+                }
+
+                @Override
+                public String next() {
+                    return "user" + next++;
+                }
+            };
+            try (OutputStream out = Files.newOutputStream(target)) {
+                Assert.assertEquals(transfer.exportAccounts(keys, mapped, MockAccount.class, out), count);
+            }
+            long exported = System.nanoTime();
+            log.info("Imported {} accounts in {} ms, exported in {} ms", count, (imported - start) / 1000000,
+                    (exported - imported) / 1000000);
+            Assert.assertEquals(Files.mismatch(target, source), -1L);
+            Assert.assertEquals(mapped.getAccount("user12345", MockAccount.class).getTarget(),
+                    "JBSWY3DPEHPK3PXP12345");
+        } finally {
+            mapped.destroy();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import org.opensaml.core.config.ConfigurationService;
+import org.opensaml.profile.action.ActionSupport;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+import fi.csc.idp.stepup.api.ChallengeGenerator;
+import fi.csc.idp.stepup.api.ChallengeSender;
+import fi.csc.idp.stepup.api.StepUpEventIds;
+
+public class StepUpMetricsTest {
+
+    private MetricRegistry registry;
+
+    @BeforeMethod
+    public void setUp() {
+        registry = new MetricRegistry();
+        ConfigurationService.register(MetricRegistry.class, registry);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        ConfigurationService.deregister(MetricRegistry.class);
+    }
+
+    private long count(String name) {
+        return registry.getTimers().containsKey(name) ? registry.getTimers().get(name).getCount() : 0;
+    }
+
+    @Test
+    public void testRecord() {
+        long started = StepUpMetrics.start();
+        StepUpMetrics.record(StepUpMetrics.SEND, "TOTP", "proceed", started);
+        StepUpMetrics.record(StepUpMetrics.SEND, "TOTP", "proceed", started);
+        StepUpMetrics.record(StepUpMetrics.SEND, "Mail via smtp.example.org", null, started);
+        Assert.assertEquals(count("fi.csc.idp.stepup.send.TOTP.proceed"), 2);
+        Assert.assertEquals(count("fi.csc.idp.stepup.send.Mail_via_smtp_example_org.unknown"), 1);
+        Assert.assertTrue(registry.getTimers().get("fi.csc.idp.stepup.send.TOTP.proceed").getSnapshot()
+                .getMax() >= 0);
+    }
+
+    @Test
+    public void testRecordAction() {
+        ProfileRequestContext prc = new ProfileRequestContext();
+        StepUpMetrics.recordAction("Action", prc, null, StepUpMetrics.start());
+        Assert.assertEquals(count("fi.csc.idp.stepup.Action.unknown.proceed"), 1);
+        ActionSupport.buildEvent(prc, StepUpEventIds.EVENTID_INVALID_RESPONSE);
+        Assert.assertEquals(StepUpMetrics.getEvent(prc), StepUpEventIds.EVENTID_INVALID_RESPONSE);
+        StepUpMetrics.recordAction("Action", prc, "SMS", StepUpMetrics.start());
+        Assert.assertEquals(count("fi.csc.idp.stepup.Action.SMS.StepUpWrongResponse"), 1);
+    }
+
+    @Test
+    public void testNoRegistry() {
+        ConfigurationService.deregister(MetricRegistry.class);
+        StepUpMetrics.record(StepUpMetrics.SEND, "TOTP", "proceed", StepUpMetrics.start());
+        Assert.assertTrue(registry.getTimers().isEmpty());
+    }
+
+    @Test
+    public void testSender() throws Exception {
+        ChallengeSenderStepUpAccount account = new ChallengeSenderStepUpAccount();
+        account.setChallengeGenerator(new ChallengeGen());
+        account.setChallengeSender(new FailingSender());
+        account.setTarget("target");
+        account.sendChallenge();
+        try {
+            account.sendChallenge();
+            Assert.fail("sending should fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertEquals(count("fi.csc.idp.stepup.sender.FailingSender.proceed"), 1);
+        Assert.assertEquals(count("fi.csc.idp.stepup.sender.FailingSender.IllegalStateException"), 1);
+    }
+
+    @Test
+    public void testVerifier() throws Exception {
+        ChallengeSenderStepUpAccount account = new ChallengeSenderStepUpAccount();
+        account.setChallengeGenerator(new ChallengeGen());
+        account.setChallengeSender((challenge, target) -> {
+        });
+        account.setChallengeVerifier(new EqualChallengeResponseVerifier());
+        account.setTarget("target");
+        account.sendChallenge();
+        Assert.assertFalse(account.verifyResponse("wrong"));
+        Assert.assertEquals(count("fi.csc.idp.stepup.verifier.EqualChallengeResponseVerifier.proceed"), 1);
+    }
+
+    class ChallengeGen implements ChallengeGenerator {
+
+        @Override
+        public String generate(String target) throws Exception {
+            return "challenge";
+        }
+    }
+
+    class FailingSender implements ChallengeSender {
+
+        private int sent;
+
+        @Override
+        public void send(String challenge, String target) throws Exception {
+            if (sent++ > 0) {
+                throw new IllegalStateException("sending failed");
+            }
+        }
+    }
+}
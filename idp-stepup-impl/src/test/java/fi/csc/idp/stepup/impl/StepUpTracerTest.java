@@ -0,0 +1,182 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fi.csc.idp.stepup.api.StepUpMethodContext;
+import fi.csc.idp.stepup.api.StepUpTraceContext;
+import fi.csc.idp.stepup.api.StepUpTraceExporter;
+import net.shibboleth.idp.authn.context.AuthenticationContext;
+
+public class StepUpTracerTest {
+
+    private StepUpTracer tracer;
+
+    private StepUpTraceExporter exporter;
+
+    private StepUpTraceContext exported;
+
+    private int exports;
+
+    @BeforeMethod
+    public void setUp() {
+        exported = null;
+        exports = 0;
+        exporter = trace -> {
+            exported = trace;
+            exports++;
+        };
+        tracer = new StepUpTracer();
+        tracer.setEnabled(true);
+        tracer.setBufferSize(3);
+        tracer.setExporter(exporter);
+        tracer.initialize();
+    }
+
+    private ProfileRequestContext login() {
+        ProfileRequestContext prc = new ProfileRequestContext();
+        prc.addSubcontext(new AuthenticationContext());
+        tracer.startSpan(prc, "InitializeStepUp");
+        tracer.endSpan(prc, "InitializeStepUp", "proceed");
+        tracer.startSpan(prc, "DisplayChallenge");
+        tracer.endSpan(prc, "DisplayChallenge", "rendered");
+        tracer.complete(prc);
+        return prc;
+    }
+
+    private StepUpTraceContext getTrace(ProfileRequestContext prc) {
+        return prc.getSubcontext(AuthenticationContext.class).getSubcontext(StepUpMethodContext.class)
+                .getSubcontext(StepUpTraceContext.class);
+    }
+
+    @Test
+    public void testTrace() {
+        ProfileRequestContext prc = login();
+        StepUpTraceContext trace = getTrace(prc);
+        Assert.assertTrue(trace.isCompleted());
+        Assert.assertEquals(trace.getSpans().size(), 2);
+        Assert.assertEquals(trace.getSpans().get(0).getName(), "InitializeStepUp");
+        Assert.assertEquals(trace.getSpans().get(0).getOutcome(), "proceed");
+        Assert.assertEquals(trace.getSpans().get(1).getOutcome(), "rendered");
+        Assert.assertEquals(tracer.getTraces().size(), 1);
+    }
+
+    @Test
+    public void testDetachedCopyKept() {
+        ProfileRequestContext prc = login();
+        StepUpTraceContext trace = getTrace(prc);
+        Assert.assertNotSame(exported, trace);
+        Assert.assertNull(exported.getParent());
+        Assert.assertSame(tracer.getTraces().get(0), exported);
+        Assert.assertEquals(exported.getTraceId(), trace.getTraceId());
+        Assert.assertEquals(exported.getDurationNanos(), trace.getDurationNanos());
+        Assert.assertEquals(exported.getSpans().size(), 2);
+        Assert.assertEquals(exported.getSpans().get(1).getOutcome(), "rendered");
+        Assert.assertEquals(exported.getSpans().get(1).getDurationNanos(),
+                trace.getSpans().get(1).getDurationNanos());
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        tracer = new StepUpTracer();
+        tracer.setExporter(exporter);
+        tracer.initialize();
+        ProfileRequestContext prc = login();
+        Assert.assertNull(prc.getSubcontext(AuthenticationContext.class).getSubcontext(StepUpMethodContext.class));
+        Assert.assertEquals(exports, 0);
+    }
+
+    @Test
+    public void testCompletedOnce() {
+        ProfileRequestContext prc = login();
+        tracer.startSpan(prc, "VerifyPasswordFromFormRequest");
+        tracer.complete(prc);
+        Assert.assertEquals(exports, 1);
+        Assert.assertEquals(getTrace(prc).getSpans().size(), 2);
+        Assert.assertEquals(tracer.getTraces().size(), 1);
+    }
+
+    @Test
+    public void testNoTrace() {
+        ProfileRequestContext prc = new ProfileRequestContext();
+        tracer.startSpan(prc, "InitializeStepUp");
+        tracer.complete(prc);
+        prc.addSubcontext(new AuthenticationContext());
+        tracer.endSpan(prc, "InitializeStepUp", "proceed");
+        tracer.complete(prc);
+        Assert.assertNull(prc.getSubcontext(AuthenticationContext.class).getSubcontext(StepUpMethodContext.class));
+        Assert.assertEquals(exports, 0);
+        Assert.assertTrue(tracer.getTraces().isEmpty());
+    }
+
+    @Test
+    public void testDisabled() {
+        tracer.setEnabled(false);
+        ProfileRequestContext prc = login();
+        Assert.assertNull(prc.getSubcontext(AuthenticationContext.class).getSubcontext(StepUpMethodContext.class));
+        Assert.assertEquals(exports, 0);
+    }
+
+    @Test
+    public void testRingBuffer() {
+        ProfileRequestContext first = login();
+        for (int i = 0; i < 4; i++) {
+            login();
+        }
+        ProfileRequestContext last = login();
+        List<StepUpTraceContext> traces = tracer.getTraces();
+        // Buffer size 3 is rounded up to 4.
+        Assert.assertEquals(traces.size(), 4);
+        for (StepUpTraceContext trace : traces) {
+            Assert.assertNotEquals(trace.getTraceId(), getTrace(first).getTraceId());
+        }
+        Assert.assertEquals(traces.get(3).getTraceId(), getTrace(last).getTraceId());
+        Assert.assertEquals(exports, 6);
+    }
+
+    @Test
+    public void testDump() throws Exception {
+        ProfileRequestContext prc = login();
+        login();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tracer.dump(out);
+        JsonNode spans = new ObjectMapper().readTree(new String(out.toByteArray(), StandardCharsets.UTF_8));
+        Assert.assertEquals(spans.size(), 6);
+        Assert.assertEquals(spans.get(0).get("traceId").asText(), getTrace(prc).getTraceId());
+        Assert.assertEquals(spans.get(0).get("name").asText(), "stepup");
+        Assert.assertEquals(spans.get(1).get("name").asText(), "InitializeStepUp");
+        Assert.assertEquals(spans.get(1).get("parentId").asText(), spans.get(0).get("id").asText());
+    }
+}
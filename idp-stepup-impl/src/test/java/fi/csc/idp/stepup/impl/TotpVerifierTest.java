@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.csc.idp.stepup.impl;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.warrenstrange.googleauth.GoogleAuthenticator;
+
+public class TotpVerifierTest {
+
+    private TotpVerifier verifier;
+
+    private GoogleAuthenticator gAuth;
+
+    private String secret;
+
+    @BeforeMethod
+    public void setUp() {
+        verifier = new TotpVerifier();
+        gAuth = new GoogleAuthenticator();
+        secret = gAuth.createCredentials().getKey();
+    }
+
+    @Test
+    public void testSameCodesAsGoogleAuthenticator() {
+        long time = 1600000000000L;
+        for (int i = 0; i < 1000; i++) {
+            long at = time + i * 7919L;
+            int code = gAuth.getTotpPassword(secret, at);
+            Assert.assertTrue(verifier.verify(secret, code, at));
+            Assert.assertEquals(verifier.verify(secret, (code + 1) % 1000000, at),
+                    gAuth.authorize(secret, (code + 1) % 1000000, at));
+        }
+    }
+
+    @Test
+    public void testWindow() {
+        long time = 1600000000000L;
+        int code = gAuth.getTotpPassword(secret, time);
+        Assert.assertTrue(verifier.verify(secret, code, time - 30000));
+        Assert.assertTrue(verifier.verify(secret, code, time + 30000));
+        Assert.assertFalse(verifier.verify(secret, code, time + 90000));
+        Assert.assertFalse(verifier.verify(secret, code, time - 90000));
+    }
+
+    @Test
+    public void testInvalidCodes() {
+        Assert.assertFalse(verifier.verify(secret, 0));
+        Assert.assertFalse(verifier.verify(secret, -1));
+        Assert.assertFalse(verifier.verify(secret, 1000000));
+    }
+
+    @Test
+    public void testLowerCaseSecret() {
+        long time = 1600000000000L;
+        int code = gAuth.getTotpPassword(secret, time);
+        Assert.assertTrue(verifier.verify(secret.toLowerCase(), code, time));
+    }
+
+    @Test
+    public void testReuseRejected() {
+        verifier.setUsedCodeRegistry(new LocalUsedCodeRegistry());
+        long time = System.currentTimeMillis();
+        int code = gAuth.getTotpPassword(secret, time);
+        Assert.assertTrue(verifier.verify(secret, code, time));
+        Assert.assertFalse(verifier.verify(secret, code, time));
+        Assert.assertFalse(verifier.verify(secret, code, time + 30000));
+        int next = gAuth.getTotpPassword(secret, time + 30000);
+        Assert.assertTrue(verifier.verify(secret, next, time + 30000));
+    }
+
+    @Test
+    public void testReuseRejectedByReplayCache() {
+        Set<String> seen = new HashSet<>();
+        verifier.setUsedCodeRegistry(
+                new ReplayCacheUsedCodeRegistry((context, key, expires) -> seen.add(context + key)));
+        long time = System.currentTimeMillis();
+        int code = gAuth.getTotpPassword(secret, time);
+        Assert.assertTrue(verifier.verify(secret, code, time));
+        Assert.assertFalse(verifier.verify(secret.toLowerCase(), code, time));
+        Assert.assertEquals(seen.size(), 1);
+        Assert.assertFalse(seen.iterator().next().contains(secret));
+    }
+
+    @Test
+    public void testCacheBounded() {
+        verifier.setCacheSize(10);
+        for (int i = 0; i < 100; i++) {
+            verifier.verify(gAuth.createCredentials().getKey(), 123456);
+        }
+        Assert.assertEquals(verifier.getCachedKeyCount(), 10);
+    }
+
+    @Test
+    public void testVerificationRate() {
+        int rounds = 100000;
+        long time = 1600000000000L;
+        int code = gAuth.getTotpPassword(secret, time);
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                Assert.assertTrue(new GoogleAuthenticator().authorize(secret, code, time));
+            }
+            long before = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                Assert.assertTrue(verifier.verify(secret, code, time));
+            }
+            long after = System.nanoTime();
+            LoggerFactory.getLogger(TotpVerifierTest.class).info(
+                    "Verifications per second: GoogleAuthenticator {}, TotpVerifier {}",
+                    rounds * 1000000000L / (before - start), rounds * 1000000000L / (after - before));
+        }
+    }
+}
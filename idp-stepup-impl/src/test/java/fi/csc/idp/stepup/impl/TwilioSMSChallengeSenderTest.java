@@ -0,0 +1,324 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fi.csc.idp.stepup.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import fi.csc.idp.stepup.api.ChallengeDeliveryStatus;
+
+public class TwilioSMSChallengeSenderTest {
+
+    static {
+        // stub server must not delay responses on kept alive connections
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private HttpServer server;
+
+    private ExecutorService serverExecutor;
+
+    private AtomicInteger requests;
+
+    private volatile String status;
+
+    private volatile String fetchStatus;
+
+    private volatile long delay;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        requests = new AtomicInteger();
+        status = "queued";
+        fetchStatus = "sent";
+        delay = 0;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        serverExecutor = Executors.newFixedThreadPool(20);
+        server.setExecutor(serverExecutor);
+        server.start();
+    }
+
+    @AfterMethod
+    public void end() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        if ("GET".equals(exchange.getRequestMethod())) {
+            // message fetch, /2010-04-01/Accounts/{AccountSid}/Messages/{Sid}.json
+            String path = exchange.getRequestURI().getPath();
+            String sid = path.substring(path.lastIndexOf('/') + 1, path.length() - ".json".length());
+            respond(exchange, 200, "{\"sid\":\"" + sid + "\",\"status\":\"" + fetchStatus + "\"}");
+            return;
+        }
+        int request = requests.incrementAndGet();
+        try (InputStream in = exchange.getRequestBody()) {
+            in.readAllBytes();
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        respond(exchange, 201, "{\"sid\":\"SM" + request + "\",\"status\":\"" + status + "\"}");
+    }
+
+    private void respond(HttpExchange exchange, int code, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /** Sender routing the requests to the stub server instead of the Twilio API. */
+    private class StubRoutedSender extends TwilioSMSChallengeSender {
+
+        @Override
+        protected HttpClientBuilder createHttpClientBuilder() {
+            final HttpHost stub = new HttpHost("127.0.0.1", server.getAddress().getPort(), "http");
+            return HttpClientBuilder.create().setRoutePlanner((target, request, context) -> new HttpRoute(stub));
+        }
+    }
+
+    private TwilioSMSChallengeSender createSender() {
+        TwilioSMSChallengeSender sender = new StubRoutedSender();
+        sender.setAccountSid("ACxxxxxxxx");
+        sender.setAuthToken("token");
+        sender.setSenderNumber("+358401234567");
+        sender.setMessage("The code is %s");
+        sender.setTimeout(5000);
+        return sender;
+    }
+
+    @Test
+    public void successSend() throws Exception {
+        TwilioSMSChallengeSender sender = createSender();
+        sender.initialize();
+        try {
+            sender.send("123456", "+358407654321");
+            sender.send("654321", "+358407654321");
+        } finally {
+            sender.destroy();
+        }
+        Assert.assertEquals(requests.get(), 2);
+    }
+
+    @Test(expectedExceptions = Exception.class)
+    public void failUndelivered() throws Exception {
+        status = "undelivered";
+        TwilioSMSChallengeSender sender = createSender();
+        try {
+            sender.send("123456", "+358407654321");
+        } finally {
+            sender.destroy();
+        }
+    }
+
+    @Test(expectedExceptions = Exception.class)
+    public void failNotConfigured() throws Exception {
+        TwilioSMSChallengeSender sender = new TwilioSMSChallengeSender();
+        sender.initialize();
+        sender.send("123456", "+358407654321");
+    }
+
+    @Test
+    public void failConcurrencyLimit() throws Exception {
+        delay = 500;
+        TwilioSMSChallengeSender sender = createSender();
+        sender.setMaxConcurrentRequests(1);
+        sender.setAcquireTimeout(50);
+        sender.initialize();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> first = executor.submit(() -> {
+                sender.send("123456", "+358407654321");
+                return null;
+            });
+            while (requests.get() == 0) {
+                Thread.sleep(5);
+            }
+            try {
+                sender.send("654321", "+358407654321");
+                Assert.fail("request over the concurrency limit must fail");
+            } catch (Exception e) {
+                // expected
+            }
+            first.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+            sender.destroy();
+        }
+        Assert.assertEquals(requests.get(), 1);
+    }
+
+    @Test
+    public void testLatency() throws Exception {
+        int count = 200;
+        long[] shared = new long[count];
+        TwilioSMSChallengeSender sender = createSender();
+        sender.initialize();
+        try {
+            for (int i = 0; i < count; i++) {
+                long start = System.nanoTime();
+                sender.send("" + i, "+358407654321");
+                shared[i] = System.nanoTime() - start;
+            }
+        } finally {
+            sender.destroy();
+        }
+        long[] perMessage = new long[count];
+        for (int i = 0; i < count; i++) {
+            long start = System.nanoTime();
+            TwilioSMSChallengeSender oneShot = createSender();
+            oneShot.initialize();
+            try {
+                oneShot.send("" + i, "+358407654321");
+            } finally {
+                oneShot.destroy();
+            }
+            perMessage[i] = System.nanoTime() - start;
+        }
+        Assert.assertEquals(requests.get(), 2 * count);
+        LoggerFactory.getLogger(TwilioSMSChallengeSenderTest.class).info(
+                "{} sends: shared client p50 {} us p99 {} us, client per message p50 {} us p99 {} us", count,
+                percentile(shared, 50), percentile(shared, 99), percentile(perMessage, 50),
+                percentile(perMessage, 99));
+    }
+
+    @Test
+    public void successAsyncSend() throws Exception {
+        delay = 300;
+        TwilioSMSChallengeSender sender = createSender();
+        sender.setAsync(true);
+        sender.initialize();
+        try {
+            long start = System.nanoTime();
+            sender.send("123456", "+358407654321");
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 300);
+            Assert.assertEquals(sender.getDeliveryStatus("123456", "+358407654321"), ChallengeDeliveryStatus.PENDING);
+            Assert.assertEquals(awaitStatus(sender, "123456", ChallengeDeliveryStatus.SENT),
+                    ChallengeDeliveryStatus.SENT);
+        } finally {
+            sender.destroy();
+        }
+        Assert.assertNull(sender.getDeliveryStatus("654321", "+358407654321"));
+    }
+
+    @Test
+    public void failAsyncSend() throws Exception {
+        status = "failed";
+        TwilioSMSChallengeSender sender = createSender();
+        sender.setAsync(true);
+        sender.initialize();
+        try {
+            sender.send("123456", "+358407654321");
+            Assert.assertEquals(awaitStatus(sender, "123456", ChallengeDeliveryStatus.FAILED),
+                    ChallengeDeliveryStatus.FAILED);
+        } finally {
+            sender.destroy();
+        }
+    }
+
+    @Test
+    public void successStatusPolling() throws Exception {
+        TwilioSMSChallengeSender sender = createSender();
+        sender.setAsync(true);
+        sender.setStatusPollInterval(20);
+        sender.initialize();
+        try {
+            sender.send("123456", "+358407654321");
+            Assert.assertEquals(awaitStatus(sender, "123456", ChallengeDeliveryStatus.SENT),
+                    ChallengeDeliveryStatus.SENT);
+            fetchStatus = "delivered";
+            Assert.assertEquals(awaitStatus(sender, "123456", ChallengeDeliveryStatus.DELIVERED),
+                    ChallengeDeliveryStatus.DELIVERED);
+        } finally {
+            sender.destroy();
+        }
+    }
+
+    @Test
+    public void successStatusPollingUndelivered() throws Exception {
+        TwilioSMSChallengeSender sender = createSender();
+        sender.setStatusPollInterval(20);
+        sender.initialize();
+        try {
+            sender.send("123456", "+358407654321");
+            Assert.assertEquals(sender.getDeliveryStatus("123456", "+358407654321"), ChallengeDeliveryStatus.SENT);
+            fetchStatus = "undelivered";
+            Assert.assertEquals(awaitStatus(sender, "123456", ChallengeDeliveryStatus.FAILED),
+                    ChallengeDeliveryStatus.FAILED);
+            // resolved status is not changed by later polls
+            fetchStatus = "delivered";
+            Thread.sleep(100);
+            Assert.assertEquals(sender.getDeliveryStatus("123456", "+358407654321"),
+                    ChallengeDeliveryStatus.FAILED);
+        } finally {
+            sender.destroy();
+        }
+    }
+
+    private ChallengeDeliveryStatus awaitStatus(TwilioSMSChallengeSender sender, String challenge,
+            ChallengeDeliveryStatus expected) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        ChallengeDeliveryStatus current = sender.getDeliveryStatus(challenge, "+358407654321");
+        while (current != expected && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+            current = sender.getDeliveryStatus(challenge, "+358407654321");
+        }
+        return current;
+    }
+
+    private static long percentile(long[] nanos, int percentile) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)] / 1000;
+    }
+}
@@ -144,4 +144,38 @@ public class VerifyPasswordFromFormRequestTest {
         final Event event = action.execute(src);
         Assert.assertNull(event);
     }
-}
+
+    /** Test that action rejects responses once user has too many failed responses */
+    @Test
+    public void testThrottledResponse() throws ComponentInitializationException {
+        FailedResponseThrottle throttle = new FailedResponseThrottle();
+        throttle.setMaxFailures(1);
+        baseInit(null);
+        action.setChallengeResponseParameter("parameter_key");
+        action.setThrottle(throttle);
+        action.initialize();
+        Event event = action.execute(src);
+        ActionTestingSupport.assertEvent(event, StepUpEventIds.EVENTID_INVALID_RESPONSE);
+        event = action.execute(src);
+        ActionTestingSupport.assertEvent(event, StepUpEventIds.EVENTID_RETRY_LATER);
+    }
+
+    /** Test that correct response clears the failed responses */
+    @Test
+    public void testThrottleResetOnCorrectResponse() throws ComponentInitializationException {
+        FailedResponseThrottle throttle = new FailedResponseThrottle();
+        throttle.setMaxFailures(2);
+        baseInit(null);
+        action.setChallengeResponseParameter("parameter_key");
+        action.setThrottle(throttle);
+        action.initialize();
+        ActionTestingSupport.assertEvent(action.execute(src), StepUpEventIds.EVENTID_INVALID_RESPONSE);
+        action = new VerifyPasswordFromFormRequest();
+        baseInit(null);
+        action.setChallengeResponseParameter("parameter_key2");
+        action.setThrottle(throttle);
+        action.initialize();
+        Assert.assertNull(action.execute(src));
+        Assert.assertEquals(throttle.size(), 0);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ * Copyright (c) 2015-2020 CSC - IT Center for Science, http://www.csc.fi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package fi.csc.idp.stepup.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+
+import fi.csc.idp.stepup.api.StepUpTraceContext;
+
+/** Tests the exporter against a local collector stub accepting Zipkin v2 spans. */
+public class ZipkinStepUpTraceExporterTest {
+
+    private HttpServer collector;
+
+    private final BlockingQueue<JsonNode> received = new LinkedBlockingQueue<>();
+
+    private volatile int status;
+
+    private ZipkinStepUpTraceExporter exporter;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        received.clear();
+        status = 202;
+        collector = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        collector.createContext("/api/v2/spans", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                received.add(new ObjectMapper().readTree(in));
+            }
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        });
+        collector.start();
+        exporter = new ZipkinStepUpTraceExporter();
+        exporter.setUrl("http://127.0.0.1:" + collector.getAddress().getPort() + "/api/v2/spans");
+        exporter.setServiceName("idp");
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        exporter.destroy();
+        collector.stop(0);
+    }
+
+    private StepUpTraceContext trace() {
+        StepUpTraceContext trace = new StepUpTraceContext();
+        trace.startSpan("InitializeStepUp");
+        trace.endSpan("InitializeStepUp", "proceed");
+        trace.startSpan("DisplayChallenge");
+        trace.complete();
+        return trace;
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        StepUpTraceContext trace = trace();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZipkinStepUpTraceExporter.write(List.of(trace), "idp", out);
+        JsonNode spans = new ObjectMapper().readTree(out.toByteArray());
+        Assert.assertEquals(spans.size(), 3);
+        JsonNode root = spans.get(0);
+        Assert.assertEquals(root.get("traceId").asText(), trace.getTraceId());
+        Assert.assertEquals(root.get("traceId").asText().length(), 32);
+        Assert.assertEquals(root.get("id").asText().length(), 16);
+        Assert.assertNull(root.get("parentId"));
+        Assert.assertEquals(root.get("name").asText(), "idp");
+        Assert.assertEquals(root.get("timestamp").asLong(), trace.getStartEpochMicros());
+        Assert.assertTrue(root.get("duration").asLong() >= 1);
+        Assert.assertEquals(root.get("localEndpoint").get("serviceName").asText(), "idp");
+        JsonNode initialize = spans.get(1);
+        Assert.assertEquals(initialize.get("parentId").asText(), root.get("id").asText());
+        Assert.assertNotEquals(initialize.get("id").asText(), root.get("id").asText());
+        Assert.assertEquals(initialize.get("tags").get("outcome").asText(), "proceed");
+        Assert.assertTrue(initialize.get("timestamp").asLong() >= root.get("timestamp").asLong());
+        // Span not ended has no duration.
+        Assert.assertNull(spans.get(2).get("duration"));
+        Assert.assertNull(spans.get(2).get("tags"));
+    }
+
+    @Test
+    public void testExport() throws Exception {
+        exporter.initialize();
+        StepUpTraceContext trace = trace();
+        exporter.export(trace);
+        JsonNode spans = received.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(spans);
+        Assert.assertEquals(spans.size(), 3);
+        Assert.assertEquals(spans.get(0).get("traceId").asText(), trace.getTraceId());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (exporter.getExportedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(exporter.getExportedCount(), 1);
+        Assert.assertEquals(exporter.getFailedCount(), 0);
+    }
+
+    @Test
+    public void testCollectorFailure() throws Exception {
+        status = 500;
+        exporter.initialize();
+        exporter.export(trace());
+        Assert.assertNotNull(received.poll(10, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (exporter.getFailedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(exporter.getFailedCount(), 1);
+        Assert.assertEquals(exporter.getExportedCount(), 0);
+    }
+
+    @Test
+    public void testDropped() {
+        // Not initialized, there is no queue.
+        exporter.export(trace());
+        Assert.assertEquals(exporter.getDroppedCount(), 1);
+    }
+}